@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counting and enumerating the objects of a repository of about a million
+ * objects, packed by git with reachability bitmaps, with and without the
+ * bitmaps. Without them, every tree of the history is read. Every invocation
+ * starts from an open repository, as a new request to a server would, so
+ * only the bitmaps decoded by earlier ones are reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class BitmapBenchmark {
+    private static final int COMMITS = 25_000;
+    private static final int DIRS = 100;
+    private static final int FILES_PER_DIR = 100;
+    private static final int EDITS = 20;
+    // How far behind the tip an incremental fetch starts.
+    private static final int BEHIND = 100;
+
+    @Param({ "true", "false" })
+    boolean useBitmaps;
+
+    private Repository git;
+    private List<Object> tip;
+    private List<Object> behind;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var root = Fixtures.repository("bitmap");
+        List<String> ids = Fixtures.wideHistory(root, COMMITS, DIRS, FILES_PER_DIR, EDITS);
+        git = Repository.open(root);
+        tip = List.of(Repository.objectId(ids.getLast()));
+        behind = List.of(Repository.objectId(ids.get(COMMITS - 1 - BEHIND)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(git.root());
+    }
+
+    // git rev-list --objects --count HEAD
+    @Benchmark
+    public long countObjects() throws Exception {
+        return git.countReachable(tip, useBitmaps);
+    }
+
+    // The objects of a full clone.
+    @Benchmark
+    public int enumerateClone() throws Exception {
+        return git.enumerateObjects(tip, List.of(), useBitmaps);
+    }
+
+    // The objects of a fetch by a client a hundred commits behind.
+    @Benchmark
+    public int enumerateFetch() throws Exception {
+        return git.enumerateObjects(tip, behind, useBitmaps);
+    }
+}
@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing, writing and reading single blobs, from a few bytes up to 256 MiB.
+ *
+ * <p>The blob is hashed and written both from memory and from a file in the
+ * work tree, which large blobs map rather than read. zlibAndSha1 runs the same
+ * bytes through a Deflater and SHA-1 in memory, with no file I/O, as the bound
+ * the writes can approach.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class BlobBenchmark {
+    @Param({ "16", "4096", "1048576", "16777216", "268435456" })
+    int size;
+
+    private Repository git;
+    private byte[] content;
+    private Path file;
+    private Object hash;
+    private byte[] unique;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        git = Repository.init(Fixtures.repository("blob"));
+        content = Fixtures.content(size, Fixtures.SEED);
+        unique = content.clone();
+        file = Files.write(git.root().resolve("blob.txt"), content);
+        hash = git.writeBlob(new ByteArrayInputStream(content), size);
+    }
+
+    // Drops the objects written by writeNewBlob, so that long runs of small
+    // blobs do not fill the disk.
+    @TearDown(Level.Iteration)
+    public void pruneNewBlobs() throws IOException {
+        Path keep = git.pathFor(hash);
+        try (var paths = Files.walk(git.root().resolve(".git/objects"))) {
+            for (var path : paths.filter(Files::isRegularFile).toList()) {
+                if (!path.equals(keep)) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(git.root());
+    }
+
+    @Benchmark
+    public Object hashBlob() throws Exception {
+        return git.hashBlob(new ByteArrayInputStream(content), size);
+    }
+
+    // Each invocation stamps a counter into the content, so every write
+    // stores a new object.
+    @Benchmark
+    public Object writeNewBlob() throws Exception {
+        long n = ++counter;
+        for (int i = 0; i < Long.BYTES; i++) {
+            unique[i] = (byte) (n >>> (8 * i));
+        }
+        return git.writeBlob(new ByteArrayInputStream(unique), size);
+    }
+
+    @Benchmark
+    public Object writeExistingBlob() throws Exception {
+        return git.writeBlob(new ByteArrayInputStream(content), size);
+    }
+
+    @Benchmark
+    public Object hashBlobFile() throws Exception {
+        return git.hashBlob(file);
+    }
+
+    @Benchmark
+    public Object writeBlobFile() throws Exception {
+        return git.writeBlob(file);
+    }
+
+    // Deflates at the loose-object default level, as writeBlob does.
+    @Benchmark
+    public byte[] zlibAndSha1() throws Exception {
+        var digest = MessageDigest.getInstance("SHA-1");
+        var deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[1 << 16];
+        try {
+            byte[] header = "blob %d\0".formatted(size).getBytes(StandardCharsets.US_ASCII);
+            digest.update(header);
+            digest.update(content);
+            deflater.setInput(header);
+            while (!deflater.needsInput()) {
+                deflater.deflate(buffer);
+            }
+            deflater.setInput(content);
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(buffer);
+            }
+        } finally {
+            deflater.end();
+        }
+        return digest.digest();
+    }
+
+    @Benchmark
+    public long readBlob() throws Exception {
+        try (var in = git.readBlob(hash)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+}
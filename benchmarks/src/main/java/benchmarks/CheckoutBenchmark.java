@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checks out a tree of 100,000 one-kilobyte files into an empty directory,
+ * writing one file at a time or many at once. Each checkout is a single shot
+ * into a fresh directory, which is deleted outside the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class CheckoutBenchmark {
+    private static final int FILES = 100_000;
+    private static final int FILE_SIZE = 1024;
+
+    @Param({ "1", "64" })
+    int ioLimit;
+
+    private Repository git;
+    private Object tree;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var root = Fixtures.repository("checkout");
+        tree = Repository.objectId(Fixtures.deepTree(root, FILES, FILE_SIZE));
+        git = Repository.open(root);
+    }
+
+    @Setup(Level.Iteration)
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory(git.root(), "worktree");
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteDir() throws IOException {
+        Fixtures.delete(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(git.root());
+    }
+
+    @Benchmark
+    public List<?> checkout() throws Exception {
+        return git.checkout(tree, dir, ioLimit);
+    }
+}
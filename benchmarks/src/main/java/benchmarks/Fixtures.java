@@ -0,0 +1,210 @@
+package benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic repository content. Everything is generated from fixed seeds, so
+ * each run benchmarks byte-identical objects.
+ */
+final class Fixtures {
+    static final long SEED = 0x6769745f62656e63L;
+
+    // Text-like content: deflate compresses it about as well as source code,
+    // unlike uniformly random bytes.
+    private static final byte[] ALPHABET = "etaoinshrdlu cmfwypvbgkqjxz_(){};.=\n".getBytes();
+
+    private Fixtures() {
+    }
+
+    static byte[] content(int size, long seed) {
+        var random = new SplittableRandom(seed);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return data;
+    }
+
+    static Path repository(String prefix) throws IOException {
+        return Files.createTempDirectory("jmh-" + prefix);
+    }
+
+    /**
+     * Fills a directory with the given number of files of the given size.
+     */
+    static void flatTree(Path dir, int width, int fileSize) throws IOException {
+        for (int i = 0; i < width; i++) {
+            Files.write(dir.resolve("file%06d.txt".formatted(i)), content(fileSize, SEED + i));
+        }
+    }
+
+    /**
+     * Builds a history of empty commits with git fast-import, one second
+     * apart. A linear history is a single chain. A merged one spreads the
+     * commits round-robin over {@code branches} branches, and every fifth
+     * commit also merges the next branch's head.
+     *
+     * @return The hex id of each commit, in the order they were made.
+     */
+    static List<String> history(Path root, int commits, int branches) throws IOException, InterruptedException {
+        git(root, null, "init", "-q");
+        var stream = new StringBuilder();
+        int[] heads = new int[branches];
+        for (int i = 1; i <= commits; i++) {
+            int branch = i % branches;
+            stream.append("commit refs/heads/b%d\nmark :%d\ncommitter bench <bench@example.com> %d +0000\ndata 0\n"
+                    .formatted(branch, i, 1_700_000_000L + i));
+            if (heads[branch] != 0) {
+                stream.append("from :%d\n".formatted(heads[branch]));
+            }
+            int other = heads[(branch + 1) % branches];
+            if (branches > 1 && i % 5 == 0 && other != 0) {
+                stream.append("merge :%d\n".formatted(other));
+            }
+            stream.append('\n');
+            heads[branch] = i;
+        }
+        Path marks = root.resolve(".git/marks");
+        git(root, stream.toString(), "fast-import", "--quiet", "--export-marks=" + marks);
+        var ids = new String[commits];
+        for (var line : Files.readAllLines(marks)) {
+            int space = line.indexOf(' ');
+            ids[Integer.parseInt(line.substring(1, space)) - 1] = line.substring(space + 1);
+        }
+        return List.of(ids);
+    }
+
+    /**
+     * Commits a tree of {@code files} files of the given size with git
+     * fast-import, a hundred to a directory and ten directories to a parent.
+     *
+     * @return The hex id of the tree.
+     */
+    static String deepTree(Path root, int files, int fileSize) throws IOException, InterruptedException {
+        git(root, null, "init", "-q");
+        var stream = new ByteArrayOutputStream();
+        stream.write("commit refs/heads/main\ncommitter bench <bench@example.com> 1700000000 +0000\ndata 0\n"
+                .getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < files; i++) {
+            String path = "d%d/d%d/file%d.txt".formatted(i / 1000, i / 100 % 10, i);
+            byte[] data = content(fileSize, SEED + i);
+            stream.write("M 100644 inline %s\ndata %d\n".formatted(path, data.length).getBytes(StandardCharsets.UTF_8));
+            stream.write(data);
+            stream.write('\n');
+        }
+        git(root, stream.toString(StandardCharsets.UTF_8), "fast-import", "--quiet");
+        return git(root, null, "rev-parse", "main^{tree}").trim();
+    }
+
+    /**
+     * Builds a history in which every commit edits a few lines of a few of
+     * the same {@code files} files, with git fast-import, and repacks it so
+     * that most blobs are stored as deltas.
+     */
+    static void evolvingHistory(Path root, int commits, int files, int fileSize)
+            throws IOException, InterruptedException {
+        git(root, null, "init", "-q");
+        var contents = new byte[files][];
+        for (int f = 0; f < files; f++) {
+            contents[f] = content(fileSize, SEED + f);
+        }
+        var random = new SplittableRandom(SEED);
+        var stream = new ByteArrayOutputStream();
+        for (int c = 0; c < commits; c++) {
+            stream.write("commit refs/heads/main\ncommitter bench <bench@example.com> %d +0000\ndata 0\n"
+                    .formatted(1_700_000_000L + c).getBytes(StandardCharsets.UTF_8));
+            for (int f = 0; f < files; f++) {
+                if (c > 0 && random.nextInt(files) >= 5) {
+                    continue;
+                }
+                if (c > 0) {
+                    byte[] edit = content(32, SEED + c * (long) files + f);
+                    System.arraycopy(edit, 0, contents[f], random.nextInt(fileSize - edit.length), edit.length);
+                }
+                stream.write("M 100644 inline d%d/file%d.txt\ndata %d\n".formatted(f / 100, f, fileSize)
+                        .getBytes(StandardCharsets.UTF_8));
+                stream.write(contents[f]);
+                stream.write('\n');
+            }
+        }
+        git(root, stream.toString(StandardCharsets.UTF_8), "fast-import", "--quiet");
+        git(root, null, "symbolic-ref", "HEAD", "refs/heads/main");
+        git(root, null, "repack", "-q", "-a", "-d", "-f");
+    }
+
+    /**
+     * Builds a long history over a wide tree of {@code dirs} directories of
+     * {@code filesPerDir} small files, in which every commit rewrites
+     * {@code edits} random files, with git fast-import. Each commit adds
+     * about twice as many objects as it edits files, so that 25,000 commits
+     * of 20 edits make a repository of a million objects. It is repacked
+     * into one pack with git's reachability bitmaps.
+     *
+     * @return The hex id of each commit, in the order they were made.
+     */
+    static List<String> wideHistory(Path root, int commits, int dirs, int filesPerDir, int edits)
+            throws IOException, InterruptedException {
+        git(root, null, "init", "-q");
+        int files = dirs * filesPerDir;
+        var random = new SplittableRandom(SEED);
+        var stream = new ByteArrayOutputStream();
+        for (int c = 0; c < commits; c++) {
+            stream.write("commit refs/heads/main\nmark :%d\ncommitter bench <bench@example.com> %d +0000\ndata 0\n"
+                    .formatted(c + 1, 1_700_000_000L + c).getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < (c == 0 ? files : edits); i++) {
+                int f = c == 0 ? i : random.nextInt(files);
+                byte[] data = "file %d version %d\n%s".formatted(f, c, new String(content(64, SEED + f),
+                        StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+                stream.write("M 100644 inline d%d/file%d.txt\ndata %d\n".formatted(f / filesPerDir, f, data.length)
+                        .getBytes(StandardCharsets.UTF_8));
+                stream.write(data);
+                stream.write('\n');
+            }
+        }
+        Path marks = root.resolve(".git/marks");
+        git(root, stream.toString(StandardCharsets.UTF_8), "fast-import", "--quiet", "--export-marks=" + marks);
+        git(root, null, "symbolic-ref", "HEAD", "refs/heads/main");
+        git(root, null, "repack", "-q", "-a", "-d", "-b");
+        var ids = new String[commits];
+        for (var line : Files.readAllLines(marks)) {
+            int space = line.indexOf(' ');
+            ids[Integer.parseInt(line.substring(1, space)) - 1] = line.substring(space + 1);
+        }
+        return List.of(ids);
+    }
+
+    private static String git(Path dir, String input, String... args) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.addAll(List.of(args));
+        var process = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try (var stdin = process.getOutputStream()) {
+            if (input != null) {
+                stdin.write(input.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        String out = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IOException("git %s failed".formatted(String.join(" ", args)));
+        }
+        return out;
+    }
+
+    static void delete(Path root) throws IOException {
+        try (var paths = Files.walk(root)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
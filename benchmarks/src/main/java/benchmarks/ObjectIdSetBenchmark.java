@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.util.HashSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Filling a set with a million to ten million random object ids, as a walk
+ * marks the objects it has seen, in an ObjectIdSet and in a HashSet of
+ * ObjectIds. The GC profiler's gc.alloc.rate.norm divided by the count is
+ * the bytes allocated per id, counting the tables dropped as the set grows;
+ * tableBytesPerId is what the ObjectIdSet's final tables hold per id. The
+ * HashSet parses a new ObjectId for every id, since a walk holds ids parsed
+ * from objects rather than shared ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+public class ObjectIdSetBenchmark {
+    private static final int ID_SIZE = 20;
+
+    @Param({ "1000000", "10000000" })
+    int count;
+
+    private byte[][] raw;
+    private Object[] ids;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double tableBytesPerId;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var random = new SplittableRandom(Fixtures.SEED);
+        raw = new byte[count][ID_SIZE];
+        ids = new Object[count];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(raw[i]);
+            ids[i] = Repository.objectId(raw[i]);
+        }
+    }
+
+    @Benchmark
+    public Object objectIdSet(Footprint footprint) throws Exception {
+        Object set = Repository.newObjectIdSet();
+        for (Object id : ids) {
+            Repository.addToObjectIdSet(set, id);
+        }
+        footprint.tableBytesPerId = (double) Repository.objectIdSetMemoryUsage(set) / count;
+        return set;
+    }
+
+    @Benchmark
+    public Object hashSet() throws Exception {
+        var set = new HashSet<Object>();
+        for (byte[] bytes : raw) {
+            set.add(Repository.objectId(bytes));
+        }
+        return set;
+    }
+}
@@ -0,0 +1,471 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A handle on an FsObjectDatabase.
+ *
+ * <p>The object database lives in the unnamed package, which code in a named
+ * package cannot refer to, and JMH only accepts benchmarks in named packages.
+ * Its methods are therefore called through method handles. The handles are
+ * static finals, so the JIT compiles the calls like direct ones. Object ids
+ * are passed around as opaque Objects, whose toString is the hex id.
+ */
+final class Repository {
+    private static final MethodHandle INIT;
+    private static final MethodHandle HASH_BLOB;
+    private static final MethodHandle WRITE_BLOB;
+    private static final MethodHandle HASH_BLOB_FILE;
+    private static final MethodHandle WRITE_BLOB_FILE;
+    private static final MethodHandle READ_BLOB;
+    private static final MethodHandle LIST_TREE;
+    private static final MethodHandle READ_TREE;
+    private static final MethodHandle CURSOR_NEXT;
+    private static final MethodHandle WRITE_TREE;
+    private static final MethodHandle OPEN;
+    private static final MethodHandle FROM_HEX;
+    private static final MethodHandle FROM_BYTES;
+    private static final MethodHandle NEW_OBJECT_ID_SET;
+    private static final MethodHandle OBJECT_ID_SET_ADD;
+    private static final MethodHandle OBJECT_ID_SET_MEMORY;
+    private static final MethodHandle WRITE_COMMIT_GRAPH;
+    private static final MethodHandle OPEN_REV_WALK;
+    private static final MethodHandle IS_ANCESTOR;
+    private static final MethodHandle MERGE_BASES;
+    private static final MethodHandle NEW_CHECKOUT;
+    private static final MethodHandle CHECKOUT;
+    private static final MethodHandle START_JOURNAL;
+    private static final MethodHandle SET_CHANGE_SOURCE;
+    private static final MethodHandle NEW_SERVER;
+    private static final MethodHandle SERVER_PORT;
+    private static final MethodHandle CLIENT_FOR_URL;
+    private static final MethodHandle LIST_REFS;
+    private static final MethodHandle REF_HASH;
+    private static final MethodHandle NO_HAVES;
+    private static final MethodHandle FETCH;
+    private static final MethodHandle FIND_BITMAP;
+    private static final MethodHandle NEW_REACHABILITY;
+    private static final MethodHandle REACHABILITY_ADD;
+    private static final MethodHandle REACHABILITY_COUNT;
+    private static final MethodHandle NEW_PACK_GENERATOR;
+    private static final MethodHandle SET_USE_BITMAPS;
+    private static final MethodHandle PACK_GENERATOR_ADD;
+    private static final MethodHandle PACK_GENERATOR_OBJECTS;
+
+    static {
+        try {
+            var lookup = MethodHandles.publicLookup();
+            Class<?> db = Class.forName("FsObjectDatabase");
+            Class<?> cursor = Class.forName("TreeCursor");
+            Class<?> id = Class.forName("ObjectId");
+            Class<?> walk = Class.forName("RevWalk");
+            INIT = lookup.findStatic(db, "init", MethodType.methodType(db, Path.class))
+                    .asType(MethodType.methodType(Object.class, Path.class));
+            HASH_BLOB = lookup.findVirtual(db, "hashBlob", MethodType.methodType(id, InputStream.class, long.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, InputStream.class, long.class));
+            WRITE_BLOB = lookup.findVirtual(db, "writeBlob", MethodType.methodType(id, InputStream.class, long.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, InputStream.class, long.class));
+            HASH_BLOB_FILE = lookup.findVirtual(db, "hashBlob", MethodType.methodType(id, Path.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Path.class));
+            WRITE_BLOB_FILE = lookup.findVirtual(db, "writeBlob", MethodType.methodType(id, Path.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Path.class));
+            READ_BLOB = lookup.findVirtual(db, "readBlob", MethodType.methodType(InputStream.class, id))
+                    .asType(MethodType.methodType(InputStream.class, Object.class, Object.class));
+            LIST_TREE = lookup.findVirtual(db, "listTree", MethodType.methodType(List.class, id))
+                    .asType(MethodType.methodType(List.class, Object.class, Object.class));
+            READ_TREE = lookup.findVirtual(db, "readTree", MethodType.methodType(cursor, id))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class));
+            CURSOR_NEXT = lookup.findVirtual(cursor, "next", MethodType.methodType(boolean.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class));
+            WRITE_TREE = lookup.findVirtual(db, "writeTree", MethodType.methodType(id))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            OPEN = lookup.findStatic(db, "open", MethodType.methodType(db, Path.class))
+                    .asType(MethodType.methodType(Object.class, Path.class));
+            FROM_HEX = lookup.findStatic(id, "fromHex", MethodType.methodType(id, CharSequence.class))
+                    .asType(MethodType.methodType(Object.class, CharSequence.class));
+            FROM_BYTES = lookup.findStatic(id, "fromBytes", MethodType.methodType(id, byte[].class))
+                    .asType(MethodType.methodType(Object.class, byte[].class));
+            Class<?> idSet = Class.forName("ObjectIdSet");
+            NEW_OBJECT_ID_SET = lookup.findConstructor(idSet, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+            OBJECT_ID_SET_ADD = lookup.findVirtual(idSet, "add", MethodType.methodType(boolean.class, id))
+                    .asType(MethodType.methodType(boolean.class, Object.class, Object.class));
+            OBJECT_ID_SET_MEMORY = lookup.findVirtual(idSet, "memoryUsage", MethodType.methodType(long.class))
+                    .asType(MethodType.methodType(long.class, Object.class));
+            WRITE_COMMIT_GRAPH = lookup.findStatic(Class.forName("CommitGraph"), "write",
+                    MethodType.methodType(int.class, db)).asType(MethodType.methodType(int.class, Object.class));
+            OPEN_REV_WALK = lookup.findStatic(walk, "open", MethodType.methodType(walk, db))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            IS_ANCESTOR = lookup.findVirtual(walk, "isAncestor", MethodType.methodType(boolean.class, id, id))
+                    .asType(MethodType.methodType(boolean.class, Object.class, Object.class, Object.class));
+            MERGE_BASES = lookup.findVirtual(walk, "mergeBases", MethodType.methodType(List.class, id, id))
+                    .asType(MethodType.methodType(List.class, Object.class, Object.class, Object.class));
+            Class<?> checkout = Class.forName("Checkout");
+            NEW_CHECKOUT = lookup.findConstructor(checkout,
+                    MethodType.methodType(void.class, Class.forName("ObjectDatabase"), int.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, int.class));
+            CHECKOUT = lookup.findVirtual(checkout, "checkout", MethodType.methodType(List.class, id, Path.class))
+                    .asType(MethodType.methodType(List.class, Object.class, Object.class, Path.class));
+            Class<?> journal = Class.forName("ChangeJournal");
+            Class<?> source = Class.forName("ChangeSource");
+            START_JOURNAL = lookup.findStatic(journal, "start", MethodType.methodType(journal, Path.class))
+                    .asType(MethodType.methodType(Closeable.class, Path.class));
+            SET_CHANGE_SOURCE = lookup.findVirtual(db, "setChangeSource", MethodType.methodType(void.class, source))
+                    .asType(MethodType.methodType(void.class, Object.class, Closeable.class));
+            Class<?> server = Class.forName("GitSmartServer");
+            Class<?> client = Class.forName("GitSmartClient");
+            Class<?> negotiator = Class.forName("FetchNegotiator");
+            NEW_SERVER = lookup.findConstructor(server,
+                    MethodType.methodType(void.class, Path.class, InetSocketAddress.class))
+                    .asType(MethodType.methodType(Closeable.class, Path.class, InetSocketAddress.class));
+            SERVER_PORT = lookup.findVirtual(server, "port", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Closeable.class));
+            CLIENT_FOR_URL = lookup.findStatic(client, "forUrl", MethodType.methodType(client, URI.class))
+                    .asType(MethodType.methodType(Closeable.class, URI.class));
+            LIST_REFS = lookup.findVirtual(client, "listRefs", MethodType.methodType(List.class))
+                    .asType(MethodType.methodType(List.class, Closeable.class));
+            REF_HASH = lookup.findVirtual(Class.forName("GitSmartClient$Ref"), "hash", MethodType.methodType(id))
+                    .asType(MethodType.methodType(Object.class, Object.class));
+            NO_HAVES = lookup.findStatic(negotiator, "empty", MethodType.methodType(negotiator))
+                    .asType(MethodType.methodType(Object.class));
+            FETCH = lookup.findVirtual(client, "fetch",
+                    MethodType.methodType(InputStream.class, List.class, negotiator, Optional.class))
+                    .asType(MethodType.methodType(InputStream.class, Closeable.class, List.class, Object.class,
+                            Optional.class));
+            Class<?> objectDatabase = Class.forName("ObjectDatabase");
+            Class<?> reachability = Class.forName("Reachability");
+            Class<?> generator = Class.forName("PackGenerator");
+            FIND_BITMAP = lookup.findStatic(reachability, "findBitmap", MethodType.methodType(Optional.class, db))
+                    .asType(MethodType.methodType(Optional.class, Object.class));
+            NEW_REACHABILITY = lookup.findConstructor(reachability,
+                    MethodType.methodType(void.class, db, objectDatabase, Optional.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class, Optional.class));
+            REACHABILITY_ADD = lookup.findVirtual(reachability, "add",
+                    MethodType.methodType(void.class, Collection.class))
+                    .asType(MethodType.methodType(void.class, Object.class, Collection.class));
+            REACHABILITY_COUNT = lookup.findVirtual(reachability, "count", MethodType.methodType(long.class))
+                    .asType(MethodType.methodType(long.class, Object.class));
+            NEW_PACK_GENERATOR = lookup.findConstructor(generator,
+                    MethodType.methodType(void.class, db, objectDatabase, boolean.class))
+                    .asType(MethodType.methodType(Object.class, Object.class, Object.class, boolean.class));
+            SET_USE_BITMAPS = lookup.findVirtual(generator, "setUseBitmaps",
+                    MethodType.methodType(void.class, boolean.class))
+                    .asType(MethodType.methodType(void.class, Object.class, boolean.class));
+            PACK_GENERATOR_ADD = lookup.findVirtual(generator, "add",
+                    MethodType.methodType(void.class, Collection.class, Collection.class))
+                    .asType(MethodType.methodType(void.class, Object.class, Collection.class, Collection.class));
+            PACK_GENERATOR_OBJECTS = lookup.findVirtual(generator, "objects", MethodType.methodType(List.class))
+                    .asType(MethodType.methodType(List.class, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object git;
+    private final Path root;
+
+    private Repository(Object git, Path root) {
+        this.git = git;
+        this.root = root;
+    }
+
+    static Repository init(Path root) throws Exception {
+        try {
+            return new Repository((Object) INIT.invokeExact(root), root);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Opens an existing repository, such as one built by git fast-import.
+     */
+    static Repository open(Path root) throws Exception {
+        try {
+            return new Repository((Object) OPEN.invokeExact(root), root);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object objectId(String hex) throws Exception {
+        try {
+            return (Object) FROM_HEX.invokeExact((CharSequence) hex);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static Object objectId(byte[] bytes) throws Exception {
+        try {
+            return (Object) FROM_BYTES.invokeExact(bytes);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Creates an empty ObjectIdSet.
+     */
+    static Object newObjectIdSet() throws Exception {
+        try {
+            return (Object) NEW_OBJECT_ID_SET.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean addToObjectIdSet(Object set, Object hash) throws Exception {
+        try {
+            return (boolean) OBJECT_ID_SET_ADD.invokeExact(set, hash);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Returns the size in bytes of the arrays backing an ObjectIdSet.
+     */
+    static long objectIdSetMemoryUsage(Object set) throws Exception {
+        try {
+            return (long) OBJECT_ID_SET_MEMORY.invokeExact(set);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    Path root() {
+        return root;
+    }
+
+    Path pathFor(Object hash) {
+        String sha = hash.toString();
+        return root.resolve(".git/objects").resolve(sha.substring(0, 2)).resolve(sha.substring(2));
+    }
+
+    Object hashBlob(InputStream in, long size) throws Exception {
+        try {
+            return (Object) HASH_BLOB.invokeExact(git, in, size);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    Object writeBlob(InputStream in, long size) throws Exception {
+        try {
+            return (Object) WRITE_BLOB.invokeExact(git, in, size);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    Object hashBlob(Path file) throws Exception {
+        try {
+            return (Object) HASH_BLOB_FILE.invokeExact(git, file);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    Object writeBlob(Path file) throws Exception {
+        try {
+            return (Object) WRITE_BLOB_FILE.invokeExact(git, file);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    InputStream readBlob(Object hash) throws Exception {
+        try {
+            return (InputStream) READ_BLOB.invokeExact(git, hash);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    List<?> listTree(Object hash) throws Exception {
+        try {
+            return (List<?>) LIST_TREE.invokeExact(git, hash);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Walks a tree with a TreeCursor and returns the number of entries.
+     */
+    int countTreeEntries(Object hash) throws Exception {
+        try {
+            Object cursor = (Object) READ_TREE.invokeExact(git, hash);
+            int count = 0;
+            while ((boolean) CURSOR_NEXT.invokeExact(cursor)) {
+                count++;
+            }
+            return count;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    Object writeTree() throws Exception {
+        try {
+            return (Object) WRITE_TREE.invokeExact(git);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    int writeCommitGraph() throws Exception {
+        try {
+            return (int) WRITE_COMMIT_GRAPH.invokeExact(git);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Opens a RevWalk, which starts with no commits parsed.
+     */
+    Object revWalk() throws Exception {
+        try {
+            return (Object) OPEN_REV_WALK.invokeExact(git);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static boolean isAncestor(Object walk, Object ancestor, Object descendant) throws Exception {
+        try {
+            return (boolean) IS_ANCESTOR.invokeExact(walk, ancestor, descendant);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static List<?> mergeBases(Object walk, Object a, Object b) throws Exception {
+        try {
+            return (List<?>) MERGE_BASES.invokeExact(walk, a, b);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Writes a tree's files below a directory, at most {@code ioLimit} at a
+     * time, and returns their index entries.
+     */
+    List<?> checkout(Object tree, Path dir, int ioLimit) throws Exception {
+        try {
+            Object checkout = (Object) NEW_CHECKOUT.invokeExact(git, ioLimit);
+            return (List<?>) CHECKOUT.invokeExact(checkout, tree, dir);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Starts a change journal over the working directory and has write-tree
+     * consult it. Closing the result stops the journal.
+     */
+    Closeable watch() throws Exception {
+        try {
+            var journal = (Closeable) START_JOURNAL.invokeExact(root);
+            SET_CHANGE_SOURCE.invokeExact(git, journal);
+            return journal;
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Counts the objects reachable from the tips, as git rev-list --objects
+     * --count does, with the pack's bitmaps or by walking every tree.
+     */
+    long countReachable(List<?> tips, boolean useBitmaps) throws Exception {
+        try {
+            var bitmap = useBitmaps ? (Optional<?>) FIND_BITMAP.invokeExact(git) : Optional.empty();
+            Object reachable = (Object) NEW_REACHABILITY.invokeExact(git, git, bitmap);
+            REACHABILITY_ADD.invokeExact(reachable, (Collection<?>) tips);
+            return (long) REACHABILITY_COUNT.invokeExact(reachable);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Lists the objects a fetch of the wants by a client with the haves
+     * would send, without writing the pack, and returns how many there are.
+     */
+    int enumerateObjects(List<?> wants, List<?> haves, boolean useBitmaps) throws Exception {
+        try {
+            Object generator = (Object) NEW_PACK_GENERATOR.invokeExact(git, git, false);
+            SET_USE_BITMAPS.invokeExact(generator, useBitmaps);
+            PACK_GENERATOR_ADD.invokeExact(generator, (Collection<?>) wants, (Collection<?>) haves);
+            return ((List<?>) PACK_GENERATOR_OBJECTS.invokeExact(generator)).size();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Serves the repositories under a directory over smart HTTP on a free
+     * local port. Closing the result stops the server.
+     */
+    static Closeable serve(Path base) throws Exception {
+        try {
+            return (Closeable) NEW_SERVER.invokeExact(base, new InetSocketAddress("127.0.0.1", 0));
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    static int port(Closeable server) throws Exception {
+        try {
+            return (int) SERVER_PORT.invokeExact(server);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Does what a clone does over the network, on a new connection: lists
+     * the refs and fetches a pack of everything they point to, which is read
+     * to the end but not stored.
+     *
+     * @return The number of pack bytes received.
+     */
+    static long fetchAll(URI url) throws Exception {
+        try (var client = (Closeable) CLIENT_FOR_URL.invokeExact(url)) {
+            var wants = new ArrayList<Object>();
+            for (var ref : (List<?>) LIST_REFS.invokeExact(client)) {
+                wants.add((Object) REF_HASH.invokeExact((Object) ref));
+            }
+            Object haves = (Object) NO_HAVES.invokeExact();
+            try (var in = (InputStream) FETCH.invokeExact(client, (List<?>) wants.stream().distinct().toList(), haves,
+                    Optional.empty())) {
+                return in.transferTo(OutputStream.nullOutputStream());
+            }
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    private static Exception rethrow(Throwable t) {
+        if (t instanceof Error e) {
+            throw e;
+        }
+        return (Exception) t;
+    }
+}
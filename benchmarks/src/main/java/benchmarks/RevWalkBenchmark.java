@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ancestry queries on linear and heavily merged histories of 100,000
+ * commits, with and without a commit graph. Every invocation opens a new
+ * RevWalk, as a separate git process would, so nothing parsed by one query
+ * is reused by the next.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class RevWalkBenchmark {
+    private static final int COMMITS = 100_000;
+    private static final int MERGED_BRANCHES = 8;
+
+    @Param({ "linear", "merged" })
+    String shape;
+
+    @Param({ "true", "false" })
+    boolean commitGraph;
+
+    private Repository git;
+    private Object tip;
+    private Object near;
+    private Object middle;
+    private Object first;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var root = Fixtures.repository("revwalk");
+        int branches = shape.equals("linear") ? 1 : MERGED_BRANCHES;
+        List<String> ids = Fixtures.history(root, COMMITS, branches);
+        git = Repository.open(root);
+        if (commitGraph) {
+            git.writeCommitGraph();
+        }
+        tip = Repository.objectId(ids.get(COMMITS - 1));
+        // Ten commits back along the tip's own branch.
+        near = Repository.objectId(ids.get(COMMITS - 1 - 10 * branches));
+        middle = Repository.objectId(ids.get(COMMITS / 2));
+        first = Repository.objectId(ids.getFirst());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(git.root());
+    }
+
+    @Benchmark
+    public boolean isAncestorNear() throws Exception {
+        return Repository.isAncestor(git.revWalk(), near, tip);
+    }
+
+    @Benchmark
+    public boolean isAncestorFirstCommit() throws Exception {
+        return Repository.isAncestor(git.revWalk(), first, tip);
+    }
+
+    // The generation numbers alone show that the tip is not an ancestor.
+    @Benchmark
+    public boolean isNotAncestor() throws Exception {
+        return Repository.isAncestor(git.revWalk(), tip, middle);
+    }
+
+    @Benchmark
+    public List<?> mergeBase() throws Exception {
+        return Repository.mergeBases(git.revWalk(), tip, middle);
+    }
+}
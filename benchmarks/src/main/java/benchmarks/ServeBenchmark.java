@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hundreds of clients cloning one repository at once from the smart-HTTP
+ * server in the same JVM, each on its own connection. Throughput mode
+ * reports clones per second, and sample mode the latency percentiles, p50
+ * and p99 among them. The clients read each pack to the end without
+ * indexing it, so the time is the server's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(256)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ServeBenchmark {
+    private static final int COMMITS = 200;
+    private static final int FILES = 500;
+    private static final int FILE_SIZE = 4096;
+
+    private Path base;
+    private Closeable server;
+    private URI url;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        base = Fixtures.repository("serve");
+        Path root = base.resolve("repo");
+        Files.createDirectories(root);
+        Fixtures.evolvingHistory(root, COMMITS, FILES, FILE_SIZE);
+        server = Repository.serve(base);
+        url = URI.create("http://127.0.0.1:%d/repo.git".formatted(Repository.port(server)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        Fixtures.delete(base);
+    }
+
+    @Benchmark
+    public long cloneRepository() throws Exception {
+        return Repository.fetchAll(url);
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes the tree of a working directory of 100,000 files after editing one
+ * of them, by scanning every directory or by asking a change journal which
+ * paths changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class StatusBenchmark {
+    private static final int FILES = 100_000;
+    private static final int FILE_SIZE = 256;
+
+    @Param({ "false", "true" })
+    boolean journal;
+
+    private Repository git;
+    private Closeable watcher;
+    private Path edited;
+    private int edits;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var root = Fixtures.repository("status");
+        var tree = Repository.objectId(Fixtures.deepTree(root, FILES, FILE_SIZE));
+        git = Repository.open(root);
+        git.checkout(tree, root, 64);
+        if (journal) {
+            watcher = git.watch();
+        }
+        edited = root.resolve("d42/d7/file42742.txt");
+        // The first write-tree scans everything and saves the index.
+        git.writeTree();
+    }
+
+    @Setup(Level.Invocation)
+    public void edit() throws IOException {
+        Files.writeString(edited, "edit %d\n".formatted(edits++));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+        Fixtures.delete(git.root());
+    }
+
+    @Benchmark
+    public Object writeTree() throws Exception {
+        return git.writeTree();
+    }
+}
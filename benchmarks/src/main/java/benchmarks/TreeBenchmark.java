@@ -0,0 +1,84 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing and writing a single directory of 10 to 100,000 small files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TreeBenchmark {
+    private static final int FILE_SIZE = 256;
+
+    @Param({ "10", "1000", "100000" })
+    int width;
+
+    private Repository git;
+    private Object tree;
+
+    /**
+     * Removes .git/index before each invocation, so that write-tree has to
+     * hash every file again.
+     */
+    @State(Scope.Thread)
+    public static class ColdIndex {
+        @Setup(Level.Invocation)
+        public void dropIndex(TreeBenchmark benchmark) throws IOException {
+            Files.deleteIfExists(benchmark.git.root().resolve(".git/index"));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        var root = Fixtures.repository("tree");
+        Fixtures.flatTree(root, width, FILE_SIZE);
+        git = Repository.init(root);
+        tree = git.writeTree();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Fixtures.delete(git.root());
+    }
+
+    @Benchmark
+    public List<?> listTree() throws Exception {
+        return git.listTree(tree);
+    }
+
+    @Benchmark
+    public int walkTreeCursor() throws Exception {
+        return git.countTreeEntries(tree);
+    }
+
+    @Benchmark
+    public Object writeTreeUnchanged() throws Exception {
+        return git.writeTree();
+    }
+
+    @Benchmark
+    public Object writeTreeWithoutIndex(ColdIndex cold) throws Exception {
+        return git.writeTree();
+    }
+}
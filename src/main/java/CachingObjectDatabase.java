@@ -0,0 +1,278 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An object database that keeps recently read objects in memory, so that
+ * walks which visit the same trees and blobs repeatedly only inflate them
+ * once.
+ *
+ * <p>The cache holds at most a fixed number of bytes of object content and
+ * evicts the least recently used objects first. Blobs of at least
+ * {@link #OFF_HEAP_THRESHOLD} bytes are kept in direct buffers, outside the
+ * garbage-collected heap, and streamed from there. Trees and commits stay on
+ * the heap, where they are parsed in place on every hit. Blobs too large to
+ * be cached are streamed from the underlying database. The cache is split
+ * into independently locked segments, so concurrent readers rarely wait on
+ * each other. Writes go straight to the underlying database: objects never
+ * change, so nothing cached can become stale.
+ */
+public class CachingObjectDatabase implements ObjectDatabase {
+    static final int OFF_HEAP_THRESHOLD = 64 << 10;
+    private static final int SEGMENTS = 16;
+
+    private final ObjectDatabase git;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A snapshot of the cache's counters.
+     *
+     * @param bytes The content size of the objects currently cached.
+     */
+    public record Stats(long hits, long misses, long evictions, long bytes) {
+    }
+
+    // An object's type and content, either on the heap or, for a large blob,
+    // in a direct buffer.
+    private record Cached(ObjectType type, byte[] heap, ByteBuffer offHeap) {
+        static Cached of(RawObject object) {
+            byte[] data = object.data();
+            if (object.type() != ObjectType.Blob || data.length < OFF_HEAP_THRESHOLD) {
+                return new Cached(object.type(), data, null);
+            }
+            var buf = ByteBuffer.allocateDirect(data.length).put(data).flip();
+            return new Cached(object.type(), null, buf);
+        }
+
+        int size() {
+            return heap != null ? heap.length : offHeap.capacity();
+        }
+
+        // Copies a blob out of its direct buffer, so readBlob should be
+        // preferred for blobs.
+        byte[] data() {
+            if (heap != null) {
+                return heap;
+            }
+            byte[] data = new byte[offHeap.capacity()];
+            offHeap.get(0, data);
+            return data;
+        }
+
+        InputStream stream() {
+            if (heap != null) {
+                return new ByteArrayInputStream(heap);
+            }
+            var buf = offHeap.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buf.hasRemaining() ? buf.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (!buf.hasRemaining()) {
+                        return -1;
+                    }
+                    int n = Math.min(len, buf.remaining());
+                    buf.get(b, off, n);
+                    return n;
+                }
+
+                @Override
+                public int available() {
+                    return buf.remaining();
+                }
+            };
+        }
+    }
+
+    private final class Segment {
+        private final long limit;
+        private final LinkedHashMap<ObjectId, Cached> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        Segment(long limit) {
+            this.limit = limit;
+        }
+
+        synchronized Cached get(ObjectId key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(ObjectId key, Cached object) {
+            if (object.size() > limit) {
+                return;
+            }
+            Cached old = entries.put(key, object);
+            size += object.size() - (old != null ? old.size() : 0);
+            for (var it = entries.entrySet().iterator(); size > limit && it.hasNext();) {
+                var eldest = it.next();
+                size -= eldest.getValue().size();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        synchronized long size() {
+            return size;
+        }
+    }
+
+    /**
+     * @param git       The database to read objects from.
+     * @param byteLimit The most object content to keep in memory, in bytes.
+     *                  Objects larger than a sixteenth of this are never
+     *                  cached.
+     */
+    public CachingObjectDatabase(ObjectDatabase git, long byteLimit) {
+        this.git = git;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(byteLimit / SEGMENTS);
+        }
+    }
+
+    public Stats stats() {
+        long bytes = 0;
+        for (var segment : segments) {
+            bytes += segment.size();
+        }
+        return new Stats(hits.get(), misses.get(), evictions.get(), bytes);
+    }
+
+    private Segment segmentFor(ObjectId hash) {
+        // Hashes are uniformly distributed, so any byte will do.
+        return segments[hash.firstByte() % SEGMENTS];
+    }
+
+    private Cached load(ObjectId hash) throws GitException, IOException {
+        var segment = segmentFor(hash);
+        var cached = segment.get(hash);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+        cached = Cached.of(git.readRaw(hash));
+        segment.put(hash, cached);
+        return cached;
+    }
+
+    private Cached load(ObjectId hash, ObjectType want) throws GitException, IOException {
+        var cached = load(hash);
+        if (cached.type() != want) {
+            throw new GitException("invalid object type: want %s, got %s".formatted(want, cached.type()));
+        }
+        return cached;
+    }
+
+    @Override
+    public ObjectType getType(ObjectId hash) throws GitException, IOException {
+        var cached = segmentFor(hash).get(hash);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.type();
+        }
+        misses.incrementAndGet();
+        return git.getType(hash);
+    }
+
+    @Override
+    public long getSize(ObjectId hash) throws GitException, IOException {
+        var cached = segmentFor(hash).get(hash);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.size();
+        }
+        misses.incrementAndGet();
+        return git.getSize(hash);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Blobs too large to be cached are checked for by their header and
+     * streamed from the underlying database without being read into memory.
+     */
+    @Override
+    public InputStream readBlob(ObjectId hash) throws GitException, IOException {
+        var segment = segmentFor(hash);
+        var cached = segment.get(hash);
+        if (cached == null && git.getSize(hash) > segment.limit) {
+            misses.incrementAndGet();
+            return git.readBlob(hash);
+        }
+        return load(hash, ObjectType.Blob).stream();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The returned data may be shared with the cache and must not be
+     * modified.
+     */
+    @Override
+    public RawObject readRaw(ObjectId hash) throws GitException, IOException {
+        var cached = load(hash);
+        return new RawObject(cached.type(), cached.data());
+    }
+
+    @Override
+    public List<TreeObject> listTree(ObjectId hash) throws GitException, IOException {
+        var cursor = readTree(hash);
+        var elems = new ArrayList<TreeObject>();
+        while (cursor.next()) {
+            elems.add(cursor.toTreeObject());
+        }
+        return elems;
+    }
+
+    @Override
+    public TreeCursor readTree(ObjectId hash) throws GitException, IOException {
+        return TreeCursor.of(load(hash, ObjectType.Tree).data());
+    }
+
+    @Override
+    public Commit readCommit(ObjectId hash) throws GitException, IOException {
+        return Commit.parse(load(hash, ObjectType.Commit).data());
+    }
+
+    @Override
+    public ObjectId hashBlob(InputStream s, long size) throws IOException {
+        return git.hashBlob(s, size);
+    }
+
+    @Override
+    public ObjectId writeBlob(InputStream s, long size) throws IOException {
+        return git.writeBlob(s, size);
+    }
+
+    @Override
+    public ObjectId writeTree() throws GitException, IOException {
+        return git.writeTree();
+    }
+
+    @Override
+    public ObjectId commitTree(ObjectId treeHash, List<ObjectId> parentCommitHashes, String message)
+            throws GitException, IOException {
+        return git.commitTree(treeHash, parentCommitHashes, message);
+    }
+
+    @Override
+    public void prefetch(Collection<ObjectId> hashes) throws GitException, IOException {
+        git.prefetch(hashes);
+    }
+}
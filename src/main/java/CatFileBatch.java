@@ -0,0 +1,84 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Answers a stream of object lookups in the format of git's
+ * {@code cat-file --batch} and {@code --batch-check}.
+ *
+ * <p>Each input line names an object by its full hash or by a ref. For each
+ * one a header line {@code <sha> <type> <size>} is written, followed in
+ * --batch mode by the raw content and a newline; names that do not resolve
+ * produce {@code <name> missing}. Output is flushed whenever no further input
+ * is waiting, so callers can interleave requests and responses while bulk
+ * lookups are still written in large chunks.
+ */
+public class CatFileBatch {
+    private final FsObjectDatabase git;
+    private final boolean contents;
+
+    /**
+     * @param git      The repository to read objects from.
+     * @param contents Whether to write object contents (--batch) or only the
+     *                 headers (--batch-check).
+     */
+    public CatFileBatch(FsObjectDatabase git, boolean contents) {
+        this.git = git;
+        this.contents = contents;
+    }
+
+    /**
+     * Answers every line of input until it is exhausted.
+     *
+     * @throws GitException If an object exists but cannot be read.
+     * @throws IOException  If an error is encountered while reading or writing.
+     */
+    public void run(InputStream input, OutputStream out) throws GitException, IOException {
+        var in = new BufferedReader(new InputStreamReader(input, UTF_8));
+        for (String line; (line = in.readLine()) != null;) {
+            var hash = resolve(line);
+            if (hash.isEmpty()) {
+                out.write("%s missing\n".formatted(line).getBytes(UTF_8));
+            } else {
+                write(hash.get(), out);
+            }
+            if (!in.ready()) {
+                out.flush();
+            }
+        }
+        out.flush();
+    }
+
+    // Fetches an object that a partial clone left out, as reading it would.
+    // One the promisor remote fails to send is missing.
+    private Optional<ObjectId> resolve(String name) throws IOException {
+        var hash = git.resolve(name);
+        if (hash.isEmpty() || git.contains(hash.get())) {
+            return hash;
+        }
+        try {
+            git.prefetch(List.of(hash.get()));
+        } catch (GitException | IOException e) {
+            return Optional.empty();
+        }
+        return hash.filter(git::contains);
+    }
+
+    private void write(ObjectId hash, OutputStream out) throws GitException, IOException {
+        var object = git.readObject(hash);
+        try (var content = object.stream()) {
+            String header = "%s %s %d\n".formatted(hash.hex(), object.type(), object.size());
+            out.write(header.getBytes(UTF_8));
+            if (contents) {
+                content.transferTo(out);
+                out.write('\n');
+            }
+        }
+    }
+}
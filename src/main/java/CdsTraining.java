@@ -0,0 +1,99 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A representative run of the CLI, used to train the AppCDS archive built by
+ * the appcds Maven profile.
+ *
+ * <p>Runs the local subcommands in-process against a scratch repository in
+ * the current directory, so that the JVM loads the classes each of them needs
+ * before the archive is dumped at exit. The current directory must be empty
+ * or hold the leftovers of an earlier training run, which are removed first.
+ */
+public class CdsTraining {
+    private static final String MARKER = ".cds-training";
+
+    public static void main(String[] args) throws Exception {
+        Path root = Path.of(".");
+        clean(root);
+        Files.createFile(root.resolve(MARKER));
+
+        run("init");
+        var content = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            content.append("line %d of the training file\n".formatted(i));
+            if (i % 50 == 49) {
+                Files.writeString(root.resolve("file.txt"), content, UTF_8);
+                Files.createDirectories(root.resolve("dir"));
+                Files.writeString(root.resolve("dir/nested.txt"), content.reverse(), UTF_8);
+                content.reverse();
+                run("hash-object", "-w", "file.txt");
+                run("write-tree");
+            }
+        }
+
+        var git = FsObjectDatabase.open(root);
+        var treeId = git.writeTree();
+        String tree = treeId.hex();
+        String parent = git.commitTree(treeId, List.of(), "training").hex();
+        String blob;
+        try (var in = Files.newInputStream(root.resolve("file.txt"))) {
+            blob = git.hashBlob(in, Files.size(root.resolve("file.txt"))).hex();
+        }
+        run("ls-tree", "--name-only", tree);
+        run("cat-file", "-p", blob);
+        run("commit-tree", tree, "-p", parent, "-m", "training");
+        run(new ByteArrayInputStream("%s\n%s\n%s\n".formatted(tree, parent, blob).getBytes(UTF_8)),
+                "cat-file", "--batch");
+        run("gc");
+
+        var packs = FsObjectDatabase.open(root).packs().packs();
+        if (!packs.isEmpty()) {
+            Path copy = root.resolve("training.pack");
+            Files.copy(packs.getFirst().path(), copy);
+            run("index-pack", copy.toString());
+        }
+    }
+
+    private static void run(String... args) {
+        Main.main(args);
+    }
+
+    private static void run(InputStream stdin, String... args) {
+        var saved = System.in;
+        System.setIn(stdin);
+        try {
+            Main.main(args);
+        } finally {
+            System.setIn(saved);
+        }
+    }
+
+    // Refuses to touch a directory that a training run did not create.
+    private static void clean(Path root) throws IOException {
+        List<Path> entries;
+        try (var list = Files.list(root)) {
+            entries = list.toList();
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (!Files.exists(root.resolve(MARKER))) {
+            throw new IOException("refusing to train in a non-empty directory: %s".formatted(root.toAbsolutePath()));
+        }
+        try (var paths = Files.walk(root)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                if (!path.equals(root)) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a working directory with a {@link WatchService} and keeps a
+ * journal of the paths that changed, numbered in the order they were seen.
+ *
+ * <p>Every directory below the root is registered, and directories that
+ * appear later are registered as they are seen, with their contents journaled
+ * since they may have been filled before the registration. The .git directory
+ * is not watched, except for cookie files: before answering, the journal
+ * creates a cookie file and waits to see it, so every change made before the
+ * question has been journaled by the time it is answered.
+ *
+ * <p>The journal holds at most a fixed number of paths. When the watch
+ * service reports lost events or the journal fills up, it is cleared, and
+ * older tokens are answered with a full scan.
+ */
+public class ChangeJournal implements ChangeSource, Closeable {
+    /** The default number of paths journaled before falling back to a full scan. */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final String COOKIE_PREFIX = "fsmonitor-cookie-";
+    private static final long COOKIE_TIMEOUT_SECONDS = 5;
+
+    private final Path root;
+    private final Path gitDir;
+    private final int capacity;
+    private final WatchService watcher;
+    private final String id = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final Map<WatchKey, Path> dirs = new HashMap<>();
+    private final Map<String, CountDownLatch> cookies = new HashMap<>();
+    private final Thread thread;
+    private long cookieCount;
+
+    // Guarded by this: the sequence number of each journaled path, the last
+    // sequence number handed out, and the first one the journal is complete
+    // from.
+    private final Map<String, Long> journal = new HashMap<>();
+    private long sequence;
+    private long completeFrom;
+
+    private ChangeJournal(Path root, int capacity) throws IOException {
+        this.root = root;
+        this.gitDir = root.resolve(".git");
+        this.capacity = capacity;
+        this.watcher = root.getFileSystem().newWatchService();
+        this.thread = Thread.ofPlatform().name("change-journal").daemon().unstarted(this::run);
+    }
+
+    /**
+     * Starts watching the given working directory.
+     *
+     * @param capacity The number of changed paths to journal before falling
+     *                 back to a full scan.
+     * @throws IOException If the directories cannot be registered.
+     */
+    public static ChangeJournal start(Path root, int capacity) throws IOException {
+        var journal = new ChangeJournal(root, capacity);
+        try {
+            synchronized (journal.dirs) {
+                journal.dirs.put(journal.gitDir.register(journal.watcher, StandardWatchEventKinds.ENTRY_CREATE),
+                        journal.gitDir);
+                journal.registerAll(root, false);
+            }
+        } catch (IOException | RuntimeException e) {
+            journal.watcher.close();
+            throw e;
+        }
+        journal.thread.start();
+        return journal;
+    }
+
+    public static ChangeJournal start(Path root) throws IOException {
+        return start(root, DEFAULT_CAPACITY);
+    }
+
+    // Registers a directory and those below it, journaling what they contain
+    // if they are new.
+    private void registerAll(Path dir, boolean journalContents) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                if (path.equals(gitDir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                var key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                dirs.put(key, path);
+                if (journalContents) {
+                    record(path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (journalContents) {
+                    record(path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                var key = watcher.take();
+                Path dir;
+                synchronized (dirs) {
+                    dir = dirs.get(key);
+                }
+                for (var event : key.pollEvents()) {
+                    handle(dir, event);
+                }
+                if (!key.reset()) {
+                    synchronized (dirs) {
+                        dirs.remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed.
+        }
+    }
+
+    private void handle(Path dir, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+            overflow();
+            return;
+        }
+        Path path = dir.resolve((Path) event.context());
+        if (dir.equals(gitDir)) {
+            String name = path.getFileName().toString();
+            if (name.startsWith(COOKIE_PREFIX)) {
+                synchronized (cookies) {
+                    var latch = cookies.remove(name);
+                    if (latch != null) {
+                        latch.countDown();
+                    }
+                }
+            }
+            return;
+        }
+        record(path);
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                synchronized (dirs) {
+                    registerAll(path, true);
+                }
+            } catch (IOException e) {
+                // The directory is already gone again, or cannot be watched.
+                overflow();
+            }
+        }
+    }
+
+    private synchronized void record(Path path) {
+        if (journal.size() >= capacity) {
+            overflow();
+        }
+        journal.put(root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/"), ++sequence);
+    }
+
+    private synchronized void overflow() {
+        journal.clear();
+        completeFrom = ++sequence;
+    }
+
+    @Override
+    public Changes changesSince(String token) throws IOException {
+        boolean synced = sync();
+        synchronized (this) {
+            String next = id + ":" + sequence;
+            long since = parse(token);
+            if (!synced || since < completeFrom) {
+                return Changes.everything(next);
+            }
+            var paths = new HashSet<String>();
+            for (var entry : journal.entrySet()) {
+                if (entry.getValue() > since) {
+                    paths.add(entry.getKey());
+                }
+            }
+            return new Changes(next, Optional.of(paths));
+        }
+    }
+
+    // Returns the sequence number in one of this journal's tokens, or -1 for
+    // any other token.
+    private long parse(String token) {
+        int colon = token.indexOf(':');
+        if (colon < 0 || !token.substring(0, colon).equals(id)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(token.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Creates a cookie file and waits to see it, so that every earlier change
+    // has been journaled.
+    private boolean sync() throws IOException {
+        String name;
+        var latch = new CountDownLatch(1);
+        synchronized (cookies) {
+            name = COOKIE_PREFIX + ProcessHandle.current().pid() + "-" + cookieCount++;
+            cookies.put(name, latch);
+        }
+        Path cookie = gitDir.resolve(name);
+        try {
+            Files.createFile(cookie);
+            return latch.await(COOKIE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (FileSystemException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            synchronized (cookies) {
+                cookies.remove(name);
+            }
+            Files.deleteIfExists(cookie);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Reports the paths in a working directory that changed since an earlier
+ * point in time, so that only those need to be examined again.
+ *
+ * <p>Points in time are identified by opaque tokens. Every answer carries the
+ * token to pass next time, and either the paths that changed since the given
+ * token or nothing, meaning the whole directory must be scanned: the token is
+ * empty, unknown or too old, or changes were lost.
+ */
+public interface ChangeSource {
+    /**
+     * @param token The token to ask about next time.
+     * @param paths The changed paths, relative to the root and separated by
+     *              '/', or empty if everything must be scanned. A changed
+     *              directory stands for everything below it.
+     */
+    record Changes(String token, Optional<Set<String>> paths) {
+        static Changes everything(String token) {
+            return new Changes(token, Optional.empty());
+        }
+    }
+
+    /**
+     * Returns the paths changed since the given token. Any change made before
+     * this method returns is reported by it or by the next call.
+     *
+     * @param token A token from an earlier answer, or "" for none.
+     * @throws IOException If the source cannot be reached.
+     */
+    Changes changesSince(String token) throws IOException;
+}
@@ -0,0 +1,188 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Materializes a tree into a directory.
+ *
+ * <p>The tree is walked first, creating every directory and listing the
+ * files. The files are then inflated and written on virtual threads, at most
+ * a fixed number at a time, so that inflating some overlaps writing others
+ * without opening an unbounded number of files. Entries with mode 100755 are
+ * made executable, symlinks (120000) are created as links, or as files
+ * holding the target where the file system has none, and submodules (160000)
+ * become empty directories, as in git.
+ */
+public class Checkout {
+    /** The default number of files inflated and written at once. */
+    public static final int DEFAULT_IO_LIMIT = Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+
+    private static final long EXECUTABLE_MODE = 100755;
+    private static final long SYMLINK_MODE = 120000;
+    private static final long GITLINK_MODE = 160000;
+
+    private final ObjectDatabase git;
+    private final int ioLimit;
+
+    public Checkout(ObjectDatabase git) {
+        this(git, DEFAULT_IO_LIMIT);
+    }
+
+    /**
+     * @param git     The database to read the tree and blobs from.
+     * @param ioLimit The maximum number of files to inflate and write at
+     *                once; 1 writes them one at a time.
+     */
+    public Checkout(ObjectDatabase git, int ioLimit) {
+        if (ioLimit < 1) {
+            throw new IllegalArgumentException("I/O limit must be positive: %d".formatted(ioLimit));
+        }
+        this.git = git;
+        this.ioLimit = ioLimit;
+    }
+
+    private record File(String path, long mode, ObjectId hash) {
+    }
+
+    /**
+     * Writes every file in the tree below the given directory, creating
+     * subdirectories as needed and replacing files that already exist.
+     *
+     * @param treeHash The tree to check out.
+     * @param dir      The directory to write into.
+     * @return An index entry for each file written, with its stat data after
+     *         the write, in tree order.
+     * @throws GitException If the tree references missing or invalid objects.
+     * @throws IOException  If an error is encountered while writing files.
+     */
+    public List<GitIndex.Entry> checkout(ObjectId treeHash, Path dir) throws GitException, IOException {
+        var files = new ArrayList<File>();
+        listFiles(treeHash, dir, "", files);
+        git.prefetch(files.stream().filter(file -> file.mode() != GITLINK_MODE).map(File::hash).toList());
+        var entries = new GitIndex.Entry[files.size()];
+        var futures = new ArrayList<Future<?>>(files.size());
+        var permits = new Semaphore(ioLimit);
+        var failed = new AtomicBoolean();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < files.size() && !failed.get(); i++) {
+                int index = i;
+                // Taking the permit here rather than in the task keeps the
+                // number of live threads within the limit too.
+                permits.acquireUninterruptibly();
+                futures.add(executor.submit(() -> {
+                    try {
+                        entries[index] = write(dir, files.get(index));
+                        return null;
+                    } catch (Exception e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
+        for (var future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GitException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted during checkout");
+            }
+        }
+        return List.of(entries);
+    }
+
+    // Creates the tree's directories, depth first, and lists its files.
+    private void listFiles(ObjectId treeHash, Path dir, String prefix, List<File> files)
+            throws GitException, IOException {
+        Files.createDirectories(dir);
+        var entry = git.readTree(treeHash);
+        while (entry.next()) {
+            String name = entry.name();
+            if (name.isEmpty() || name.equals(".") || name.equals("..") || name.equals(".git")
+                    || name.contains("/")) {
+                throw new GitException("unsafe path in tree %s: %s".formatted(treeHash, name));
+            }
+            if (entry.isTree()) {
+                listFiles(entry.hash(), dir.resolve(name), prefix + name + "/", files);
+            } else {
+                files.add(new File(prefix + name, entry.mode(), entry.hash()));
+            }
+        }
+    }
+
+    private GitIndex.Entry write(Path dir, File file) throws GitException, IOException {
+        Path path = dir.resolve(file.path());
+        if (file.mode() == GITLINK_MODE) {
+            Files.createDirectories(path);
+        } else if (file.mode() == SYMLINK_MODE) {
+            writeSymlink(path, file.hash());
+        } else {
+            try (var content = git.readBlob(file.hash())) {
+                Files.copy(content, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (file.mode() == EXECUTABLE_MODE) {
+                makeExecutable(path);
+            }
+        }
+        // Tree modes are octal digits read as a decimal number.
+        int mode = Integer.parseInt(Long.toString(file.mode()), 8);
+        return new GitIndex.Entry(file.path(), GitIndex.stat(path), mode, file.hash());
+    }
+
+    private void writeSymlink(Path path, ObjectId hash) throws GitException, IOException {
+        byte[] target;
+        try (var content = git.readBlob(hash)) {
+            target = content.readAllBytes();
+        }
+        Files.deleteIfExists(path);
+        try {
+            Files.createSymbolicLink(path, Path.of(new String(target, UTF_8)));
+        } catch (UnsupportedOperationException e) {
+            Files.write(path, target);
+        }
+    }
+
+    // Grants execute permission to whoever may read the file, as git does.
+    private static void makeExecutable(Path path) throws IOException {
+        var view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+        if (view == null) {
+            return;
+        }
+        var permissions = new HashSet<>(view.readAttributes().permissions());
+        if (permissions.contains(PosixFilePermission.OWNER_READ)) {
+            permissions.add(PosixFilePermission.OWNER_EXECUTE);
+        }
+        if (permissions.contains(PosixFilePermission.GROUP_READ)) {
+            permissions.add(PosixFilePermission.GROUP_EXECUTE);
+        }
+        if (permissions.contains(PosixFilePermission.OTHERS_READ)) {
+            permissions.add(PosixFilePermission.OTHERS_EXECUTE);
+        }
+        view.setPermissions(permissions);
+    }
+}
@@ -0,0 +1,110 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed commit object.
+ *
+ * <p>Only the tree, parent, author and committer headers are interpreted.
+ * Others, such as encoding, gpgsig and mergetag, are skipped together with
+ * their continuation lines, and the message is decoded as UTF-8.
+ */
+public record Commit(ObjectId tree, List<ObjectId> parents, Signature author, Signature committer,
+        String message) {
+
+    /**
+     * An author or committer line: an identity, a time in seconds since the
+     * epoch, and the writer's UTC offset as written, such as "-0700".
+     */
+    public record Signature(String name, String email, long time, String zone) {
+        static Signature parse(String line) throws GitException {
+            int open = line.indexOf('<');
+            int close = line.lastIndexOf('>');
+            if (open < 0 || close < open) {
+                throw new GitException("invalid signature: %s".formatted(line));
+            }
+            String[] when = line.substring(close + 1).trim().split(" ");
+            if (when.length != 2) {
+                throw new GitException("invalid signature: %s".formatted(line));
+            }
+            try {
+                return new Signature(line.substring(0, open).trim(), line.substring(open + 1, close),
+                        Long.parseLong(when[0]), when[1]);
+            } catch (NumberFormatException e) {
+                throw new GitException("invalid signature: %s".formatted(line));
+            }
+        }
+
+        /**
+         * Returns the time in the writer's own offset, or in UTC if the offset
+         * is malformed.
+         */
+        public OffsetDateTime dateTime() {
+            ZoneOffset offset;
+            try {
+                offset = ZoneOffset.of(zone);
+            } catch (DateTimeException e) {
+                offset = ZoneOffset.UTC;
+            }
+            return Instant.ofEpochSecond(time).atOffset(offset);
+        }
+
+        @Override
+        public String toString() {
+            return "%s <%s> %d %s".formatted(name, email, time, zone);
+        }
+    }
+
+    /**
+     * Returns the committer time, which orders history walks.
+     */
+    public long commitTime() {
+        return committer.time();
+    }
+
+    /**
+     * Parses the content of a commit object, without its header.
+     *
+     * @throws GitException If the tree or an identity is missing or malformed.
+     */
+    public static Commit parse(byte[] data) throws GitException {
+        int end = data.length;
+        int messageStart = data.length;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n' && (i + 1 == data.length || data[i + 1] == '\n')) {
+                end = i;
+                messageStart = Math.min(i + 2, data.length);
+                break;
+            }
+        }
+        ObjectId tree = null;
+        var parents = new ArrayList<ObjectId>(1);
+        Signature author = null;
+        Signature committer = null;
+        for (String line : new String(data, 0, end, UTF_8).split("\n")) {
+            try {
+                if (line.startsWith("tree ") && tree == null) {
+                    tree = ObjectId.fromHex(line.substring("tree ".length()));
+                } else if (line.startsWith("parent ")) {
+                    parents.add(ObjectId.fromHex(line.substring("parent ".length())));
+                } else if (line.startsWith("author ") && author == null) {
+                    author = Signature.parse(line.substring("author ".length()));
+                } else if (line.startsWith("committer ") && committer == null) {
+                    committer = Signature.parse(line.substring("committer ".length()));
+                }
+            } catch (IllegalArgumentException e) {
+                throw new GitException("invalid commit header: %s".formatted(line));
+            }
+        }
+        if (tree == null || author == null || committer == null) {
+            throw new GitException("invalid commit: missing tree, author or committer");
+        }
+        String message = new String(data, messageStart, data.length - messageStart, UTF_8);
+        return new Commit(tree, List.copyOf(parents), author, committer, message);
+    }
+}
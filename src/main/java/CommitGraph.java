@@ -0,0 +1,387 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A commit-graph file in git's format, holding every commit reachable from
+ * the refs in a fixed-size record: its tree, the positions of its parents
+ * within the file, its commit time and its generation number.
+ *
+ * <p>With the graph mapped, history walks read a commit's parents from its
+ * record instead of inflating and parsing the commit. The generation stored
+ * is git's topological level, one for a root commit and otherwise one more
+ * than that of its highest parent, so a commit can only reach commits of
+ * lower generation. Only single-file graphs are read and written; split graph
+ * chains are not supported, and optional chunks such as Bloom filters are
+ * neither written nor read.
+ */
+public class CommitGraph {
+    private static final int SIGNATURE = 0x43475048; // "CGPH"
+    private static final int VERSION = 1;
+    private static final int HASH_VERSION = 1; // SHA-1
+    private static final int OIDF = 0x4f494446;
+    private static final int OIDL = 0x4f49444c;
+    private static final int CDAT = 0x43444154;
+    private static final int EDGE = 0x45444745;
+    private static final int HEADER_SIZE = 8;
+    private static final int CHUNK_ENTRY_SIZE = 12;
+    private static final int RECORD_SIZE = ObjectId.SIZE + 16;
+    // A parent position meaning that there is no such parent.
+    private static final int NO_PARENT = 0x70000000;
+    // Set on a second parent position that indexes the EDGE chunk instead,
+    // and on the last of a commit's parents there.
+    private static final int EXTRA_EDGES = 0x80000000;
+
+    /** The largest generation number the format can hold. */
+    public static final int GENERATION_MAX = 0x3fffffff;
+
+    private final ByteBuffer buf;
+    private final int count;
+    private final int fanoutOffset;
+    private final int idsOffset;
+    private final int recordsOffset;
+    private final int edgesOffset;
+
+    private CommitGraph(Path path, ByteBuffer buf) throws GitException {
+        this.buf = buf;
+        if (buf.limit() < HEADER_SIZE + ObjectId.SIZE || buf.getInt(0) != SIGNATURE) {
+            throw new GitException("not a commit-graph: %s".formatted(path));
+        }
+        if (buf.get(4) != VERSION || buf.get(5) != HASH_VERSION || buf.get(7) != 0) {
+            throw new GitException("unsupported commit-graph: %s".formatted(path));
+        }
+        int chunks = buf.get(6) & 0xff;
+        int fanout = -1, ids = -1, records = -1, edges = -1;
+        for (int i = 0; i < chunks; i++) {
+            int entry = HEADER_SIZE + i * CHUNK_ENTRY_SIZE;
+            long offset = buf.getLong(entry + 4);
+            if (offset < 0 || offset > buf.limit() - ObjectId.SIZE) {
+                throw new GitException("invalid chunk offset in commit-graph: %s".formatted(path));
+            }
+            switch (buf.getInt(entry)) {
+                case OIDF -> fanout = (int) offset;
+                case OIDL -> ids = (int) offset;
+                case CDAT -> records = (int) offset;
+                case EDGE -> edges = (int) offset;
+                default -> {
+                }
+            }
+        }
+        if (fanout < 0 || ids < 0 || records < 0) {
+            throw new GitException("commit-graph is missing a required chunk: %s".formatted(path));
+        }
+        this.fanoutOffset = fanout;
+        this.idsOffset = ids;
+        this.recordsOffset = records;
+        this.edgesOffset = edges;
+        this.count = buf.getInt(fanout + 255 * 4);
+        if ((long) records + (long) count * RECORD_SIZE > buf.limit()) {
+            throw new GitException("truncated commit-graph: %s".formatted(path));
+        }
+    }
+
+    /**
+     * Returns where the graph of the objects directory is kept.
+     */
+    public static Path file(Path objectsDir) {
+        return objectsDir.resolve("info/commit-graph");
+    }
+
+    /**
+     * Maps the commit graph of the given objects directory.
+     *
+     * @return The graph, or empty if there is none.
+     * @throws GitException If the file is not a supported commit graph.
+     * @throws IOException  If an error is encountered while mapping the file.
+     */
+    public static Optional<CommitGraph> open(Path objectsDir) throws GitException, IOException {
+        Path path = file(objectsDir);
+        if (!Files.isRegularFile(path)) {
+            return Optional.empty();
+        }
+        return Optional.of(new CommitGraph(path, PackFile.map(path)));
+    }
+
+    /** Returns the number of commits in the graph. */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns the position of the commit with the given hash, found by binary
+     * search within its fan-out bucket, or -1 if it is not in the graph.
+     */
+    public int find(ObjectId hash) {
+        int first = hash.firstByte();
+        int lo = first == 0 ? 0 : buf.getInt(fanoutOffset + (first - 1) * 4);
+        int hi = buf.getInt(fanoutOffset + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = hash.compareTo(buf, idsOffset + mid * ObjectId.SIZE);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    public ObjectId idAt(int pos) {
+        return ObjectId.fromBuffer(buf, idsOffset + pos * ObjectId.SIZE);
+    }
+
+    public ObjectId treeAt(int pos) {
+        return ObjectId.fromBuffer(buf, recordsOffset + pos * RECORD_SIZE);
+    }
+
+    public int generationAt(int pos) {
+        return buf.getInt(recordsOffset + pos * RECORD_SIZE + ObjectId.SIZE + 8) >>> 2;
+    }
+
+    /** Returns the committer time, in seconds since the epoch. */
+    public long commitTimeAt(int pos) {
+        int record = recordsOffset + pos * RECORD_SIZE + ObjectId.SIZE + 8;
+        return (buf.getInt(record) & 3L) << 32 | (buf.getInt(record + 4) & 0xffffffffL);
+    }
+
+    /**
+     * Returns the positions of the commit's parents, in order.
+     */
+    public int[] parentsAt(int pos) {
+        int record = recordsOffset + pos * RECORD_SIZE + ObjectId.SIZE;
+        int first = buf.getInt(record);
+        int second = buf.getInt(record + 4);
+        if (first == NO_PARENT) {
+            return new int[0];
+        } else if (second == NO_PARENT) {
+            return new int[] { first };
+        } else if ((second & EXTRA_EDGES) == 0) {
+            return new int[] { first, second };
+        }
+        var parents = new ArrayList<Integer>();
+        parents.add(first);
+        for (int edge = edgesOffset + (second & ~EXTRA_EDGES) * 4;; edge += 4) {
+            int parent = buf.getInt(edge);
+            parents.add(parent & ~EXTRA_EDGES);
+            if ((parent & EXTRA_EDGES) != 0) {
+                return parents.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+    }
+
+    private record Node(ObjectId id, ObjectId tree, List<ObjectId> parents, long time) {
+    }
+
+    /**
+     * Writes a graph of every commit reachable from HEAD and the refs,
+     * replacing any existing graph. Commits already in the old graph are
+     * copied from it rather than read from the object database.
+     *
+     * @return The number of commits in the new graph.
+     * @throws GitException If a reachable commit is missing or invalid.
+     * @throws IOException  If an error is encountered while reading or writing.
+     */
+    public static int write(FsObjectDatabase git) throws GitException, IOException {
+        var tips = new LinkedHashSet<ObjectId>();
+        git.resolveRef("HEAD").ifPresent(tips::add);
+        tips.addAll(git.listRefs().values());
+        var nodes = collect(git, git.commitGraph(), tips);
+        nodes.sort(Comparator.comparing(Node::id));
+
+        Path path = file(git.objectsDir());
+        Files.createDirectories(path.getParent());
+        Path tmp = Files.createTempFile(path.getParent(), "tmp_graph_", "");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                write(out, nodes);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        git.rescanCommitGraph();
+        return nodes.size();
+    }
+
+    // Walks from the tips to the roots, peeling tags and skipping tips that
+    // are not commits.
+    private static List<Node> collect(FsObjectDatabase git, Optional<CommitGraph> old, Iterable<ObjectId> tips)
+            throws GitException, IOException {
+        var seen = new ObjectIdSet();
+        var pending = new ArrayDeque<ObjectId>();
+        for (var tip : tips) {
+            var raw = git.readRaw(tip);
+            while (raw.type() == ObjectType.Tag) {
+                tip = peel(raw);
+                raw = git.readRaw(tip);
+            }
+            if (raw.type() == ObjectType.Commit && seen.add(tip)) {
+                pending.push(tip);
+            }
+        }
+        var nodes = new ArrayList<Node>();
+        while (!pending.isEmpty()) {
+            var node = read(git, old, pending.pop());
+            nodes.add(node);
+            for (var parent : node.parents()) {
+                if (seen.add(parent)) {
+                    pending.push(parent);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    private static ObjectId peel(RawObject tag) throws GitException {
+        String content = new String(tag.data(), UTF_8);
+        if (!content.startsWith("object ") || content.length() < "object ".length() + ObjectId.HEX_SIZE) {
+            throw new GitException("invalid tag: %s".formatted(tag.hash()));
+        }
+        return ObjectId.fromHex(content.substring("object ".length(), "object ".length() + ObjectId.HEX_SIZE));
+    }
+
+    private static Node read(FsObjectDatabase git, Optional<CommitGraph> old, ObjectId id)
+            throws GitException, IOException {
+        int pos = old.isPresent() ? old.get().find(id) : -1;
+        if (pos < 0) {
+            var commit = git.readCommit(id);
+            return new Node(id, commit.tree(), commit.parents(), commit.commitTime());
+        }
+        var graph = old.get();
+        var parents = new ArrayList<ObjectId>(2);
+        for (int parent : graph.parentsAt(pos)) {
+            parents.add(graph.idAt(parent));
+        }
+        return new Node(id, graph.treeAt(pos), parents, graph.commitTimeAt(pos));
+    }
+
+    // Computes topological levels without recursion, since a linear history
+    // is as deep as it is long.
+    private static int[] generations(List<Node> nodes, ObjectIdMap positions) {
+        int[] generations = new int[nodes.size()];
+        var stack = new ArrayDeque<Integer>();
+        for (int i = 0; i < nodes.size(); i++) {
+            stack.push(i);
+            while (!stack.isEmpty()) {
+                int top = stack.peek();
+                if (generations[top] != 0) {
+                    stack.pop();
+                    continue;
+                }
+                int max = 0;
+                boolean ready = true;
+                for (var parent : nodes.get(top).parents()) {
+                    int generation = generations[positions.getOrDefault(parent, -1)];
+                    if (generation == 0) {
+                        stack.push(positions.getOrDefault(parent, -1));
+                        ready = false;
+                    }
+                    max = Math.max(max, generation);
+                }
+                if (ready) {
+                    generations[top] = Math.min(max + 1, GENERATION_MAX);
+                    stack.pop();
+                }
+            }
+        }
+        return generations;
+    }
+
+    private static void write(OutputStream out, List<Node> nodes) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("can't find algorithm: SHA-1");
+        }
+        var positions = new ObjectIdMap(nodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            positions.put(nodes.get(i).id(), i);
+        }
+        int[] generations = generations(nodes, positions);
+        int extraEdges = 0;
+        for (var node : nodes) {
+            if (node.parents().size() > 2) {
+                extraEdges += node.parents().size() - 1;
+            }
+        }
+
+        int chunks = extraEdges > 0 ? 4 : 3;
+        var data = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(out), digest));
+        data.writeInt(SIGNATURE);
+        data.writeByte(VERSION);
+        data.writeByte(HASH_VERSION);
+        data.writeByte(chunks);
+        data.writeByte(0);
+        long offset = HEADER_SIZE + (chunks + 1) * CHUNK_ENTRY_SIZE;
+        offset = writeChunkEntry(data, OIDF, offset, 256 * 4);
+        offset = writeChunkEntry(data, OIDL, offset, (long) nodes.size() * ObjectId.SIZE);
+        offset = writeChunkEntry(data, CDAT, offset, (long) nodes.size() * RECORD_SIZE);
+        if (extraEdges > 0) {
+            offset = writeChunkEntry(data, EDGE, offset, extraEdges * 4L);
+        }
+        writeChunkEntry(data, 0, offset, 0);
+
+        int[] fanout = new int[256];
+        for (var node : nodes) {
+            fanout[node.id().firstByte()]++;
+        }
+        for (int i = 0, total = 0; i < 256; i++) {
+            total += fanout[i];
+            data.writeInt(total);
+        }
+        for (var node : nodes) {
+            node.id().writeTo(data);
+        }
+        int edge = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            var node = nodes.get(i);
+            var parents = node.parents();
+            node.tree().writeTo(data);
+            data.writeInt(parents.isEmpty() ? NO_PARENT : positions.getOrDefault(parents.get(0), -1));
+            if (parents.size() > 2) {
+                data.writeInt(EXTRA_EDGES | edge);
+                edge += parents.size() - 1;
+            } else {
+                data.writeInt(parents.size() < 2 ? NO_PARENT : positions.getOrDefault(parents.get(1), -1));
+            }
+            data.writeInt(generations[i] << 2 | (int) (node.time() >>> 32 & 3));
+            data.writeInt((int) node.time());
+        }
+        for (var node : nodes) {
+            var parents = node.parents();
+            for (int i = 1; parents.size() > 2 && i < parents.size(); i++) {
+                int position = positions.getOrDefault(parents.get(i), -1);
+                data.writeInt(i == parents.size() - 1 ? position | EXTRA_EDGES : position);
+            }
+        }
+        data.flush();
+        out.write(digest.digest());
+        out.flush();
+    }
+
+    private static long writeChunkEntry(DataOutputStream data, int id, long offset, long size) throws IOException {
+        data.writeInt(id);
+        data.writeLong(offset);
+        return offset + size;
+    }
+}
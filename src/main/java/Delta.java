@@ -0,0 +1,248 @@
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Git's binary delta format, as used by OFS_DELTA and REF_DELTA pack entries.
+ */
+public class Delta {
+    private static final int BLOCK = 16;
+    private static final int MAX_CHAIN = 64;
+    private static final int MAX_COPY = 0x10000;
+    private static final int MAX_INSERT = 0x7f;
+    private static final int PRIME = 0x01000193;
+    private static final int PRIME_POW = pow(PRIME, BLOCK - 1);
+
+    private Delta() {
+    }
+
+    private static int pow(int base, int exp) {
+        int result = 1;
+        for (int i = 0; i < exp; i++) {
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * Reconstructs an object by applying a delta to its base.
+     *
+     * @param base  The inflated base object.
+     * @param delta The inflated delta data.
+     * @return The reconstructed object.
+     * @throws GitException If the delta is malformed or does not match the base.
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws GitException {
+        int[] pos = { 0 };
+        long baseSize = readSize(delta, pos);
+        if (baseSize != base.length) {
+            throw new GitException("invalid delta: base size %d, want %d".formatted(base.length, baseSize));
+        }
+        long resultSize = readSize(delta, pos);
+        if (resultSize > Integer.MAX_VALUE) {
+            throw new GitException("invalid delta: result too large: %d".formatted(resultSize));
+        }
+        byte[] result = new byte[(int) resultSize];
+        int out = 0;
+        int i = pos[0];
+        while (i < delta.length) {
+            int cmd = delta[i++] & 0xff;
+            if ((cmd & 0x80) != 0) {
+                long offset = 0, size = 0;
+                for (int bit = 0; bit < 4; bit++) {
+                    if ((cmd & (1 << bit)) != 0) {
+                        offset |= (long) argument(delta, i++) << (8 * bit);
+                    }
+                }
+                for (int bit = 0; bit < 3; bit++) {
+                    if ((cmd & (0x10 << bit)) != 0) {
+                        size |= (long) argument(delta, i++) << (8 * bit);
+                    }
+                }
+                if (size == 0) {
+                    size = 0x10000;
+                }
+                if (offset + size > base.length || out + size > result.length) {
+                    throw new GitException("invalid delta: copy out of bounds");
+                }
+                System.arraycopy(base, (int) offset, result, out, (int) size);
+                out += (int) size;
+            } else if (cmd != 0) {
+                if (i + cmd > delta.length || out + cmd > result.length) {
+                    throw new GitException("invalid delta: insert out of bounds");
+                }
+                System.arraycopy(delta, i, result, out, cmd);
+                i += cmd;
+                out += cmd;
+            } else {
+                throw new GitException("invalid delta: reserved opcode");
+            }
+        }
+        if (out != result.length) {
+            throw new GitException("invalid delta: produced %d bytes, want %d".formatted(out, result.length));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the object produced by applying the delta.
+     */
+    public static long resultSize(byte[] delta) throws GitException {
+        int[] pos = { 0 };
+        readSize(delta, pos);
+        return readSize(delta, pos);
+    }
+
+    /**
+     * Encodes target as a delta against base.
+     *
+     * <p>Every 16-byte block of the base is indexed by a rolling hash; the
+     * target is scanned with the same hash and each candidate match is
+     * extended in both directions before being emitted as a copy.
+     *
+     * @param base    The object to copy from.
+     * @param target  The object to reconstruct.
+     * @param maxSize The size above which the delta is not worth keeping.
+     * @return The delta, or null if it would be larger than maxSize.
+     */
+    public static byte[] create(byte[] base, byte[] target, int maxSize) {
+        var out = new ByteArrayOutputStream(Math.max(16, Math.min(maxSize, target.length / 4)));
+        writeSize(out, base.length);
+        writeSize(out, target.length);
+
+        int blocks = base.length / BLOCK;
+        int mask = Integer.highestOneBit(Math.max(1, blocks)) * 2 - 1;
+        int[] heads = new int[mask + 1];
+        int[] next = new int[blocks];
+        Arrays.fill(heads, -1);
+        for (int block = 0; block < blocks; block++) {
+            int slot = bucket(hash(base, block * BLOCK), mask);
+            next[block] = heads[slot];
+            heads[slot] = block;
+        }
+
+        int insertStart = 0;
+        int t = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (t + BLOCK <= target.length) {
+            int bestLength = 0, bestOffset = 0, chain = 0;
+            for (int block = heads[bucket(h, mask)]; block >= 0 && chain < MAX_CHAIN; block = next[block], chain++) {
+                int length = matchLength(base, block * BLOCK, target, t);
+                if (length > bestLength) {
+                    bestLength = length;
+                    bestOffset = block * BLOCK;
+                }
+            }
+            if (bestLength < BLOCK) {
+                if (t + BLOCK < target.length) {
+                    h = (h - (target[t] & 0xff) * PRIME_POW) * PRIME + (target[t + BLOCK] & 0xff);
+                }
+                t++;
+                continue;
+            }
+            while (t > insertStart && bestOffset > 0 && target[t - 1] == base[bestOffset - 1]) {
+                t--;
+                bestOffset--;
+                bestLength++;
+            }
+            writeInsert(out, target, insertStart, t);
+            writeCopy(out, bestOffset, bestLength);
+            t += bestLength;
+            insertStart = t;
+            if (out.size() > maxSize) {
+                return null;
+            }
+            if (t + BLOCK <= target.length) {
+                h = hash(target, t);
+            }
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.size() > maxSize ? null : out.toByteArray();
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            h = h * PRIME + (data[offset + i] & 0xff);
+        }
+        return h;
+    }
+
+    private static int bucket(int hash, int mask) {
+        return (hash ^ (hash >>> 15)) & mask;
+    }
+
+    private static int matchLength(byte[] base, int b, byte[] target, int t) {
+        int n = 0;
+        int max = Math.min(base.length - b, target.length - t);
+        while (n < max && base[b + n] == target[t + n]) {
+            n++;
+        }
+        return n;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(target, from, n);
+            from += n;
+        }
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int length) {
+        while (length > 0) {
+            int n = Math.min(MAX_COPY, length);
+            int cmd = 0x80;
+            byte[] args = new byte[7];
+            int nargs = 0;
+            for (int bit = 0; bit < 4; bit++) {
+                int b = (offset >>> (8 * bit)) & 0xff;
+                if (b != 0) {
+                    cmd |= 1 << bit;
+                    args[nargs++] = (byte) b;
+                }
+            }
+            if (n != MAX_COPY) {
+                for (int bit = 0; bit < 3; bit++) {
+                    int b = (n >>> (8 * bit)) & 0xff;
+                    if (b != 0) {
+                        cmd |= 0x10 << bit;
+                        args[nargs++] = (byte) b;
+                    }
+                }
+            }
+            out.write(cmd);
+            out.write(args, 0, nargs);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private static void writeSize(ByteArrayOutputStream out, long size) {
+        do {
+            int b = (int) (size & 0x7f);
+            size >>>= 7;
+            out.write(size != 0 ? b | 0x80 : b);
+        } while (size != 0);
+    }
+
+    private static long readSize(byte[] delta, int[] pos) throws GitException {
+        long size = 0;
+        int shift = 0, c;
+        do {
+            c = argument(delta, pos[0]++);
+            size |= (long) (c & 0x7f) << shift;
+            shift += 7;
+        } while ((c & 0x80) != 0);
+        return size;
+    }
+
+    // Reads a byte that an opcode or size says follows, which a truncated
+    // delta may not have.
+    private static int argument(byte[] delta, int i) throws GitException {
+        if (i >= delta.length) {
+            throw new GitException("invalid delta: truncated");
+        }
+        return delta[i] & 0xff;
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Reads and writes bitmaps compressed with EWAH, as git's .bitmap files
+ * store them.
+ *
+ * <p>A bitmap is a sequence of 64-bit words, bit i being bit i % 64 of word
+ * i / 64. Each marker word says how many words that are all zeros or all ones
+ * come next, and how many literal words follow them, stored as they are.
+ * Serialized, a bitmap is its size in bits, its number of stored words, the
+ * words and the position of the last marker word, all big-endian.
+ */
+final class Ewah {
+    private static final int RUNNING_BITS = 32;
+    private static final long MAX_RUNNING = (1L << RUNNING_BITS) - 1;
+    private static final long MAX_LITERALS = (1L << 31) - 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int TRAILER_SIZE = 4;
+
+    private Ewah() {
+    }
+
+    /**
+     * Compresses and writes a bitmap.
+     */
+    static void write(DataOutputStream out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        int n = words.length;
+        // Every marker but an empty bitmap's covers at least one word.
+        long[] stored = new long[2 * n + 1];
+        int size = 0;
+        int marker;
+        int i = 0;
+        do {
+            marker = size++;
+            long run = 0;
+            boolean ones = false;
+            if (i < n && isClean(words[i])) {
+                long clean = words[i];
+                ones = clean == -1;
+                while (i < n && words[i] == clean && run < MAX_RUNNING) {
+                    run++;
+                    i++;
+                }
+            }
+            long literals = 0;
+            while (i < n && !isClean(words[i]) && literals < MAX_LITERALS) {
+                stored[size++] = words[i++];
+                literals++;
+            }
+            stored[marker] = (ones ? 1 : 0) | run << 1 | literals << (RUNNING_BITS + 1);
+        } while (i < n);
+        out.writeInt(n * 64);
+        out.writeInt(size);
+        for (int j = 0; j < size; j++) {
+            out.writeLong(stored[j]);
+        }
+        out.writeInt(marker);
+    }
+
+    private static boolean isClean(long word) {
+        return word == 0 || word == -1;
+    }
+
+    /**
+     * Returns the serialized size of the bitmap at the given position.
+     */
+    static int size(ByteBuffer buf, int pos) throws GitException {
+        if (pos < 0 || pos + HEADER_SIZE > buf.limit()) {
+            throw new GitException("truncated bitmap at offset %d".formatted(pos));
+        }
+        long size = HEADER_SIZE + 8L * Integer.toUnsignedLong(buf.getInt(pos + 4)) + TRAILER_SIZE;
+        if (pos + size > buf.limit()) {
+            throw new GitException("truncated bitmap at offset %d".formatted(pos));
+        }
+        return (int) size;
+    }
+
+    /**
+     * Reads and decompresses the bitmap at the given position.
+     */
+    static BitSet read(ByteBuffer buf, int pos) throws GitException {
+        size(buf, pos);
+        int stored = buf.getInt(pos + 4);
+        int start = pos + HEADER_SIZE;
+        // Counts the words first, so that they can be decoded in place.
+        long total = 0;
+        for (int i = 0; i < stored;) {
+            long marker = buf.getLong(start + 8 * i);
+            long literals = marker >>> (RUNNING_BITS + 1);
+            total += (marker >>> 1 & MAX_RUNNING) + literals;
+            i += 1 + (int) Math.min(literals, stored);
+            if (i > stored || total > Integer.MAX_VALUE) {
+                throw new GitException("corrupt bitmap at offset %d".formatted(pos));
+            }
+        }
+        long[] words = new long[(int) total];
+        int w = 0;
+        for (int i = 0; i < stored;) {
+            long marker = buf.getLong(start + 8 * i++);
+            int run = (int) (marker >>> 1 & MAX_RUNNING);
+            if ((marker & 1) != 0) {
+                Arrays.fill(words, w, w + run, -1);
+            }
+            w += run;
+            for (long j = marker >>> (RUNNING_BITS + 1); j > 0; j--) {
+                words[w++] = buf.getLong(start + 8 * i++);
+            }
+        }
+        return BitSet.valueOf(words);
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Chooses the commits a fetch offers the server as haves, as git's default
+ * negotiator does.
+ *
+ * <p>Commits are offered newest first by committer time, starting from the
+ * local tips. Once the server acknowledges a commit as common, its ancestors
+ * are common too and are not offered, so that the walk stops at the history
+ * both sides share. Ancestors that have not been parsed yet when the ACK
+ * arrives are not marked, and may still be offered if another path reaches
+ * them.
+ */
+public class FetchNegotiator {
+    private final ObjectDatabase git;
+    private final Map<ObjectId, Node> seen = new HashMap<>();
+    private final PriorityQueue<Node> queue = new PriorityQueue<>(
+            Comparator.comparingLong((Node node) -> node.time).reversed());
+    private final Set<ObjectId> common = new LinkedHashSet<>();
+
+    private static final class Node {
+        final ObjectId id;
+        final long time;
+        final List<ObjectId> parents;
+        boolean common;
+
+        Node(ObjectId id, Commit commit) {
+            this.id = id;
+            this.time = commit.committer().time();
+            this.parents = commit.parents();
+        }
+    }
+
+    /**
+     * @param git  The database to read commits from.
+     * @param tips The local refs' targets. Those that are not commits are
+     *             ignored.
+     * @throws GitException If a commit is invalid.
+     * @throws IOException  If an error is encountered while reading commits.
+     */
+    public FetchNegotiator(ObjectDatabase git, Collection<ObjectId> tips) throws GitException, IOException {
+        this.git = git;
+        for (var tip : tips) {
+            if (!seen.containsKey(tip) && git.getType(tip) == ObjectType.Commit) {
+                push(tip);
+            }
+        }
+    }
+
+    /**
+     * Returns a negotiator with nothing to offer, for a repository with no
+     * commits.
+     */
+    public static FetchNegotiator empty() {
+        try {
+            return new FetchNegotiator(null, List.of());
+        } catch (GitException | IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void push(ObjectId id) throws GitException, IOException {
+        var node = new Node(id, git.readCommit(id));
+        seen.put(id, node);
+        queue.add(node);
+    }
+
+    /**
+     * Returns up to the given number of commits to offer next, which are
+     * neither known to be common nor offered before.
+     *
+     * @return The commits, or an empty list once there are none left.
+     * @throws GitException If a commit is invalid.
+     * @throws IOException  If an error is encountered while reading commits.
+     */
+    public List<ObjectId> next(int count) throws GitException, IOException {
+        var haves = new ArrayList<ObjectId>();
+        while (haves.size() < count && !queue.isEmpty()) {
+            var node = queue.poll();
+            if (node.common) {
+                continue;
+            }
+            for (var parent : node.parents) {
+                if (!seen.containsKey(parent)) {
+                    push(parent);
+                }
+            }
+            haves.add(node.id);
+        }
+        return haves;
+    }
+
+    /**
+     * Records that the server has a commit, and so all of its ancestors.
+     *
+     * @return Whether the commit was not already known to be common.
+     */
+    public boolean ack(ObjectId id) {
+        if (!common.add(id)) {
+            return false;
+        }
+        var pending = new ArrayList<ObjectId>(List.of(id));
+        while (!pending.isEmpty()) {
+            var node = seen.get(pending.removeLast());
+            if (node != null && !node.common) {
+                node.common = true;
+                pending.addAll(node.parents);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the commits the server acknowledged, in the order it did.
+     */
+    public Set<ObjectId> common() {
+        return common;
+    }
+}
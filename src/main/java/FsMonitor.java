@@ -0,0 +1,160 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+/**
+ * A resident {@link ChangeJournal} shared with other processes over a Unix
+ * domain socket in .git, like git's fsmonitor--daemon.
+ *
+ * <p>A client connects, writes its token and shuts down its side of the
+ * connection. The daemon answers as git's version 2 fsmonitor hooks do: the
+ * new token and then each changed path, each followed by a NUL, with "/" as
+ * the only path when everything must be scanned. Each connection is served
+ * on its own virtual thread.
+ */
+public class FsMonitor {
+    private static final String SOCKET = ".git/fsmonitor--daemon.ipc";
+    private static final String STOP = "stop";
+    private static final String EVERYTHING = "/";
+
+    private FsMonitor() {
+    }
+
+    /**
+     * Watches the working directory and answers clients until asked to stop.
+     *
+     * @throws IOException If the directory cannot be watched or the socket
+     *                     cannot be bound.
+     */
+    public static void serve(Path root) throws IOException {
+        Path socket = root.resolve(SOCKET);
+        // Closed by a stop request to end the accept loop, so it is not a
+        // resource of the try block.
+        var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try (var journal = ChangeJournal.start(root)) {
+            // A socket left behind by a daemon that was killed.
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                while (true) {
+                    SocketChannel channel;
+                    try {
+                        channel = server.accept();
+                    } catch (ClosedChannelException e) {
+                        break;
+                    }
+                    executor.submit(() -> {
+                        try (channel) {
+                            String token = readRequest(channel);
+                            if (token.equals(STOP)) {
+                                server.close();
+                            } else {
+                                answer(journal.changesSince(token), channel);
+                            }
+                        }
+                        return null;
+                    });
+                }
+            }
+        } finally {
+            server.close();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    private static String readRequest(SocketChannel channel) throws IOException {
+        var request = new ByteArrayOutputStream();
+        var buf = ByteBuffer.allocate(256);
+        while (channel.read(buf) >= 0) {
+            request.write(buf.array(), 0, buf.position());
+            buf.clear();
+        }
+        return request.toString(UTF_8);
+    }
+
+    private static void answer(ChangeSource.Changes changes, SocketChannel channel) throws IOException {
+        var out = new ByteArrayOutputStream();
+        out.write(changes.token().getBytes(UTF_8));
+        out.write(0);
+        for (var path : changes.paths().orElse(Set.of(EVERYTHING))) {
+            out.write(path.getBytes(UTF_8));
+            out.write(0);
+        }
+        var buf = ByteBuffer.wrap(out.toByteArray());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Asks a running daemon to stop.
+     *
+     * @throws IOException If no daemon is running.
+     */
+    public static void stop(Path root) throws IOException {
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(root.resolve(SOCKET)))) {
+            channel.write(ByteBuffer.wrap(STOP.getBytes(UTF_8)));
+            channel.shutdownOutput();
+            channel.read(ByteBuffer.allocate(1));
+        }
+    }
+
+    /**
+     * Returns a source that asks the daemon for the working directory's
+     * changes. If no daemon is running, it answers that everything must be
+     * scanned.
+     */
+    public static ChangeSource client(Path root) {
+        Path socket = root.resolve(SOCKET);
+        return token -> {
+            byte[] response;
+            try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                channel.write(ByteBuffer.wrap(token.getBytes(UTF_8)));
+                channel.shutdownOutput();
+                response = Channels.newInputStream(channel).readAllBytes();
+            } catch (IOException e) {
+                return ChangeSource.Changes.everything("");
+            }
+            return parse(response);
+        };
+    }
+
+    private static ChangeSource.Changes parse(byte[] response) throws IOException {
+        var paths = new HashSet<String>();
+        String token = null;
+        int start = 0;
+        for (int i = 0; i < response.length; i++) {
+            if (response[i] != 0) {
+                continue;
+            }
+            String field = new String(response, start, i - start, UTF_8);
+            if (token == null) {
+                token = field;
+            } else {
+                paths.add(field);
+            }
+            start = i + 1;
+        }
+        if (token == null || start != response.length) {
+            throw new IOException("truncated fsmonitor response");
+        }
+        if (paths.contains(EVERYTHING)) {
+            return ChangeSource.Changes.everything(token);
+        }
+        return new ChangeSource.Changes(token, Optional.of(paths));
+    }
+}
@@ -1,28 +1,105 @@
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.InflaterInputStream;
 
 public class FsObjectDatabase implements ObjectDatabase {
+    /**
+     * How loose objects are flushed to disk, following git's core.fsync
+     * settings for loose objects.
+     */
+    public enum Fsync {
+        /** Leave flushing to the operating system, as git does by default. */
+        NONE,
+        /** Flush each object before moving it into place. */
+        EACH,
+        /** Flush all the objects of a write-tree together before any is moved into place. */
+        BATCH,
+    }
+
+    // Objects up to this size are hashed in memory before anything is
+    // written, so that writing an object that already exists costs no I/O at
+    // all. Larger blobs are streamed. Set by core.bigFileThreshold.
+    static final long DEFAULT_STREAM_THRESHOLD = 1 << 20;
+    // How much of a large file is mapped at a time while it is hashed and
+    // deflated. Set by core.packedGitWindowSize.
+    static final long DEFAULT_WINDOW_SIZE = 32 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+    // git's defaults: loose objects favor speed, packs zlib's usual balance.
+    static final int DEFAULT_LOOSE_COMPRESSION = Deflater.BEST_SPEED;
+    static final int DEFAULT_PACK_COMPRESSION = Deflater.DEFAULT_COMPRESSION;
+    private static final String CHANGE_TOKEN_FILE = ".git/fsmonitor-token";
+    private static final List<String> REF_PREFIXES = List.of(
+            "", "refs/", "refs/tags/", "refs/heads/", "refs/remotes/");
+
     private final Path root;
+    private final PackedObjectDatabase packs;
+    private final Fsync fsync;
+    private final long streamThreshold;
+    private final int windowSize;
+    private final int looseCompression;
+    private final int packCompression;
+    private final Set<Path> fanoutDirs = ConcurrentHashMap.newKeySet();
+    // Mapped on first use; null until then.
+    private volatile Optional<CommitGraph> commitGraph;
+    private volatile ChangeSource changeSource;
+    // Fetches the objects a partial clone left out; null in a full clone.
+    private PromisorRemote promisor;
 
-    private FsObjectDatabase(Path root) {
+    private FsObjectDatabase(Path root, PackedObjectDatabase packs, Fsync fsync, long streamThreshold,
+            int windowSize, int looseCompression, int packCompression) {
         this.root = root;
+        this.packs = packs;
+        this.fsync = fsync;
+        this.streamThreshold = streamThreshold;
+        this.windowSize = windowSize;
+        this.looseCompression = looseCompression;
+        this.packCompression = packCompression;
     }
 
     public static FsObjectDatabase init(Path root) throws GitException, IOException {
@@ -33,51 +110,408 @@ public class FsObjectDatabase implements ObjectDatabase {
         if (!Files.exists(head)) {
             Files.writeString(head, "ref: refs/heads/main\n", UTF_8);
         }
-        return new FsObjectDatabase(root);
+        return open(root);
+    }
+
+    /**
+     * Opens an existing repository without creating anything in it.
+     *
+     * @throws GitException If root does not contain a repository.
+     * @throws IOException  If an error is encountered while reading its config.
+     */
+    public static FsObjectDatabase open(Path root) throws GitException, IOException {
+        if (!Files.isDirectory(root.resolve(".git/objects"))) {
+            throw new GitException("not a git repository: %s".formatted(root));
+        }
+        var config = GitConfig.read(root.resolve(".git/config"));
+        Fsync fsync = config.get("core.fsyncMethod").orElse("").equals("batch") ? Fsync.BATCH
+                : config.getBoolean("core.fsyncObjectFiles", false) ? Fsync.EACH
+                : Fsync.NONE;
+        long streamThreshold = Math.min(config.getSize("core.bigFileThreshold", DEFAULT_STREAM_THRESHOLD),
+                Integer.MAX_VALUE - 64);
+        int windowSize = (int) Math.clamp(config.getSize("core.packedGitWindowSize", DEFAULT_WINDOW_SIZE),
+                BUFFER_SIZE, Integer.MAX_VALUE);
+        int compression = compressionLevel(config, "core.compression", DEFAULT_PACK_COMPRESSION);
+        int looseCompression = compressionLevel(config, "core.looseCompression",
+                config.get("core.compression").isPresent() ? compression : DEFAULT_LOOSE_COMPRESSION);
+        int packCompression = compressionLevel(config, "pack.compression", compression);
+        var git = new FsObjectDatabase(root, PackedObjectDatabase.open(root.resolve(".git/objects")), fsync,
+                streamThreshold, windowSize, looseCompression, packCompression);
+        if (config.getBoolean("core.fsmonitor", false)) {
+            git.setChangeSource(FsMonitor.client(root));
+        }
+        var promisor = config.get("extensions.partialClone");
+        if (promisor.isPresent()) {
+            String url = config.get("remote.%s.url".formatted(promisor.get())).orElseThrow(
+                    () -> new GitException("promisor remote %s has no url".formatted(promisor.get())));
+            try {
+                git.promisor = new PromisorRemote(GitSmartClient.forUrl(new URI(url)), git.packs);
+            } catch (URISyntaxException e) {
+                throw new GitException("invalid url for promisor remote %s: %s".formatted(promisor.get(), url));
+            }
+        }
+        return git;
+    }
+
+    private static int compressionLevel(GitConfig config, String name, int defaultValue) throws GitException {
+        int level = config.getInt(name, defaultValue);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new GitException("bad zlib compression level %d for %s".formatted(level, name));
+        }
+        return level;
+    }
+
+    /**
+     * Returns the zlib level for objects written to packs, from
+     * pack.compression or core.compression.
+     */
+    public int packCompression() {
+        return packCompression;
+    }
+
+    public PackedObjectDatabase packs() {
+        return packs;
+    }
+
+    /**
+     * Returns the size above which blobs are streamed rather than held in
+     * memory, core.bigFileThreshold.
+     */
+    long bigFileThreshold() {
+        return streamThreshold;
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public Path objectsDir() {
+        return root.resolve(".git/objects");
+    }
+
+    /**
+     * Returns the repository's commit graph, mapping it on first use.
+     *
+     * @return The graph, or empty if none has been written.
+     * @throws GitException If the file is not a supported commit graph.
+     * @throws IOException  If an error is encountered while mapping the file.
+     */
+    public Optional<CommitGraph> commitGraph() throws GitException, IOException {
+        var graph = commitGraph;
+        if (graph == null) {
+            graph = CommitGraph.open(objectsDir());
+            commitGraph = graph;
+        }
+        return graph;
+    }
+
+    /**
+     * Forgets the mapped commit graph, so that a newly written one is used.
+     */
+    void rescanCommitGraph() {
+        commitGraph = null;
+    }
+
+    /**
+     * Points a ref, such as refs/heads/main, at the given object.
+     */
+    public void updateRef(String name, ObjectId hash) throws IOException {
+        Path path = root.resolve(".git").resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, hash.hex() + "\n", UTF_8);
+    }
+
+    /**
+     * Makes a symbolic ref, such as HEAD, refer to another ref.
+     */
+    public void updateSymbolicRef(String name, String target) throws IOException {
+        Path path = root.resolve(".git").resolve(name);
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, "ref: %s\n".formatted(target), UTF_8);
+    }
+
+    /**
+     * Resolves a ref to an object hash, following symbolic refs. Loose refs
+     * take precedence over those in .git/packed-refs.
+     *
+     * @return The hash, or empty if the ref or its target does not exist.
+     */
+    public Optional<ObjectId> resolveRef(String name) throws IOException {
+        for (int depth = 0; depth < 5; depth++) {
+            Path path = root.resolve(".git").resolve(name);
+            if (!Files.isRegularFile(path)) {
+                return Optional.ofNullable(packedRefs().get(name));
+            }
+            String content = Files.readString(path, UTF_8).trim();
+            if (!content.startsWith("ref: ")) {
+                return Optional.of(ObjectId.fromHex(content));
+            }
+            name = content.substring("ref: ".length());
+        }
+        return Optional.empty();
     }
 
-    public Path pathFor(byte[] hash) {
-        var sha = hex(hash);
+    private Map<String, ObjectId> packedRefs() throws IOException {
+        Path path = root.resolve(".git/packed-refs");
+        var refs = new TreeMap<String, ObjectId>();
+        if (!Files.exists(path)) {
+            return refs;
+        }
+        for (String line : Files.readAllLines(path, UTF_8)) {
+            // Skips the header comment and the peeled targets of tags.
+            if (line.length() > ObjectId.HEX_SIZE && line.charAt(ObjectId.HEX_SIZE) == ' ' && line.charAt(0) != '^') {
+                refs.put(line.substring(ObjectId.HEX_SIZE + 1), ObjectId.fromHex(line.substring(0, ObjectId.HEX_SIZE)));
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Lists every ref under refs/, loose or packed, sorted by name.
+     */
+    public SortedMap<String, ObjectId> listRefs() throws IOException {
+        var refs = new TreeMap<>(packedRefs());
+        Path dir = root.resolve(".git/refs");
+        if (!Files.isDirectory(dir)) {
+            return refs;
+        }
+        try (var files = Files.walk(dir)) {
+            for (var file : files.filter(Files::isRegularFile).toList()) {
+                String name = root.resolve(".git").relativize(file).toString().replace('\\', '/');
+                var hash = resolveRef(name);
+                if (hash.isPresent()) {
+                    refs.put(name, hash.get());
+                }
+            }
+        }
+        return refs;
+    }
+
+    /**
+     * Resolves a revision given as a full hash or as a ref name, which is
+     * tried as given and then under refs/, refs/tags/, refs/heads/ and
+     * refs/remotes/, as git does. The object is not checked for existence.
+     *
+     * @return The hash, or empty if the name matches no ref.
+     */
+    public Optional<ObjectId> resolve(String name) throws IOException {
+        if (ObjectId.isHex(name)) {
+            return Optional.of(ObjectId.fromHex(name));
+        }
+        if (name.isEmpty() || name.contains("..")) {
+            return Optional.empty();
+        }
+        for (var prefix : REF_PREFIXES) {
+            var hash = resolveRef(prefix + name);
+            if (hash.isPresent()) {
+                return hash;
+            }
+        }
+        return Optional.empty();
+    }
+
+    public Path pathFor(ObjectId hash) {
+        var sha = hash.hex();
         var dir = sha.substring(0, 2);
         var path = sha.substring(2);
         return root.resolve(".git/objects").resolve(dir).resolve(path);
     }
 
+    // Fetches an object that a partial clone left out, and returns whether it
+    // had to.
+    private boolean fetchIfPromised(ObjectId hash) throws GitException, IOException {
+        if (promisor == null || Files.exists(pathFor(hash))) {
+            return false;
+        }
+        promisor.fetch(List.of(hash));
+        return true;
+    }
+
+    /**
+     * Fetches those of the given objects that a partial clone left out, in
+     * as few requests as possible. Does nothing in a full clone.
+     */
+    @Override
+    public void prefetch(Collection<ObjectId> hashes) throws GitException, IOException {
+        if (promisor == null) {
+            return;
+        }
+        var missing = new LinkedHashSet<ObjectId>();
+        for (var hash : hashes) {
+            if (!contains(hash)) {
+                missing.add(hash);
+            }
+        }
+        if (!missing.isEmpty()) {
+            promisor.fetch(missing);
+        }
+    }
+
     @Override
-    public ObjectType getType(byte[] hash) throws IOException, GitException {
-        var deflated = Files.newInputStream(pathFor(hash));
-        var inflated = new InflaterInputStream(deflated);
-        String type = eatString(inflated, (byte) ' ').t.toString();
-        return ObjectType.parse(type);
+    public ObjectType getType(ObjectId hash) throws IOException, GitException {
+        var packed = packs.getType(hash);
+        if (packed.isEmpty() && fetchIfPromised(hash)) {
+            packed = packs.getType(hash);
+        }
+        if (packed.isPresent()) {
+            return packed.get();
+        }
+        try (var inflated = inflate(pathFor(hash))) {
+            String type = eatString(inflated, (byte) ' ').t.toString();
+            return ObjectType.parse(type);
+        }
     }
 
-    private record ObjectInputStream(ObjectType type, int size, InputStream stream) {
-        InputStream as(ObjectType want) throws GitException {
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Only the object's header is read, and a packed delta's first bytes.
+     */
+    @Override
+    public long getSize(ObjectId hash) throws IOException, GitException {
+        var packed = packs.getSize(hash);
+        if (packed.isEmpty() && fetchIfPromised(hash)) {
+            packed = packs.getSize(hash);
+        }
+        if (packed.isPresent()) {
+            return packed.get();
+        }
+        try (var inflated = inflate(pathFor(hash))) {
+            eatString(inflated, (byte) ' ');
+            return eatLong(inflated, (byte) 0).t;
+        }
+    }
+
+    /**
+     * An object's type and size, followed by a stream of its content.
+     */
+    public record ObjectInputStream(ObjectType type, long size, InputStream stream) {
+        InputStream as(ObjectType want) throws GitException, IOException {
             if (type != want) {
+                stream.close();
                 throw new GitException("invalid object type: want %s, got %s".formatted(want, type));
             }
             return stream;
         }
     }
 
-    private ObjectInputStream readObject(byte[] hash) throws IOException, GitException {
-        var deflated = Files.newInputStream(pathFor(hash));
-        var inflated = new InflaterInputStream(deflated);
-        String type = eatString(inflated, (byte) ' ').t.toString();
-        int size = eatInt(inflated, (byte) 0).t;
-        return new ObjectInputStream(ObjectType.parse(type), size, inflated);
+    /**
+     * Opens an object of any type for streaming. Packed objects are read into
+     * memory; loose objects are inflated as the stream is read.
+     */
+    public ObjectInputStream readObject(ObjectId hash) throws IOException, GitException {
+        var packed = packs.read(hash);
+        if (packed.isEmpty() && fetchIfPromised(hash)) {
+            packed = packs.read(hash);
+        }
+        if (packed.isPresent()) {
+            byte[] data = packed.get().data();
+            return new ObjectInputStream(packed.get().type(), data.length, new ByteArrayInputStream(data));
+        }
+        return readLoose(hash);
+    }
+
+    /**
+     * Opens a loose object for streaming, even if a pack holds it too. Only
+     * its header is inflated before the stream is read.
+     */
+    ObjectInputStream readLoose(ObjectId hash) throws IOException, GitException {
+        var inflated = inflate(pathFor(hash));
+        try {
+            String type = eatString(inflated, (byte) ' ').t.toString();
+            long size = eatLong(inflated, (byte) 0).t;
+            return new ObjectInputStream(ObjectType.parse(type), size, inflated);
+        } catch (GitException | IOException e) {
+            inflated.close();
+            throw e;
+        }
+    }
+
+    // Opens a loose object for inflating through a buffer large enough that
+    // reads of big blobs are not dominated by per-call overhead. The pooled
+    // inflater goes back to the pool when the stream is closed.
+    private static InputStream inflate(Path path) throws IOException {
+        var inflater = ZlibPool.inflater();
+        try {
+            return new InflaterInputStream(Files.newInputStream(path), inflater, BUFFER_SIZE) {
+                private boolean released;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!released) {
+                            released = true;
+                            ZlibPool.release(inflater);
+                        }
+                    }
+                }
+            };
+        } catch (IOException e) {
+            ZlibPool.release(inflater);
+            throw e;
+        }
     }
 
     @Override
-    public InputStream readBlob(byte[] sha) throws GitException, IOException {
+    public InputStream readBlob(ObjectId sha) throws GitException, IOException {
         return readObject(sha).as(ObjectType.Blob);
     }
 
-    private static String hex(byte[] bytes) {
-        var hash = new StringBuilder();
-        for (byte b : bytes)
-            hash.append("%02x".formatted(b));
-        return hash.toString();
+    @Override
+    public RawObject readRaw(ObjectId hash) throws GitException, IOException {
+        var obj = readObject(hash);
+        try (var stream = obj.stream) {
+            if (obj.size > Integer.MAX_VALUE - 8) {
+                throw new GitException("object too large to read into memory: %s".formatted(hash));
+            }
+            return new RawObject(obj.type, stream.readAllBytes());
+        }
+    }
+
+    /**
+     * Lists the hashes of all loose objects, in no particular order.
+     */
+    public List<ObjectId> looseObjects() throws IOException {
+        var hashes = new ArrayList<ObjectId>();
+        try (var dirs = Files.list(root.resolve(".git/objects"))) {
+            for (var dir : dirs.filter(FsObjectDatabase::isFanoutDir).toList()) {
+                try (var files = Files.list(dir)) {
+                    for (var file : files.toList()) {
+                        String sha = dir.getFileName().toString() + file.getFileName();
+                        if (ObjectId.isHex(sha)) {
+                            hashes.add(ObjectId.fromHex(sha));
+                        }
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Deletes the loose copy of an object, removing its fan-out directory if it
+     * becomes empty.
+     */
+    public void pruneLoose(ObjectId hash) throws IOException {
+        Path path = pathFor(hash);
+        Files.deleteIfExists(path);
+        try (var rest = Files.list(path.getParent())) {
+            if (rest.findAny().isEmpty()) {
+                fanoutDirs.remove(path.getParent());
+                Files.deleteIfExists(path.getParent());
+            }
+        }
+    }
+
+    private static boolean isFanoutDir(Path path) {
+        String name = path.getFileName().toString();
+        return name.length() == 2 && name.chars().allMatch(FsObjectDatabase::isHexDigit) && Files.isDirectory(path);
+    }
+
+    private static boolean isHexDigit(int c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
     }
 
     private static final String SHA_1 = "SHA-1";
@@ -87,30 +521,235 @@ public class FsObjectDatabase implements ObjectDatabase {
         void accept(OutputStream out) throws IOException;
     }
 
-    private byte[] hashStream(OutputStream out, CheckedStreamConsumer f) throws IOException {
-        MessageDigest digest;
+    private static MessageDigest sha1() {
         try {
-            digest = MessageDigest.getInstance("SHA-1");
+            return MessageDigest.getInstance(SHA_1);
         } catch (NoSuchAlgorithmException e) {
             throw new AssertionError("can't find algorithm: %s".formatted(SHA_1));
         }
+    }
+
+    private ObjectId hashStream(OutputStream out, CheckedStreamConsumer f) throws IOException {
+        var digest = sha1();
         var digester = new DigestOutputStream(out, digest);
         f.accept(digester);
-        return digest.digest();
+        return ObjectId.fromBytes(digest.digest());
+    }
+
+    private record Staged(Path temp, Path target) {
+    }
+
+    // Loose objects written during one write-tree with core.fsyncMethod=batch.
+    // They stay in their temp files until the whole tree has been written, and
+    // are then flushed together and moved into place.
+    private final class Batch {
+        private final Queue<Staged> staged = new ConcurrentLinkedQueue<>();
+
+        void commit() throws IOException {
+            var dirs = new HashSet<Path>();
+            for (var object : staged) {
+                force(object.temp());
+            }
+            for (Staged object; (object = staged.poll()) != null;) {
+                install(object.temp(), object.target());
+                dirs.add(object.target().getParent());
+            }
+            for (var dir : dirs) {
+                force(dir);
+            }
+        }
+
+        void abort() throws IOException {
+            for (Staged object; (object = staged.poll()) != null;) {
+                Files.deleteIfExists(object.temp());
+            }
+        }
+    }
+
+    /**
+     * Returns whether the object exists, either loose or packed.
+     */
+    public boolean contains(ObjectId hash) {
+        return packs.contains(hash) || Files.exists(pathFor(hash));
+    }
+
+    private static void force(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    // Moves a finished temp file to its object path. Another writer may have
+    // stored the same object in the meantime; objects are immutable, so
+    // either copy will do.
+    private void install(Path temp, Path target) throws IOException {
+        Path dir = target.getParent();
+        if (fanoutDirs.add(dir)) {
+            Files.createDirectories(dir);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.delete(temp);
+        } catch (NoSuchFileException e) {
+            // The fan-out directory was removed behind our back.
+            Files.createDirectories(dir);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Stages the temp file into the batch, or installs it right away.
+    private void store(Path temp, ObjectId hash, Batch batch) throws IOException {
+        Path target = pathFor(hash);
+        if (batch != null) {
+            batch.staged.add(new Staged(temp, target));
+            return;
+        }
+        if (fsync != Fsync.NONE) {
+            force(temp);
+        }
+        install(temp, target);
+        if (fsync != Fsync.NONE) {
+            force(target.getParent());
+        }
+    }
+
+    // Temp files are created inside .git/objects, as git does, so that moving
+    // them into place is a rename rather than a copy across file systems.
+    private Path createTemp() throws IOException {
+        return Files.createTempFile(root.resolve(".git/objects"), "tmp_obj_", "");
+    }
+
+    // Writes a complete object ("<type> <size>\0<content>") held in memory.
+    private ObjectId writeObject(byte[] object, Batch batch) throws IOException {
+        ObjectId hash = hashStream(OutputStream.nullOutputStream(), out -> out.write(object));
+        if (contains(hash)) {
+            return hash;
+        }
+        Path temp = createTemp();
+        try {
+            try (var out = deflate(temp)) {
+                out.write(object);
+            }
+            store(temp, hash, batch);
+            temp = null;
+            return hash;
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
     }
 
-    private byte[] writeObject(CheckedStreamConsumer f) throws IOException {
-        Path temp = Files.createTempFile("git", "obj");
-        try (var out = new DeflaterOutputStream(Files.newOutputStream(temp))) {
-            byte[] hash = hashStream(out, f);
-            Path target = pathFor(hash);
-            Files.createDirectories(target.getParent());
-            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+    @FunctionalInterface
+    private interface TempWriter {
+        ObjectId write(Path temp) throws IOException;
+    }
+
+    // Writes an object too large to buffer, hashing and deflating it into a
+    // temp file in one pass. The existence check can only happen once the
+    // hash is known.
+    private ObjectId writeStreamed(TempWriter writer, Batch batch) throws IOException {
+        Path temp = createTemp();
+        try {
+            ObjectId hash = writer.write(temp);
+            if (!contains(hash)) {
+                store(temp, hash, batch);
+                temp = null;
+            }
             return hash;
+        } finally {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
         }
     }
 
-    private byte[] hashAndWriteBlob(OutputStream out, InputStream in, long size) throws IOException {
+    private ObjectId writeObject(CheckedStreamConsumer f, Batch batch) throws IOException {
+        return writeStreamed(temp -> {
+            try (var out = deflate(temp)) {
+                return hashStream(out, f);
+            }
+        }, batch);
+    }
+
+    // Opens a temp file for deflating through a buffer large enough that
+    // writes of big blobs are not dominated by per-call overhead.
+    private OutputStream deflate(Path temp) throws IOException {
+        var deflater = ZlibPool.deflater(looseCompression);
+        try {
+            return new DeflaterOutputStream(Files.newOutputStream(temp), deflater, BUFFER_SIZE) {
+                private boolean released;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!released) {
+                            released = true;
+                            ZlibPool.release(deflater);
+                        }
+                    }
+                }
+            };
+        } catch (IOException e) {
+            ZlibPool.release(deflater);
+            throw e;
+        }
+    }
+
+    // Hashes the blob held in a file and deflates it into temp, mapping the
+    // file a window at a time. The deflater reads straight from each window,
+    // so the content is never copied onto the heap.
+    private ObjectId deflateMapped(FileChannel in, long size, Path temp) throws IOException {
+        var digest = sha1();
+        var deflater = ZlibPool.deflater(looseCompression);
+        var buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try (var out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            byte[] header = header(ObjectType.Blob, size);
+            digest.update(header);
+            deflater.setInput(header);
+            drain(deflater, buf, out, false);
+            for (long pos = 0; pos < size; pos += windowSize) {
+                var window = in.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(windowSize, size - pos));
+                digest.update(window.duplicate());
+                deflater.setInput(window);
+                drain(deflater, buf, out, false);
+            }
+            deflater.finish();
+            drain(deflater, buf, out, true);
+        } finally {
+            ZlibPool.release(deflater);
+        }
+        return ObjectId.fromBytes(digest.digest());
+    }
+
+    // Deflates until the deflater needs more input or, when finishing, until
+    // it has written everything.
+    private static void drain(Deflater deflater, ByteBuffer buf, FileChannel out, boolean finish)
+            throws IOException {
+        while (finish ? !deflater.finished() : !deflater.needsInput()) {
+            deflater.deflate(buf);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            buf.clear();
+        }
+    }
+
+    private static byte[] header(ObjectType type, long size) {
+        return "%s %d\0".formatted(type, size).getBytes(UTF_8);
+    }
+
+    private static byte[] concat(byte[] header, byte[] content) {
+        byte[] object = Arrays.copyOf(header, header.length + content.length);
+        System.arraycopy(content, 0, object, header.length, content.length);
+        return object;
+    }
+
+    private ObjectId hashAndWriteBlob(OutputStream out, InputStream in, long size) throws IOException {
         return hashStream(out, digester -> {
             digester.write("blob %d".formatted(size).getBytes(UTF_8));
             digester.write((byte) 0);
@@ -119,17 +758,67 @@ public class FsObjectDatabase implements ObjectDatabase {
     }
 
     @Override
-    public byte[] hashBlob(InputStream s, long size) throws IOException {
+    public ObjectId hashBlob(InputStream s, long size) throws IOException {
         return hashAndWriteBlob(OutputStream.nullOutputStream(), s, size);
     }
 
     @Override
-    public byte[] writeBlob(InputStream s, long size) throws IOException {
-        return writeObject(out -> hashAndWriteBlob(out, s, size));
+    public ObjectId writeBlob(InputStream s, long size) throws IOException {
+        return writeBlob(s, size, null);
     }
 
-    private static Sized<Integer> eatInt(InputStream is, byte until) throws GitException, IOException {
-        return eat(is, until, 0, (result, b) -> 10 * result + (b - '0'), b -> (b >= '0' && b <= '9'));
+    private ObjectId writeBlob(InputStream s, long size, Batch batch) throws IOException {
+        if (size > streamThreshold) {
+            return writeObject(out -> hashAndWriteBlob(out, s, size), batch);
+        }
+        return writeObject(concat(header(ObjectType.Blob, size), s.readAllBytes()), batch);
+    }
+
+    /**
+     * Computes the blob hash of a file without writing it. Files larger than
+     * core.bigFileThreshold are mapped into memory a window at a time rather
+     * than read through a stream, and may be of any size.
+     */
+    public ObjectId hashBlob(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= streamThreshold) {
+                return hashBlob(Channels.newInputStream(channel), size);
+            }
+            var digest = sha1();
+            digest.update(header(ObjectType.Blob, size));
+            for (long pos = 0; pos < size; pos += windowSize) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(windowSize, size - pos)));
+            }
+            return ObjectId.fromBytes(digest.digest());
+        }
+    }
+
+    /**
+     * Writes a file as a blob, like {@link #hashBlob(Path)} but storing it.
+     * Large files are hashed and deflated together from the mapped windows.
+     */
+    public ObjectId writeBlob(Path file) throws IOException {
+        return writeBlob(file, null);
+    }
+
+    private ObjectId writeBlob(Path file, Batch batch) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= streamThreshold) {
+                return writeBlob(Channels.newInputStream(channel), size, batch);
+            }
+            return writeStreamed(temp -> deflateMapped(channel, size, temp), batch);
+        }
+    }
+
+    private static Sized<Long> eatLong(InputStream is, byte until) throws GitException, IOException {
+        var size = eat(is, until, 0L, (result, b) -> 10 * result + (b - '0'), b -> (b >= '0' && b <= '9'));
+        // Up to 18 digits, plus the terminator, cannot overflow.
+        if (size.size > 19) {
+            throw new GitException("invalid object: size too large");
+        }
+        return size;
     }
 
     private static Sized<StringBuilder> eatString(InputStream is, byte until) throws GitException, IOException {
@@ -137,23 +826,33 @@ public class FsObjectDatabase implements ObjectDatabase {
     }
 
     @Override
-    public List<TreeObject> listTree(byte[] hash) throws GitException, IOException {
-        var obj = readObject(hash);
-        InputStream stream = obj.as(ObjectType.Tree);
+    public List<TreeObject> listTree(ObjectId hash) throws GitException, IOException {
+        var cursor = readTree(hash);
         var elems = new ArrayList<TreeObject>();
-        for (int read = 0; read < obj.size;) {
-            var mode = eatInt(stream, (byte) ' ');
-            read += mode.size;
-            var name = eatString(stream, (byte) 0);
-            read += name.size;
-            var objectHash = stream.readNBytes(20);
-            var objectType = getType(objectHash);
-            read += 20;
-            elems.add(new TreeObject(name.t.toString(), objectType, mode.t, objectHash));
+        while (cursor.next()) {
+            elems.add(cursor.toTreeObject());
         }
         return elems;
     }
 
+    @Override
+    public TreeCursor readTree(ObjectId hash) throws GitException, IOException {
+        var obj = readRaw(hash);
+        if (obj.type() != ObjectType.Tree) {
+            throw new GitException("invalid object type: want %s, got %s".formatted(ObjectType.Tree, obj.type()));
+        }
+        return TreeCursor.of(obj.data());
+    }
+
+    @Override
+    public Commit readCommit(ObjectId hash) throws GitException, IOException {
+        var obj = readRaw(hash);
+        if (obj.type() != ObjectType.Commit) {
+            throw new GitException("invalid object type: want %s, got %s".formatted(ObjectType.Commit, obj.type()));
+        }
+        return Commit.parse(obj.data());
+    }
+
     private record Sized<T>(T t, int size) {
     }
 
@@ -180,66 +879,360 @@ public class FsObjectDatabase implements ObjectDatabase {
         return new Sized<T>(acc, n);
     }
 
-    private byte[] writeTree(Path base) throws GitException, IOException {
+    // Stores a tree object, or only hashes it.
+    @FunctionalInterface
+    private interface TreeStore {
+        ObjectId store(byte[] object) throws IOException;
+    }
+
+    private static byte[] treeObject(List<TreeObject> entries) throws IOException {
+        var objects = new ArrayList<>(entries);
+        // Git sorts a tree's entries by name, with a subtree's name compared
+        // as if it ended in a slash.
+        objects.sort(Comparator.comparing((TreeObject object) -> object.type() == ObjectType.Tree ? object.name() + "/"
+                : object.name()));
+        var content = new ByteArrayOutputStream();
+        for (var object : objects) {
+            content.write("%d %s".formatted(object.mode(), object.name()).getBytes(UTF_8));
+            content.write((byte) 0);
+            object.hash().writeTo(content);
+        }
+        return concat(header(ObjectType.Tree, content.size()), content.toByteArray());
+    }
+
+    private static final class WriteTreeException extends RuntimeException {
+        WriteTreeException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static final int REGULAR_FILE_MODE = 0100644;
+    private static final int EXECUTABLE_MODE = 0100755;
+    private static final int SYMLINK_MODE = 0120000;
+    private static final int GITLINK_MODE = 0160000;
+    private static final int FILE_TYPE_MASK = 0170000;
+    private static final int OWNER_EXECUTE = 0100;
+
+    // The index read before a write-tree, and the entries for the files seen
+    // during it, sorted by path. Without write, new files are only hashed.
+    private record WriteTreeState(GitIndex index, ConcurrentSkipListMap<String, GitIndex.Entry> entries,
+            AtomicBoolean changed, Batch batch, boolean write) {
+    }
+
+    // Scans one directory, forking a task for each subdirectory and file.
+    private final class ScanTask extends RecursiveAction {
+        private final Path dir;
+        private final String prefix;
+        private final WriteTreeState state;
+
+        ScanTask(Path dir, String prefix, WriteTreeState state) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.state = state;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                List<Path> paths;
+                try (var listing = Files.list(dir)) {
+                    paths = listing.filter(path -> !path.equals(root.resolve(".git"))).toList();
+                }
+                var tasks = new ArrayList<ForkJoinTask<?>>(paths.size());
+                for (var path : paths) {
+                    tasks.add(scanTask(path, prefix + path.getFileName(), state));
+                }
+                invokeAll(tasks);
+            } catch (IOException e) {
+                throw new WriteTreeException(e);
+            }
+        }
+    }
+
+    // Returns a task that scans a directory, or records the entry for a file.
+    // A directory standing in for a submodule keeps its gitlink entry.
+    private ForkJoinTask<?> scanTask(Path path, String name, WriteTreeState state) {
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            return writeBlobTask(path, name, state);
+        }
+        var cached = state.index.get(name);
+        if (cached.isPresent() && cached.get().mode() == GITLINK_MODE) {
+            return ForkJoinTask.adapt(() -> state.entries.put(name, cached.get()));
+        }
+        return new ScanTask(path, name + "/", state);
+    }
+
+    // Reuses the cached entry for files whose stat data matches the index,
+    // and writes or hashes the others as new blobs.
+    private ForkJoinTask<?> writeBlobTask(Path path, String name, WriteTreeState state) {
+        return ForkJoinTask.adapt(() -> {
+            try {
+                var stat = GitIndex.stat(path);
+                var cached = state.index.get(name);
+                if (cached.isPresent() && state.index.isClean(cached.get(), stat)) {
+                    state.entries.put(name, cached.get());
+                    return;
+                }
+                int mode = fileMode(stat);
+                ObjectId hash;
+                if (mode == SYMLINK_MODE) {
+                    byte[] target = Files.readSymbolicLink(path).toString().getBytes(UTF_8);
+                    var in = new ByteArrayInputStream(target);
+                    hash = state.write ? writeBlob(in, target.length, state.batch) : hashBlob(in, target.length);
+                } else {
+                    hash = state.write ? writeBlob(path, state.batch) : hashBlob(path);
+                }
+                state.entries.put(name, new GitIndex.Entry(name, stat, mode, hash));
+                state.changed.set(true);
+            } catch (IOException e) {
+                throw new WriteTreeException(e);
+            }
+        });
+    }
+
+    // The mode git records for a file: a symlink, or a regular file that is
+    // executable by its owner or not.
+    private static int fileMode(GitIndex.Stat stat) {
+        if ((stat.mode() & FILE_TYPE_MASK) == SYMLINK_MODE) {
+            return SYMLINK_MODE;
+        }
+        return (stat.mode() & OWNER_EXECUTE) != 0 ? EXECUTABLE_MODE : REGULAR_FILE_MODE;
+    }
+
+    // Re-examines only the given paths, starting from the entries in the
+    // index: a file is rehashed if its stat data changed, a directory is
+    // rescanned, and a missing path is dropped with everything below it.
+    private void refresh(Set<String> paths, WriteTreeState state, ForkJoinPool pool) {
+        for (var entry : state.index.entries()) {
+            state.entries.put(entry.path(), entry);
+        }
+        var tasks = new ArrayList<ForkJoinTask<?>>();
+        String scanned = null;
+        for (var name : new TreeSet<>(paths)) {
+            if (name.equals(".git") || name.startsWith(".git/") || scanned != null && name.startsWith(scanned)) {
+                continue;
+            }
+            // '0' follows '/', so this is every path below the name.
+            var below = state.entries.subMap(name + "/", name + "0");
+            if (!below.isEmpty()) {
+                below.clear();
+                state.changed.set(true);
+            }
+            Path path = root.resolve(name);
+            boolean exists = Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+            boolean isDirectory = exists && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+            if ((!exists || isDirectory) && state.entries.remove(name) != null) {
+                state.changed.set(true);
+            }
+            if (isDirectory) {
+                scanned = name + "/";
+            }
+            if (exists) {
+                tasks.add(scanTask(path, name, state));
+            }
+        }
+        for (var task : tasks) {
+            pool.execute(task);
+        }
+        for (var task : tasks) {
+            task.join();
+        }
+    }
+
+    // Stores the tree holding entries [from, to), whose paths all share the
+    // first prefixLength characters, and the trees below it. Each subtree's
+    // hash is recorded by path in trees, if given.
+    private ObjectId writeTree(List<GitIndex.Entry> entries, int from, int to, int prefixLength, TreeStore store,
+            Map<String, ObjectId> trees) throws IOException {
         var objects = new ArrayList<TreeObject>();
-        long treeSize = 0;
-        for (var path : Files.list(base).toList()) {
-            if (path.equals(root.resolve(".git"))) {
+        int i = from;
+        while (i < to) {
+            var entry = entries.get(i);
+            String path = entry.path();
+            int slash = path.indexOf('/', prefixLength);
+            if (slash < 0) {
+                // Tree modes are octal digits read as a decimal number.
+                long mode = Long.parseLong(Integer.toOctalString(entry.mode()));
+                objects.add(new TreeObject(path.substring(prefixLength), ObjectType.fromMode(mode), mode,
+                        entry.hash()));
+                i++;
                 continue;
             }
-            if (Files.isDirectory(path)) {
-                var hash = writeTree(path);
-                objects.add(new TreeObject(
-                        base.relativize(path).toString(),
-                        getType(hash), 40000, hash));
-            } else {
-                var hash = writeBlob(Files.newInputStream(path), Files.size(path));
-                objects.add(new TreeObject(
-                        base.relativize(path).toString(),
-                        getType(hash), 100644, hash));
-            }
-            treeSize += Long.toString(objects.getLast().mode()).length();
-            treeSize += 1; // space
-            treeSize += objects.getLast().name().length(); // name
-            treeSize += 1; // nul
-            treeSize += 20; // sha
-        }
-        objects.sort(Comparator.comparing(TreeObject::name));
-        final long size = treeSize;
-        return writeObject(out -> {
-            out.write("tree %d".formatted(size).getBytes(UTF_8));
-            out.write((byte) 0);
-            for (var object : objects) {
-                out.write("%d %s".formatted(object.mode(), object.name()).getBytes(UTF_8));
-                out.write((byte) 0);
-                out.write(object.hash());
+            String dir = path.substring(0, slash + 1);
+            int j = i + 1;
+            while (j < to && entries.get(j).path().startsWith(dir)) {
+                j++;
             }
-        });
+            var subtree = writeTree(entries, i, j, slash + 1, store, trees);
+            if (trees != null) {
+                trees.put(path.substring(0, slash), subtree);
+            }
+            objects.add(new TreeObject(path.substring(prefixLength, slash), ObjectType.Tree, 40000, subtree));
+            i = j;
+        }
+        return store.store(treeObject(objects));
+    }
+
+    /**
+     * Hashes the trees the index describes without writing them, as git's
+     * cache-tree extension records them.
+     *
+     * @return The tree of each directory holding indexed files, by path
+     *         without a trailing slash, and the root tree under "".
+     * @throws IOException If an error is encountered while hashing.
+     */
+    public Map<String, ObjectId> hashIndexTrees(GitIndex index) throws IOException {
+        // Each directory's entries must be next to each other.
+        var entries = index.entries().stream().sorted(Comparator.comparing(GitIndex.Entry::path)).toList();
+        var trees = new HashMap<String, ObjectId>();
+        trees.put("", writeTree(entries, 0, entries.size(), 0,
+                object -> hashStream(OutputStream.nullOutputStream(), out -> out.write(object)), trees));
+        return trees;
     }
 
     @Override
-    public byte[] writeTree() throws GitException, IOException {
-        return writeTree(root);
+    public ObjectId writeTree() throws GitException, IOException {
+        return writeTree(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets where write-tree learns which paths changed since it last ran, or
+     * null to scan the whole working directory every time. Repositories with
+     * core.fsmonitor set start out asking the {@link FsMonitor} daemon.
+     */
+    public void setChangeSource(ChangeSource source) {
+        this.changeSource = source;
+    }
+
+    /**
+     * Writes a tree object for the working directory using a bounded number
+     * of threads. The result is identical for every level of parallelism.
+     *
+     * <p>Files whose stat data matches .git/index reuse the blob hash recorded
+     * there instead of being read again, and the index is rewritten whenever
+     * any entry changed. With a {@link ChangeSource}, only the paths changed
+     * since the last write-tree are examined; the rest of the index is
+     * trusted. Without one, or when it cannot tell, every directory is
+     * scanned.
+     *
+     * @param parallelism The maximum number of files or directories to write
+     *                    concurrently; 1 writes them one at a time.
+     * @return A hash representing the new tree object.
+     * @throws GitException If the index is locked by another process.
+     * @throws IOException  If an error is encountered while writing the tree.
+     */
+    public ObjectId writeTree(int parallelism) throws GitException, IOException {
+        Path indexFile = root.resolve(".git/index");
+        var index = readIndex(indexFile);
+        var source = changeSource;
+        var changes = source == null ? null : source.changesSince(changeToken(indexFile));
+        var batch = fsync == Fsync.BATCH ? new Batch() : null;
+        var state = new WriteTreeState(index, new ConcurrentSkipListMap<>(), new AtomicBoolean(), batch, true);
+        ObjectId hash;
+        try (var pool = new ForkJoinPool(parallelism)) {
+            scan(changes, state, pool);
+            var entries = List.copyOf(state.entries.values());
+            hash = writeTree(entries, 0, entries.size(), 0, object -> writeObject(object, batch), null);
+            if (batch != null) {
+                batch.commit();
+            }
+        } catch (WriteTreeException e) {
+            throw (IOException) e.getCause();
+        } finally {
+            if (batch != null) {
+                batch.abort();
+            }
+        }
+        if (state.changed.get() || state.entries.size() != index.size()) {
+            GitIndex.write(indexFile, state.entries.values());
+        }
+        Path tokenFile = root.resolve(CHANGE_TOKEN_FILE);
+        if (changes != null && !changes.token().isEmpty()) {
+            Files.writeString(tokenFile, changes.token(), UTF_8);
+        } else {
+            Files.deleteIfExists(tokenFile);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the entries write-tree would record for the working directory,
+     * by path, without writing anything: files whose stat data matches the
+     * index reuse its hash, and the others are hashed but not stored. The
+     * paths examined are narrowed by the {@link ChangeSource} as for
+     * write-tree, but its token is not saved, so the next write-tree still
+     * sees every change since the last one.
+     *
+     * @throws IOException If an error is encountered while reading files.
+     */
+    public SortedMap<String, GitIndex.Entry> scanWorkingTree() throws IOException {
+        Path indexFile = root.resolve(".git/index");
+        var index = readIndex(indexFile);
+        var source = changeSource;
+        var changes = source == null ? null : source.changesSince(changeToken(indexFile));
+        var state = new WriteTreeState(index, new ConcurrentSkipListMap<>(), new AtomicBoolean(), null, false);
+        try (var pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors())) {
+            scan(changes, state, pool);
+        } catch (WriteTreeException e) {
+            throw (IOException) e.getCause();
+        }
+        return state.entries;
+    }
+
+    /**
+     * Reads .git/index, or returns an empty index if there is none or it
+     * cannot be read.
+     */
+    public GitIndex readIndex() throws IOException {
+        return readIndex(root.resolve(".git/index"));
+    }
+
+    private static GitIndex readIndex(Path indexFile) throws IOException {
+        try {
+            return GitIndex.read(indexFile);
+        } catch (GitException e) {
+            return GitIndex.empty();
+        }
+    }
+
+    // Refreshes the changed paths if the change source knows them, and
+    // scans everything otherwise.
+    private void scan(ChangeSource.Changes changes, WriteTreeState state, ForkJoinPool pool) {
+        if (changes != null && changes.paths().isPresent()) {
+            refresh(changes.paths().get(), state, pool);
+        } else {
+            pool.invoke(new ScanTask(root, "", state));
+        }
+    }
+
+    // Returns the token saved by the last write-tree, if the index has not
+    // been rewritten by anything else since.
+    private String changeToken(Path indexFile) throws IOException {
+        Path tokenFile = root.resolve(CHANGE_TOKEN_FILE);
+        try {
+            if (Files.getLastModifiedTime(tokenFile).compareTo(Files.getLastModifiedTime(indexFile)) < 0) {
+                return "";
+            }
+            return Files.readString(tokenFile, UTF_8).trim();
+        } catch (NoSuchFileException e) {
+            return "";
+        }
     }
 
     @Override
-    public byte[] commitTree(byte[] treeHash, List<byte[]> parentCommitHashes, String message)
+    public ObjectId commitTree(ObjectId treeHash, List<ObjectId> parentCommitHashes, String message)
             throws GitException, IOException {
         var buf = new ByteArrayOutputStream();
         buf.write("tree ".getBytes(UTF_8));
-        buf.write(hex(treeHash).getBytes(UTF_8));
-        for (byte[] hash : parentCommitHashes) {
+        buf.write(treeHash.hex().getBytes(UTF_8));
+        for (ObjectId hash : parentCommitHashes) {
             buf.write("\nparent ".getBytes(UTF_8));
-            buf.write(hex(hash).getBytes(UTF_8));
+            buf.write(hash.hex().getBytes(UTF_8));
         }
         buf.write("\nauthor daniel connelly <dhconnelly@gmail.com> 0 +0000".getBytes(UTF_8));
         buf.write("\ncommitter daniel connelly <dhconnelly@gmail.com> 0 +0000".getBytes(UTF_8));
         buf.write("\n\n%s\n".formatted(message).getBytes(UTF_8));
         byte[] content = buf.toByteArray();
-        return writeObject(out -> {
-            out.write("commit %d".formatted(content.length).getBytes(UTF_8));
-            out.write((byte) 0);
-            out.write(content);
-        });
+        return writeObject(concat(header(ObjectType.Commit, content.length), content), null);
     }
 }
@@ -0,0 +1,163 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The settings in a repository's .git/config file.
+ *
+ * <p>Only the subset of git's syntax that git itself writes is understood:
+ * [section] and [section "subsection"] headers, key = value lines, and
+ * comments. Section and key names are case-insensitive; subsections are not.
+ */
+public class GitConfig {
+    private final Map<String, String> values;
+
+    private GitConfig(Map<String, String> values) {
+        this.values = values;
+    }
+
+    public static GitConfig empty() {
+        return new GitConfig(Map.of());
+    }
+
+    /**
+     * Reads the config file at the given path.
+     *
+     * @return The config, or an empty one if the file does not exist.
+     * @throws GitException If the file is malformed.
+     * @throws IOException  If an error is encountered while reading.
+     */
+    public static GitConfig read(Path file) throws GitException, IOException {
+        if (!Files.exists(file)) {
+            return empty();
+        }
+        var values = new HashMap<String, String>();
+        String section = null;
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, UTF_8)) {
+            lineNumber++;
+            line = stripComment(line).trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("[")) {
+                if (!line.endsWith("]")) {
+                    throw new GitException("bad config line %d in %s".formatted(lineNumber, file));
+                }
+                section = sectionName(line.substring(1, line.length() - 1).trim());
+                continue;
+            }
+            if (section == null) {
+                throw new GitException("bad config line %d in %s".formatted(lineNumber, file));
+            }
+            int eq = line.indexOf('=');
+            // A key without a value is shorthand for "true".
+            String key = (eq < 0 ? line : line.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+            String value = eq < 0 ? "true" : unquote(line.substring(eq + 1).trim());
+            values.put(section + "." + key, value);
+        }
+        return new GitConfig(values);
+    }
+
+    private static String sectionName(String header) {
+        int quote = header.indexOf('"');
+        if (quote < 0) {
+            return header.toLowerCase(Locale.ROOT);
+        }
+        String name = header.substring(0, quote).trim().toLowerCase(Locale.ROOT);
+        return name + "." + unquote(header.substring(quote));
+    }
+
+    private static String stripComment(String line) {
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (c == '#' || c == ';')) {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String canonicalKey(String name) {
+        int first = name.indexOf('.');
+        int last = name.lastIndexOf('.');
+        String section = name.substring(0, first).toLowerCase(Locale.ROOT);
+        String key = name.substring(last + 1).toLowerCase(Locale.ROOT);
+        return first == last ? section + "." + key : section + name.substring(first, last + 1) + key;
+    }
+
+    /**
+     * Looks up a setting by its dotted name, such as core.bare or
+     * remote.origin.url.
+     */
+    public Optional<String> get(String name) {
+        return Optional.ofNullable(values.get(canonicalKey(name)));
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) throws GitException {
+        var value = get(name);
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        return switch (value.get().toLowerCase(Locale.ROOT)) {
+            case "true", "yes", "on", "1" -> true;
+            case "false", "no", "off", "0", "" -> false;
+            default -> throw new GitException("bad boolean config value '%s' for %s".formatted(value.get(), name));
+        };
+    }
+
+    public int getInt(String name, int defaultValue) throws GitException {
+        var value = get(name);
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.get().trim());
+        } catch (NumberFormatException e) {
+            throw new GitException("bad numeric config value '%s' for %s".formatted(value.get(), name));
+        }
+    }
+
+    /**
+     * Looks up a size in bytes, which may carry a k, m or g suffix as in
+     * git's integer settings.
+     */
+    public long getSize(String name, long defaultValue) throws GitException {
+        var value = get(name);
+        if (value.isEmpty()) {
+            return defaultValue;
+        }
+        String s = value.get().trim().toLowerCase(Locale.ROOT);
+        int shift = s.isEmpty() ? 0 : switch (s.charAt(s.length() - 1)) {
+            case 'k' -> 10;
+            case 'm' -> 20;
+            case 'g' -> 30;
+            default -> 0;
+        };
+        try {
+            long size = Long.parseLong(shift == 0 ? s : s.substring(0, s.length() - 1));
+            if (size < 0 || size > Long.MAX_VALUE >> shift) {
+                throw new NumberFormatException();
+            }
+            return size << shift;
+        } catch (NumberFormatException e) {
+            throw new GitException("bad size config value '%s' for %s".formatted(value.get(), name));
+        }
+    }
+}
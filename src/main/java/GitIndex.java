@@ -0,0 +1,226 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stat cache over the working directory, stored in git's index format.
+ *
+ * <p>Each entry records a file's stat data together with its blob hash, so a
+ * file whose stat data is unchanged does not need to be read and hashed
+ * again. Version 2 and 3 indexes written by git can be read; extensions are
+ * skipped, and the index is always written back as version 2.
+ */
+public class GitIndex {
+    private static final int SIGNATURE = 0x44495243; // "DIRC"
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_FIXED_SIZE = 62;
+    private static final int HASH_SIZE = 20;
+    private static final int EXTENDED_FLAG = 0x4000;
+    private static final int NAME_MASK = 0x0fff;
+    private static final String STAT_ATTRIBUTES = "unix:dev,ino,mode,uid,gid,size,lastModifiedTime,ctime";
+
+    private final Map<String, Entry> entries;
+    private final long timestampNanos;
+
+    /**
+     * The stat data git records for a file.
+     */
+    public record Stat(long ctimeNanos, long mtimeNanos, long dev, long ino, int mode, int uid, int gid, long size) {
+    }
+
+    public record Entry(String path, Stat stat, int mode, ObjectId hash) {
+    }
+
+    private GitIndex(Map<String, Entry> entries, long timestampNanos) {
+        this.entries = entries;
+        this.timestampNanos = timestampNanos;
+    }
+
+    public static GitIndex empty() {
+        return new GitIndex(Map.of(), Long.MIN_VALUE);
+    }
+
+    /**
+     * Reads the index at the given path.
+     *
+     * @return The index, or an empty one if the file does not exist.
+     * @throws GitException If the file is not a supported index.
+     * @throws IOException  If an error is encountered while reading.
+     */
+    public static GitIndex read(Path file) throws GitException, IOException {
+        if (!Files.exists(file)) {
+            return empty();
+        }
+        long timestamp = Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+        var buf = ByteBuffer.wrap(Files.readAllBytes(file));
+        if (buf.limit() < HEADER_SIZE + HASH_SIZE || buf.getInt(0) != SIGNATURE) {
+            throw new GitException("invalid index file: %s".formatted(file));
+        }
+        int version = buf.getInt(4);
+        if (version != 2 && version != 3) {
+            throw new GitException("unsupported index version: %d".formatted(version));
+        }
+        int count = buf.getInt(8);
+        var entries = new HashMap<String, Entry>(count * 2);
+        int pos = HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            int start = pos;
+            long ctime = Integer.toUnsignedLong(buf.getInt(pos)) * 1_000_000_000L + buf.getInt(pos + 4);
+            long mtime = Integer.toUnsignedLong(buf.getInt(pos + 8)) * 1_000_000_000L + buf.getInt(pos + 12);
+            long dev = Integer.toUnsignedLong(buf.getInt(pos + 16));
+            long ino = Integer.toUnsignedLong(buf.getInt(pos + 20));
+            int mode = buf.getInt(pos + 24);
+            int uid = buf.getInt(pos + 28);
+            int gid = buf.getInt(pos + 32);
+            long size = Integer.toUnsignedLong(buf.getInt(pos + 36));
+            var hash = ObjectId.fromBuffer(buf, pos + 40);
+            int flags = buf.getShort(pos + 60) & 0xffff;
+            pos += ENTRY_FIXED_SIZE;
+            if ((flags & EXTENDED_FLAG) != 0) {
+                pos += 2;
+            }
+            int nameEnd = pos;
+            while (buf.get(nameEnd) != 0) {
+                nameEnd++;
+            }
+            String path = new String(buf.array(), pos, nameEnd - pos, UTF_8);
+            // Entries are NUL-padded to a multiple of eight bytes.
+            pos = start + ((nameEnd - start + 8) & ~7);
+            var stat = new Stat(ctime, mtime, dev, ino, mode, uid, gid, size);
+            entries.put(path, new Entry(path, stat, mode, hash));
+        }
+        return new GitIndex(entries, timestamp);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Optional<Entry> get(String path) {
+        return Optional.ofNullable(entries.get(path));
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * Returns whether the entry's cached hash can be trusted for a file with
+     * the given stat data. Entries modified no earlier than the index itself
+     * was written are "racily clean": the file may have changed again within
+     * the same timestamp, so they are never trusted.
+     */
+    public boolean isClean(Entry entry, Stat stat) {
+        var cached = entry.stat();
+        return cached.mtimeNanos() < timestampNanos
+                && cached.mtimeNanos() == stat.mtimeNanos()
+                && cached.ctimeNanos() == stat.ctimeNanos()
+                && cached.ino() == (stat.ino() & 0xffffffffL)
+                && cached.dev() == (stat.dev() & 0xffffffffL)
+                && cached.uid() == stat.uid()
+                && cached.gid() == stat.gid()
+                && cached.size() == (stat.size() & 0xffffffffL);
+    }
+
+    /**
+     * Reads the stat data for a file without following symlinks.
+     */
+    public static Stat stat(Path path) throws IOException {
+        try {
+            var attrs = Files.readAttributes(path, STAT_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+            return new Stat(
+                    ((FileTime) attrs.get("ctime")).to(TimeUnit.NANOSECONDS),
+                    ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                    (Long) attrs.get("dev"),
+                    (Long) attrs.get("ino"),
+                    (Integer) attrs.get("mode"),
+                    (Integer) attrs.get("uid"),
+                    (Integer) attrs.get("gid"),
+                    (Long) attrs.get("size"));
+        } catch (UnsupportedOperationException e) {
+            var attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            return new Stat(attrs.creationTime().to(TimeUnit.NANOSECONDS), mtime, 0, 0, 0, 0, 0, attrs.size());
+        }
+    }
+
+    /**
+     * Writes an index containing the given entries, taking .git/index.lock
+     * for the duration of the write as git does.
+     *
+     * @throws GitException If another process holds the index lock.
+     * @throws IOException  If an error is encountered while writing.
+     */
+    public static void write(Path file, Collection<Entry> entries) throws GitException, IOException {
+        Path lock = file.resolveSibling(file.getFileName() + ".lock");
+        try {
+            Files.createFile(lock);
+        } catch (FileAlreadyExistsException e) {
+            throw new GitException("unable to lock index: %s exists".formatted(lock));
+        }
+        try {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError("can't find algorithm: SHA-1");
+            }
+            var sorted = entries.stream()
+                    .map(entry -> Map.entry(entry.path().getBytes(UTF_8), entry))
+                    .sorted(Comparator.comparing(Map.Entry::getKey, Arrays::compareUnsigned))
+                    .toList();
+            var stream = Files.newOutputStream(lock, StandardOpenOption.TRUNCATE_EXISTING);
+            try (var out = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(stream), digest))) {
+                out.writeInt(SIGNATURE);
+                out.writeInt(2);
+                out.writeInt(sorted.size());
+                for (var pair : sorted) {
+                    byte[] name = pair.getKey();
+                    var entry = pair.getValue();
+                    var stat = entry.stat();
+                    out.writeInt((int) (stat.ctimeNanos() / 1_000_000_000L));
+                    out.writeInt((int) (stat.ctimeNanos() % 1_000_000_000L));
+                    out.writeInt((int) (stat.mtimeNanos() / 1_000_000_000L));
+                    out.writeInt((int) (stat.mtimeNanos() % 1_000_000_000L));
+                    out.writeInt((int) stat.dev());
+                    out.writeInt((int) stat.ino());
+                    out.writeInt(entry.mode());
+                    out.writeInt(stat.uid());
+                    out.writeInt(stat.gid());
+                    out.writeInt((int) stat.size());
+                    entry.hash().writeTo(out);
+                    out.writeShort(Math.min(name.length, NAME_MASK));
+                    out.write(name);
+                    int padding = 8 - (ENTRY_FIXED_SIZE + name.length) % 8;
+                    out.write(new byte[padding]);
+                }
+                out.flush();
+                stream.write(digest.digest());
+            }
+            Files.move(lock, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(lock);
+        }
+    }
+}
@@ -1,66 +1,341 @@
-import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 
 import javax.net.ssl.SSLSocketFactory;
 
-public class GitSmartClient {
-    private static final String CONTENT_TYPE = "application/x-git-upload-pack-advertisement";
+/**
+ * A client for git's smart HTTP protocol, version 2.
+ *
+ * <p>Requests are sent as HTTP/1.1 over a single connection that is kept
+ * alive from one request to the next, and responses may be chunked. A client
+ * is not thread-safe, and the response to one request must be read to the
+ * end or closed before the next is sent.
+ */
+public class GitSmartClient implements Closeable {
+    private static final String ADVERTISEMENT_TYPE = "application/x-git-upload-pack-advertisement";
+    private static final String REQUEST_TYPE = "application/x-git-upload-pack-request";
+    private static final String RESULT_TYPE = "application/x-git-upload-pack-result";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_HAVES = 16;
+    private static final int MAX_HAVES = 1024;
+    private static final int MAX_IN_VAIN = 256;
 
+    private final boolean secure;
     private final String host;
+    private final int port;
     private final String repoPath;
+    private Connection idle;
+    private List<String> capabilities;
+
+    public record Ref(String name, ObjectId hash, Optional<String> symrefTarget) {
+    }
 
     public GitSmartClient(String host, String repoPath) {
+        this(true, host, 443, repoPath);
+    }
+
+    private GitSmartClient(boolean secure, String host, int port, String repoPath) {
+        this.secure = secure;
         this.host = host;
+        this.port = port;
         this.repoPath = repoPath;
     }
 
-    private class GitSocket implements AutoCloseable {
+    /**
+     * Creates a client for an http or https repository URL.
+     */
+    public static GitSmartClient forUrl(URI url) {
+        boolean secure = !"http".equals(url.getScheme());
+        int port = url.getPort() >= 0 ? url.getPort() : secure ? 443 : 80;
+        String path = url.getPath();
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (path.endsWith(".git")) {
+            path = path.substring(0, path.length() - ".git".length());
+        }
+        return new GitSmartClient(secure, url.getHost(), port, path);
+    }
+
+    // A connection to the server with its own read buffer, which the
+    // response bodies read through.
+    private final class Connection implements Closeable {
         private final Socket socket;
         private final InputStream in;
         private final OutputStream out;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int pos;
+        private int limit;
+        private boolean reused;
 
-        GitSocket() throws IOException {
-            SSLSocketFactory ssl = (SSLSocketFactory) SSLSocketFactory.getDefault();
-            socket = ssl.createSocket(host, 443);
-            in = new BufferedInputStream(socket.getInputStream());
-            out = new BufferedOutputStream(socket.getOutputStream());
+        Connection() throws IOException {
+            if (secure) {
+                SSLSocketFactory ssl = (SSLSocketFactory) SSLSocketFactory.getDefault();
+                socket = ssl.createSocket(host, port);
+            } else {
+                socket = new Socket(host, port);
+            }
+            in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
         }
 
         @Override
         public void close() throws IOException {
-            out.close();
-            in.close();
             socket.close();
         }
 
-        void sendLine(String line) throws IOException {
-            out.write(line.getBytes(US_ASCII));
-            out.write(new byte[] { '\r', '\n' });
-            out.flush();
+        private boolean fill() throws IOException {
+            if (pos < limit) {
+                return true;
+            }
+            int n = in.read(buf);
+            pos = 0;
+            limit = Math.max(n, 0);
+            return n > 0;
         }
 
-        void sendLine() throws IOException {
-            sendLine("");
+        int read(byte[] b, int off, int len) throws IOException {
+            if (pos == limit && len >= buf.length) {
+                // Nothing is buffered, so a large read can bypass the buffer.
+                return in.read(b, off, len);
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
         }
 
+        // Reads a line ending in CRLF or LF, without the line ending.
         String readLine() throws IOException {
-            var line = new StringBuilder();
-            int c;
-            while ((c = in.read()) >= 0) {
-                line.append((char) c);
-                int n = line.length();
-                if (n >= 2 && line.charAt(n - 2) == '\r' && line.charAt(n - 1) == '\n') {
-                    return line.substring(0, n - 2);
+            var line = new ByteArrayOutputStream();
+            while (fill()) {
+                int start = pos;
+                while (pos < limit && buf[pos] != '\n') {
+                    pos++;
+                }
+                line.write(buf, start, pos - start);
+                if (pos < limit) {
+                    pos++;
+                    byte[] bytes = line.toByteArray();
+                    int n = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String(bytes, 0, n, ISO_8859_1);
                 }
             }
-            return line.toString();
+            throw new EOFException("connection closed in the middle of a line");
+        }
+    }
+
+    // A response body, delimited by its length, by chunked transfer coding
+    // or by the end of the connection. A connection that is kept alive goes
+    // back to the client once its body has been read to the end; closing the
+    // body any earlier closes the connection.
+    private final class Body extends InputStream {
+        private final Connection connection;
+        private final boolean chunked;
+        private final boolean keepAlive;
+        // The bytes left in the body or the current chunk, or -1 if the body
+        // runs to the end of the connection.
+        private long remaining;
+        private boolean started;
+        private boolean eof;
+        private boolean closed;
+
+        Body(Connection connection, boolean chunked, long length, boolean keepAlive) {
+            this.connection = connection;
+            this.chunked = chunked;
+            this.remaining = chunked ? 0 : length;
+            this.keepAlive = keepAlive && (chunked || length >= 0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("response body is closed");
+            }
+            if (eof) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (chunked && remaining == 0 && !nextChunk()) {
+                return end();
+            }
+            if (remaining == 0) {
+                return end();
+            }
+            int n = connection.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+            if (n < 0) {
+                if (remaining < 0) {
+                    return end();
+                }
+                throw new EOFException("connection closed before the end of the response");
+            }
+            if (remaining > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        // Reads the next chunk's size line, or the trailers after the last
+        // chunk, and returns whether there is another chunk.
+        private boolean nextChunk() throws IOException {
+            if (started && !connection.readLine().isEmpty()) {
+                throw new IOException("malformed chunk");
+            }
+            started = true;
+            String line = connection.readLine();
+            int semicolon = line.indexOf(';');
+            try {
+                remaining = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid chunk size: %s".formatted(line));
+            }
+            if (remaining > 0) {
+                return true;
+            }
+            while (!connection.readLine().isEmpty()) {
+                // Trailers are not used.
+            }
+            return false;
+        }
+
+        private int end() throws IOException {
+            eof = true;
+            if (keepAlive) {
+                release(connection);
+            } else {
+                connection.close();
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed && !eof) {
+                connection.close();
+            }
+            closed = true;
+        }
+    }
+
+    // Takes the idle connection, or opens one if there is none.
+    private Connection acquire() throws IOException {
+        var connection = idle;
+        idle = null;
+        if (connection != null) {
+            connection.reused = true;
+            return connection;
+        }
+        return new Connection();
+    }
+
+    private void release(Connection connection) throws IOException {
+        if (idle != null) {
+            idle.close();
+        }
+        idle = connection;
+    }
+
+    // Sends a request and returns the body of its response. A request on a
+    // reused connection that the server has since closed is sent again on a
+    // new one.
+    private InputStream request(String method, String path, String contentType, byte[] body)
+            throws IOException, GitRemoteException {
+        var head = new StringBuilder();
+        head.append("%s %s HTTP/1.1\r\n".formatted(method, path));
+        head.append("Host: %s\r\n".formatted(port == (secure ? 443 : 80) ? host : host + ":" + port));
+        head.append("Git-Protocol: version=2\r\n");
+        if (body != null) {
+            head.append("Content-Type: %s\r\n".formatted(REQUEST_TYPE));
+            head.append("Accept: %s\r\n".formatted(RESULT_TYPE));
+            head.append("Content-Length: %d\r\n".formatted(body.length));
+        }
+        head.append("\r\n");
+        while (true) {
+            var connection = acquire();
+            String status;
+            try {
+                connection.out.write(head.toString().getBytes(ISO_8859_1));
+                if (body != null) {
+                    connection.out.write(body);
+                }
+                connection.out.flush();
+                status = connection.readLine();
+            } catch (IOException e) {
+                connection.close();
+                if (connection.reused) {
+                    continue;
+                }
+                throw e;
+            }
+            try {
+                return readResponse(connection, status, contentType);
+            } catch (IOException | GitRemoteException | RuntimeException e) {
+                connection.close();
+                throw e;
+            }
+        }
+    }
+
+    // Reads the headers after the status line, and returns the body.
+    private InputStream readResponse(Connection connection, String statusLine, String contentType)
+            throws IOException, GitRemoteException {
+        validateStatus(statusLine);
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1 ");
+        boolean chunked = false;
+        long contentLength = -1;
+        for (String header; !(header = connection.readLine()).isEmpty();) {
+            validateHeader(header, contentType);
+            var toks = header.split(": *", 2);
+            String value = toks.length > 1 ? toks[1].trim() : "";
+            if (toks[0].equalsIgnoreCase("Content-Length")) {
+                contentLength = Long.parseLong(value);
+            } else if (toks[0].equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.equalsIgnoreCase("chunked");
+            } else if (toks[0].equalsIgnoreCase("Connection")) {
+                keepAlive = !value.equalsIgnoreCase("close");
+            }
+        }
+        return new Body(connection, chunked, contentLength, keepAlive);
+    }
+
+    // Reads what is left of a response so that its connection can be reused.
+    private static void finish(InputStream body) throws IOException {
+        try (body) {
+            body.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    /**
+     * Closes the connection kept open for the next request, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        if (idle != null) {
+            idle.close();
+            idle = null;
         }
     }
 
@@ -72,26 +347,210 @@ public class GitSmartClient {
         }
     }
 
-    private void validateHeader(String headerLine) throws GitRemoteException {
-        var toks = headerLine.split(": ");
-        String name = toks[0], value = toks[1];
-        if (name.equals("Content-Type") && !value.equals(CONTENT_TYPE)) {
-            throw new GitRemoteException("expected content type %s, got %s".formatted(CONTENT_TYPE, value));
+    private void validateHeader(String headerLine, String contentType) throws GitRemoteException {
+        var toks = headerLine.split(": *", 2);
+        String name = toks[0], value = toks.length > 1 ? toks[1] : "";
+        if (name.equalsIgnoreCase("Content-Type") && !value.startsWith(contentType)) {
+            throw new GitRemoteException("expected content type %s, got %s".formatted(contentType, value));
+        }
+    }
+
+    // Reads the protocol v2 capability advertisement, skipping the
+    // "# service" preamble that some servers send first.
+    private List<String> readCapabilities(InputStream in) throws IOException, GitRemoteException {
+        String first = PktLine.text(PktLine.read(in));
+        if (first.startsWith("# service=")) {
+            if (PktLine.read(in) != PktLine.FLUSH) {
+                throw new GitRemoteException("expected flush after service announcement");
+            }
+            first = PktLine.text(PktLine.read(in));
+        }
+        if (!first.equals("version 2")) {
+            throw new GitRemoteException("server does not support protocol v2: %s".formatted(first));
+        }
+        var capabilities = new ArrayList<String>();
+        for (byte[] line; (line = PktLine.read(in)) != PktLine.FLUSH;) {
+            capabilities.add(PktLine.text(line));
+        }
+        return capabilities;
+    }
+
+    /**
+     * Fetches the server's protocol v2 capabilities.
+     */
+    public List<String> capabilities() throws IOException, GitRemoteException {
+        var in = request("GET", "%s.git/info/refs?service=git-upload-pack".formatted(repoPath),
+                ADVERTISEMENT_TYPE, null);
+        try {
+            capabilities = readCapabilities(in);
+            finish(in);
+            return capabilities;
+        } finally {
+            in.close();
+        }
+    }
+
+    // Returns whether the server advertised a feature of a command, such as
+    // "fetch=shallow filter", fetching the capabilities if needed.
+    private boolean supports(String command, String feature) throws IOException, GitRemoteException {
+        if (capabilities == null) {
+            capabilities();
+        }
+        for (var capability : capabilities) {
+            if (capability.startsWith(command + "=")
+                    && List.of(capability.substring(command.length() + 1).split(" ")).contains(feature)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private InputStream post(byte[] body) throws IOException, GitRemoteException {
+        return request("POST", "%s.git/git-upload-pack".formatted(repoPath), RESULT_TYPE, body);
+    }
+
+    private static byte[] command(String command, List<String> args) throws IOException {
+        var body = new ByteArrayOutputStream();
+        PktLine.write(body, "command=%s\n".formatted(command));
+        PktLine.write(body, "agent=git/codecrafters-java\n");
+        PktLine.delim(body);
+        for (var arg : args) {
+            PktLine.write(body, arg + "\n");
         }
+        PktLine.flush(body);
+        return body.toByteArray();
     }
 
-    public List<byte[]> listRefs() throws IOException, GitRemoteException {
-        try (var sock = new GitSocket()) {
-            System.out.println("connected.");
-            sock.sendLine("GET %s.git/info/refs?service=git-upload-pack HTTP/1.0".formatted(repoPath));
-            sock.sendLine("Host: %s".formatted(host));
-            sock.sendLine("Git-Protocol: version=2");
-            sock.sendLine();
-            validateStatus(sock.readLine());
-            for (String header; !(header = sock.readLine()).isEmpty();) {
-                validateHeader(header);
+    /**
+     * Lists the remote's HEAD, branches and tags using protocol v2 ls-refs.
+     */
+    public List<Ref> listRefs() throws IOException, GitRemoteException {
+        capabilities();
+        var in = post(command("ls-refs", List.of(
+                "symrefs", "ref-prefix HEAD", "ref-prefix refs/heads/", "ref-prefix refs/tags/")));
+        try {
+            var refs = new ArrayList<Ref>();
+            for (byte[] line; (line = PktLine.read(in)) != PktLine.FLUSH;) {
+                var toks = PktLine.text(line).split(" ");
+                Optional<String> target = Optional.empty();
+                for (int i = 2; i < toks.length; i++) {
+                    if (toks[i].startsWith("symref-target:")) {
+                        target = Optional.of(toks[i].substring("symref-target:".length()));
+                    }
+                }
+                if (toks[0].equals("unborn")) {
+                    continue;
+                }
+                refs.add(new Ref(toks[1], ObjectId.fromHex(toks[0]), target));
             }
+            finish(in);
+            return refs;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Requests a pack containing the given objects and what is reachable
+     * from them but not from the commits the client has, using protocol v2
+     * fetch.
+     *
+     * <p>Each round offers the commits found common so far and a batch of
+     * new haves from the negotiator, which learns from the server's ACKs
+     * which ones are common. The batches grow from round to round, and the
+     * client says it is done when it runs out of haves or after
+     * {@value #MAX_IN_VAIN} haves in a row were not common, unless the
+     * server says it is ready first.
+     *
+     * @param wants  The objects to fetch.
+     * @param haves  The commits to offer, newest first.
+     * @param filter A filter such as blob:none for a partial clone, which
+     *               is ignored with a warning if the server does not
+     *               support filters.
+     * @return The demultiplexed pack data. Once it has been read to the end,
+     *         closing it leaves the connection open for the next request.
+     * @throws GitException       If a local commit cannot be parsed.
+     * @throws IOException        If the connection fails.
+     * @throws GitRemoteException If the server rejects the request.
+     */
+    public InputStream fetch(List<ObjectId> wants, FetchNegotiator haves, Optional<String> filter)
+            throws GitException, IOException, GitRemoteException {
+        if (filter.isPresent() && !supports("fetch", "filter")) {
+            System.err.println("warning: filtering not recognized by server, ignoring");
+            filter = Optional.empty();
         }
-        return List.of();
+        int batch = INITIAL_HAVES;
+        int inVain = 0;
+        while (true) {
+            var args = new ArrayList<String>();
+            args.add("ofs-delta");
+            for (var want : wants) {
+                args.add("want " + want.hex());
+            }
+            filter.ifPresent(spec -> args.add("filter " + spec));
+            for (var common : haves.common()) {
+                args.add("have " + common.hex());
+            }
+            var next = haves.next(batch);
+            for (var have : next) {
+                args.add("have " + have.hex());
+            }
+            inVain += next.size();
+            boolean done = next.isEmpty() || inVain >= MAX_IN_VAIN;
+            if (done) {
+                args.add("done");
+            }
+            var in = post(command("fetch", args));
+            try {
+                if (!done) {
+                    if (!PktLine.text(PktLine.read(in)).equals("acknowledgments")) {
+                        throw new GitRemoteException("expected acknowledgments");
+                    }
+                    boolean ready = false;
+                    byte[] line;
+                    while (!PktLine.isSpecial(line = PktLine.read(in))) {
+                        String ack = PktLine.text(line);
+                        if (ack.equals("ready")) {
+                            ready = true;
+                        } else if (ack.startsWith("ACK ") && haves.ack(ObjectId.fromHex(ack.substring(4)))) {
+                            inVain = 0;
+                        }
+                    }
+                    if (!ready) {
+                        if (line != PktLine.FLUSH) {
+                            throw new GitRemoteException("expected flush after acknowledgments");
+                        }
+                        finish(in);
+                        batch = Math.min(batch * 2, MAX_HAVES);
+                        continue;
+                    }
+                }
+                return packfile(in);
+            } catch (IOException | GitRemoteException | RuntimeException e) {
+                in.close();
+                throw e;
+            }
+        }
+    }
+
+    // Skips the sections of a fetch response before the packfile section,
+    // and returns the pack data.
+    private static InputStream packfile(InputStream body) throws IOException, GitRemoteException {
+        for (byte[] line; !PktLine.text(line = PktLine.read(body)).equals("packfile");) {
+            if (line == PktLine.FLUSH) {
+                throw new GitRemoteException("server sent no packfile");
+            }
+        }
+        return new SideBandInputStream(body, System.err) {
+            @Override
+            public void close() throws IOException {
+                // The pack is followed by a flush and the end of the body,
+                // which must be read for the connection to be reused.
+                if (read() < 0) {
+                    finish(body);
+                }
+                super.close();
+            }
+        };
     }
 }
@@ -0,0 +1,147 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the repositories under a directory for fetching and cloning over
+ * git's smart HTTP protocol, version 2, as git http-backend does.
+ *
+ * <p>A repository at base/name is served at /name and /name.git, and the
+ * base itself at /. Every request runs on its own virtual thread, so a slow
+ * client holds no platform thread while its pack is streamed. Responses are
+ * chunked and written as they are produced, so a pack is never held in
+ * memory. Repositories are opened once and shared by the requests to them,
+ * along with a cache of the objects they read, so that concurrent clones of
+ * one repository resolve each deltified tree only once.
+ */
+public class GitSmartServer implements Closeable {
+    private static final String ADVERTISEMENT_TYPE = "application/x-git-upload-pack-advertisement";
+    private static final String RESULT_TYPE = "application/x-git-upload-pack-result";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BACKLOG = 1024;
+    private static final long CACHE_SIZE = 64L << 20;
+
+    private final Path base;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<Path, Served> repositories = new ConcurrentHashMap<>();
+
+    // A repository and the cache of commits and trees that every request to
+    // it reads through.
+    private record Served(FsObjectDatabase git, CachingObjectDatabase cache) {
+    }
+
+    /**
+     * Starts serving.
+     *
+     * @param base    The directory containing the repositories.
+     * @param address The address to listen on. Port 0 picks a free one.
+     */
+    public GitSmartServer(Path base, InetSocketAddress address) throws IOException {
+        this.base = base.toAbsolutePath().normalize();
+        this.server = HttpServer.create(address, BACKLOG);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            boolean advertise = path.endsWith("/info/refs") && method.equals("GET");
+            boolean uploadPack = path.endsWith("/git-upload-pack") && method.equals("POST");
+            if (!advertise && !uploadPack) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (advertise && !"service=git-upload-pack".equals(exchange.getRequestURI().getQuery())) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            String protocol = exchange.getRequestHeaders().getFirst("Git-Protocol");
+            if (protocol == null || !protocol.contains("version=2")) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            Served repository;
+            try {
+                String suffix = advertise ? "/info/refs" : "/git-upload-pack";
+                repository = repository(path.substring(0, path.length() - suffix.length()));
+            } catch (GitException e) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", advertise ? ADVERTISEMENT_TYPE : RESULT_TYPE);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            var out = new BufferedOutputStream(exchange.getResponseBody(), BUFFER_SIZE);
+            if (advertise) {
+                UploadPack.advertise(out);
+            } else {
+                try (var in = requestBody(exchange)) {
+                    new UploadPack(repository.git(), repository.cache()).serve(in, out);
+                } catch (GitException e) {
+                    PktLine.write(out, "ERR %s\n".formatted(e.getMessage()));
+                }
+            }
+            out.flush();
+        }
+    }
+
+    private static InputStream requestBody(HttpExchange exchange) throws IOException {
+        var body = exchange.getRequestBody();
+        return "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                ? new GZIPInputStream(body, BUFFER_SIZE)
+                : body;
+    }
+
+    // Opens the repository at a request path, or returns the one already
+    // open. A path may name the repository with or without .git, but may not
+    // leave the base directory.
+    private Served repository(String path) throws GitException, IOException {
+        String name = path.startsWith("/") ? path.substring(1) : path;
+        if (name.endsWith(".git") && !Files.isDirectory(base.resolve(name).resolve(".git"))) {
+            name = name.substring(0, name.length() - ".git".length());
+        }
+        Path root = base.resolve(name).normalize();
+        if (!root.startsWith(base)) {
+            throw new GitException("not a repository: %s".formatted(path));
+        }
+        var served = repositories.get(root);
+        if (served == null) {
+            var git = FsObjectDatabase.open(root);
+            served = new Served(git, new CachingObjectDatabase(git, CACHE_SIZE));
+            var existing = repositories.putIfAbsent(root, served);
+            if (existing != null) {
+                served = existing;
+            }
+        }
+        return served;
+    }
+
+    /**
+     * Stops accepting requests and abandons those in progress.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
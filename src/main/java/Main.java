@@ -1,9 +1,20 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 
 public class Main {
@@ -25,28 +36,21 @@ public class Main {
         }
     }
 
-    private static String hex(byte[] bytes) {
-        var hash = new StringBuilder();
-        for (byte b : bytes)
-            hash.append("%02x".formatted(b));
-        return hash.toString();
-    }
-
-    private static byte[] fromHex(String hash) {
-        return HexFormat.of().parseHex(hash);
-    }
-
     private static void catFile(List<String> opts) {
+        if (opts.size() == 1 && (opts.getFirst().equals("--batch") || opts.getFirst().equals("--batch-check"))) {
+            catFileBatch(opts.getFirst().equals("--batch"));
+            return;
+        }
         if (opts.size() != 2 || !opts.getFirst().equals("-p")) {
-            die("usage: git cat-file -p <sha>");
+            die("usage: git cat-file (-p <sha> | --batch | --batch-check)");
         }
         var sha = opts.get(1);
         if (sha.length() != 40) {
             die("bad sha: expected 40-byte sha-1");
         }
         try {
-            var git = FsObjectDatabase.init(Path.of("."));
-            try (var content = git.readBlob(fromHex(sha))) {
+            var git = FsObjectDatabase.open(Path.of("."));
+            try (var content = git.readBlob(ObjectId.fromHex(sha))) {
                 content.transferTo(System.out);
             }
         } catch (Exception e) {
@@ -54,6 +58,16 @@ public class Main {
         }
     }
 
+    private static void catFileBatch(boolean contents) {
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            var out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+            new CatFileBatch(git, contents).run(System.in, out);
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
     private static void hashObject(List<String> opts) {
         boolean write = false;
         var path = Optional.<Path>empty();
@@ -66,11 +80,9 @@ public class Main {
         if (path.isEmpty()) {
             die("usage: git hash-object [-w] <path>");
         }
-        try (var s = Files.newInputStream(path.get())) {
+        try {
             var git = FsObjectDatabase.init(Path.of("."));
-            String hash = write
-                    ? hex(git.writeBlob(s, Files.size(path.get())))
-                    : hex(git.hashBlob(s, Files.size(path.get())));
+            String hash = write ? git.writeBlob(path.get()).hex() : git.hashBlob(path.get()).hex();
             System.out.println(hash);
         } catch (Exception e) {
             die(e);
@@ -82,9 +94,10 @@ public class Main {
             die("usage: git ls-tree --name-only <hash>");
         }
         try {
-            var git = FsObjectDatabase.init(Path.of("."));
-            for (var obj : git.listTree(fromHex(opts.get(1)))) {
-                System.out.println(obj.name());
+            var git = FsObjectDatabase.open(Path.of("."));
+            var entry = git.readTree(ObjectId.fromHex(opts.get(1)));
+            while (entry.next()) {
+                System.out.println(entry.name());
             }
         } catch (Exception e) {
             die(e);
@@ -97,7 +110,7 @@ public class Main {
         }
         try {
             var git = FsObjectDatabase.init(Path.of("."));
-            System.out.println(hex(git.writeTree()));
+            System.out.println(git.writeTree().hex());
         } catch (Exception e) {
             die(e);
         }
@@ -109,25 +122,550 @@ public class Main {
         }
         try {
             var git = FsObjectDatabase.init(Path.of("."));
-            System.out.println(hex(git.commitTree(fromHex(opts.get(0)), List.of(fromHex(opts.get(2))), opts.get(4))));
+            var tree = ObjectId.fromHex(opts.get(0));
+            var parent = ObjectId.fromHex(opts.get(2));
+            System.out.println(git.commitTree(tree, List.of(parent), opts.get(4)).hex());
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static final DateTimeFormatter LOG_DATE = DateTimeFormatter.ofPattern("EEE MMM d HH:mm:ss yyyy Z",
+            Locale.ROOT);
+
+    private static ObjectId resolveRevision(FsObjectDatabase git, String revision) throws GitException, IOException {
+        return git.resolve(revision).orElseThrow(() -> new GitException("unknown revision: %s".formatted(revision)));
+    }
+
+    // Resolves a revision to a tree, peeling a commit to its tree.
+    private static ObjectId resolveTree(FsObjectDatabase git, String revision) throws GitException, IOException {
+        var id = resolveRevision(git, revision);
+        return switch (git.getType(id)) {
+            case Tree -> id;
+            case Commit -> git.readCommit(id).tree();
+            default -> throw new GitException("not a tree: %s".formatted(revision));
+        };
+    }
+
+    private static void readTree(List<String> opts) {
+        if (opts.size() != 2 || !opts.getFirst().equals("-u")) {
+            die("usage: git read-tree -u <tree-ish>");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            var entries = new Checkout(git).checkout(resolveTree(git, opts.get(1)), git.root());
+            GitIndex.write(git.root().resolve(".git/index"), entries);
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static void diffTree(List<String> opts) {
+        var args = new ArrayList<String>();
+        int renameScore = -1;
+        for (var opt : opts) {
+            if (opt.equals("-r")) {
+                continue;
+            } else if (opt.equals("-M")) {
+                renameScore = TreeDiff.DEFAULT_RENAME_SCORE;
+            } else if (opt.matches("-M[0-9]{1,2}%?")) {
+                renameScore = Integer.parseInt(opt.substring(2).replace("%", ""));
+            } else {
+                args.add(opt);
+            }
+        }
+        if (args.isEmpty() || args.size() > 2) {
+            die("usage: git diff-tree [-r] [-M[<n>%]] <tree-ish> [<tree-ish>]");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            var out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                    false, StandardCharsets.UTF_8);
+            ObjectId oldTree;
+            ObjectId newTree;
+            if (args.size() == 2) {
+                oldTree = resolveTree(git, args.get(0));
+                newTree = resolveTree(git, args.get(1));
+            } else {
+                // A single commit is compared with its first parent.
+                var id = resolveRevision(git, args.getFirst());
+                var commit = git.readCommit(id);
+                if (commit.parents().isEmpty()) {
+                    return;
+                }
+                out.println(id.hex());
+                oldTree = git.readCommit(commit.parents().getFirst()).tree();
+                newTree = commit.tree();
+            }
+            var diff = new TreeDiff(git, TreeDiff.DEFAULT_RENAME_LIMIT, git.bigFileThreshold());
+            var changes = diff.diff(oldTree, newTree);
+            if (renameScore >= 0) {
+                changes = diff.detectRenames(changes, renameScore);
+            }
+            for (var change : changes) {
+                printChange(out, change);
+            }
+            out.flush();
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static void status(List<String> opts) {
+        if (!opts.isEmpty()) {
+            die("usage: git status");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            var out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                    false, StandardCharsets.UTF_8);
+            for (var entry : WorkingTreeStatus.compute(git)) {
+                out.println(entry);
+            }
+            out.flush();
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static void fsmonitorDaemon(List<String> opts) {
+        if (opts.size() != 1 || !List.of("run", "stop").contains(opts.getFirst())) {
+            die("usage: git fsmonitor--daemon (run | stop)");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            if (opts.getFirst().equals("run")) {
+                FsMonitor.serve(git.root());
+            } else {
+                FsMonitor.stop(git.root());
+            }
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    // Prints a change in git's raw diff format. Modes are already octal
+    // digits, so they print as decimal numbers.
+    private static void printChange(PrintStream out, TreeDiff.Change change) {
+        out.print(":%06d %06d %s %s ".formatted(change.oldMode(), change.newMode(), change.oldHash().hex(),
+                change.newHash().hex()));
+        if (change.status() == TreeDiff.Status.RENAMED) {
+            out.println("R%03d\t%s\t%s".formatted(change.score(), change.oldPath(), change.newPath()));
+        } else {
+            out.println("%c\t%s".formatted(change.status().code(), change.newPath()));
+        }
+    }
+
+    private static void log(List<String> opts) {
+        int limit = Integer.MAX_VALUE;
+        var order = RevWalk.Order.DATE;
+        var revisions = new ArrayList<String>();
+        String usage = "usage: git log [--topo-order] [-n <count>] [<revision>...]";
+        for (int i = 0; i < opts.size(); i++) {
+            if (opts.get(i).equals("-n") && i + 1 < opts.size()) {
+                try {
+                    limit = Integer.parseInt(opts.get(++i));
+                } catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (limit < 0) {
+                    die(usage);
+                }
+            } else if (opts.get(i).equals("--topo-order")) {
+                order = RevWalk.Order.TOPO;
+            } else if (opts.get(i).startsWith("-")) {
+                die(usage);
+            } else {
+                revisions.add(opts.get(i));
+            }
+        }
+        if (revisions.isEmpty()) {
+            revisions.add("HEAD");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            var out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                    false, StandardCharsets.UTF_8);
+            var tips = new ArrayList<ObjectId>();
+            for (var revision : revisions) {
+                tips.add(resolveRevision(git, revision));
+            }
+            var walk = RevWalk.open(git);
+            walk.start(tips, order);
+            for (int shown = 0; shown < limit; shown++) {
+                var next = walk.next();
+                if (next.isEmpty()) {
+                    break;
+                }
+                if (shown > 0) {
+                    out.println();
+                }
+                printCommit(out, next.get(), git.readCommit(next.get()));
+            }
+            out.flush();
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    // Prints a commit in git log's default "medium" format.
+    private static void printCommit(PrintStream out, ObjectId id, Commit commit) {
+        out.println("commit " + id.hex());
+        if (commit.parents().size() > 1) {
+            var abbreviated = commit.parents().stream().map(parent -> parent.hex().substring(0, 7)).toList();
+            out.println("Merge: " + String.join(" ", abbreviated));
+        }
+        out.println("Author: %s <%s>".formatted(commit.author().name(), commit.author().email()));
+        out.println("Date:   " + LOG_DATE.format(commit.author().dateTime()));
+        out.println();
+        var lines = List.of(commit.message().split("\n", -1));
+        int from = 0;
+        int to = lines.size();
+        while (from < to && lines.get(from).isBlank()) {
+            from++;
+        }
+        while (to > from && lines.get(to - 1).isBlank()) {
+            to--;
+        }
+        for (var line : lines.subList(from, to)) {
+            out.println("    " + line);
+        }
+    }
+
+    private static void mergeBase(List<String> opts) {
+        boolean all = opts.size() == 3 && opts.getFirst().equals("--all");
+        boolean isAncestor = opts.size() == 3 && opts.getFirst().equals("--is-ancestor");
+        if (opts.size() != 2 && !all && !isAncestor) {
+            die("usage: git merge-base [--all | --is-ancestor] <commit> <commit>");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            var a = resolveRevision(git, opts.get(opts.size() - 2));
+            var b = resolveRevision(git, opts.get(opts.size() - 1));
+            var walk = RevWalk.open(git);
+            if (isAncestor) {
+                System.exit(walk.isAncestor(a, b) ? 0 : 1);
+            }
+            var bases = walk.mergeBases(a, b);
+            if (bases.isEmpty()) {
+                System.exit(1);
+            }
+            for (var base : all ? bases : bases.subList(0, 1)) {
+                System.out.println(base.hex());
+            }
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static void commitGraph(List<String> opts) {
+        if (opts.size() != 1 || !opts.getFirst().equals("write")) {
+            die("usage: git commit-graph write");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            System.err.println("wrote %d commits to the commit graph".formatted(CommitGraph.write(git)));
         } catch (Exception e) {
             die(e);
         }
     }
 
     private static void clone(List<String> opts) {
+        Optional<String> filter = Optional.empty();
+        if (!opts.isEmpty() && opts.getFirst().startsWith("--filter=")) {
+            filter = Optional.of(opts.getFirst().substring("--filter=".length()));
+            opts = opts.subList(1, opts.size());
+        }
         if (opts.size() != 2) {
-            die("usage: git clone <remote_url> <target_dir>");
+            die("usage: git clone [--filter=<filter-spec>] <remote_url> <target_dir>");
         }
-        String repositoryURL = opts.get(0);
-        String targetDir = opts.get(1);
         try {
-            var url = new URI(repositoryURL);
-            var client = new GitSmartClient(url.getHost(), url.getPath());
+            cloneRepository(opts.get(0), Path.of(opts.get(1)), filter);
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    static void cloneRepository(String repositoryURL, Path targetDir) throws Exception {
+        cloneRepository(repositoryURL, targetDir, Optional.empty());
+    }
+
+    /**
+     * Clones a repository. With a filter, the clone is partial: objects the
+     * filter leaves out are fetched from origin when they are first read.
+     */
+    static void cloneRepository(String repositoryURL, Path targetDir, Optional<String> filter) throws Exception {
+        Files.createDirectories(targetDir.resolve(".git"));
+        var config = new StringBuilder("""
+                [core]
+                \trepositoryformatversion = %d
+                \tbare = false
+                [remote "origin"]
+                \turl = %s
+                \tfetch = +refs/heads/*:refs/remotes/origin/*
+                """.formatted(filter.isPresent() ? 1 : 0, repositoryURL));
+        if (filter.isPresent()) {
+            config.append("""
+                    \tpromisor = true
+                    \tpartialclonefilter = %s
+                    [extensions]
+                    \tpartialclone = origin
+                    """.formatted(filter.get()));
+        }
+        Files.writeString(targetDir.resolve(".git/config"), config, StandardCharsets.UTF_8);
+        var git = FsObjectDatabase.init(targetDir);
+
+        List<GitSmartClient.Ref> refs;
+        try (var client = GitSmartClient.forUrl(new URI(repositoryURL))) {
+            refs = client.listRefs();
+            var wants = new LinkedHashSet<ObjectId>();
+            for (var ref : refs) {
+                wants.add(ref.hash());
+            }
+            if (!wants.isEmpty()) {
+                try (var pack = client.fetch(List.copyOf(wants), FetchNegotiator.empty(), filter)) {
+                    var result = new PackIndexer(git.packs().packDir()).index(pack);
+                    if (filter.isPresent()) {
+                        PromisorRemote.markPromisor(result.pack());
+                    }
+                }
+                git.packs().rescan();
+            }
+        }
+
+        Optional<GitSmartClient.Ref> head = Optional.empty();
+        for (var ref : refs) {
+            if (ref.name().equals("HEAD")) {
+                head = Optional.of(ref);
+            } else if (ref.name().startsWith("refs/heads/")) {
+                git.updateRef("refs/remotes/origin/" + ref.name().substring("refs/heads/".length()), ref.hash());
+            } else {
+                git.updateRef(ref.name(), ref.hash());
+            }
+        }
+        if (head.isEmpty()) {
+            return;
+        }
+        var target = head.get().symrefTarget();
+        if (target.isPresent()) {
+            String branch = target.get().substring("refs/heads/".length());
+            git.updateRef(target.get(), head.get().hash());
+            git.updateSymbolicRef("HEAD", target.get());
+            git.updateSymbolicRef("refs/remotes/origin/HEAD", "refs/remotes/origin/" + branch);
+        } else {
+            Files.writeString(targetDir.resolve(".git/HEAD"), head.get().hash().hex() + "\n");
+        }
+        var entries = new Checkout(git).checkout(git.readCommit(head.get().hash()).tree(), targetDir);
+        GitIndex.write(targetDir.resolve(".git/index"), entries);
+    }
+
+    private static void fetch(List<String> opts) {
+        if (opts.size() > 1) {
+            die("usage: git fetch [<remote>]");
+        }
+        try {
+            fetchRemote(Path.of("."), opts.isEmpty() ? "origin" : opts.getFirst());
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    /**
+     * Fetches the remote's branches into refs/remotes/<remote>/ and any new
+     * tags, offering the local history so that only missing objects are sent.
+     *
+     * @return The number of objects received.
+     */
+    static int fetchRemote(Path root, String remote) throws Exception {
+        var git = FsObjectDatabase.open(root);
+        var config = GitConfig.read(root.resolve(".git/config"));
+        var url = config.get("remote.%s.url".formatted(remote))
+                .orElseThrow(() -> new GitException("no such remote: %s".formatted(remote)));
+        var filter = config.get("remote.%s.partialclonefilter".formatted(remote));
+        boolean promisor = config.getBoolean("remote.%s.promisor".formatted(remote), false);
+        var local = git.listRefs();
+        int received = 0;
+        try (var client = GitSmartClient.forUrl(new URI(url))) {
             var refs = client.listRefs();
-            for (byte[] ref : refs) {
-                System.out.println(hex(ref));
+            var wants = new LinkedHashSet<ObjectId>();
+            for (var ref : refs) {
+                if (!git.contains(ref.hash())) {
+                    wants.add(ref.hash());
+                }
+            }
+            if (!wants.isEmpty()) {
+                var haves = new FetchNegotiator(git, new LinkedHashSet<>(local.values()));
+                try (var pack = client.fetch(List.copyOf(wants), haves, filter)) {
+                    var result = new PackIndexer(git.packs().packDir()).index(pack);
+                    if (promisor) {
+                        PromisorRemote.markPromisor(result.pack());
+                    }
+                    received = result.objects();
+                }
+                git.packs().rescan();
+            }
+            for (var ref : refs) {
+                String name;
+                if (ref.name().startsWith("refs/heads/")) {
+                    name = "refs/remotes/%s/%s".formatted(remote, ref.name().substring("refs/heads/".length()));
+                } else if (ref.name().startsWith("refs/tags/") && !local.containsKey(ref.name())) {
+                    name = ref.name();
+                } else {
+                    continue;
+                }
+                var old = Optional.ofNullable(local.get(name));
+                if (old.equals(Optional.of(ref.hash()))) {
+                    continue;
+                }
+                git.updateRef(name, ref.hash());
+                System.err.println(old.isEmpty()
+                        ? " * [new %s]  %s -> %s".formatted(name.startsWith("refs/tags/") ? "tag" : "branch",
+                                ref.name(), name)
+                        : "   %s..%s  %s -> %s".formatted(old.get().hex().substring(0, 7),
+                                ref.hash().hex().substring(0, 7), ref.name(), name));
+            }
+        }
+        return received;
+    }
+
+    private static void serve(List<String> opts) {
+        int port = 8080;
+        if (!opts.isEmpty() && opts.getFirst().startsWith("--port=")) {
+            port = Integer.parseInt(opts.getFirst().substring("--port=".length()));
+            opts = opts.subList(1, opts.size());
+        }
+        if (opts.size() > 1) {
+            die("usage: git serve [--port=<n>] [<directory>]");
+        }
+        Path base = Path.of(opts.isEmpty() ? "." : opts.getFirst());
+        try {
+            var server = new GitSmartServer(base, new InetSocketAddress(port));
+            System.err.println("serving %s on port %d".formatted(base.toAbsolutePath().normalize(), server.port()));
+            Thread.currentThread().join();
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static void gc(List<String> opts) {
+        if (!opts.isEmpty()) {
+            die("usage: git gc");
+        }
+        try {
+            var git = FsObjectDatabase.init(Path.of("."));
+            var result = new Repack(git).run();
+            if (result.isPresent()) {
+                System.out.println("packed %d objects (%d deltas) into %s".formatted(
+                        result.get().objects(), result.get().deltas(), result.get().pack().getFileName()));
+            }
+            var config = GitConfig.read(git.root().resolve(".git/config"));
+            if (config.getBoolean("gc.writeCommitGraph", true)) {
+                CommitGraph.write(git);
+            }
+            // Bitmaps must cover everything reachable, so they are written
+            // only when all the objects are in one pack.
+            var packs = git.packs().packs();
+            if (config.getBoolean("repack.writeBitmaps", true) && packs.size() == 1
+                    && packs.getFirst().bitmap().isEmpty() && git.looseObjects().isEmpty()) {
+                PackBitmap.write(git, packs.getFirst());
+            }
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    // Collects the objects reachable from the revisions, and removes those
+    // reachable from the ones prefixed with ^.
+    private static Reachability reachable(FsObjectDatabase git, List<String> revisions, boolean useBitmaps)
+            throws GitException, IOException {
+        var bitmap = useBitmaps ? Reachability.findBitmap(git) : Optional.<PackBitmap>empty();
+        var include = new ArrayList<ObjectId>();
+        var exclude = new ArrayList<ObjectId>();
+        for (var revision : revisions) {
+            if (revision.equals("--all")) {
+                git.resolveRef("HEAD").ifPresent(include::add);
+                include.addAll(git.listRefs().values());
+            } else if (revision.startsWith("^")) {
+                exclude.add(resolveRevision(git, revision.substring(1)));
+            } else {
+                include.add(resolveRevision(git, revision));
+            }
+        }
+        var reachable = new Reachability(git, git, bitmap);
+        reachable.add(include);
+        if (!exclude.isEmpty()) {
+            var excluded = new Reachability(git, git, bitmap);
+            excluded.add(exclude);
+            reachable.remove(excluded);
+        }
+        return reachable;
+    }
+
+    private static void revList(List<String> opts) {
+        boolean useBitmaps = opts.contains("--use-bitmap-index");
+        var revisions = opts.stream().filter(opt -> !opt.startsWith("--") || opt.equals("--all")).toList();
+        if (!opts.contains("--objects") || !opts.contains("--count") || revisions.isEmpty()) {
+            die("usage: git rev-list --objects --count [--use-bitmap-index] (--all | [^]<commit>...)");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            System.out.println(reachable(git, revisions, useBitmaps).count());
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static void fsck(List<String> opts) {
+        if (!opts.equals(List.of("--connectivity-only"))) {
+            die("usage: git fsck --connectivity-only");
+        }
+        try {
+            var git = FsObjectDatabase.open(Path.of("."));
+            var missing = reachable(git, List.of("--all"), true).missing();
+            for (var id : missing) {
+                System.out.println("missing %s".formatted(id.hex()));
+            }
+            if (!missing.isEmpty()) {
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            die(e);
+        }
+    }
+
+    private static void indexPack(List<String> opts) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean stdin = false;
+        var path = Optional.<Path>empty();
+        for (var opt : opts) {
+            if (opt.startsWith("--threads=")) {
+                try {
+                    threads = Integer.parseInt(opt.substring("--threads=".length()));
+                } catch (NumberFormatException e) {
+                    threads = 0;
+                }
+            } else if (opt.equals("--stdin")) {
+                stdin = true;
+            } else {
+                path = Optional.of(Path.of(opt));
+            }
+        }
+        if (stdin == path.isPresent() || threads < 1) {
+            die("usage: git index-pack [--threads=<n>] (--stdin | <pack-file>)");
+        }
+        try {
+            PackIndexer.Result result;
+            if (stdin) {
+                var git = FsObjectDatabase.init(Path.of("."));
+                var indexer = new PackIndexer(git.packs().packDir(), threads, PackIndexer.DEFAULT_CACHE_LIMIT);
+                result = indexer.index(System.in);
+            } else {
+                var indexer = new PackIndexer(path.get().toAbsolutePath().getParent(), threads, PackIndexer.DEFAULT_CACHE_LIMIT);
+                result = indexer.indexFile(path.get());
             }
+            System.err.println("indexed %d objects (%d deltas) in %d ms, %.0f objects/s".formatted(
+                    result.objects(), result.deltas(), result.elapsed().toMillis(), result.objectsPerSecond()));
+            System.out.println(HexFormat.of().formatHex(result.checksum()));
         } catch (Exception e) {
             die(e);
         }
@@ -146,7 +684,20 @@ public class Main {
             case "ls-tree" -> lsTree(opts);
             case "write-tree" -> writeTree(opts);
             case "commit-tree" -> commitTree(opts);
+            case "read-tree" -> readTree(opts);
+            case "diff-tree" -> diffTree(opts);
+            case "status" -> status(opts);
+            case "fsmonitor--daemon" -> fsmonitorDaemon(opts);
+            case "log" -> log(opts);
+            case "merge-base" -> mergeBase(opts);
+            case "commit-graph" -> commitGraph(opts);
             case "clone" -> clone(opts);
+            case "fetch" -> fetch(opts);
+            case "serve" -> serve(opts);
+            case "gc", "repack" -> gc(opts);
+            case "index-pack" -> indexPack(opts);
+            case "rev-list" -> revList(opts);
+            case "fsck" -> fsck(opts);
             default -> System.out.println("Unknown command: " + command);
         }
     }
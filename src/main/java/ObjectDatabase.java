@@ -1,5 +1,6 @@
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 
 public interface ObjectDatabase {
@@ -10,7 +11,20 @@ public interface ObjectDatabase {
      * @return The type of the object.
      * @throws IOException If an error is encountered when reading the object.
      */
-    ObjectType getType(byte[] hash) throws GitException, IOException;
+    ObjectType getType(ObjectId hash) throws GitException, IOException;
+
+    /**
+     * Returns the size of the object's content. The default reads the whole
+     * object.
+     *
+     * @param hash The hash of the object.
+     * @return The size of the object, without its header.
+     * @throws GitException If the object cannot be found or is invalid.
+     * @throws IOException  If an error is encountered when reading the object.
+     */
+    default long getSize(ObjectId hash) throws GitException, IOException {
+        return readRaw(hash).data().length;
+    }
 
     /**
      * Returns a stream of the object's content.
@@ -20,7 +34,17 @@ public interface ObjectDatabase {
      * @throws GitException If the object cannot be found.
      * @throws IOException  If an error is encountered when reading the object.
      */
-    InputStream readBlob(byte[] hash) throws GitException, IOException;
+    InputStream readBlob(ObjectId hash) throws GitException, IOException;
+
+    /**
+     * Reads an object of any type fully into memory.
+     *
+     * @param hash The hash of the object.
+     * @return The object's type and content.
+     * @throws GitException If the object cannot be found or is invalid.
+     * @throws IOException  If an error is encountered when reading the object.
+     */
+    RawObject readRaw(ObjectId hash) throws GitException, IOException;
 
     /**
      * Returns a hash for a blob containing the given content.
@@ -30,7 +54,7 @@ public interface ObjectDatabase {
      * @return The hash of the blob.
      * @throws IOException If encountering an error while reading the content.
      */
-    byte[] hashBlob(InputStream s, long size) throws IOException;
+    ObjectId hashBlob(InputStream s, long size) throws IOException;
 
     /**
      * Writes the given content to the database as a blob and returns its hash.
@@ -41,7 +65,7 @@ public interface ObjectDatabase {
      * @throws IOException If encountering an error while reading the content or
      *                     writing the blob.
      */
-    byte[] writeBlob(InputStream s, long size) throws IOException;
+    ObjectId writeBlob(InputStream s, long size) throws IOException;
 
     /**
      * Lists the objects belonging to a tree.
@@ -51,7 +75,28 @@ public interface ObjectDatabase {
      * @throws GitException If the hash does not specify a tree.
      * @throws IOException  If encountering an error while reading any of the files.
      */
-    List<TreeObject> listTree(byte[] hash) throws GitException, IOException;
+    List<TreeObject> listTree(ObjectId hash) throws GitException, IOException;
+
+    /**
+     * Reads a tree into memory and returns a cursor over its entries. Unlike
+     * {@link #listTree}, no entry is decoded until the cursor reaches it.
+     *
+     * @param hash The hash of the tree.
+     * @return A cursor positioned before the first entry.
+     * @throws GitException If the hash does not specify a tree.
+     * @throws IOException  If an error is encountered while reading the tree.
+     */
+    TreeCursor readTree(ObjectId hash) throws GitException, IOException;
+
+    /**
+     * Reads and parses a commit.
+     *
+     * @param hash The hash of the commit.
+     * @return The parsed commit.
+     * @throws GitException If the hash does not specify a valid commit.
+     * @throws IOException  If an error is encountered while reading the commit.
+     */
+    Commit readCommit(ObjectId hash) throws GitException, IOException;
 
     /**
      * Writes a tree object for the entire object database, recursively writing
@@ -61,7 +106,7 @@ public interface ObjectDatabase {
      * @throws GitException If any invalid Git objects are found.
      * @throws IOException  If an error is encountered while writing the tree.
      */
-    byte[] writeTree() throws GitException, IOException;
+    ObjectId writeTree() throws GitException, IOException;
 
     /**
      * Creates a commit from the given tree, parent commit, and commit message.
@@ -74,6 +119,17 @@ public interface ObjectDatabase {
      * @throws IOException  If any errors are encountered while reading or writing
      *                      objects.
      */
-    byte[] commitTree(byte[] treeHash, List<byte[]> parentCommitHashes, String message)
+    ObjectId commitTree(ObjectId treeHash, List<ObjectId> parentCommitHashes, String message)
             throws GitException, IOException;
+
+    /**
+     * Makes the given objects available locally before they are read, so
+     * that a partial clone fetches the missing ones in one request rather
+     * than one at a time. The default does nothing.
+     *
+     * @throws GitException If a missing object cannot be fetched.
+     * @throws IOException  If an error is encountered while fetching.
+     */
+    default void prefetch(Collection<ObjectId> hashes) throws GitException, IOException {
+    }
 }
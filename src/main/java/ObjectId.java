@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An immutable SHA-1 object id.
+ *
+ * <p>The twenty bytes of the hash are held as five big-endian ints, so ids
+ * compare, hash and test for equality without touching an array, and can key
+ * hash maps directly. Hex encoding and decoding go through lookup tables and
+ * can write into caller-supplied buffers.
+ */
+public final class ObjectId implements Comparable<ObjectId> {
+    /** The length of an id in bytes. */
+    public static final int SIZE = 20;
+    /** The length of an id in hex digits. */
+    public static final int HEX_SIZE = 40;
+
+    public static final ObjectId ZERO = new ObjectId(0, 0, 0, 0, 0);
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
+    private final int w0, w1, w2, w3, w4;
+
+    private ObjectId(int w0, int w1, int w2, int w3, int w4) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.w4 = w4;
+    }
+
+    private static int intAt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24
+                | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    public static ObjectId fromBytes(byte[] bytes) {
+        if (bytes.length != SIZE) {
+            throw new IllegalArgumentException("object id must be %d bytes, got %d".formatted(SIZE, bytes.length));
+        }
+        return fromBytes(bytes, 0);
+    }
+
+    public static ObjectId fromBytes(byte[] bytes, int offset) {
+        return new ObjectId(intAt(bytes, offset), intAt(bytes, offset + 4), intAt(bytes, offset + 8),
+                intAt(bytes, offset + 12), intAt(bytes, offset + 16));
+    }
+
+    /**
+     * Reads an id at an absolute position, without moving the buffer.
+     */
+    public static ObjectId fromBuffer(ByteBuffer buf, int index) {
+        return new ObjectId(buf.getInt(index), buf.getInt(index + 4), buf.getInt(index + 8),
+                buf.getInt(index + 12), buf.getInt(index + 16));
+    }
+
+    private static int hexValue(CharSequence s, int i) {
+        char c = s.charAt(i);
+        int v = c < 128 ? HEX_VALUES[c] : -1;
+        if (v < 0) {
+            throw new IllegalArgumentException("invalid object id: %s".formatted(s));
+        }
+        return v;
+    }
+
+    private static int hexInt(CharSequence s, int offset) {
+        int w = 0;
+        for (int i = 0; i < 8; i++) {
+            w = w << 4 | hexValue(s, offset + i);
+        }
+        return w;
+    }
+
+    /**
+     * Parses a full 40-digit hex id.
+     *
+     * @throws IllegalArgumentException If s is not a valid id.
+     */
+    public static ObjectId fromHex(CharSequence s) {
+        if (s.length() != HEX_SIZE) {
+            throw new IllegalArgumentException("invalid object id: %s".formatted(s));
+        }
+        return new ObjectId(hexInt(s, 0), hexInt(s, 8), hexInt(s, 16), hexInt(s, 24), hexInt(s, 32));
+    }
+
+    /**
+     * Returns whether s is a full 40-digit hex id.
+     */
+    public static boolean isHex(CharSequence s) {
+        if (s.length() != HEX_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < HEX_SIZE; i++) {
+            char c = s.charAt(i);
+            if (c >= 128 || HEX_VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads an id from five consecutive ints, as stored by {@link #copyTo(int[], int)}.
+     */
+    static ObjectId fromWords(int[] words, int offset) {
+        return new ObjectId(words[offset], words[offset + 1], words[offset + 2], words[offset + 3],
+                words[offset + 4]);
+    }
+
+    int word(int i) {
+        return switch (i) {
+            case 0 -> w0;
+            case 1 -> w1;
+            case 2 -> w2;
+            case 3 -> w3;
+            default -> w4;
+        };
+    }
+
+    /**
+     * Returns the first byte of the id, which indexes pack fan-out tables.
+     */
+    public int firstByte() {
+        return w0 >>> 24;
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[SIZE];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    public void copyTo(byte[] dst, int offset) {
+        for (int i = 0; i < 5; i++) {
+            int w = word(i);
+            dst[offset + 4 * i] = (byte) (w >>> 24);
+            dst[offset + 4 * i + 1] = (byte) (w >>> 16);
+            dst[offset + 4 * i + 2] = (byte) (w >>> 8);
+            dst[offset + 4 * i + 3] = (byte) w;
+        }
+    }
+
+    /**
+     * Stores the id as five consecutive ints.
+     */
+    void copyTo(int[] words, int offset) {
+        words[offset] = w0;
+        words[offset + 1] = w1;
+        words[offset + 2] = w2;
+        words[offset + 3] = w3;
+        words[offset + 4] = w4;
+    }
+
+    /**
+     * Returns whether this id equals the one stored as five ints at an offset.
+     */
+    boolean equals(int[] words, int offset) {
+        return w0 == words[offset] && w1 == words[offset + 1] && w2 == words[offset + 2]
+                && w3 == words[offset + 3] && w4 == words[offset + 4];
+    }
+
+    /**
+     * Writes the raw twenty bytes of the id.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for (int i = 0; i < 5; i++) {
+            int w = word(i);
+            out.write(w >>> 24);
+            out.write(w >>> 16);
+            out.write(w >>> 8);
+            out.write(w);
+        }
+    }
+
+    /**
+     * Writes the id as 40 lowercase ASCII hex digits.
+     */
+    public void hexTo(byte[] dst, int offset) {
+        for (int i = 0; i < 5; i++) {
+            int w = word(i);
+            for (int j = 0; j < 8; j++) {
+                dst[offset + 8 * i + j] = HEX_DIGITS[(w >>> (28 - 4 * j)) & 0xf];
+            }
+        }
+    }
+
+    /**
+     * Returns the id as 40 lowercase hex digits.
+     */
+    public String hex() {
+        byte[] digits = new byte[HEX_SIZE];
+        hexTo(digits, 0);
+        return new String(digits, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Compares this id with one stored at an absolute position in a buffer,
+     * without reading it into an object.
+     */
+    public int compareTo(ByteBuffer buf, int index) {
+        for (int i = 0; i < 5; i++) {
+            int c = Integer.compareUnsigned(word(i), buf.getInt(index + 4 * i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns whether this id equals the one stored at an offset in an array.
+     */
+    public boolean equals(byte[] bytes, int offset) {
+        return w0 == intAt(bytes, offset) && w1 == intAt(bytes, offset + 4) && w2 == intAt(bytes, offset + 8)
+                && w3 == intAt(bytes, offset + 12) && w4 == intAt(bytes, offset + 16);
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        for (int i = 0; i < 5; i++) {
+            int c = Integer.compareUnsigned(word(i), other.word(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ObjectId other
+                && w0 == other.w0 && w1 == other.w1 && w2 == other.w2 && w3 == other.w3 && w4 == other.w4;
+    }
+
+    // The hash is uniformly distributed, so any of its words is a good hash
+    // code. The second word is used so that ids sharing a fan-out bucket still
+    // differ in their high bits.
+    @Override
+    public int hashCode() {
+        return w1;
+    }
+
+    @Override
+    public String toString() {
+        return hex();
+    }
+}
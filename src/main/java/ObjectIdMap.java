@@ -0,0 +1,236 @@
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A hash map from object ids to ints, for walks that track millions of
+ * objects.
+ *
+ * <p>Keys are stored inline, five ints per slot, in flat arrays probed
+ * linearly, so an entry costs 20 bytes of key and 4 of value at the table's
+ * load factor instead of the 80 or so bytes of a boxed HashMap entry, and
+ * inserts allocate nothing. The table is split into independently locked
+ * segments chosen by the high bits of the id, so parallel walkers can insert
+ * concurrently, and each segment grows on its own. Entries cannot be removed.
+ */
+public class ObjectIdMap {
+    private static final int SEGMENT_BITS = 6;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int WORDS = 5;
+    private static final int MIN_CAPACITY = 16;
+    // Keeps every slot index, times WORDS, within an int.
+    private static final int MAX_CAPACITY = 1 << 28;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    // An open-addressing table. An all-zero slot is empty, so the zero id is
+    // kept out of the arrays.
+    private static final class Segment {
+        private final boolean withValues;
+        private int[] keys;
+        private int[] values;
+        private int mask;
+        private int size;
+        private boolean hasZero;
+        private int zeroValue;
+
+        Segment(int capacity, boolean withValues) {
+            this.withValues = withValues;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity * WORDS];
+            values = withValues ? new int[capacity] : null;
+            mask = capacity - 1;
+        }
+
+        private static boolean isEmpty(int[] keys, int offset) {
+            return keys[offset] == 0 && keys[offset + 1] == 0 && keys[offset + 2] == 0
+                    && keys[offset + 3] == 0 && keys[offset + 4] == 0;
+        }
+
+        // Returns the slot holding id or, if it is absent, ~ the empty slot
+        // where it belongs. The segment was chosen by the first word, so the
+        // slot comes from another.
+        private int find(ObjectId id) {
+            for (int slot = id.word(2) & mask;; slot = (slot + 1) & mask) {
+                int offset = slot * WORDS;
+                if (id.equals(keys, offset)) {
+                    return slot;
+                }
+                if (isEmpty(keys, offset)) {
+                    return ~slot;
+                }
+            }
+        }
+
+        synchronized boolean contains(ObjectId id) {
+            return id.equals(ObjectId.ZERO) ? hasZero : find(id) >= 0;
+        }
+
+        synchronized int getOrDefault(ObjectId id, int defaultValue) {
+            if (id.equals(ObjectId.ZERO)) {
+                return hasZero ? zeroValue : defaultValue;
+            }
+            int slot = find(id);
+            return slot >= 0 ? values[slot] : defaultValue;
+        }
+
+        synchronized boolean put(ObjectId id, int value, boolean replace) {
+            if (id.equals(ObjectId.ZERO)) {
+                boolean added = !hasZero;
+                if (added || replace) {
+                    zeroValue = value;
+                }
+                hasZero = true;
+                return added;
+            }
+            int slot = find(id);
+            if (slot >= 0) {
+                if (replace && withValues) {
+                    values[slot] = value;
+                }
+                return false;
+            }
+            slot = ~slot;
+            id.copyTo(keys, slot * WORDS);
+            if (withValues) {
+                values[slot] = value;
+            }
+            if (++size > (mask + 1) / 4 * 3) {
+                grow();
+            }
+            return true;
+        }
+
+        private void grow() {
+            if (mask + 1 == MAX_CAPACITY) {
+                throw new IllegalStateException("object id table is full");
+            }
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            allocate((mask + 1) * 2);
+            for (int offset = 0; offset < oldKeys.length; offset += WORDS) {
+                if (isEmpty(oldKeys, offset)) {
+                    continue;
+                }
+                int slot = oldKeys[offset + 2] & mask;
+                while (!isEmpty(keys, slot * WORDS)) {
+                    slot = (slot + 1) & mask;
+                }
+                System.arraycopy(oldKeys, offset, keys, slot * WORDS, WORDS);
+                if (withValues) {
+                    values[slot] = oldValues[offset / WORDS];
+                }
+            }
+        }
+
+        synchronized long size() {
+            return size + (hasZero ? 1 : 0);
+        }
+
+        synchronized long memoryUsage() {
+            return 4L * keys.length + (withValues ? 4L * values.length : 0);
+        }
+
+        synchronized void forEach(ObjIntConsumer<ObjectId> action) {
+            // The action may insert into this segment and grow it.
+            int[] keys = this.keys;
+            int[] values = this.values;
+            if (hasZero) {
+                action.accept(ObjectId.ZERO, zeroValue);
+            }
+            for (int offset = 0; offset < keys.length; offset += WORDS) {
+                if (!isEmpty(keys, offset)) {
+                    action.accept(ObjectId.fromWords(keys, offset), withValues ? values[offset / WORDS] : 0);
+                }
+            }
+        }
+    }
+
+    public ObjectIdMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize The number of entries to size the table for up
+     *                     front, to avoid growing it during a walk.
+     */
+    public ObjectIdMap(long expectedSize) {
+        this(expectedSize, true);
+    }
+
+    ObjectIdMap(long expectedSize, boolean withValues) {
+        long perSegment = expectedSize / SEGMENTS / 3 * 4 + 1;
+        int capacity = MIN_CAPACITY;
+        while (capacity < perSegment && capacity < MAX_CAPACITY) {
+            capacity *= 2;
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity, withValues);
+        }
+    }
+
+    private Segment segmentFor(ObjectId id) {
+        return segments[id.word(0) >>> (32 - SEGMENT_BITS)];
+    }
+
+    public boolean containsKey(ObjectId id) {
+        return segmentFor(id).contains(id);
+    }
+
+    public int getOrDefault(ObjectId id, int defaultValue) {
+        return segmentFor(id).getOrDefault(id, defaultValue);
+    }
+
+    /**
+     * Maps id to value, replacing any existing mapping.
+     *
+     * @return Whether id was absent.
+     */
+    public boolean put(ObjectId id, int value) {
+        return segmentFor(id).put(id, value, true);
+    }
+
+    /**
+     * Maps id to value unless it is already mapped. Of several threads
+     * racing to insert the same id, exactly one succeeds.
+     *
+     * @return Whether id was absent.
+     */
+    public boolean putIfAbsent(ObjectId id, int value) {
+        return segmentFor(id).put(id, value, false);
+    }
+
+    public long size() {
+        long size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the size in bytes of the arrays backing the table.
+     */
+    public long memoryUsage() {
+        long bytes = 0;
+        for (var segment : segments) {
+            bytes += segment.memoryUsage();
+        }
+        return bytes;
+    }
+
+    /**
+     * Calls action on every entry, in no particular order. Entries added
+     * concurrently may or may not be visited.
+     */
+    public void forEach(ObjIntConsumer<ObjectId> action) {
+        for (var segment : segments) {
+            segment.forEach(action);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.function.Consumer;
+
+/**
+ * A set of object ids, for marking the objects a walk has visited.
+ *
+ * <p>Shares the flat, segment-locked layout of {@link ObjectIdMap} without
+ * storing values, so an entry costs its 20 bytes at the table's load factor.
+ * Parallel walkers can call {@link #add} concurrently, and exactly one of
+ * them claims each id.
+ */
+public class ObjectIdSet {
+    private final ObjectIdMap map;
+
+    public ObjectIdSet() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize The number of ids to size the table for up front.
+     */
+    public ObjectIdSet(long expectedSize) {
+        map = new ObjectIdMap(expectedSize, false);
+    }
+
+    /**
+     * @return Whether id was absent.
+     */
+    public boolean add(ObjectId id) {
+        return map.putIfAbsent(id, 0);
+    }
+
+    public boolean contains(ObjectId id) {
+        return map.containsKey(id);
+    }
+
+    public long size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Returns the size in bytes of the arrays backing the set.
+     */
+    public long memoryUsage() {
+        return map.memoryUsage();
+    }
+
+    /**
+     * Calls action on every id, in no particular order.
+     */
+    public void forEach(Consumer<ObjectId> action) {
+        map.forEach((id, value) -> action.accept(id));
+    }
+}
@@ -1,19 +1,59 @@
 enum ObjectType {
-    Blob, Tree;
+    Blob, Tree, Commit, Tag;
 
     public static ObjectType parse(String type) {
         return switch (type) {
             case "blob" -> Blob;
             case "tree" -> Tree;
+            case "commit" -> Commit;
+            case "tag" -> Tag;
             default -> throw new IllegalArgumentException("invalid object type: %s".formatted(type));
         };
     }
 
+    /**
+     * Returns the object type for a packfile type code, or null if the code
+     * denotes a delta.
+     */
+    public static ObjectType fromPackCode(int code) throws GitException {
+        return switch (code) {
+            case 1 -> Commit;
+            case 2 -> Tree;
+            case 3 -> Blob;
+            case 4 -> Tag;
+            case 6, 7 -> null;
+            default -> throw new GitException("invalid pack object type: %d".formatted(code));
+        };
+    }
+
+    /**
+     * Returns the type of a tree entry with the given mode, written as in
+     * {@link TreeObject}: trees for directories, commits for submodules, and
+     * blobs for files and symlinks.
+     */
+    public static ObjectType fromMode(long mode) {
+        if (mode == 40000) {
+            return Tree;
+        }
+        return mode == 160000 ? Commit : Blob;
+    }
+
+    public int packCode() {
+        return switch (this) {
+            case Commit -> 1;
+            case Tree -> 2;
+            case Blob -> 3;
+            case Tag -> 4;
+        };
+    }
+
     @Override
     public String toString() {
         return switch (this) {
             case Blob -> "blob";
             case Tree -> "tree";
+            case Commit -> "commit";
+            case Tag -> "tag";
         };
     }
 }
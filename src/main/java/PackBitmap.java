@@ -0,0 +1,358 @@
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The reachability bitmaps of a pack, from git's .bitmap file format,
+ * version 1.
+ *
+ * <p>Each bit stands for an object of the pack, numbered in pack order. Some
+ * of the pack's commits have a bitmap of every object they reach, themselves
+ * included, and four more bitmaps give every object's type. A commit's
+ * bitmap may be stored XORed with that of an earlier entry. Bitmaps are
+ * decoded on first use and kept, and the ones returned must not be modified.
+ */
+public class PackBitmap {
+    static final byte[] MAGIC = "BITM".getBytes(US_ASCII);
+    static final int VERSION = 1;
+    // The bitmaps are closed under reachability, which git requires.
+    static final int OPT_FULL_DAG = 1;
+    static final int HEADER_SIZE = 12 + 20;
+    private static final int MAX_XOR_OFFSET = 160;
+    private static final int SELECT_INTERVAL = 100;
+
+    private final PackFile pack;
+    private final BitSet commits;
+    private final BitSet trees;
+    private final BitSet blobs;
+    private final BitSet tags;
+    // For a bitmap file: the commits with bitmaps, and where each entry's
+    // bitmap is stored and which earlier entry it is XORed with.
+    private final ByteBuffer buf;
+    private final Map<ObjectId, Integer> entries;
+    private final int[] offsets;
+    private final int[] xorOffsets;
+    private final Map<ObjectId, BitSet> decoded = new ConcurrentHashMap<>();
+
+    private PackBitmap(PackFile pack, BitSet[] types, ByteBuffer buf, Map<ObjectId, Integer> entries, int[] offsets,
+            int[] xorOffsets) {
+        this.pack = pack;
+        this.commits = types[0];
+        this.trees = types[1];
+        this.blobs = types[2];
+        this.tags = types[3];
+        this.buf = buf;
+        this.entries = entries;
+        this.offsets = offsets;
+        this.xorOffsets = xorOffsets;
+    }
+
+    /**
+     * Starts the bitmaps of a pack in memory, with no commit bitmaps yet, for
+     * writing them.
+     *
+     * @param types The commits, trees, blobs and tags of the pack.
+     */
+    static PackBitmap inMemory(PackFile pack, BitSet[] types) {
+        return new PackBitmap(pack, types, null, Map.of(), new int[0], new int[0]);
+    }
+
+    /**
+     * Reads the bitmaps of a pack.
+     *
+     * @throws GitException If the file is invalid or belongs to another pack.
+     * @throws IOException  If an error is encountered while mapping it.
+     */
+    static PackBitmap open(Path path, PackFile pack) throws GitException, IOException {
+        var buf = PackFile.map(path);
+        if (buf.limit() < HEADER_SIZE + 20) {
+            throw new GitException("bitmap too small: %s".formatted(path));
+        }
+        byte[] magic = new byte[4];
+        buf.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC) || Short.toUnsignedInt(buf.getShort(4)) != VERSION) {
+            throw new GitException("unsupported bitmap: %s".formatted(path));
+        }
+        if ((buf.getShort(6) & OPT_FULL_DAG) == 0) {
+            throw new GitException("bitmap is not closed under reachability: %s".formatted(path));
+        }
+        int count = buf.getInt(8);
+        if (count < 0) {
+            throw new GitException("corrupt bitmap: %s".formatted(path));
+        }
+        byte[] checksum = new byte[20];
+        buf.get(12, checksum);
+        if (!Arrays.equals(checksum, pack.checksum())) {
+            throw new GitException("bitmap %s does not match its pack".formatted(path));
+        }
+        int pos = HEADER_SIZE;
+        var types = new BitSet[4];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = Ewah.read(buf, pos);
+            pos += Ewah.size(buf, pos);
+        }
+        var entries = new HashMap<ObjectId, Integer>();
+        int[] offsets = new int[count];
+        int[] xorOffsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (pos + 6 > buf.limit()) {
+                throw new GitException("truncated bitmap: %s".formatted(path));
+            }
+            int position = buf.getInt(pos);
+            xorOffsets[i] = Byte.toUnsignedInt(buf.get(pos + 4));
+            if (position < 0 || position >= pack.count() || xorOffsets[i] > Math.min(i, MAX_XOR_OFFSET)) {
+                throw new GitException("corrupt bitmap entry %d in %s".formatted(i, path));
+            }
+            offsets[i] = pos + 6;
+            pos = offsets[i] + Ewah.size(buf, offsets[i]);
+            entries.put(pack.hashAt(position), i);
+        }
+        return new PackBitmap(pack, types, buf, entries, offsets, xorOffsets);
+    }
+
+    public PackFile pack() {
+        return pack;
+    }
+
+    /**
+     * Returns the object's position in the bitmaps, or -1 if it is not in
+     * the pack.
+     */
+    public int bit(ObjectId id) {
+        int position = pack.position(id);
+        return position < 0 ? -1 : pack.packPosition(position);
+    }
+
+    public ObjectId objectAt(int bit) {
+        return pack.hashAt(pack.indexPosition(bit));
+    }
+
+    public ObjectType typeAt(int bit) {
+        return commits.get(bit) ? ObjectType.Commit
+                : trees.get(bit) ? ObjectType.Tree
+                : blobs.get(bit) ? ObjectType.Blob
+                : ObjectType.Tag;
+    }
+
+    /**
+     * Returns the pack's objects of the given type.
+     */
+    public BitSet ofType(ObjectType type) {
+        return switch (type) {
+            case Commit -> commits;
+            case Tree -> trees;
+            case Blob -> blobs;
+            case Tag -> tags;
+        };
+    }
+
+    /**
+     * Returns the number of commits with bitmaps.
+     */
+    public int size() {
+        return buf == null ? decoded.size() : entries.size();
+    }
+
+    /**
+     * Returns the bitmap of the objects a commit reaches, if it has one.
+     *
+     * @throws GitException If the stored bitmap is corrupt.
+     */
+    public Optional<BitSet> reachableFrom(ObjectId commit) throws GitException {
+        var bits = decoded.get(commit);
+        if (bits != null || buf == null) {
+            return Optional.ofNullable(bits);
+        }
+        Integer entry = entries.get(commit);
+        return entry == null ? Optional.empty() : Optional.of(decode(entry));
+    }
+
+    // Decodes an entry, after the entries its bitmap is XORed with.
+    private BitSet decode(int entry) throws GitException {
+        var chain = new ArrayList<Integer>();
+        BitSet bits = null;
+        for (int i = entry; bits == null; i -= xorOffsets[i]) {
+            bits = decoded.get(pack.hashAt(buf.getInt(offsets[i] - 6)));
+            if (bits == null) {
+                chain.add(i);
+                if (xorOffsets[i] == 0) {
+                    bits = new BitSet();
+                }
+            }
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            int e = chain.get(i);
+            var next = Ewah.read(buf, offsets[e]);
+            if (xorOffsets[e] != 0) {
+                next.xor(bits);
+            }
+            bits = next;
+            decoded.put(pack.hashAt(buf.getInt(offsets[e] - 6)), bits);
+        }
+        return bits;
+    }
+
+    /**
+     * Records a commit's bitmap, for writing.
+     */
+    void put(ObjectId commit, BitSet bits) {
+        decoded.put(commit, bits);
+    }
+
+    /**
+     * Writes bitmaps for a pack that holds every object reachable from the
+     * refs, as git repack -b does: for the commits the refs point to, and for
+     * every hundredth commit of their history, so that a walk from any commit
+     * reaches a bitmap soon. Commits are processed oldest first, so that each
+     * bitmap is computed from those of its ancestors.
+     *
+     * <p>Bitmaps are stored whole, without XOR compression or the name-hash
+     * cache, which are optional.
+     *
+     * @return The file written, or empty if some reachable object is not in
+     *         the pack.
+     * @throws GitException If an object is invalid.
+     * @throws IOException  If an error is encountered while reading objects
+     *                      or writing the file.
+     */
+    static Optional<Path> write(FsObjectDatabase git, PackFile pack) throws GitException, IOException {
+        var types = new BitSet[4];
+        Arrays.setAll(types, i -> new BitSet(pack.count()));
+        for (int bit = 0; bit < pack.count(); bit++) {
+            int i = switch (pack.typeAt(pack.offsetAt(pack.indexPosition(bit)))) {
+                case Commit -> 0;
+                case Tree -> 1;
+                case Blob -> 2;
+                case Tag -> 3;
+            };
+            types[i].set(bit);
+        }
+        var bitmap = inMemory(pack, types);
+        var selected = new LinkedHashSet<ObjectId>();
+        var tips = new ArrayList<ObjectId>();
+        git.resolveRef("HEAD").ifPresent(tips::add);
+        tips.addAll(git.listRefs().values());
+        for (var tip : tips) {
+            while (git.contains(tip) && git.getType(tip) == ObjectType.Tag) {
+                tip = PackGenerator.tagTarget(git, tip);
+            }
+            if (git.contains(tip) && git.getType(tip) == ObjectType.Commit) {
+                selected.add(tip);
+            }
+        }
+        var order = oldestFirst(git, selected);
+        for (int i = 0; i < order.size(); i += SELECT_INTERVAL) {
+            selected.add(order.get(i));
+        }
+        var positions = new HashMap<ObjectId, Integer>();
+        for (var commit : order) {
+            if (selected.contains(commit)) {
+                var reachable = new Reachability(git, git, Optional.of(bitmap));
+                reachable.add(List.of(commit));
+                if (!reachable.inPack()) {
+                    return Optional.empty();
+                }
+                bitmap.put(commit, reachable.bits());
+                positions.put(commit, pack.position(commit));
+            }
+        }
+
+        String name = pack.path().getFileName().toString();
+        Path path = pack.path().resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".bitmap");
+        Path tmp = Files.createTempFile(path.getParent(), "tmp_bitmap_", "");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                write(out, bitmap, order, positions);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return Optional.of(path);
+    }
+
+    // Lists the commits reachable from the tips with every commit after its
+    // parents.
+    private static List<ObjectId> oldestFirst(FsObjectDatabase git, Collection<ObjectId> tips)
+            throws GitException, IOException {
+        var order = new ArrayList<ObjectId>();
+        var seen = new ObjectIdSet();
+        var parents = new HashMap<ObjectId, List<ObjectId>>();
+        var pending = new ArrayDeque<ObjectId>();
+        for (var tip : tips) {
+            if (seen.add(tip)) {
+                pending.push(tip);
+            }
+            while (!pending.isEmpty()) {
+                var id = pending.peek();
+                var next = parents.get(id);
+                if (next == null) {
+                    next = new ArrayList<>(git.contains(id) ? git.readCommit(id).parents() : List.of());
+                    parents.put(id, next);
+                }
+                while (!next.isEmpty() && !seen.add(next.getLast())) {
+                    next.removeLast();
+                }
+                if (next.isEmpty()) {
+                    order.add(pending.pop());
+                    parents.remove(id);
+                } else {
+                    pending.push(next.removeLast());
+                }
+            }
+        }
+        return order;
+    }
+
+    private static void write(OutputStream out, PackBitmap bitmap, List<ObjectId> order,
+            Map<ObjectId, Integer> positions) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("can't find algorithm: SHA-1");
+        }
+        var data = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(out), digest));
+        data.write(MAGIC);
+        data.writeShort(VERSION);
+        data.writeShort(OPT_FULL_DAG);
+        data.writeInt(positions.size());
+        data.write(bitmap.pack.checksum());
+        for (var type : List.of(bitmap.commits, bitmap.trees, bitmap.blobs, bitmap.tags)) {
+            Ewah.write(data, type);
+        }
+        for (var commit : order) {
+            var position = positions.get(commit);
+            if (position != null) {
+                data.writeInt(position);
+                data.writeByte(0);
+                data.writeByte(0);
+                Ewah.write(data, bitmap.decoded.get(commit));
+            }
+        }
+        data.flush();
+        out.write(digest.digest());
+        out.flush();
+    }
+}
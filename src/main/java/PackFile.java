@@ -0,0 +1,392 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A memory-mapped packfile together with its version 2 index.
+ */
+public class PackFile {
+    private static final int IDX_MAGIC = 0xff744f63; // "\377tOc"
+    private static final int PACK_MAGIC = 0x5041434b; // "PACK"
+    private static final int FANOUT_OFFSET = 8;
+    private static final int NAMES_OFFSET = FANOUT_OFFSET + 256 * 4;
+    private static final int HASH_SIZE = 20;
+
+    // A delta starts with its base and result sizes, ten bytes at most each.
+    private static final int DELTA_SIZES_MAX = 20;
+    static final int OFS_DELTA = 6;
+    static final int REF_DELTA = 7;
+
+    private final Path packPath;
+    private final ByteBuffer idx;
+    private final ByteBuffer pack;
+    private final int count;
+    private final int crcOffset;
+    private final int offsetsOffset;
+    private final int largeOffsetsOffset;
+    // Built on first use.
+    private volatile ReverseIndex reverseIndex;
+    private volatile Optional<PackBitmap> bitmap;
+
+    // The objects in pack (offset) order: their offsets, their index
+    // positions, and for each index position the pack position.
+    private record ReverseIndex(long[] offsets, int[] indexPositions, int[] packPositions) {
+    }
+
+    private PackFile(Path packPath, ByteBuffer idx, ByteBuffer pack) throws GitException {
+        this.packPath = packPath;
+        this.idx = idx;
+        this.pack = pack;
+        if (idx.getInt(0) != IDX_MAGIC || idx.getInt(4) != 2) {
+            throw new GitException("unsupported pack index: %s".formatted(packPath));
+        }
+        if (pack.getInt(0) != PACK_MAGIC || pack.getInt(4) != 2) {
+            throw new GitException("unsupported packfile: %s".formatted(packPath));
+        }
+        this.count = idx.getInt(FANOUT_OFFSET + 255 * 4);
+        if (pack.getInt(8) != count) {
+            throw new GitException("pack %s has %d objects, index has %d".formatted(packPath, pack.getInt(8), count));
+        }
+        this.crcOffset = NAMES_OFFSET + count * HASH_SIZE;
+        this.offsetsOffset = crcOffset + count * 4;
+        this.largeOffsetsOffset = offsetsOffset + count * 4;
+    }
+
+    /**
+     * Opens the pack belonging to the given index file.
+     *
+     * @param idxPath The path of the .idx file; the .pack file must be next to it.
+     * @return The opened pack.
+     * @throws GitException If either file is not a valid version 2 pack or index.
+     * @throws IOException  If an error is encountered while mapping the files.
+     */
+    public static PackFile open(Path idxPath) throws GitException, IOException {
+        String name = idxPath.getFileName().toString();
+        Path packPath = idxPath.resolveSibling(name.substring(0, name.length() - ".idx".length()) + ".pack");
+        return new PackFile(packPath, map(idxPath), map(packPath));
+    }
+
+    static ByteBuffer map(Path path) throws GitException, IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new GitException("pack file too large to map: %s".formatted(path));
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    public Path path() {
+        return packPath;
+    }
+
+    /** Returns the number of objects in the pack. */
+    public int count() {
+        return count;
+    }
+
+    /** Returns the hash of the i-th object in index (hash) order. */
+    public ObjectId hashAt(int i) {
+        return ObjectId.fromBuffer(idx, NAMES_OFFSET + i * HASH_SIZE);
+    }
+
+    /** Returns the pack offset of the i-th object in index (hash) order. */
+    public long offsetAt(int i) {
+        int offset = idx.getInt(offsetsOffset + i * 4);
+        if (offset < 0) {
+            return idx.getLong(largeOffsetsOffset + (offset & 0x7fffffff) * 8);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the pack offset of the object with the given hash, found by
+     * binary search within its fan-out bucket, or -1 if it is not in the pack.
+     */
+    public long find(ObjectId hash) {
+        int i = position(hash);
+        return i < 0 ? -1 : offsetAt(i);
+    }
+
+    /**
+     * Returns the index (hash) order position of the object with the given
+     * hash, or -1 if it is not in the pack.
+     */
+    public int position(ObjectId hash) {
+        int first = hash.firstByte();
+        int lo = first == 0 ? 0 : idx.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int hi = idx.getInt(FANOUT_OFFSET + first * 4);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = hash.compareTo(idx, NAMES_OFFSET + mid * HASH_SIZE);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the CRC-32 of the i-th object's whole entry, as the index records it. */
+    public int crcAt(int i) {
+        return idx.getInt(crcOffset + i * 4);
+    }
+
+    /**
+     * An entry as it is stored, for copying it into another pack without
+     * inflating it.
+     *
+     * @param type       The pack type code, which may be a delta's.
+     * @param size       The inflated size of the object or delta.
+     * @param dataOffset Where the compressed data starts.
+     * @param end        Where the entry ends.
+     * @param baseOffset The offset of a delta's base in this pack, or -1.
+     */
+    public record StoredEntry(int type, long size, long dataOffset, long end, long baseOffset) {
+        public boolean isDelta() {
+            return baseOffset >= 0;
+        }
+    }
+
+    /**
+     * Describes the entry stored at the given offset.
+     */
+    public StoredEntry storedAt(long offset) throws GitException {
+        Header header = header(offset);
+        return new StoredEntry(header.type, header.size, header.dataOffset, entryEnd(offset), header.baseOffset);
+    }
+
+    private long entryEnd(long offset) {
+        long[] offsets = reverseIndex().offsets();
+        int i = Arrays.binarySearch(offsets, offset);
+        return i + 1 < count ? offsets[i + 1] : pack.limit() - HASH_SIZE;
+    }
+
+    private ReverseIndex reverseIndex() {
+        var reverse = reverseIndex;
+        if (reverse == null) {
+            // Sorts offsets and index positions together as (offset << 32 |
+            // position), which fits since packs are mapped below 2 GiB.
+            long[] keys = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = offsetAt(i) << 32 | i;
+            }
+            Arrays.sort(keys);
+            long[] offsets = new long[count];
+            int[] indexPositions = new int[count];
+            int[] packPositions = new int[count];
+            for (int p = 0; p < count; p++) {
+                offsets[p] = keys[p] >>> 32;
+                indexPositions[p] = (int) keys[p];
+                packPositions[indexPositions[p]] = p;
+            }
+            reverse = new ReverseIndex(offsets, indexPositions, packPositions);
+            reverseIndex = reverse;
+        }
+        return reverse;
+    }
+
+    /**
+     * Returns the position in pack order, by offset, of the i-th object in
+     * index order. Reachability bitmaps number objects this way.
+     */
+    public int packPosition(int i) {
+        return reverseIndex().packPositions()[i];
+    }
+
+    /**
+     * Returns the index position of the object at the given pack position.
+     */
+    public int indexPosition(int packPosition) {
+        return reverseIndex().indexPositions()[packPosition];
+    }
+
+    /**
+     * Returns the pack's trailing checksum, which also names it.
+     */
+    public byte[] checksum() {
+        byte[] checksum = new byte[HASH_SIZE];
+        pack.get(pack.limit() - HASH_SIZE, checksum);
+        return checksum;
+    }
+
+    /**
+     * Returns the reachability bitmaps stored next to the pack, loading them
+     * on first use.
+     *
+     * @throws GitException If the bitmap file is invalid or belongs to a
+     *                      different pack.
+     */
+    public Optional<PackBitmap> bitmap() throws GitException, IOException {
+        var loaded = bitmap;
+        if (loaded == null) {
+            String name = packPath.getFileName().toString();
+            Path path = packPath.resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".bitmap");
+            loaded = Files.exists(path) ? Optional.of(PackBitmap.open(path, this)) : Optional.empty();
+            bitmap = loaded;
+        }
+        return loaded;
+    }
+
+    /**
+     * Copies raw bytes of the pack, such as an entry's compressed data.
+     */
+    public byte[] bytes(long from, long to) {
+        byte[] out = new byte[Math.toIntExact(to - from)];
+        pack.get(Math.toIntExact(from), out);
+        return out;
+    }
+
+    private record Header(int type, long size, int dataOffset, long baseOffset) {
+    }
+
+    private Header header(long offset) throws GitException {
+        int pos = Math.toIntExact(offset);
+        int c = pack.get(pos++) & 0xff;
+        int type = (c >> 4) & 7;
+        long size = c & 0x0f;
+        for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+            c = pack.get(pos++) & 0xff;
+            size |= (long) (c & 0x7f) << shift;
+        }
+        long baseOffset = -1;
+        if (type == OFS_DELTA) {
+            c = pack.get(pos++) & 0xff;
+            long distance = c & 0x7f;
+            while ((c & 0x80) != 0) {
+                c = pack.get(pos++) & 0xff;
+                distance = ((distance + 1) << 7) | (c & 0x7f);
+            }
+            // A base must come before its delta, or the chain would never end.
+            if (distance <= 0 || distance >= offset) {
+                throw new GitException("corrupt pack %s: delta base out of range at offset %d".formatted(packPath,
+                        offset));
+            }
+            baseOffset = offset - distance;
+        } else if (type == REF_DELTA) {
+            baseOffset = find(ObjectId.fromBuffer(pack, pos));
+            pos += HASH_SIZE;
+            if (baseOffset < 0) {
+                throw new GitException("missing delta base in %s at offset %d".formatted(packPath, offset));
+            } else if (baseOffset == offset) {
+                throw new GitException("corrupt pack %s: delta is its own base at offset %d".formatted(packPath,
+                        offset));
+            }
+        }
+        return new Header(type, size, pos, baseOffset);
+    }
+
+    /**
+     * Returns the type of the object at the given offset, following delta
+     * chains through their headers without inflating any data.
+     */
+    public ObjectType typeAt(long offset) throws GitException {
+        Header header = header(offset);
+        for (int depth = 1; header.baseOffset >= 0; depth++) {
+            header = base(header, offset, depth);
+        }
+        return ObjectType.fromPackCode(header.type);
+    }
+
+    /**
+     * Returns the size of the object at the given offset. A delta's result
+     * size is read from the start of its data, so only a few bytes of it are
+     * inflated.
+     */
+    public long sizeAt(long offset) throws GitException {
+        Header header = header(offset);
+        if (header.baseOffset < 0) {
+            return header.size;
+        }
+        return Delta.resultSize(inflate(pack, header.dataOffset, Math.min(header.size, DELTA_SIZES_MAX)));
+    }
+
+    /**
+     * Reads and fully resolves the object at the given offset.
+     */
+    public RawObject readAt(long offset) throws GitException {
+        var deltas = new ArrayDeque<Header>();
+        Header header = header(offset);
+        for (int depth = 1; header.baseOffset >= 0; depth++) {
+            deltas.push(header);
+            header = base(header, offset, depth);
+        }
+        byte[] data = inflate(header);
+        while (!deltas.isEmpty()) {
+            data = Delta.apply(data, inflate(deltas.pop()));
+        }
+        return new RawObject(ObjectType.fromPackCode(header.type), data);
+    }
+
+    // Reads the header of a delta's base, the depth-th link of the chain
+    // starting at offset. REF_DELTA bases may lie anywhere in the pack, so a
+    // chain longer than the pack has objects must loop.
+    private Header base(Header delta, long offset, int depth) throws GitException {
+        if (depth > count) {
+            throw new GitException("corrupt pack %s: delta chain at offset %d does not end".formatted(packPath,
+                    offset));
+        }
+        return header(delta.baseOffset);
+    }
+
+    private byte[] inflate(Header header) throws GitException {
+        try {
+            return inflate(pack, header.dataOffset, header.size);
+        } catch (GitException e) {
+            throw new GitException("%s: %s".formatted(packPath, e.getMessage()));
+        }
+    }
+
+    /**
+     * Inflates a single zlib stream of known inflated size from a pack buffer.
+     */
+    static byte[] inflate(ByteBuffer pack, int dataOffset, long size) throws GitException {
+        var inflater = ZlibPool.inflater();
+        try {
+            return inflate(pack, dataOffset, size, inflater);
+        } finally {
+            ZlibPool.release(inflater);
+        }
+    }
+
+    /**
+     * Like {@link #inflate(ByteBuffer, int, long)}, but resets and reuses the
+     * caller's inflater.
+     */
+    static byte[] inflate(ByteBuffer pack, int dataOffset, long size, Inflater inflater) throws GitException {
+        if (size > Integer.MAX_VALUE) {
+            throw new GitException("packed object too large: %d bytes".formatted(size));
+        }
+        byte[] out = new byte[(int) size];
+        inflater.reset();
+        try {
+            inflater.setInput(pack.slice(dataOffset, pack.limit() - dataOffset));
+            for (int n = 0; n < out.length;) {
+                int read = inflater.inflate(out, n, out.length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new GitException("corrupt object at offset %d".formatted(dataOffset));
+                }
+                n += read;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new GitException("corrupt object at offset %d: %s".formatted(dataOffset, e.getMessage()));
+        }
+    }
+
+    /** Returns whether the given file looks like a pack index. */
+    static boolean isIndex(Path path) {
+        return Files.isRegularFile(path) && path.getFileName().toString().endsWith(".idx");
+    }
+}
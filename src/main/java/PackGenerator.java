@@ -0,0 +1,453 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses the objects a fetch must send and streams them as a pack.
+ *
+ * <p>The objects are those reachable from the wants but not from the commits
+ * the client has. Commits are walked newest first from both sides at once,
+ * marking everything reachable from the client's commits as uninteresting,
+ * until only uninteresting commits are left to walk. The trees and blobs of
+ * the boundary commits are then marked as well, so that only the new ones
+ * reachable from the commits to send are listed. When a pack has
+ * reachability bitmaps, both sides are computed with them instead, and the
+ * objects to send are those of the wants' set that are not in the haves'.
+ *
+ * <p>Objects are copied from the packs that hold them without inflating
+ * them where possible: whole objects as they are, and deltas whose base is
+ * sent too as OFS_DELTA entries right after their base. Every copied entry is
+ * checked against the CRC-32 its index records. Other deltas, and loose
+ * objects, are resolved and deflated again.
+ */
+public class PackGenerator {
+    private static final long GITLINK_MODE = 160000;
+
+    private final FsObjectDatabase git;
+    private final ObjectDatabase reader;
+    private final boolean omitBlobs;
+    private final List<ObjectId> objects = new ArrayList<>();
+    private final ObjectIdMap index = new ObjectIdMap();
+    private final ObjectIdSet excluded = new ObjectIdSet();
+    private final Map<ObjectId, CommitNode> commits = new HashMap<>();
+    private final PriorityQueue<CommitNode> queue = new PriorityQueue<>(
+            Comparator.comparingLong((CommitNode node) -> node.time).reversed());
+    private int interestingQueued;
+    private boolean useBitmaps = true;
+
+    /**
+     * How a pack was written.
+     *
+     * @param objects      The number of objects.
+     * @param reused       The number of whole objects copied as stored.
+     * @param reusedDeltas The number of deltas copied as stored.
+     */
+    public record Result(int objects, int reused, int reusedDeltas) {
+    }
+
+    private static final class CommitNode {
+        final ObjectId id;
+        final long time;
+        final ObjectId tree;
+        final List<ObjectId> parents;
+        boolean uninteresting;
+        boolean queued;
+        // Whether the node is counted in interestingQueued.
+        boolean counted;
+
+        CommitNode(ObjectId id, Commit commit) {
+            this.id = id;
+            this.time = commit.committer().time();
+            this.tree = commit.tree();
+            this.parents = commit.parents();
+        }
+    }
+
+    /**
+     * @param git       The repository to send objects from.
+     * @param reader    The database to parse commits and trees with, such as
+     *                  a cache shared by the requests to the repository.
+     * @param omitBlobs Whether to leave out blobs that are not wanted
+     *                  explicitly, for the blob:none filter.
+     */
+    public PackGenerator(FsObjectDatabase git, ObjectDatabase reader, boolean omitBlobs) {
+        this.git = git;
+        this.reader = reader;
+        this.omitBlobs = omitBlobs;
+    }
+
+    /**
+     * Sets whether to use reachability bitmaps when a pack has them. They
+     * are used by default.
+     */
+    public void setUseBitmaps(boolean useBitmaps) {
+        this.useBitmaps = useBitmaps;
+    }
+
+    /**
+     * Lists the objects reachable from the wants but not from the haves.
+     *
+     * @param wants Objects of any type. Annotated tags are sent with the
+     *              objects they point to.
+     * @param haves Commits the client has.
+     * @throws GitException If a want does not exist or an object is invalid.
+     * @throws IOException  If an error is encountered while reading objects.
+     */
+    public void add(Collection<ObjectId> wants, Collection<ObjectId> haves) throws GitException, IOException {
+        var bitmap = useBitmaps ? Reachability.findBitmap(git) : Optional.<PackBitmap>empty();
+        if (bitmap.isPresent()) {
+            addReachable(wants, haves, bitmap);
+            return;
+        }
+        var boundary = new ArrayList<CommitNode>();
+        for (var have : haves) {
+            var node = node(have);
+            markUninteresting(node);
+            enqueue(node);
+            boundary.add(node);
+        }
+        var trees = new ArrayList<ObjectId>();
+        for (var want : wants) {
+            if (!git.contains(want)) {
+                throw new GitException("not our ref %s".formatted(want));
+            }
+            var type = reader.getType(want);
+            while (type == ObjectType.Tag) {
+                add(want);
+                want = tagTarget(want);
+                type = reader.getType(want);
+            }
+            switch (type) {
+                case Commit -> {
+                    var node = node(want);
+                    if (!node.queued) {
+                        enqueue(node);
+                    }
+                }
+                case Tree -> trees.add(want);
+                case Blob -> add(want);
+                case Tag -> throw new AssertionError();
+            }
+        }
+
+        var send = new ArrayList<CommitNode>();
+        while (interestingQueued > 0) {
+            var node = queue.poll();
+            if (node.counted) {
+                node.counted = false;
+                interestingQueued--;
+            }
+            if (!node.uninteresting) {
+                send.add(node);
+            }
+            for (var parent : node.parents) {
+                var parentNode = node(parent);
+                if (node.uninteresting) {
+                    markUninteresting(parentNode);
+                }
+                if (!parentNode.queued) {
+                    enqueue(parentNode);
+                }
+            }
+        }
+        // A commit listed before a path from the haves reached it is dropped
+        // here.
+        send.removeIf(node -> node.uninteresting);
+        for (var node : send) {
+            for (var parent : node.parents) {
+                var parentNode = commits.get(parent);
+                if (parentNode.uninteresting) {
+                    boundary.add(parentNode);
+                }
+            }
+        }
+        for (var node : boundary) {
+            markTree(node.tree);
+        }
+        for (var node : send) {
+            add(node.id);
+        }
+        for (var node : send) {
+            addTree(node.tree);
+        }
+        for (var tree : trees) {
+            addTree(tree);
+        }
+    }
+
+    private void addReachable(Collection<ObjectId> wants, Collection<ObjectId> haves, Optional<PackBitmap> bitmap)
+            throws GitException, IOException {
+        for (var want : wants) {
+            if (!git.contains(want)) {
+                throw new GitException("not our ref %s".formatted(want));
+            }
+        }
+        var send = new Reachability(git, reader, bitmap);
+        send.add(wants);
+        if (!send.missing().isEmpty()) {
+            throw new GitException("missing object %s".formatted(send.missing().getFirst()));
+        }
+        var common = new Reachability(git, reader, bitmap);
+        common.add(haves);
+        send.remove(common);
+        if (omitBlobs) {
+            send.removeType(ObjectType.Blob);
+            for (var want : wants) {
+                var type = reader.getType(want);
+                while (type == ObjectType.Tag) {
+                    want = tagTarget(want);
+                    type = reader.getType(want);
+                }
+                if (type == ObjectType.Blob) {
+                    add(want);
+                }
+            }
+        }
+        send.forEach((id, type) -> add(id));
+    }
+
+    /**
+     * Adds the annotated tags among the given refs that point, directly or
+     * through other tags, to an object being sent.
+     */
+    public void includeTags(Collection<ObjectId> refs) throws GitException, IOException {
+        for (var ref : refs) {
+            var chain = new ArrayList<ObjectId>();
+            var target = ref;
+            while (reader.getType(target) == ObjectType.Tag) {
+                chain.add(target);
+                target = tagTarget(target);
+            }
+            if (!chain.isEmpty() && index.containsKey(target)) {
+                for (var tag : chain) {
+                    add(tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the objects listed so far, in the order they will be sent.
+     */
+    public List<ObjectId> objects() {
+        return objects;
+    }
+
+    private CommitNode node(ObjectId id) throws GitException, IOException {
+        var node = commits.get(id);
+        if (node == null) {
+            node = new CommitNode(id, reader.readCommit(id));
+            commits.put(id, node);
+        }
+        return node;
+    }
+
+    private void enqueue(CommitNode node) {
+        node.queued = true;
+        if (!node.uninteresting) {
+            node.counted = true;
+            interestingQueued++;
+        }
+        queue.add(node);
+    }
+
+    // Marks a commit and its ancestors that were already parsed.
+    private void markUninteresting(CommitNode start) {
+        var pending = new ArrayList<CommitNode>(List.of(start));
+        while (!pending.isEmpty()) {
+            var node = pending.removeLast();
+            if (node.uninteresting) {
+                continue;
+            }
+            node.uninteresting = true;
+            if (node.counted) {
+                node.counted = false;
+                interestingQueued--;
+            }
+            for (var parent : node.parents) {
+                var parentNode = commits.get(parent);
+                if (parentNode != null) {
+                    pending.add(parentNode);
+                }
+            }
+        }
+    }
+
+    private ObjectId tagTarget(ObjectId tag) throws GitException, IOException {
+        return tagTarget(reader, tag);
+    }
+
+    /**
+     * Returns the object an annotated tag points to.
+     */
+    static ObjectId tagTarget(ObjectDatabase git, ObjectId tag) throws GitException, IOException {
+        byte[] data = git.readRaw(tag).data();
+        String header = new String(data, 0, Math.min(data.length, 7 + ObjectId.HEX_SIZE), UTF_8);
+        if (!header.startsWith("object ") || header.length() < 7 + ObjectId.HEX_SIZE) {
+            throw new GitException("invalid tag: %s".formatted(tag));
+        }
+        return ObjectId.fromHex(header.substring(7));
+    }
+
+    private void markTree(ObjectId tree) throws GitException, IOException {
+        if (!excluded.add(tree)) {
+            return;
+        }
+        var entry = reader.readTree(tree);
+        while (entry.next()) {
+            if (entry.isTree()) {
+                markTree(entry.hash());
+            } else if (entry.mode() != GITLINK_MODE && !omitBlobs) {
+                excluded.add(entry.hash());
+            }
+        }
+    }
+
+    private void addTree(ObjectId tree) throws GitException, IOException {
+        if (excluded.contains(tree) || !add(tree)) {
+            return;
+        }
+        var entry = reader.readTree(tree);
+        while (entry.next()) {
+            if (entry.isTree()) {
+                addTree(entry.hash());
+            } else if (entry.mode() != GITLINK_MODE && !omitBlobs && !excluded.contains(entry.hash())) {
+                add(entry.hash());
+            }
+        }
+    }
+
+    private boolean add(ObjectId id) {
+        if (!index.putIfAbsent(id, objects.size())) {
+            return false;
+        }
+        objects.add(id);
+        return true;
+    }
+
+    // Where an object is stored in a pack, if it is.
+    private record Source(PackFile pack, int position, long offset) {
+    }
+
+    /**
+     * Writes the listed objects as a pack.
+     *
+     * @param ofsDelta Whether the client accepts OFS_DELTA entries. Without
+     *                 them, every object is sent whole.
+     * @throws GitException If an object is missing or a stored entry is
+     *                      corrupt.
+     * @throws IOException  If an error is encountered while reading objects
+     *                      or writing the pack.
+     */
+    public Result write(OutputStream out, boolean ofsDelta) throws GitException, IOException {
+        int count = objects.size();
+        var sources = new Source[count];
+        var byOffset = new HashMap<PackFile, Map<Long, Integer>>();
+        var packs = git.packs().packs();
+        for (int i = 0; i < count; i++) {
+            for (var pack : packs) {
+                int position = pack.position(objects.get(i));
+                if (position >= 0) {
+                    sources[i] = new Source(pack, position, pack.offsetAt(position));
+                    byOffset.computeIfAbsent(pack, p -> new HashMap<>()).put(sources[i].offset, i);
+                    break;
+                }
+            }
+        }
+        var writer = new Writer(new PackWriter(out, count), sources, byOffset, ofsDelta);
+        var deflater = ZlibPool.deflater(git.packCompression());
+        try {
+            for (int i = 0; i < count; i++) {
+                writer.write(i, deflater);
+            }
+        } finally {
+            ZlibPool.release(deflater);
+        }
+        writer.pack.finish();
+        return new Result(count, writer.reused, writer.reusedDeltas);
+    }
+
+    private final class Writer {
+        final PackWriter pack;
+        final Source[] sources;
+        final Map<PackFile, Map<Long, Integer>> byOffset;
+        final long[] offsets;
+        final boolean[] writing;
+        final boolean ofsDelta;
+        int reused;
+        int reusedDeltas;
+
+        Writer(PackWriter pack, Source[] sources, Map<PackFile, Map<Long, Integer>> byOffset, boolean ofsDelta) {
+            this.pack = pack;
+            this.sources = sources;
+            this.byOffset = byOffset;
+            this.offsets = new long[sources.length];
+            this.writing = new boolean[sources.length];
+            this.ofsDelta = ofsDelta;
+            Arrays.fill(offsets, -1);
+        }
+
+        // Writes an object, after its delta base if the stored delta can be
+        // copied.
+        void write(int i, Deflater deflater) throws GitException, IOException {
+            if (offsets[i] >= 0) {
+                return;
+            }
+            var id = objects.get(i);
+            var source = sources[i];
+            if (source != null) {
+                var entry = source.pack.storedAt(source.offset);
+                if (!entry.isDelta()) {
+                    offsets[i] = pack.writeWhole(id, ObjectType.fromPackCode(entry.type()), entry.size(), copy(source, entry));
+                    reused++;
+                    return;
+                }
+                Integer base = byOffset.get(source.pack).get(entry.baseOffset());
+                if (ofsDelta && base != null && !writing[base]) {
+                    writing[i] = true;
+                    write(base, deflater);
+                    writing[i] = false;
+                    offsets[i] = pack.writeOfsDelta(id, offsets[base], entry.size(), copy(source, entry));
+                    reusedDeltas++;
+                    return;
+                }
+            }
+            if (reader.getType(id) == ObjectType.Blob) {
+                // Streamed, so that a blob the reader holds off the heap, or
+                // too large for it to cache, is not copied into memory.
+                long size = reader.getSize(id);
+                try (var in = reader.readBlob(id)) {
+                    offsets[i] = pack.writeWhole(id, ObjectType.Blob, size, in, deflater);
+                }
+                return;
+            }
+            var raw = reader.readRaw(id);
+            offsets[i] = pack.writeWhole(id, raw.type(), raw.data().length, Repack.deflate(deflater, raw.data()));
+        }
+
+        // Returns an entry's compressed data, after checking the whole entry
+        // against the index.
+        private byte[] copy(Source source, PackFile.StoredEntry entry) throws GitException {
+            byte[] stored = source.pack.bytes(source.offset, entry.end());
+            var crc = new CRC32();
+            crc.update(stored);
+            if ((int) crc.getValue() != source.pack.crcAt(source.position)) {
+                throw new GitException("corrupt entry in %s at offset %d".formatted(source.pack.path(),
+                        source.offset));
+            }
+            return Arrays.copyOfRange(stored, (int) (entry.dataOffset() - source.offset), stored.length);
+        }
+    }
+}
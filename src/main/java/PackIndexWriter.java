@@ -0,0 +1,74 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes version 2 pack index (.idx) files.
+ */
+public class PackIndexWriter {
+    private static final byte[] MAGIC = { (byte) 0xff, 't', 'O', 'c' };
+
+    public record Entry(ObjectId hash, long offset, int crc) {
+    }
+
+    private PackIndexWriter() {
+    }
+
+    /**
+     * Writes an index for the given pack entries.
+     *
+     * @param out          The stream to write the index to.
+     * @param entries      The objects in the pack, in any order.
+     * @param packChecksum The trailing checksum of the pack.
+     * @throws IOException If an error is encountered while writing.
+     */
+    public static void write(OutputStream out, List<Entry> entries, byte[] packChecksum) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("can't find algorithm: SHA-1");
+        }
+        var sorted = entries.stream().sorted(Comparator.comparing(Entry::hash)).toList();
+        var data = new DataOutputStream(new DigestOutputStream(new BufferedOutputStream(out), digest));
+        data.write(MAGIC);
+        data.writeInt(2);
+        int[] fanout = new int[256];
+        for (var entry : sorted) {
+            fanout[entry.hash().firstByte()]++;
+        }
+        for (int i = 0, total = 0; i < 256; i++) {
+            total += fanout[i];
+            data.writeInt(total);
+        }
+        for (var entry : sorted) {
+            entry.hash().writeTo(data);
+        }
+        for (var entry : sorted) {
+            data.writeInt(entry.crc());
+        }
+        int large = 0;
+        for (var entry : sorted) {
+            if (entry.offset() > Integer.MAX_VALUE) {
+                data.writeInt(0x80000000 | large++);
+            } else {
+                data.writeInt((int) entry.offset());
+            }
+        }
+        for (var entry : sorted) {
+            if (entry.offset() > Integer.MAX_VALUE) {
+                data.writeLong(entry.offset());
+            }
+        }
+        data.write(packChecksum);
+        data.flush();
+        out.write(digest.digest());
+        out.flush();
+    }
+}
@@ -0,0 +1,502 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Indexes a packfile while it streams in, like git's index-pack.
+ *
+ * <p>Bytes are written to a temporary file in the pack directory as they are
+ * parsed. The pack checksum, each entry's CRC32 and the hashes of whole
+ * objects are computed on the fly, so nothing but per-entry bookkeeping is
+ * held in memory.
+ *
+ * <p>Deltas are resolved afterwards from the written file. The base-to-children
+ * graph is built first; each whole object then roots an independent tree of
+ * deltas, and those trees are resolved with fork-join across all cores. Bases
+ * waiting for their children to be processed are kept in a byte-bounded cache
+ * and re-inflated from their own base if they get evicted.
+ */
+public class PackIndexer {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int HASH_SIZE = 20;
+    // Packs are mapped into a single buffer to resolve deltas and to be read.
+    private static final long MAX_PACK_SIZE = Integer.MAX_VALUE;
+    static final long DEFAULT_CACHE_LIMIT = 96L << 20;
+
+    private final Path packDir;
+    private final int threads;
+    private final long cacheLimit;
+
+    public record Result(Path pack, Path idx, byte[] checksum, int objects, int deltas, Duration elapsed) {
+        public double objectsPerSecond() {
+            return objects / Math.max(1e-9, elapsed.toNanos() / 1e9);
+        }
+    }
+
+    private static final class Entry {
+        final long offset;
+        int type;
+        long size;
+        int dataOffset;
+        long baseOffset = -1;
+        ObjectId baseHash;
+        int crc;
+        ObjectId hash;
+        ObjectType resolvedType;
+        Entry parent;
+
+        Entry(long offset) {
+            this.offset = offset;
+        }
+    }
+
+    public PackIndexer(Path packDir) {
+        this(packDir, Runtime.getRuntime().availableProcessors(), DEFAULT_CACHE_LIMIT);
+    }
+
+    /**
+     * @param packDir    The directory that streamed packs are written to.
+     * @param threads    The number of delta resolution workers.
+     * @param cacheLimit The number of bytes of inflated delta bases to keep.
+     */
+    public PackIndexer(Path packDir, int threads, long cacheLimit) {
+        this.packDir = packDir;
+        this.threads = threads;
+        this.cacheLimit = cacheLimit;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("can't find algorithm: SHA-1");
+        }
+    }
+
+    // A read buffer over the incoming pack. Bytes only count as consumed once
+    // the parser has used them, at which point they are hashed, added to the
+    // current entry's CRC and appended to the pack file.
+    private static final class Input {
+        final InputStream in;
+        final OutputStream file;
+        final MessageDigest digest = sha1();
+        final CRC32 crc = new CRC32();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        int pos, limit;
+        long offset;
+
+        Input(InputStream in, OutputStream file) {
+            this.in = in;
+            this.file = file;
+        }
+
+        void fill() throws GitException, IOException {
+            if (pos < limit) {
+                return;
+            }
+            int n = in.read(buf, 0, buf.length);
+            if (n < 0) {
+                throw new GitException("unexpected end of pack at offset %d".formatted(offset));
+            }
+            if (offset + n > MAX_PACK_SIZE) {
+                throw new GitException("pack too large: more than %d bytes".formatted(MAX_PACK_SIZE));
+            }
+            pos = 0;
+            limit = n;
+        }
+
+        void consume(int n) throws IOException {
+            digest.update(buf, pos, n);
+            crc.update(buf, pos, n);
+            file.write(buf, pos, n);
+            pos += n;
+            offset += n;
+        }
+
+        int readByte() throws GitException, IOException {
+            fill();
+            int b = buf[pos] & 0xff;
+            consume(1);
+            return b;
+        }
+
+        byte[] readBytes(int n) throws GitException, IOException {
+            byte[] out = new byte[n];
+            for (int read = 0; read < n;) {
+                fill();
+                int chunk = Math.min(n - read, limit - pos);
+                System.arraycopy(buf, pos, out, read, chunk);
+                consume(chunk);
+                read += chunk;
+            }
+            return out;
+        }
+
+        // Inflates one zlib stream, passing the output to the digest if given,
+        // and returns the inflated size.
+        long inflate(Inflater inflater, byte[] out, MessageDigest objectDigest)
+                throws GitException, IOException {
+            inflater.reset();
+            long total = 0;
+            try {
+                while (!inflater.finished()) {
+                    fill();
+                    int available = limit - pos;
+                    inflater.setInput(buf, pos, available);
+                    while (!inflater.finished() && !inflater.needsInput()) {
+                        int n = inflater.inflate(out);
+                        if (n == 0 && inflater.needsDictionary()) {
+                            throw new GitException("corrupt pack: unexpected zlib dictionary");
+                        }
+                        if (objectDigest != null) {
+                            objectDigest.update(out, 0, n);
+                        }
+                        total += n;
+                    }
+                    consume(available - inflater.getRemaining());
+                }
+            } catch (DataFormatException e) {
+                throw new GitException("corrupt pack at offset %d: %s".formatted(offset, e.getMessage()));
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Reads a pack from the stream, writes it and its index into the pack
+     * directory, and returns their paths.
+     *
+     * @param in The pack data, which is read to the end of the trailing checksum.
+     * @return The written pack.
+     * @throws GitException If the pack is malformed or has unresolvable deltas.
+     * @throws IOException  If an error is encountered while reading or writing.
+     */
+    public Result index(InputStream in) throws GitException, IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(packDir);
+        Path tmpPack = Files.createTempFile(packDir, "tmp_pack_", "");
+        Path tmpIdx = Files.createTempFile(packDir, "tmp_idx_", "");
+        try {
+            List<Entry> entries;
+            byte[] checksum;
+            try (var file = new BufferedOutputStream(Files.newOutputStream(tmpPack), BUFFER_SIZE)) {
+                var input = new Input(in, file);
+                entries = parse(input);
+                checksum = readTrailer(input);
+            }
+            resolveDeltas(PackFile.map(tmpPack), entries);
+            writeIndex(tmpIdx, entries, checksum);
+            String name = "pack-" + HexFormat.of().formatHex(checksum);
+            Path pack = packDir.resolve(name + ".pack");
+            Path idx = packDir.resolve(name + ".idx");
+            Files.move(tmpPack, pack, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIdx, idx, StandardCopyOption.ATOMIC_MOVE);
+            return result(pack, idx, checksum, entries, start);
+        } finally {
+            Files.deleteIfExists(tmpPack);
+            Files.deleteIfExists(tmpIdx);
+        }
+    }
+
+    /**
+     * Indexes a pack that is already on disk, writing the index next to it.
+     *
+     * @param pack The .pack file.
+     * @return The indexed pack.
+     * @throws GitException If the pack is malformed or has unresolvable deltas.
+     * @throws IOException  If an error is encountered while reading or writing.
+     */
+    public Result indexFile(Path pack) throws GitException, IOException {
+        long start = System.nanoTime();
+        String name = pack.getFileName().toString();
+        Path idx = pack.resolveSibling(name.replaceFirst("(\\.pack)?$", ".idx"));
+        List<Entry> entries;
+        byte[] checksum;
+        try (var in = Files.newInputStream(pack)) {
+            var input = new Input(in, OutputStream.nullOutputStream());
+            entries = parse(input);
+            checksum = readTrailer(input);
+        }
+        resolveDeltas(PackFile.map(pack), entries);
+        Path tmpIdx = Files.createTempFile(idx.toAbsolutePath().getParent(), "tmp_idx_", "");
+        try {
+            writeIndex(tmpIdx, entries, checksum);
+            Files.move(tmpIdx, idx, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpIdx);
+        }
+        return result(pack, idx, checksum, entries, start);
+    }
+
+    private static byte[] readTrailer(Input input) throws GitException, IOException {
+        byte[] checksum = input.digest.digest();
+        byte[] trailer = input.readBytes(HASH_SIZE);
+        if (!Arrays.equals(checksum, trailer)) {
+            throw new GitException("pack checksum mismatch");
+        }
+        return checksum;
+    }
+
+    private static void writeIndex(Path idx, List<Entry> entries, byte[] checksum) throws IOException {
+        var indexEntries = new ArrayList<PackIndexWriter.Entry>(entries.size());
+        for (var entry : entries) {
+            indexEntries.add(new PackIndexWriter.Entry(entry.hash, entry.offset, entry.crc));
+        }
+        try (OutputStream out = Files.newOutputStream(idx)) {
+            PackIndexWriter.write(out, indexEntries, checksum);
+        }
+    }
+
+    private static Result result(Path pack, Path idx, byte[] checksum, List<Entry> entries, long start) {
+        int deltas = (int) entries.stream().filter(e -> e.type >= PackFile.OFS_DELTA).count();
+        return new Result(pack, idx, checksum, entries.size(), deltas, Duration.ofNanos(System.nanoTime() - start));
+    }
+
+    private List<Entry> parse(Input input) throws GitException, IOException {
+        byte[] header = input.readBytes(12);
+        if (header[0] != 'P' || header[1] != 'A' || header[2] != 'C' || header[3] != 'K') {
+            throw new GitException("not a packfile");
+        }
+        int version = ByteBuffer.wrap(header).getInt(4);
+        if (version != 2 && version != 3) {
+            throw new GitException("unsupported pack version: %d".formatted(version));
+        }
+        int count = ByteBuffer.wrap(header).getInt(8);
+        var entries = new ArrayList<Entry>(count);
+        var inflater = ZlibPool.inflater();
+        var objectDigest = sha1();
+        byte[] out = new byte[BUFFER_SIZE];
+        try {
+            for (int i = 0; i < count; i++) {
+                var entry = new Entry(input.offset);
+                input.crc.reset();
+                int c = input.readByte();
+                entry.type = (c >> 4) & 7;
+                entry.size = c & 0x0f;
+                for (int shift = 4; (c & 0x80) != 0; shift += 7) {
+                    c = input.readByte();
+                    entry.size |= (long) (c & 0x7f) << shift;
+                }
+                ObjectType type = ObjectType.fromPackCode(entry.type);
+                if (entry.type == PackFile.OFS_DELTA) {
+                    c = input.readByte();
+                    long distance = c & 0x7f;
+                    while ((c & 0x80) != 0) {
+                        c = input.readByte();
+                        distance = ((distance + 1) << 7) | (c & 0x7f);
+                    }
+                    entry.baseOffset = entry.offset - distance;
+                } else if (entry.type == PackFile.REF_DELTA) {
+                    entry.baseHash = ObjectId.fromBytes(input.readBytes(HASH_SIZE));
+                }
+                // fill() keeps the offset within MAX_PACK_SIZE.
+                entry.dataOffset = (int) input.offset;
+                long inflated;
+                if (type != null) {
+                    objectDigest.update("%s %d".formatted(type, entry.size).getBytes(UTF_8));
+                    objectDigest.update((byte) 0);
+                    inflated = input.inflate(inflater, out, objectDigest);
+                    entry.hash = ObjectId.fromBytes(objectDigest.digest());
+                    entry.resolvedType = type;
+                } else {
+                    inflated = input.inflate(inflater, out, null);
+                }
+                if (inflated != entry.size) {
+                    throw new GitException("corrupt pack: object at offset %d has size %d, header says %d"
+                            .formatted(entry.offset, inflated, entry.size));
+                }
+                entry.crc = (int) input.crc.getValue();
+                entries.add(entry);
+            }
+        } finally {
+            ZlibPool.release(inflater);
+        }
+        return entries;
+    }
+
+    private void resolveDeltas(ByteBuffer pack, List<Entry> entries) throws GitException {
+        var ofsChildren = new HashMap<Long, List<Entry>>();
+        var refChildren = new HashMap<ObjectId, List<Entry>>();
+        for (var entry : entries) {
+            if (entry.type == PackFile.OFS_DELTA) {
+                ofsChildren.computeIfAbsent(entry.baseOffset, k -> new ArrayList<>()).add(entry);
+            } else if (entry.type == PackFile.REF_DELTA) {
+                refChildren.computeIfAbsent(entry.baseHash, k -> new ArrayList<>()).add(entry);
+            }
+        }
+        var resolver = new Resolver(pack, ofsChildren, refChildren, new BaseCache(cacheLimit));
+        var roots = new ArrayList<ResolveTask>();
+        for (var entry : entries) {
+            if (entry.type < PackFile.OFS_DELTA && resolver.hasChildren(entry)) {
+                roots.add(new ResolveTask(resolver, entry));
+            }
+        }
+        try (var pool = new ForkJoinPool(threads)) {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(roots);
+                }
+            });
+        } catch (ResolveException e) {
+            throw e.cause;
+        }
+        for (var entry : entries) {
+            if (entry.hash == null) {
+                throw new GitException("unresolved delta at offset %d: thin packs are not supported"
+                        .formatted(entry.offset));
+            }
+        }
+    }
+
+    private static final class ResolveException extends RuntimeException {
+        final GitException cause;
+
+        ResolveException(GitException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+
+    // Inflated bases keyed by entry, evicted least-recently-used once their
+    // total size exceeds the limit.
+    private static final class BaseCache {
+        private final long limit;
+        private final LinkedHashMap<Entry, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long size;
+
+        BaseCache(long limit) {
+            this.limit = limit;
+        }
+
+        synchronized byte[] get(Entry entry) {
+            return entries.get(entry);
+        }
+
+        synchronized void put(Entry entry, byte[] data) {
+            byte[] old = entries.put(entry, data);
+            size += data.length - (old != null ? old.length : 0);
+            for (var it = entries.entrySet().iterator(); size > limit && it.hasNext();) {
+                var eldest = it.next();
+                if (eldest.getKey() != entry) {
+                    size -= eldest.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized void remove(Entry entry) {
+            byte[] old = entries.remove(entry);
+            if (old != null) {
+                size -= old.length;
+            }
+        }
+    }
+
+    private static final class Resolver {
+        private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(PackIndexer::sha1);
+
+        final ByteBuffer pack;
+        final Map<Long, List<Entry>> ofsChildren;
+        final Map<ObjectId, List<Entry>> refChildren;
+        final BaseCache cache;
+
+        Resolver(ByteBuffer pack, Map<Long, List<Entry>> ofsChildren,
+                Map<ObjectId, List<Entry>> refChildren, BaseCache cache) {
+            this.pack = pack;
+            this.ofsChildren = ofsChildren;
+            this.refChildren = refChildren;
+            this.cache = cache;
+        }
+
+        boolean hasChildren(Entry base) {
+            return ofsChildren.containsKey(base.offset) || refChildren.containsKey(base.hash);
+        }
+
+        List<Entry> children(Entry base) {
+            var children = new ArrayList<Entry>();
+            children.addAll(ofsChildren.getOrDefault(base.offset, List.of()));
+            children.addAll(refChildren.getOrDefault(base.hash, List.of()));
+            return children;
+        }
+
+        byte[] inflate(Entry entry) throws GitException {
+            return PackFile.inflate(pack, entry.dataOffset, entry.size);
+        }
+
+        // Returns the entry's content from the cache, or rebuilds it from its
+        // chain of bases if it was evicted.
+        byte[] data(Entry entry) throws GitException {
+            byte[] data = cache.get(entry);
+            if (data != null) {
+                return data;
+            }
+            if (entry.parent == null) {
+                return inflate(entry);
+            }
+            return Delta.apply(data(entry.parent), inflate(entry));
+        }
+
+        ObjectId hash(ObjectType type, byte[] data) {
+            var digest = DIGEST.get();
+            digest.update("%s %d".formatted(type, data.length).getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(data);
+            return ObjectId.fromBytes(digest.digest());
+        }
+    }
+
+    private static final class ResolveTask extends RecursiveAction {
+        private final Resolver resolver;
+        private final Entry base;
+
+        ResolveTask(Resolver resolver, Entry base) {
+            this.resolver = resolver;
+            this.base = base;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                byte[] data = resolver.data(base);
+                var subtrees = new ArrayList<ResolveTask>();
+                for (var child : resolver.children(base)) {
+                    byte[] childData = Delta.apply(data, resolver.inflate(child));
+                    child.resolvedType = base.resolvedType;
+                    child.hash = resolver.hash(child.resolvedType, childData);
+                    child.parent = base;
+                    if (resolver.hasChildren(child)) {
+                        resolver.cache.put(child, childData);
+                        subtrees.add(new ResolveTask(resolver, child));
+                    }
+                }
+                resolver.cache.remove(base);
+                invokeAll(subtrees);
+            } catch (GitException e) {
+                throw new ResolveException(e);
+            }
+        }
+    }
+}
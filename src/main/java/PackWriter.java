@@ -0,0 +1,180 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a version 2 packfile entry by entry, recording what the index needs.
+ */
+public class PackWriter implements AutoCloseable {
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream sink;
+    private final MessageDigest digest;
+    private final OutputStream out;
+    private final List<PackIndexWriter.Entry> entries = new ArrayList<>();
+    private long offset;
+
+    /**
+     * Starts a pack by writing its header.
+     *
+     * @param sink  The stream to write the pack to.
+     * @param count The number of objects that will be written.
+     */
+    public PackWriter(OutputStream sink, int count) throws IOException {
+        this.sink = sink;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("can't find algorithm: SHA-1");
+        }
+        this.out = new DigestOutputStream(new BufferedOutputStream(sink, 1 << 16), digest);
+        byte[] header = { 'P', 'A', 'C', 'K', 0, 0, 0, 2,
+                (byte) (count >>> 24), (byte) (count >>> 16), (byte) (count >>> 8), (byte) count };
+        out.write(header);
+        offset = header.length;
+    }
+
+    /**
+     * Writes a whole (non-delta) object.
+     *
+     * @param hash       The hash of the object.
+     * @param type       The type of the object.
+     * @param size       The inflated size of the object.
+     * @param compressed The zlib-deflated content.
+     * @return The offset at which the object was written.
+     */
+    public long writeWhole(ObjectId hash, ObjectType type, long size, byte[] compressed) throws IOException {
+        return write(hash, entryHeader(type.packCode(), size), compressed);
+    }
+
+    /**
+     * Writes a whole object from a stream, deflating it as it is read, so
+     * that it is never held in memory.
+     *
+     * @param size     The inflated size of the object, which the stream must
+     *                 have.
+     * @param deflater The deflater to compress with, which is reset first.
+     * @return The offset at which the object was written.
+     * @throws GitException If the stream is not of the given size.
+     */
+    public long writeWhole(ObjectId hash, ObjectType type, long size, InputStream data, Deflater deflater)
+            throws GitException, IOException {
+        byte[] header = entryHeader(type.packCode(), size);
+        var crc = new CRC32();
+        crc.update(header);
+        out.write(header);
+        long start = offset;
+        long written = header.length;
+        deflater.reset();
+        byte[] in = new byte[STREAM_BUFFER_SIZE];
+        byte[] compressed = new byte[STREAM_BUFFER_SIZE];
+        long read = 0;
+        for (int n; (n = data.read(in)) > 0;) {
+            read += n;
+            deflater.setInput(in, 0, n);
+            while (!deflater.needsInput()) {
+                written += drain(deflater, compressed, crc);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            written += drain(deflater, compressed, crc);
+        }
+        if (read != size) {
+            throw new GitException("object %s has %d bytes, expected %d".formatted(hash, read, size));
+        }
+        entries.add(new PackIndexWriter.Entry(hash, start, (int) crc.getValue()));
+        offset += written;
+        return start;
+    }
+
+    private int drain(Deflater deflater, byte[] buf, CRC32 crc) throws IOException {
+        int n = deflater.deflate(buf);
+        crc.update(buf, 0, n);
+        out.write(buf, 0, n);
+        return n;
+    }
+
+    /**
+     * Writes an object as an OFS_DELTA against an object already in the pack.
+     *
+     * @param hash       The hash of the reconstructed object.
+     * @param baseOffset The offset of the delta base in this pack.
+     * @param deltaSize  The inflated size of the delta.
+     * @param compressed The zlib-deflated delta.
+     * @return The offset at which the object was written.
+     */
+    public long writeOfsDelta(ObjectId hash, long baseOffset, long deltaSize, byte[] compressed) throws IOException {
+        byte[] header = entryHeader(PackFile.OFS_DELTA, deltaSize);
+        byte[] distance = ofsDistance(offset - baseOffset);
+        byte[] both = new byte[header.length + distance.length];
+        System.arraycopy(header, 0, both, 0, header.length);
+        System.arraycopy(distance, 0, both, header.length, distance.length);
+        return write(hash, both, compressed);
+    }
+
+    private long write(ObjectId hash, byte[] header, byte[] compressed) throws IOException {
+        var crc = new CRC32();
+        crc.update(header);
+        crc.update(compressed);
+        out.write(header);
+        out.write(compressed);
+        long start = offset;
+        entries.add(new PackIndexWriter.Entry(hash, start, (int) crc.getValue()));
+        offset += header.length + compressed.length;
+        return start;
+    }
+
+    static byte[] entryHeader(int type, long size) {
+        byte[] buf = new byte[10];
+        int n = 0;
+        int c = (type << 4) | (int) (size & 0x0f);
+        size >>>= 4;
+        while (size != 0) {
+            buf[n++] = (byte) (c | 0x80);
+            c = (int) (size & 0x7f);
+            size >>>= 7;
+        }
+        buf[n++] = (byte) c;
+        return Arrays.copyOf(buf, n);
+    }
+
+    static byte[] ofsDistance(long distance) {
+        byte[] buf = new byte[10];
+        int pos = buf.length - 1;
+        buf[pos] = (byte) (distance & 0x7f);
+        while ((distance >>>= 7) != 0) {
+            buf[--pos] = (byte) (0x80 | (--distance & 0x7f));
+        }
+        return Arrays.copyOfRange(buf, pos, buf.length);
+    }
+
+    public List<PackIndexWriter.Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Writes the trailing checksum and returns it.
+     */
+    public byte[] finish() throws IOException {
+        out.flush();
+        byte[] checksum = digest.digest();
+        sink.write(checksum);
+        sink.flush();
+        return checksum;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sink.close();
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A read-only store backed by the packfiles under .git/objects/pack.
+ */
+public class PackedObjectDatabase {
+    private final Path packDir;
+    private volatile List<PackFile> packs;
+
+    private PackedObjectDatabase(Path packDir, List<PackFile> packs) {
+        this.packDir = packDir;
+        this.packs = packs;
+    }
+
+    /**
+     * Opens every pack in the given objects directory.
+     *
+     * @param objectsDir The .git/objects directory.
+     * @return The pack store, which is empty if there is no pack directory.
+     * @throws GitException If any pack or index is invalid.
+     * @throws IOException  If an error is encountered while mapping the packs.
+     */
+    public static PackedObjectDatabase open(Path objectsDir) throws GitException, IOException {
+        Path packDir = objectsDir.resolve("pack");
+        return new PackedObjectDatabase(packDir, scan(packDir));
+    }
+
+    private static List<PackFile> scan(Path packDir) throws GitException, IOException {
+        var packs = new ArrayList<PackFile>();
+        if (!Files.isDirectory(packDir)) {
+            return packs;
+        }
+        try (var paths = Files.list(packDir)) {
+            for (var path : paths.filter(PackFile::isIndex).sorted().toList()) {
+                packs.add(PackFile.open(path));
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Re-reads the pack directory, picking up packs written since it was opened.
+     */
+    public void rescan() throws GitException, IOException {
+        packs = scan(packDir);
+    }
+
+    public Path packDir() {
+        return packDir;
+    }
+
+    public List<PackFile> packs() {
+        return packs;
+    }
+
+    public boolean contains(ObjectId hash) {
+        for (var pack : packs) {
+            if (pack.find(hash) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Optional<ObjectType> getType(ObjectId hash) throws GitException {
+        for (var pack : packs) {
+            long offset = pack.find(hash);
+            if (offset >= 0) {
+                return Optional.of(pack.typeAt(offset));
+            }
+        }
+        return Optional.empty();
+    }
+
+    public Optional<Long> getSize(ObjectId hash) throws GitException {
+        for (var pack : packs) {
+            long offset = pack.find(hash);
+            if (offset >= 0) {
+                return Optional.of(pack.sizeAt(offset));
+            }
+        }
+        return Optional.empty();
+    }
+
+    public Optional<RawObject> read(ObjectId hash) throws GitException {
+        for (var pack : packs) {
+            long offset = pack.find(hash);
+            if (offset >= 0) {
+                return Optional.of(pack.readAt(offset));
+            }
+        }
+        return Optional.empty();
+    }
+}
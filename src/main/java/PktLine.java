@@ -0,0 +1,131 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reads and writes git's pkt-line framing.
+ *
+ * <p>The special packets are returned as the sentinel arrays below and must be
+ * compared by identity.
+ */
+public class PktLine {
+    public static final byte[] FLUSH = new byte[0];
+    public static final byte[] DELIM = new byte[0];
+    public static final byte[] RESPONSE_END = new byte[0];
+
+    /** The largest packet, including its four-byte length. */
+    public static final int MAX_LENGTH = 65520;
+
+    // The lengths read(InputStream, byte[]) returns for special packets.
+    public static final int FLUSH_LENGTH = -1;
+    public static final int DELIM_LENGTH = -2;
+    public static final int RESPONSE_END_LENGTH = -3;
+
+    private PktLine() {
+    }
+
+    public static void write(OutputStream out, String line) throws IOException {
+        write(out, line.getBytes(UTF_8));
+    }
+
+    public static void write(OutputStream out, byte[] payload) throws IOException {
+        if (payload.length + 4 > MAX_LENGTH) {
+            throw new IOException("pkt-line too long: %d bytes".formatted(payload.length));
+        }
+        out.write("%04x".formatted(payload.length + 4).getBytes(UTF_8));
+        out.write(payload);
+    }
+
+    public static void flush(OutputStream out) throws IOException {
+        out.write("0000".getBytes(UTF_8));
+    }
+
+    public static void delim(OutputStream out) throws IOException {
+        out.write("0001".getBytes(UTF_8));
+    }
+
+    /**
+     * Reads one packet.
+     *
+     * @return The payload, or one of the sentinels for special packets.
+     * @throws IOException If the stream ends or the length is malformed.
+     */
+    public static byte[] read(InputStream in) throws IOException {
+        int length = readLength(in);
+        return switch (length) {
+            case 0 -> FLUSH;
+            case 1 -> DELIM;
+            case 2 -> RESPONSE_END;
+            case 3 -> throw new IOException("invalid pkt-line length: 3");
+            default -> {
+                byte[] payload = in.readNBytes(length - 4);
+                if (payload.length < length - 4) {
+                    throw new EOFException("unexpected end of pkt-line stream");
+                }
+                yield payload;
+            }
+        };
+    }
+
+    /**
+     * Reads one packet into a buffer, so that a stream of packets can be read
+     * without allocating each one.
+     *
+     * @param buffer A buffer of at least {@link #MAX_LENGTH} bytes.
+     * @return The payload's length, or one of the negative lengths for
+     *         special packets.
+     * @throws IOException If the stream ends or the length is malformed.
+     */
+    public static int read(InputStream in, byte[] buffer) throws IOException {
+        int length = readLength(in);
+        return switch (length) {
+            case 0 -> FLUSH_LENGTH;
+            case 1 -> DELIM_LENGTH;
+            case 2 -> RESPONSE_END_LENGTH;
+            case 3 -> throw new IOException("invalid pkt-line length: 3");
+            default -> {
+                if (in.readNBytes(buffer, 0, length - 4) < length - 4) {
+                    throw new EOFException("unexpected end of pkt-line stream");
+                }
+                yield length - 4;
+            }
+        };
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        byte[] header = new byte[4];
+        if (in.readNBytes(header, 0, 4) < 4) {
+            throw new EOFException("unexpected end of pkt-line stream");
+        }
+        int length = 0;
+        for (byte b : header) {
+            int digit = Character.digit(b, 16);
+            if (digit < 0) {
+                throw new IOException("invalid pkt-line length: %s".formatted(new String(header, UTF_8)));
+            }
+            length = length << 4 | digit;
+        }
+        if (length > MAX_LENGTH) {
+            throw new IOException("pkt-line too long: %d bytes".formatted(length));
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a packet as text, dropping the trailing newline if present.
+     */
+    public static String text(byte[] payload) {
+        int n = payload.length;
+        if (n > 0 && payload[n - 1] == '\n') {
+            n--;
+        }
+        return new String(payload, 0, n, UTF_8);
+    }
+
+    public static boolean isSpecial(byte[] packet) {
+        return packet == FLUSH || packet == DELIM || packet == RESPONSE_END;
+    }
+}
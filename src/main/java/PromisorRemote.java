@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fetches the objects a partial clone left out, on demand, from the remote
+ * that promised to serve them.
+ *
+ * <p>Concurrent misses are batched: the first thread to miss sends a request,
+ * and objects missed while it is in flight are requested together in the
+ * next one, which that thread sends too, until none are left. Every other
+ * thread just waits for the request carrying its objects. An object is only
+ * requested once at a time, and fetched objects are kept in a new pack
+ * marked as coming from the promisor remote, as git does.
+ */
+public class PromisorRemote {
+    private final GitSmartClient client;
+    private final PackedObjectDatabase packs;
+
+    // Guarded by this: the objects waiting for the next request, those in the
+    // request in flight, and whether a thread is sending requests.
+    private Map<ObjectId, CompletableFuture<Void>> pending = new LinkedHashMap<>();
+    private Map<ObjectId, CompletableFuture<Void>> inFlight = Map.of();
+    private boolean fetching;
+
+    /**
+     * @param client The client for the promisor remote. Only one request is
+     *               sent at a time, and the connection is closed whenever no
+     *               objects are waiting.
+     * @param packs  The packs to add fetched objects to.
+     */
+    public PromisorRemote(GitSmartClient client, PackedObjectDatabase packs) {
+        this.client = client;
+        this.packs = packs;
+    }
+
+    /**
+     * Fetches the given objects, waiting for those already requested by
+     * other threads. Objects that are already packed are skipped.
+     *
+     * @throws GitException If the remote fails or does not send an object.
+     * @throws IOException  If an error is encountered while indexing the
+     *                      objects.
+     */
+    public void fetch(Collection<ObjectId> hashes) throws GitException, IOException {
+        var waits = new ArrayList<CompletableFuture<Void>>();
+        boolean lead;
+        synchronized (this) {
+            for (var hash : hashes) {
+                var wait = inFlight.get(hash);
+                if (wait == null && !packs.contains(hash)) {
+                    wait = pending.computeIfAbsent(hash, h -> new CompletableFuture<>());
+                }
+                if (wait != null) {
+                    waits.add(wait);
+                }
+            }
+            lead = !fetching && !pending.isEmpty();
+            fetching |= lead;
+        }
+        if (lead) {
+            sendRequests();
+        }
+        for (var wait : waits) {
+            try {
+                wait.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GitException cause) {
+                    throw new GitException(cause.getMessage());
+                } else if (e.getCause() instanceof IOException cause) {
+                    throw new IOException(cause.getMessage(), cause);
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while fetching missing objects");
+            }
+        }
+    }
+
+    // Sends requests until no objects are waiting.
+    private void sendRequests() {
+        while (true) {
+            Map<ObjectId, CompletableFuture<Void>> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    fetching = false;
+                    closeQuietly();
+                    return;
+                }
+                batch = pending;
+                inFlight = batch;
+                pending = new LinkedHashMap<>();
+            }
+            try {
+                download(List.copyOf(batch.keySet()));
+                batch.values().forEach(wait -> wait.complete(null));
+            } catch (GitException | IOException | RuntimeException e) {
+                batch.values().forEach(wait -> wait.completeExceptionally(e));
+            } finally {
+                synchronized (this) {
+                    inFlight = Map.of();
+                }
+            }
+        }
+    }
+
+    private void download(List<ObjectId> hashes) throws GitException, IOException {
+        try (var in = client.fetch(hashes, FetchNegotiator.empty(), Optional.empty())) {
+            var result = new PackIndexer(packs.packDir()).index(in);
+            markPromisor(result.pack());
+        } catch (GitRemoteException e) {
+            throw new GitException("fetching missing objects failed: %s".formatted(e.getMessage()));
+        }
+        packs.rescan();
+        for (var hash : hashes) {
+            if (!packs.contains(hash)) {
+                throw new GitException("promisor remote did not send %s".formatted(hash));
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // The idle connection is only closed to free it.
+        }
+    }
+
+    /**
+     * Marks a pack as fetched from a promisor remote, so that git knows the
+     * objects it references but does not contain can be fetched later.
+     */
+    public static void markPromisor(Path pack) throws IOException {
+        String name = pack.getFileName().toString();
+        Files.write(pack.resolveSibling(name.substring(0, name.length() - ".pack".length()) + ".promisor"),
+                new byte[0]);
+    }
+}
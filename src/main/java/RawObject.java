@@ -0,0 +1,25 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A fully inflated object: its type and its content without the header.
+ */
+public record RawObject(ObjectType type, byte[] data) {
+    /**
+     * Computes the object's hash over its header and content.
+     */
+    public ObjectId hash() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("can't find algorithm: SHA-1");
+        }
+        digest.update("%s %d".formatted(type, data.length).getBytes(UTF_8));
+        digest.update((byte) 0);
+        digest.update(data);
+        return ObjectId.fromBytes(digest.digest());
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * The set of objects reachable from some tips: a bitmap over the objects of
+ * a pack with reachability bitmaps, and a list of the objects outside it.
+ *
+ * <p>A commit with a bitmap adds it whole, with one OR. Other commits are
+ * walked, and then their trees, only as far as objects already in the set:
+ * everything an object in the set reaches is in it too. Without bitmaps the
+ * same walk covers the whole history. Objects are checked to exist before
+ * they are read, and the missing ones are listed rather than failing the
+ * walk; those the bitmaps cover are in the pack and need no check.
+ */
+public class Reachability {
+    private static final long GITLINK_MODE = 160000;
+
+    private final FsObjectDatabase git;
+    private final ObjectDatabase reader;
+    private final PackBitmap bitmap;
+    private final BitSet bits = new BitSet();
+    private final ObjectIdSet seen = new ObjectIdSet();
+    private final List<ObjectId> others = new ArrayList<>();
+    private final List<ObjectType> otherTypes = new ArrayList<>();
+    private final List<ObjectId> missing = new ArrayList<>();
+
+    /**
+     * @param git    The repository.
+     * @param reader The database to parse commits and trees with.
+     * @param bitmap The bitmaps to use, or empty to walk everything.
+     */
+    public Reachability(FsObjectDatabase git, ObjectDatabase reader, Optional<PackBitmap> bitmap) {
+        this.git = git;
+        this.reader = reader;
+        this.bitmap = bitmap.orElse(null);
+    }
+
+    /**
+     * Returns the bitmaps of the first of the repository's packs that has
+     * them.
+     *
+     * @throws GitException If a bitmap file is invalid.
+     */
+    public static Optional<PackBitmap> findBitmap(FsObjectDatabase git) throws GitException, IOException {
+        for (var pack : git.packs().packs()) {
+            var bitmap = pack.bitmap();
+            if (bitmap.isPresent()) {
+                return bitmap;
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Adds the objects reachable from the given objects, of any type.
+     *
+     * @throws GitException If an object is invalid.
+     * @throws IOException  If an error is encountered while reading objects.
+     */
+    public void add(Collection<ObjectId> tips) throws GitException, IOException {
+        var pending = new ArrayDeque<ObjectId>(tips);
+        var trees = new ArrayList<ObjectId>();
+        while (!pending.isEmpty()) {
+            var id = pending.pop();
+            int bit = bitmap == null ? -1 : bitmap.bit(id);
+            if (contains(id, bit)) {
+                continue;
+            }
+            if (bit >= 0) {
+                var reached = bitmap.reachableFrom(id);
+                if (reached.isPresent()) {
+                    bits.or(reached.get());
+                    continue;
+                }
+            } else if (!git.contains(id)) {
+                missing.add(id);
+                continue;
+            }
+            var type = bit >= 0 ? bitmap.typeAt(bit) : reader.getType(id);
+            switch (type) {
+                case Commit -> {
+                    mark(id, bit, type);
+                    var commit = reader.readCommit(id);
+                    trees.add(commit.tree());
+                    pending.addAll(commit.parents());
+                }
+                case Tag -> {
+                    mark(id, bit, type);
+                    pending.push(PackGenerator.tagTarget(reader, id));
+                }
+                case Tree -> trees.add(id);
+                case Blob -> mark(id, bit, type);
+            }
+        }
+        // The trees are walked last, so that they can stop at everything the
+        // commit bitmaps added.
+        for (var tree : trees) {
+            addTree(tree);
+        }
+    }
+
+    private void addTree(ObjectId tree) throws GitException, IOException {
+        int bit = bitmap == null ? -1 : bitmap.bit(tree);
+        if (contains(tree, bit)) {
+            return;
+        }
+        if (bit < 0 && !git.contains(tree)) {
+            missing.add(tree);
+            return;
+        }
+        mark(tree, bit, ObjectType.Tree);
+        var entry = reader.readTree(tree);
+        while (entry.next()) {
+            if (entry.isTree()) {
+                addTree(entry.hash());
+            } else if (entry.mode() != GITLINK_MODE) {
+                var blob = entry.hash();
+                int blobBit = bitmap == null ? -1 : bitmap.bit(blob);
+                if (contains(blob, blobBit)) {
+                    continue;
+                }
+                if (blobBit < 0 && !git.contains(blob)) {
+                    missing.add(blob);
+                } else {
+                    mark(blob, blobBit, ObjectType.Blob);
+                }
+            }
+        }
+    }
+
+    private boolean contains(ObjectId id, int bit) {
+        return bit >= 0 ? bits.get(bit) : seen.contains(id);
+    }
+
+    private void mark(ObjectId id, int bit, ObjectType type) {
+        if (bit >= 0) {
+            bits.set(bit);
+        } else if (seen.add(id)) {
+            others.add(id);
+            otherTypes.add(type);
+        }
+    }
+
+    /**
+     * Removes the objects of another set, such as those reachable from what
+     * a client already has. Both must use the same bitmaps.
+     */
+    public void remove(Reachability other) {
+        bits.andNot(other.bits);
+        for (int i = others.size() - 1; i >= 0; i--) {
+            if (other.seen.contains(others.get(i))) {
+                others.remove(i);
+                otherTypes.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Removes every object of a type, such as the blobs for a blob:none
+     * filter.
+     */
+    public void removeType(ObjectType type) {
+        if (bitmap != null) {
+            bits.andNot(bitmap.ofType(type));
+        }
+        for (int i = others.size() - 1; i >= 0; i--) {
+            if (otherTypes.get(i) == type) {
+                others.remove(i);
+                otherTypes.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of objects.
+     */
+    public long count() {
+        return bits.cardinality() + others.size();
+    }
+
+    /**
+     * Calls the action with every object and its type: those covered by the
+     * bitmaps in pack order, then the others in the order they were found.
+     */
+    public void forEach(BiConsumer<ObjectId, ObjectType> action) {
+        for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)) {
+            action.accept(bitmap.objectAt(bit), bitmap.typeAt(bit));
+        }
+        for (int i = 0; i < others.size(); i++) {
+            action.accept(others.get(i), otherTypes.get(i));
+        }
+    }
+
+    /**
+     * Returns whether every object is in the pack with the bitmaps.
+     */
+    boolean inPack() {
+        return bitmap != null && others.isEmpty() && missing.isEmpty();
+    }
+
+    /**
+     * Returns the objects in the pack with the bitmaps, by position.
+     */
+    BitSet bits() {
+        return bits;
+    }
+
+    /**
+     * Returns the objects that were reached but do not exist.
+     */
+    public List<ObjectId> missing() {
+        return missing;
+    }
+}
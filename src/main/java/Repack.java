@@ -0,0 +1,318 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+/**
+ * Consolidates the loose object store into a single delta-compressed pack.
+ *
+ * <p>Objects are sorted by type, path name hash and decreasing size, as git
+ * does, so that likely delta bases end up next to each other. Only their
+ * headers are read for this. The sorted list is split into segments that are
+ * searched in parallel, each inflating objects as they enter its sliding
+ * window of candidate bases, and each segment is written to the pack as soon
+ * as it is compressed. Memory thus depends on the window and segment sizes,
+ * not on the repository. Blobs larger than core.bigFileThreshold are never
+ * deltified, and are streamed from their loose file into the pack.
+ */
+public class Repack {
+    private static final int WINDOW = 10;
+    private static final int MAX_DEPTH = 50;
+    private static final int MIN_DELTA_SIZE = 64;
+    private static final int SEGMENT_SIZE = 2048;
+
+    private final FsObjectDatabase git;
+
+    public record Result(Path pack, int objects, int deltas) {
+    }
+
+    private static final class Candidate {
+        final ObjectId hash;
+        final ObjectType type;
+        final long size;
+        final int nameHash;
+        final boolean big;
+        Candidate base;
+        int depth;
+        int payloadSize;
+        byte[] compressed;
+        long offset = -1;
+
+        Candidate(ObjectId hash, ObjectType type, long size, int nameHash, boolean big) {
+            this.hash = hash;
+            this.type = type;
+            this.size = size;
+            this.nameHash = nameHash;
+            this.big = big;
+        }
+    }
+
+    // Carries a checked exception out of the parallel segment tasks.
+    private static final class RepackException extends RuntimeException {
+        RepackException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    public Repack(FsObjectDatabase git) {
+        this.git = git;
+    }
+
+    /**
+     * Packs every loose object, verifies the pack, and then prunes the loose
+     * copies.
+     *
+     * @return The new pack, or empty if there were no loose objects.
+     * @throws GitException If a loose object is corrupt, the pack would be
+     *                      too large to map, or the written pack fails
+     *                      verification.
+     * @throws IOException  If an error is encountered while reading or writing.
+     */
+    public Optional<Result> run() throws GitException, IOException {
+        List<ObjectId> hashes = git.looseObjects();
+        if (hashes.isEmpty()) {
+            return Optional.empty();
+        }
+        List<Candidate> candidates = load(hashes);
+        candidates.sort(Comparator
+                .comparing((Candidate c) -> c.type)
+                .thenComparingInt(c -> c.nameHash)
+                .thenComparing(Comparator.comparingLong((Candidate c) -> c.size).reversed()));
+
+        Path packDir = git.packs().packDir();
+        Files.createDirectories(packDir);
+        Path tmpPack = Files.createTempFile(packDir, "tmp_pack_", "");
+        Path tmpIdx = Files.createTempFile(packDir, "tmp_idx_", "");
+        try {
+            byte[] checksum;
+            List<PackIndexWriter.Entry> entries;
+            try (var writer = new PackWriter(Files.newOutputStream(tmpPack), candidates.size())) {
+                int segments = (candidates.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+                try {
+                    IntStream.range(0, segments).parallel().forEach(i -> {
+                        int from = i * SEGMENT_SIZE;
+                        var segment = candidates.subList(from, Math.min(from + SEGMENT_SIZE, candidates.size()));
+                        try {
+                            searchAndCompress(segment);
+                            // Bases are in the same segment, so it can be
+                            // written whole.
+                            synchronized (writer) {
+                                for (var candidate : segment) {
+                                    write(writer, candidate);
+                                }
+                            }
+                        } catch (GitException | IOException e) {
+                            throw new RepackException(e);
+                        }
+                    });
+                } catch (RepackException e) {
+                    if (e.getCause() instanceof GitException cause) {
+                        throw cause;
+                    }
+                    throw (IOException) e.getCause();
+                }
+                checksum = writer.finish();
+                entries = writer.entries();
+            }
+            if (Files.size(tmpPack) > Integer.MAX_VALUE) {
+                throw new GitException("pack would be too large to map: %d bytes".formatted(Files.size(tmpPack)));
+            }
+            try (OutputStream out = Files.newOutputStream(tmpIdx)) {
+                PackIndexWriter.write(out, entries, checksum);
+            }
+            String name = "pack-" + HexFormat.of().formatHex(checksum);
+            Path pack = packDir.resolve(name + ".pack");
+            Path idx = packDir.resolve(name + ".idx");
+            Files.move(tmpPack, pack, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIdx, idx, StandardCopyOption.ATOMIC_MOVE);
+            verify(PackFile.open(idx), candidates);
+            git.packs().rescan();
+            for (var candidate : candidates) {
+                git.pruneLoose(candidate.hash);
+            }
+            int deltas = (int) candidates.stream().filter(c -> c.base != null).count();
+            return Optional.of(new Result(pack, candidates.size(), deltas));
+        } finally {
+            Files.deleteIfExists(tmpPack);
+            Files.deleteIfExists(tmpIdx);
+        }
+    }
+
+    // Reads each object's type and size from its header. Trees are read
+    // whole, one at a time, for the names of their entries.
+    private List<Candidate> load(List<ObjectId> hashes) throws GitException, IOException {
+        var types = new ObjectType[hashes.size()];
+        var sizes = new long[hashes.size()];
+        var names = new HashMap<ObjectId, String>();
+        for (int i = 0; i < hashes.size(); i++) {
+            var object = git.readLoose(hashes.get(i));
+            try (var stream = object.stream()) {
+                types[i] = object.type();
+                sizes[i] = object.size();
+                if (object.type() == ObjectType.Tree) {
+                    addNameHints(stream.readAllBytes(), names);
+                }
+            }
+        }
+        long threshold = git.bigFileThreshold();
+        var candidates = new ArrayList<Candidate>(hashes.size());
+        for (int i = 0; i < hashes.size(); i++) {
+            var hash = hashes.get(i);
+            boolean big = types[i] == ObjectType.Blob && sizes[i] > threshold;
+            candidates.add(new Candidate(hash, types[i], sizes[i], nameHash(names.getOrDefault(hash, "")), big));
+        }
+        return candidates;
+    }
+
+    // Assigns each entry of a tree its name, so that versions of the same
+    // file are sorted next to each other.
+    private static void addNameHints(byte[] data, Map<ObjectId, String> names) {
+        for (int i = 0; i < data.length;) {
+            int space = i;
+            while (data[space] != ' ') {
+                space++;
+            }
+            int nul = space + 1;
+            while (data[nul] != 0) {
+                nul++;
+            }
+            String name = new String(data, space + 1, nul - space - 1, UTF_8);
+            var child = ObjectId.fromBytes(data, nul + 1);
+            names.putIfAbsent(child, name);
+            i = nul + 21;
+        }
+    }
+
+    // git's pack_name_hash: sorts by the last characters of the name, so that
+    // files with the same extension cluster together.
+    static int nameHash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            hash = (hash >>> 2) + (c << 24);
+        }
+        return hash;
+    }
+
+    // Chooses each object's delta base among the WINDOW objects before it and
+    // compresses it. Objects are inflated as they enter the window and
+    // dropped as they leave it.
+    private void searchAndCompress(List<Candidate> segment) throws GitException, IOException {
+        var window = new byte[WINDOW + 1][];
+        var deflater = ZlibPool.deflater(git.packCompression());
+        try {
+            for (int i = 0; i < segment.size(); i++) {
+                var target = segment.get(i);
+                if (target.big) {
+                    window[i % window.length] = null;
+                    continue;
+                }
+                byte[] data;
+                try (var in = git.readLoose(target.hash).stream()) {
+                    data = in.readAllBytes();
+                }
+                window[i % window.length] = data;
+                byte[] best = null;
+                for (int j = Math.max(0, i - WINDOW); j < i && data.length >= MIN_DELTA_SIZE; j++) {
+                    var base = segment.get(j);
+                    if (base.big || base.type != target.type || base.depth >= MAX_DEPTH) {
+                        continue;
+                    }
+                    int maxSize = (best != null ? best.length : data.length / 2) - 1;
+                    byte[] delta = Delta.create(window[j % window.length], data, maxSize);
+                    if (delta != null) {
+                        best = delta;
+                        target.base = base;
+                        target.depth = base.depth + 1;
+                    }
+                }
+                byte[] payload = best != null ? best : data;
+                target.payloadSize = payload.length;
+                target.compressed = deflate(deflater, payload);
+            }
+        } finally {
+            ZlibPool.release(deflater);
+        }
+    }
+
+    static byte[] deflate(Deflater deflater, byte[] data) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[Math.max(64, data.length / 2)];
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            n += deflater.deflate(buf, n, buf.length - n);
+        }
+        return Arrays.copyOf(buf, n);
+    }
+
+    // Writes a candidate after its delta base, since OFS_DELTA entries can
+    // only refer backwards. Big blobs are streamed from their loose files.
+    private void write(PackWriter writer, Candidate candidate) throws GitException, IOException {
+        if (candidate.offset >= 0) {
+            return;
+        }
+        if (candidate.big) {
+            var deflater = ZlibPool.deflater(git.packCompression());
+            try (var in = git.readLoose(candidate.hash).stream()) {
+                candidate.offset = writer.writeWhole(candidate.hash, candidate.type, candidate.size, in, deflater);
+            } finally {
+                ZlibPool.release(deflater);
+            }
+        } else if (candidate.base != null) {
+            write(writer, candidate.base);
+            candidate.offset = writer.writeOfsDelta(
+                    candidate.hash, candidate.base.offset, candidate.payloadSize, candidate.compressed);
+        } else {
+            candidate.offset = writer.writeWhole(
+                    candidate.hash, candidate.type, candidate.payloadSize, candidate.compressed);
+        }
+        candidate.compressed = null;
+    }
+
+    // Checks that every object can be found, and that the small ones read
+    // back with the right hash. Big blobs are only checked for their type and
+    // size, so that they are not read into memory.
+    private static void verify(PackFile pack, List<Candidate> candidates) throws GitException {
+        if (pack.count() != candidates.size()) {
+            throw new GitException("pack verification failed: wrote %d objects, found %d"
+                    .formatted(candidates.size(), pack.count()));
+        }
+        for (var candidate : candidates) {
+            long offset = pack.find(candidate.hash);
+            boolean valid;
+            if (offset < 0) {
+                valid = false;
+            } else if (candidate.big) {
+                var entry = pack.storedAt(offset);
+                valid = entry.type() == candidate.type.packCode() && entry.size() == candidate.size;
+            } else {
+                valid = pack.readAt(offset).hash().equals(candidate.hash);
+            }
+            if (!valid) {
+                throw new GitException("pack verification failed for %s"
+                        .formatted(candidate.hash));
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+
+/**
+ * Walks commit history, listing commits for log and answering merge-base and
+ * is-ancestor queries.
+ *
+ * <p>Commits in the commit graph are numbered by their graph position, and
+ * their parents, times and generations are read from its records without
+ * touching the object database. Other commits are parsed on first use and
+ * numbered after the graph's. They have no generation number, which is
+ * treated as infinite: a graph commit never reaches one, so every cutoff
+ * below stays correct, but walks among them cannot stop early.
+ *
+ * <p>Since a commit can only reach commits of lower generation, an
+ * is-ancestor walk never descends below the candidate ancestor's generation,
+ * a merge-base walk visits commits in generation order and stops as soon as
+ * every pending commit is known to be below a common ancestor, and a
+ * topological walk only computes in-degrees down to the generation of the
+ * next commit it emits, so that listing the newest few commits costs about
+ * as much as reading them.
+ *
+ * <p>A RevWalk caches what it has parsed and can answer any number of
+ * queries, but it is not thread-safe, and a query ends any listing begun by
+ * {@link #start}.
+ */
+public class RevWalk {
+    /** The order in which {@link #next} returns commits. */
+    public enum Order {
+        /** Newest first by committer time, as git log does by default. */
+        DATE,
+        /**
+         * No commit before any of its descendants, and the commits of a
+         * merged branch together, as git log --topo-order does.
+         */
+        TOPO
+    }
+
+    /** The generation of a commit that is not in the commit graph. */
+    public static final int GENERATION_INFINITY = Integer.MAX_VALUE;
+
+    private static final byte PARENT1 = 1;
+    private static final byte PARENT2 = 2;
+    private static final byte STALE = 4;
+    private static final byte RESULT = 8;
+    private static final byte SEEN = 16;
+
+    private final ObjectDatabase git;
+    private final CommitGraph graph;
+    private final int graphCount;
+    private final ObjectIdMap extraIndex = new ObjectIdMap();
+    private final List<Extra> extras = new ArrayList<>();
+
+    // Per-query marks, and the commits whose marks must be cleared.
+    private byte[] flags;
+    private int[] touched = new int[64];
+    private int touchedCount;
+
+    private Order order;
+    private PriorityQueue<Pending> dateQueue;
+    private PriorityQueue<Pending> exploreQueue;
+    private ArrayDeque<Integer> topoStack;
+    private int[] indegree;
+    private long sequence;
+
+    // A commit outside the graph, whose parents are null until it is parsed.
+    private static final class Extra {
+        final ObjectId id;
+        int[] parents;
+        long time;
+
+        Extra(ObjectId id) {
+            this.id = id;
+        }
+    }
+
+    // A queued commit with its sort keys, and the order it was queued in to
+    // break ties as git does.
+    private record Pending(int commit, int generation, long time, long sequence) {
+    }
+
+    private static final Comparator<Pending> BY_DATE = Comparator
+            .comparingLong((Pending p) -> p.time()).reversed()
+            .thenComparingLong(Pending::sequence);
+    private static final Comparator<Pending> BY_GENERATION = Comparator
+            .comparingInt((Pending p) -> p.generation()).reversed()
+            .thenComparing(BY_DATE);
+
+    /**
+     * @param git   The database to read commits from.
+     * @param graph The commit graph, if there is one.
+     */
+    public RevWalk(ObjectDatabase git, Optional<CommitGraph> graph) {
+        this.git = git;
+        this.graph = graph.orElse(null);
+        this.graphCount = graph.map(CommitGraph::count).orElse(0);
+        this.flags = new byte[graphCount + 16];
+    }
+
+    /**
+     * Creates a walk over the repository, using its commit graph if it has
+     * one.
+     */
+    public static RevWalk open(FsObjectDatabase git) throws GitException, IOException {
+        return new RevWalk(git, git.commitGraph());
+    }
+
+    private int index(ObjectId id) {
+        if (graph != null) {
+            int pos = graph.find(id);
+            if (pos >= 0) {
+                return pos;
+            }
+        }
+        int extra = extraIndex.getOrDefault(id, -1);
+        if (extra < 0) {
+            extra = extras.size();
+            extras.add(new Extra(id));
+            extraIndex.put(id, extra);
+            if (graphCount + extras.size() > flags.length) {
+                flags = Arrays.copyOf(flags, flags.length * 2);
+                if (indegree != null) {
+                    indegree = Arrays.copyOf(indegree, flags.length);
+                }
+            }
+        }
+        return graphCount + extra;
+    }
+
+    private Extra parsed(int commit) throws GitException, IOException {
+        var extra = extras.get(commit - graphCount);
+        if (extra.parents == null) {
+            var parsed = git.readCommit(extra.id);
+            int[] parents = new int[parsed.parents().size()];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = index(parsed.parents().get(i));
+            }
+            extra.time = parsed.commitTime();
+            extra.parents = parents;
+        }
+        return extra;
+    }
+
+    private ObjectId id(int commit) {
+        return commit < graphCount ? graph.idAt(commit) : extras.get(commit - graphCount).id;
+    }
+
+    private int[] parents(int commit) throws GitException, IOException {
+        return commit < graphCount ? graph.parentsAt(commit) : parsed(commit).parents;
+    }
+
+    private long time(int commit) throws GitException, IOException {
+        return commit < graphCount ? graph.commitTimeAt(commit) : parsed(commit).time;
+    }
+
+    private int generation(int commit) {
+        return commit < graphCount ? graph.generationAt(commit) : GENERATION_INFINITY;
+    }
+
+    /**
+     * Returns the generation number of a commit, or
+     * {@link #GENERATION_INFINITY} if it is not in the commit graph.
+     */
+    public int generation(ObjectId id) {
+        return generation(index(id));
+    }
+
+    private Pending pending(int commit) throws GitException, IOException {
+        return new Pending(commit, generation(commit), time(commit), sequence++);
+    }
+
+    private void mark(int commit, byte flag) {
+        if (flags[commit] == 0) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = commit;
+        }
+        flags[commit] |= flag;
+    }
+
+    private void clearMarks() {
+        for (int i = 0; i < touchedCount; i++) {
+            flags[touched[i]] = 0;
+        }
+        touchedCount = 0;
+    }
+
+    private static boolean canReach(int generation, int targetGeneration) {
+        return generation > targetGeneration || generation == GENERATION_INFINITY;
+    }
+
+    /**
+     * Returns whether ancestor is reachable from descendant, counting a commit
+     * as its own ancestor, as git merge-base --is-ancestor does.
+     *
+     * @throws GitException If either id, or a commit walked, is not a commit.
+     * @throws IOException  If an error is encountered while reading commits.
+     */
+    public boolean isAncestor(ObjectId ancestor, ObjectId descendant) throws GitException, IOException {
+        int target = index(ancestor);
+        int start = index(descendant);
+        // Parses both, so that a non-commit fails even when no walk is needed.
+        time(target);
+        time(start);
+        return reaches(start, target);
+    }
+
+    // Searches depth first, following first parents before the others, and
+    // skips every commit other than the target whose generation is not above
+    // the target's, since none of them can reach it.
+    private boolean reaches(int start, int target) throws GitException, IOException {
+        if (start == target) {
+            return true;
+        }
+        int min = generation(target);
+        if (!canReach(generation(start), min)) {
+            return false;
+        }
+        clearMarks();
+        var stack = new ArrayDeque<Integer>();
+        stack.push(start);
+        mark(start, SEEN);
+        try {
+            while (!stack.isEmpty()) {
+                int[] parents = parents(stack.pop());
+                for (int i = parents.length - 1; i >= 0; i--) {
+                    int parent = parents[i];
+                    if (parent == target) {
+                        return true;
+                    }
+                    if (flags[parent] == 0 && canReach(generation(parent), min)) {
+                        mark(parent, SEEN);
+                        stack.push(parent);
+                    }
+                }
+            }
+            return false;
+        } finally {
+            clearMarks();
+        }
+    }
+
+    /**
+     * Returns the best common ancestors of two commits: those reachable from
+     * both that are not ancestors of another such commit, as git merge-base
+     * --all does. There are several only after criss-cross merges.
+     *
+     * @return The merge bases, or an empty list if the histories are disjoint.
+     * @throws GitException If either id, or a commit walked, is not a commit.
+     * @throws IOException  If an error is encountered while reading commits.
+     */
+    public List<ObjectId> mergeBases(ObjectId a, ObjectId b) throws GitException, IOException {
+        int one = index(a);
+        int two = index(b);
+        if (one == two) {
+            time(one);
+            return List.of(a);
+        }
+        var candidates = paintDownToCommon(one, two);
+        var bases = new ArrayList<ObjectId>();
+        for (int candidate : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != candidate && reaches(other, candidate)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                bases.add(id(candidate));
+            }
+        }
+        return bases;
+    }
+
+    // Marks the ancestors of each side, highest generation first, and
+    // collects the commits reached from both. Anything below such a commit
+    // is marked stale, and the walk ends when only stale commits are left.
+    private List<Integer> paintDownToCommon(int one, int two) throws GitException, IOException {
+        // Whether the commit was not stale when queued. It may have turned
+        // stale since, which only makes the walk run a little longer.
+        record Painted(Pending pending, boolean live) {
+        }
+        clearMarks();
+        var queue = new PriorityQueue<>(Comparator.comparing(Painted::pending, BY_GENERATION));
+        var results = new ArrayList<Integer>();
+        int live = 2;
+        mark(one, PARENT1);
+        mark(two, PARENT2);
+        queue.add(new Painted(pending(one), true));
+        queue.add(new Painted(pending(two), true));
+        try {
+            while (live > 0) {
+                var next = queue.poll();
+                int commit = next.pending().commit();
+                int marks = flags[commit] & (PARENT1 | PARENT2 | STALE);
+                if (next.live()) {
+                    live--;
+                }
+                if ((marks & (PARENT1 | PARENT2)) == (PARENT1 | PARENT2)) {
+                    if ((flags[commit] & RESULT) == 0) {
+                        mark(commit, RESULT);
+                        results.add(commit);
+                    }
+                    marks |= STALE;
+                }
+                for (int parent : parents(commit)) {
+                    if ((flags[parent] & marks) == marks) {
+                        continue;
+                    }
+                    mark(parent, (byte) marks);
+                    boolean stale = (marks & STALE) != 0;
+                    queue.add(new Painted(pending(parent), !stale));
+                    if (!stale) {
+                        live++;
+                    }
+                }
+            }
+            return results;
+        } finally {
+            clearMarks();
+        }
+    }
+
+    /**
+     * Starts listing the commits reachable from the given tips, which
+     * {@link #next} returns one at a time. Starting a walk ends the previous
+     * one.
+     *
+     * @throws GitException If a tip is not a commit.
+     * @throws IOException  If an error is encountered while reading commits.
+     */
+    public void start(List<ObjectId> tips, Order order) throws GitException, IOException {
+        clearMarks();
+        this.order = order;
+        this.sequence = 0;
+        var starts = new ArrayList<Pending>();
+        for (var tip : tips) {
+            int commit = index(tip);
+            if (flags[commit] == 0) {
+                mark(commit, SEEN);
+                starts.add(pending(commit));
+            }
+        }
+        if (order == Order.DATE) {
+            dateQueue = new PriorityQueue<>(BY_DATE);
+            dateQueue.addAll(starts);
+            return;
+        }
+        indegree = new int[flags.length];
+        exploreQueue = new PriorityQueue<>(BY_GENERATION);
+        topoStack = new ArrayDeque<>();
+        int min = GENERATION_INFINITY;
+        for (var start : starts) {
+            indegree[start.commit()] = 1;
+            exploreQueue.add(start);
+            min = Math.min(min, start.generation());
+        }
+        exploreToDepth(min);
+        // The newest tip is emitted first.
+        starts.sort(BY_DATE);
+        for (var start : starts.reversed()) {
+            if (indegree[start.commit()] == 1) {
+                topoStack.push(start.commit());
+            }
+        }
+    }
+
+    // Counts the in-degree of every commit of at least the given generation
+    // within the walk. Nothing lower can be a parent of those commits, so their
+    // counts are final and they can be emitted once they reach one.
+    private void exploreToDepth(int generation) throws GitException, IOException {
+        while (!exploreQueue.isEmpty() && exploreQueue.peek().generation() >= generation) {
+            for (int parent : parents(exploreQueue.poll().commit())) {
+                if (indegree[parent] != 0) {
+                    indegree[parent]++;
+                } else {
+                    indegree[parent] = 2;
+                    exploreQueue.add(pending(parent));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the next commit of the walk begun by {@link #start}.
+     *
+     * @return The commit, or empty once every reachable commit was returned.
+     * @throws GitException If a commit walked is invalid.
+     * @throws IOException  If an error is encountered while reading commits.
+     */
+    public Optional<ObjectId> next() throws GitException, IOException {
+        if (order == Order.DATE) {
+            if (dateQueue.isEmpty()) {
+                return Optional.empty();
+            }
+            int commit = dateQueue.poll().commit();
+            for (int parent : parents(commit)) {
+                if (flags[parent] == 0) {
+                    mark(parent, SEEN);
+                    dateQueue.add(pending(parent));
+                }
+            }
+            return Optional.of(id(commit));
+        }
+        if (topoStack.isEmpty()) {
+            return Optional.empty();
+        }
+        int commit = topoStack.pop();
+        for (int parent : parents(commit)) {
+            exploreToDepth(generation(parent));
+            if (--indegree[parent] == 1) {
+                topoStack.push(parent);
+            }
+        }
+        return Optional.of(id(commit));
+    }
+}
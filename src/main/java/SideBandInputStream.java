@@ -0,0 +1,74 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Demultiplexes a side-band-64k stream: band 1 is returned as data, band 2 is
+ * copied to the progress stream, and band 3 aborts with the remote's error.
+ */
+public class SideBandInputStream extends InputStream {
+    private final InputStream in;
+    private final PrintStream progress;
+    private final byte[] packet = new byte[PktLine.MAX_LENGTH];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    public SideBandInputStream(InputStream in, PrintStream progress) {
+        this.in = in;
+        this.progress = progress;
+    }
+
+    private boolean fill() throws IOException {
+        while (pos >= limit) {
+            if (eof) {
+                return false;
+            }
+            int length = PktLine.read(in, packet);
+            if (length < 0) {
+                eof = true;
+                return false;
+            }
+            if (length == 0) {
+                continue;
+            }
+            switch (packet[0]) {
+                case 1 -> {
+                    pos = 1;
+                    limit = length;
+                }
+                case 2 -> progress.print(new String(packet, 1, length - 1, UTF_8));
+                case 3 -> throw new IOException("remote error: %s".formatted(
+                        new String(packet, 1, length - 1, UTF_8).trim()));
+                default -> throw new IOException("invalid side-band channel: %d".formatted(packet[0]));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return fill() ? packet[pos++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(packet, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
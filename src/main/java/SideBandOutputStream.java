@@ -0,0 +1,76 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Multiplexes data onto band 1 of a side-band-64k stream, in packets as large
+ * as pkt-line allows. Closing it sends what is buffered but leaves the
+ * underlying stream open.
+ */
+public class SideBandOutputStream extends OutputStream {
+    private static final int HEADER_SIZE = 5;
+
+    private final OutputStream out;
+    private final byte[] packet = new byte[PktLine.MAX_LENGTH];
+    private int count = HEADER_SIZE;
+
+    public SideBandOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == packet.length) {
+            send();
+        }
+        packet[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == packet.length) {
+                send();
+            }
+            int n = Math.min(len, packet.length - count);
+            System.arraycopy(b, off, packet, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void send() throws IOException {
+        if (count == HEADER_SIZE) {
+            return;
+        }
+        byte[] length = "%04x".formatted(count).getBytes(UTF_8);
+        System.arraycopy(length, 0, packet, 0, 4);
+        packet[4] = 1;
+        out.write(packet, 0, count);
+        count = HEADER_SIZE;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        send();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        send();
+    }
+
+    /**
+     * Sends an error on band 3, which makes the client abort.
+     */
+    public static void error(OutputStream out, String message) throws IOException {
+        byte[] text = message.getBytes(UTF_8);
+        byte[] payload = new byte[text.length + 1];
+        payload[0] = 3;
+        System.arraycopy(text, 0, payload, 1, text.length);
+        PktLine.write(out, payload);
+    }
+}
@@ -0,0 +1,140 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+
+/**
+ * A forward-only cursor over the entries of an inflated tree object.
+ *
+ * <p>The cursor reads the tree's bytes in place: each entry's mode is parsed
+ * as the cursor advances, while its name and hash are only decoded or copied
+ * when asked for. The entry type is derived from the mode, so no other object
+ * needs to be read to list a tree.
+ */
+public final class TreeCursor {
+    private static final int HASH_SIZE = ObjectId.SIZE;
+
+    private final byte[] data;
+    private final int end;
+    private int next;
+    private long mode;
+    private int nameStart;
+    private int nameEnd;
+    private String name;
+
+    private TreeCursor(byte[] data, int offset, int end) {
+        this.data = data;
+        this.next = offset;
+        this.end = end;
+    }
+
+    /**
+     * Creates a cursor positioned before the first entry of the tree.
+     *
+     * @param data The tree object's content, without the object header.
+     */
+    public static TreeCursor of(byte[] data) {
+        return new TreeCursor(data, 0, data.length);
+    }
+
+    /**
+     * Advances to the next entry.
+     *
+     * @return false once there are no more entries.
+     * @throws GitException If the entry is malformed.
+     */
+    public boolean next() throws GitException {
+        if (next >= end) {
+            return false;
+        }
+        int pos = next;
+        long parsed = 0;
+        for (; pos < end && data[pos] != ' '; pos++) {
+            if (data[pos] < '0' || data[pos] > '7') {
+                throw new GitException("invalid tree entry mode at offset %d".formatted(next));
+            }
+            parsed = 10 * parsed + (data[pos] - '0');
+        }
+        int nul = pos + 1;
+        while (nul < end && data[nul] != 0) {
+            nul++;
+        }
+        if (pos == next || nul == pos + 1 || nul + 1 + HASH_SIZE > end) {
+            throw new GitException("invalid tree entry at offset %d".formatted(next));
+        }
+        mode = parsed;
+        nameStart = pos + 1;
+        nameEnd = nul;
+        name = null;
+        next = nul + 1 + HASH_SIZE;
+        return true;
+    }
+
+    /**
+     * The entry's mode, with its octal digits read as a decimal number
+     * (40000 for a tree, 100644 for a regular file), as in {@link TreeObject}.
+     */
+    public long mode() {
+        return mode;
+    }
+
+    public ObjectType type() {
+        return ObjectType.fromMode(mode);
+    }
+
+    public boolean isTree() {
+        return mode == 40000;
+    }
+
+    public String name() {
+        if (name == null) {
+            name = new String(data, nameStart, nameEnd - nameStart, UTF_8);
+        }
+        return name;
+    }
+
+    public ObjectId hash() {
+        return ObjectId.fromBytes(data, nameEnd + 1);
+    }
+
+    /**
+     * Compares the entry's hash with the given one without copying it.
+     */
+    public boolean hashEquals(ObjectId hash) {
+        return hash.equals(data, nameEnd + 1);
+    }
+
+    /**
+     * Returns whether this entry and another cursor's entry have the same
+     * hash, without copying either.
+     */
+    public boolean hashEquals(TreeCursor other) {
+        return Arrays.equals(data, nameEnd + 1, nameEnd + 1 + HASH_SIZE,
+                other.data, other.nameEnd + 1, other.nameEnd + 1 + HASH_SIZE);
+    }
+
+    /**
+     * Compares this entry's name with another cursor's in git's tree order:
+     * bytewise, with a tree's name compared as if it ended in a slash. Two
+     * entries compare equal only if they have the same name and are both
+     * trees or both not.
+     */
+    public int compareName(TreeCursor other) {
+        int length = nameEnd - nameStart;
+        int otherLength = other.nameEnd - other.nameStart;
+        int common = Math.min(length, otherLength);
+        int mismatch = Arrays.mismatch(data, nameStart, nameStart + common,
+                other.data, other.nameStart, other.nameStart + common);
+        if (mismatch >= 0) {
+            return Byte.toUnsignedInt(data[nameStart + mismatch])
+                    - Byte.toUnsignedInt(other.data[other.nameStart + mismatch]);
+        }
+        int c = length > common ? Byte.toUnsignedInt(data[nameStart + common]) : isTree() ? '/' : 0;
+        int otherC = otherLength > common ? Byte.toUnsignedInt(other.data[other.nameStart + common])
+                : other.isTree() ? '/' : 0;
+        return c - otherC;
+    }
+
+    public TreeObject toTreeObject() {
+        return new TreeObject(name(), type(), mode, hash());
+    }
+}
@@ -0,0 +1,492 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+/**
+ * Compares two trees, as git diff-tree -r does.
+ *
+ * <p>The trees are walked in lockstep in their sorted order, and a subtree
+ * whose hash is the same on both sides is skipped without being read, so the
+ * cost grows with the size of the change rather than the size of the trees.
+ *
+ * <p>Renames can then be found among the deleted and added files: first those
+ * whose content is unchanged, then those whose content is similar enough,
+ * scored as git's diffcore-delta does. Only blobs whose sizes allow some
+ * pairing to be similar enough are read, a bounded number at a time, and
+ * hashed in parallel, and each added file is scored against the deleted ones
+ * in parallel.
+ */
+public class TreeDiff {
+    /** The default minimum similarity, in percent, for a rename. */
+    public static final int DEFAULT_RENAME_SCORE = 50;
+    /** The default limit on files paired by similarity, as git's diff.renameLimit. */
+    public static final int DEFAULT_RENAME_LIMIT = 1000;
+
+    private static final long GITLINK_MODE = 160000;
+    /** The id of the empty tree, which is compared without being read. */
+    public static final ObjectId EMPTY_TREE = ObjectId.fromHex("4b825dc642cb6eb9a060e54bf8d69288fbee4904");
+
+    // Scores are scaled as in git, so that integer arithmetic rounds the same.
+    private static final int MAX_SCORE = 60000;
+    private static final int CANDIDATES_PER_FILE = 4;
+
+    public enum Status {
+        ADDED('A'), DELETED('D'), MODIFIED('M'), TYPE_CHANGED('T'), RENAMED('R');
+
+        private final char code;
+
+        Status(char code) {
+            this.code = code;
+        }
+
+        /** The letter git uses for the status. */
+        public char code() {
+            return code;
+        }
+    }
+
+    /**
+     * A changed path. A missing side of an addition or deletion has mode 0 and
+     * the zero hash, as in git's raw diff output.
+     *
+     * @param score For a rename, the similarity of the contents in percent.
+     */
+    public record Change(Status status, String oldPath, long oldMode, ObjectId oldHash, String newPath, long newMode,
+            ObjectId newHash, int score) {
+        static Change added(String path, long mode, ObjectId hash) {
+            return new Change(Status.ADDED, path, 0, ObjectId.ZERO, path, mode, hash, 0);
+        }
+
+        static Change deleted(String path, long mode, ObjectId hash) {
+            return new Change(Status.DELETED, path, mode, hash, path, 0, ObjectId.ZERO, 0);
+        }
+    }
+
+    private final ObjectDatabase git;
+    private final int renameLimit;
+    private final long bigFileThreshold;
+
+    public TreeDiff(ObjectDatabase git) {
+        this(git, DEFAULT_RENAME_LIMIT, FsObjectDatabase.DEFAULT_STREAM_THRESHOLD);
+    }
+
+    /**
+     * @param git              The database to read trees and blobs from.
+     * @param renameLimit      With more than this many deleted times this
+     *                         many added files, only exact renames are found.
+     * @param bigFileThreshold The size above which blobs are never read to
+     *                         find inexact renames.
+     */
+    public TreeDiff(ObjectDatabase git, int renameLimit, long bigFileThreshold) {
+        if (renameLimit < 0) {
+            throw new IllegalArgumentException("rename limit must not be negative: %d".formatted(renameLimit));
+        }
+        this.git = git;
+        this.renameLimit = renameLimit;
+        // Read blobs must fit in an array.
+        this.bigFileThreshold = Math.min(bigFileThreshold, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Lists the files that differ between two trees, recursing into
+     * subtrees, in git's path order.
+     *
+     * @param oldTree The tree to compare from.
+     * @param newTree The tree to compare to.
+     * @throws GitException If either tree references missing or invalid trees.
+     * @throws IOException  If an error is encountered while reading trees.
+     */
+    public List<Change> diff(ObjectId oldTree, ObjectId newTree) throws GitException, IOException {
+        var changes = new ArrayList<Change>();
+        if (!oldTree.equals(newTree)) {
+            diff(readTree(oldTree), readTree(newTree), "", changes);
+        }
+        return changes;
+    }
+
+    private TreeCursor readTree(ObjectId hash) throws GitException, IOException {
+        return hash.equals(EMPTY_TREE) ? TreeCursor.of(new byte[0]) : git.readTree(hash);
+    }
+
+    private void diff(TreeCursor older, TreeCursor newer, String prefix, List<Change> changes)
+            throws GitException, IOException {
+        boolean hasOld = older.next();
+        boolean hasNew = newer.next();
+        while (hasOld || hasNew) {
+            int c = !hasOld ? 1 : !hasNew ? -1 : older.compareName(newer);
+            if (c < 0) {
+                deleted(older, prefix, changes);
+                hasOld = older.next();
+            } else if (c > 0) {
+                added(newer, prefix, changes);
+                hasNew = newer.next();
+            } else {
+                if (older.mode() != newer.mode() || !older.hashEquals(newer)) {
+                    changed(older, newer, prefix, changes);
+                }
+                hasOld = older.next();
+                hasNew = newer.next();
+            }
+        }
+    }
+
+    private void deleted(TreeCursor entry, String prefix, List<Change> changes) throws GitException, IOException {
+        if (entry.isTree()) {
+            diff(git.readTree(entry.hash()), TreeCursor.of(new byte[0]), prefix + entry.name() + "/", changes);
+        } else {
+            changes.add(Change.deleted(prefix + entry.name(), entry.mode(), entry.hash()));
+        }
+    }
+
+    private void added(TreeCursor entry, String prefix, List<Change> changes) throws GitException, IOException {
+        if (entry.isTree()) {
+            diff(TreeCursor.of(new byte[0]), git.readTree(entry.hash()), prefix + entry.name() + "/", changes);
+        } else {
+            changes.add(Change.added(prefix + entry.name(), entry.mode(), entry.hash()));
+        }
+    }
+
+    // The entries have the same name and are both trees or both not.
+    private void changed(TreeCursor older, TreeCursor newer, String prefix, List<Change> changes)
+            throws GitException, IOException {
+        String path = prefix + older.name();
+        if (older.isTree()) {
+            diff(git.readTree(older.hash()), git.readTree(newer.hash()), path + "/", changes);
+            return;
+        }
+        // The leading digits of a mode give the kind of file: regular,
+        // symlink or gitlink.
+        var status = older.mode() / 10000 == newer.mode() / 10000 ? Status.MODIFIED : Status.TYPE_CHANGED;
+        changes.add(new Change(status, path, older.mode(), older.hash(), path, newer.mode(), newer.hash(), 0));
+    }
+
+    /**
+     * Pairs deleted files with added ones whose content is the same or
+     * similar, replacing each pair with a rename at the added file's place.
+     * Each deleted file is the source of at most one rename. Files are paired
+     * by similarity, highest first, preferring files with the same name, and
+     * only regular files are paired by similarity. Submodules are never
+     * paired.
+     *
+     * @param changes  Changes as returned by {@link #diff}.
+     * @param minScore The minimum similarity for a rename, in percent.
+     * @throws GitException If a blob is missing or invalid.
+     * @throws IOException  If an error is encountered while reading blobs.
+     */
+    public List<Change> detectRenames(List<Change> changes, int minScore) throws GitException, IOException {
+        if (minScore < 0 || minScore > 100) {
+            throw new IllegalArgumentException("rename score must be a percentage: %d".formatted(minScore));
+        }
+        var sources = new ArrayList<Change>();
+        var targets = new ArrayList<Change>();
+        for (var change : changes) {
+            if (change.status() == Status.DELETED && change.oldMode() != GITLINK_MODE) {
+                sources.add(change);
+            } else if (change.status() == Status.ADDED && change.newMode() != GITLINK_MODE) {
+                targets.add(change);
+            }
+        }
+        var renames = new HashMap<Change, Change>();
+        var used = new boolean[sources.size()];
+        findExactRenames(sources, targets, used, renames);
+        findInexactRenames(sources, targets, used, renames, minScore * MAX_SCORE / 100);
+        if (renames.isEmpty()) {
+            return changes;
+        }
+        var renamedSources = new HashSet<Change>();
+        for (int i = 0; i < sources.size(); i++) {
+            if (used[i]) {
+                renamedSources.add(sources.get(i));
+            }
+        }
+        var result = new ArrayList<Change>(changes.size() - renames.size());
+        for (var change : changes) {
+            var rename = renames.get(change);
+            if (rename != null) {
+                result.add(rename);
+            } else if (!renamedSources.contains(change)) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isRegularFile(long mode) {
+        return mode / 10000 == 10;
+    }
+
+    private static Change rename(Change source, Change target, int score) {
+        return new Change(Status.RENAMED, source.oldPath(), source.oldMode(), source.oldHash(), target.newPath(),
+                target.newMode(), target.newHash(), score * 100 / MAX_SCORE);
+    }
+
+    private static String basename(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    // Pairs each added file with an unused deleted file with the same hash,
+    // preferring one with the same name.
+    private static void findExactRenames(List<Change> sources, List<Change> targets, boolean[] used,
+            HashMap<Change, Change> renames) {
+        var byHash = new HashMap<ObjectId, List<Integer>>();
+        for (int i = 0; i < sources.size(); i++) {
+            byHash.computeIfAbsent(sources.get(i).oldHash(), hash -> new ArrayList<>()).add(i);
+        }
+        for (var target : targets) {
+            var candidates = byHash.get(target.newHash());
+            if (candidates == null) {
+                continue;
+            }
+            int best = -1;
+            for (int i : candidates) {
+                if (!used[i] && (best < 0 || basename(sources.get(i).oldPath()).equals(basename(target.newPath()))
+                        && !basename(sources.get(best).oldPath()).equals(basename(target.newPath())))) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                used[best] = true;
+                renames.put(target, rename(sources.get(best), target, MAX_SCORE));
+            }
+        }
+    }
+
+    private record Candidate(int target, int source, int score, boolean sameName) {
+    }
+
+    private static final Comparator<Candidate> BEST_FIRST = Comparator
+            .comparingInt((Candidate c) -> -c.score())
+            .thenComparing(c -> !c.sameName());
+
+    private void findInexactRenames(List<Change> allSources, List<Change> allTargets, boolean[] used,
+            HashMap<Change, Change> renames, int minScore) throws GitException, IOException {
+        var sourceIndex = new ArrayList<Integer>();
+        for (int i = 0; i < allSources.size(); i++) {
+            if (!used[i] && isRegularFile(allSources.get(i).oldMode())) {
+                sourceIndex.add(i);
+            }
+        }
+        var targets = allTargets.stream()
+                .filter(target -> !renames.containsKey(target) && isRegularFile(target.newMode()))
+                .toList();
+        if (sourceIndex.isEmpty() || targets.isEmpty()
+                || (long) sourceIndex.size() * targets.size() > (long) renameLimit * renameLimit) {
+            return;
+        }
+        var hashes = new ArrayList<ObjectId>();
+        sourceIndex.forEach(i -> hashes.add(allSources.get(i).oldHash()));
+        targets.forEach(target -> hashes.add(target.newHash()));
+        int sourceCount = sourceIndex.size();
+        var sizes = new long[hashes.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = git.getSize(hashes.get(i));
+        }
+        // Only blobs in some pair whose sizes allow the minimum are read.
+        var wanted = new boolean[hashes.size()];
+        for (int t = sourceCount; t < sizes.length; t++) {
+            for (int s = 0; s < sourceCount; s++) {
+                if (sizes[s] <= bigFileThreshold && sizes[t] <= bigFileThreshold
+                        && Signature.similarSizes(sizes[s], sizes[t], minScore)) {
+                    wanted[s] = true;
+                    wanted[t] = true;
+                }
+            }
+        }
+        var signatures = signatures(hashes, wanted);
+        var sourceSignatures = signatures.subList(0, sourceCount);
+        var targetSignatures = signatures.subList(sourceCount, signatures.size());
+
+        // Each file keeps only its best few candidates, as in git.
+        var candidates = IntStream.range(0, targets.size()).parallel()
+                .filter(t -> targetSignatures.get(t) != null)
+                .mapToObj(t -> IntStream.range(0, sourceCount)
+                        .filter(s -> sourceSignatures.get(s) != null)
+                        .mapToObj(s -> {
+                            int score = sourceSignatures.get(s).similarity(targetSignatures.get(t), minScore);
+                            boolean sameName = basename(allSources.get(sourceIndex.get(s)).oldPath())
+                                    .equals(basename(targets.get(t).newPath()));
+                            return new Candidate(t, s, score, sameName);
+                        })
+                        .filter(candidate -> candidate.score() >= minScore)
+                        .sorted(BEST_FIRST)
+                        .limit(CANDIDATES_PER_FILE))
+                .flatMap(s -> s)
+                .sorted(BEST_FIRST)
+                .toList();
+        var renamed = new boolean[targets.size()];
+        for (var candidate : candidates) {
+            int source = sourceIndex.get(candidate.source());
+            if (renamed[candidate.target()] || used[source]) {
+                continue;
+            }
+            renamed[candidate.target()] = true;
+            used[source] = true;
+            var target = targets.get(candidate.target());
+            renames.put(target, rename(allSources.get(source), target, candidate.score()));
+        }
+    }
+
+    // Reads and hashes the wanted blobs on virtual threads, as many at once
+    // as a checkout writes. The others' signatures are null.
+    private List<Signature> signatures(List<ObjectId> hashes, boolean[] wanted) throws GitException, IOException {
+        var futures = new ArrayList<Future<Signature>>(hashes.size());
+        var permits = new Semaphore(Checkout.DEFAULT_IO_LIMIT);
+        var failed = new AtomicBoolean();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < hashes.size() && !failed.get(); i++) {
+                if (!wanted[i]) {
+                    futures.add(null);
+                    continue;
+                }
+                var hash = hashes.get(i);
+                permits.acquireUninterruptibly();
+                futures.add(executor.submit(() -> {
+                    try (var content = git.readBlob(hash)) {
+                        return Signature.of(content.readAllBytes());
+                    } catch (Exception e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
+        var signatures = new ArrayList<Signature>(hashes.size());
+        for (var future : futures) {
+            if (future == null) {
+                signatures.add(null);
+                continue;
+            }
+            try {
+                signatures.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof GitException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while detecting renames");
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * A blob's content as counts of bytes per span hash, sorted by hash. A span
+     * ends at a newline or after 64 bytes, and in text a CR before a newline is
+     * ignored, as in git's diffcore-delta.
+     */
+    record Signature(long size, int[] hashes, long[] counts) {
+        private static final int HASH_BASE = 107927;
+        private static final int MAX_SPAN = 64;
+        private static final int BINARY_CHECK_SIZE = 8000;
+
+        static Signature of(byte[] data) {
+            boolean text = true;
+            for (int i = 0; i < Math.min(data.length, BINARY_CHECK_SIZE); i++) {
+                if (data[i] == 0) {
+                    text = false;
+                    break;
+                }
+            }
+            // Each span is packed as its hash above its length, so sorting
+            // groups the spans by hash.
+            var spans = new long[16];
+            int count = 0;
+            int n = 0;
+            int accum1 = 0;
+            int accum2 = 0;
+            for (int i = 0; i < data.length; i++) {
+                int c = Byte.toUnsignedInt(data[i]);
+                if (text && c == '\r' && i + 1 < data.length && data[i + 1] == '\n') {
+                    continue;
+                }
+                int old1 = accum1;
+                accum1 = (accum1 << 7) ^ (accum2 >>> 25);
+                accum2 = (accum2 << 7) ^ (old1 >>> 25);
+                accum1 += c;
+                if (++n < MAX_SPAN && c != '\n') {
+                    continue;
+                }
+                if (count == spans.length) {
+                    spans = Arrays.copyOf(spans, 2 * count);
+                }
+                spans[count++] = span(accum1, accum2, n);
+                n = 0;
+                accum1 = 0;
+                accum2 = 0;
+            }
+            if (n > 0) {
+                spans = Arrays.copyOf(spans, count + 1);
+                spans[count++] = span(accum1, accum2, n);
+            }
+            Arrays.sort(spans, 0, count);
+            var hashes = new int[count];
+            var counts = new long[count];
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                int hash = (int) (spans[i] >>> 32);
+                if (distinct == 0 || hashes[distinct - 1] != hash) {
+                    hashes[distinct++] = hash;
+                }
+                counts[distinct - 1] += (int) spans[i];
+            }
+            return new Signature(data.length, Arrays.copyOf(hashes, distinct), Arrays.copyOf(counts, distinct));
+        }
+
+        /**
+         * Returns whether blobs of the given sizes could be similar enough:
+         * the difference in size counts as content that was not copied.
+         */
+        static boolean similarSizes(long size, long targetSize, int minScore) {
+            long maxSize = Math.max(size, targetSize);
+            long delta = maxSize - Math.min(size, targetSize);
+            return maxSize != 0 && maxSize * (MAX_SCORE - minScore) >= delta * MAX_SCORE;
+        }
+
+        private static long span(int accum1, int accum2, int length) {
+            return (long) Integer.remainderUnsigned(accum1 + accum2 * 0x61, HASH_BASE) << 32 | length;
+        }
+
+        /**
+         * Scores how much of the target's content is copied from this one,
+         * out of {@link #MAX_SCORE}, or 0 if the sizes alone rule out the
+         * given minimum.
+         */
+        int similarity(Signature target, int minScore) {
+            if (!similarSizes(size, target.size, minScore)) {
+                return 0;
+            }
+            long maxSize = Math.max(size, target.size);
+            long copied = 0;
+            int s = 0;
+            for (int t = 0; t < target.hashes.length; t++) {
+                while (s < hashes.length && hashes[s] < target.hashes[t]) {
+                    s++;
+                }
+                if (s < hashes.length && hashes[s] == target.hashes[t]) {
+                    copied += Math.min(counts[s], target.counts[t]);
+                    s++;
+                }
+            }
+            return (int) (copied * MAX_SCORE / maxSize);
+        }
+    }
+}
@@ -1,2 +1,2 @@
-public record TreeObject(String name, ObjectType type, long mode, byte[] hash) {
+public record TreeObject(String name, ObjectType type, long mode, ObjectId hash) {
 }
@@ -0,0 +1,267 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Serves the protocol v2 ls-refs and fetch commands of git-upload-pack for
+ * one repository, as the server side of {@link GitSmartClient}.
+ *
+ * <p>Each request is answered on its own, as over stateless HTTP: a client
+ * repeats the commits found common so far in every round of negotiation.
+ * The server says it is ready to send the pack once every wanted commit has
+ * a common ancestor, so that a client whose history contains the server's
+ * stops offering haves early.
+ */
+public class UploadPack {
+    private static final String AGENT = "git/codecrafters-java";
+
+    private final FsObjectDatabase git;
+    private final ObjectDatabase reader;
+
+    /**
+     * @param git    The repository to serve.
+     * @param reader The database to read objects with, such as a cache
+     *               shared by the requests to the repository.
+     */
+    public UploadPack(FsObjectDatabase git, ObjectDatabase reader) {
+        this.git = git;
+        this.reader = reader;
+    }
+
+    /**
+     * Writes the capability advertisement that answers info/refs.
+     */
+    public static void advertise(OutputStream out) throws IOException {
+        PktLine.write(out, "version 2\n");
+        PktLine.write(out, "agent=%s\n".formatted(AGENT));
+        PktLine.write(out, "ls-refs=unborn\n");
+        PktLine.write(out, "fetch=filter\n");
+        PktLine.write(out, "object-format=sha1\n");
+        PktLine.flush(out);
+    }
+
+    // A command with its capabilities and arguments.
+    private record Request(String command, List<String> capabilities, List<String> args) {
+    }
+
+    private static Request readRequest(InputStream in) throws IOException, GitException {
+        String command = null;
+        var capabilities = new ArrayList<String>();
+        byte[] line;
+        while (!PktLine.isSpecial(line = PktLine.read(in))) {
+            String text = PktLine.text(line);
+            if (text.startsWith("command=")) {
+                command = text.substring("command=".length());
+            } else {
+                capabilities.add(text);
+            }
+        }
+        if (command == null) {
+            throw new GitException("no command requested");
+        }
+        var args = new ArrayList<String>();
+        if (line == PktLine.DELIM) {
+            while ((line = PktLine.read(in)) != PktLine.FLUSH) {
+                if (PktLine.isSpecial(line)) {
+                    throw new GitException("expected flush after arguments");
+                }
+                args.add(PktLine.text(line));
+            }
+        }
+        return new Request(command, capabilities, args);
+    }
+
+    /**
+     * Reads one command from a request body and writes its response.
+     *
+     * @throws GitException If the request is invalid. Errors found once the
+     *                      pack is being sent are reported to the client on
+     *                      the side-band instead.
+     * @throws IOException  If an error is encountered while reading the
+     *                      request or writing the response.
+     */
+    public void serve(InputStream in, OutputStream out) throws GitException, IOException {
+        var request = readRequest(in);
+        switch (request.command()) {
+            case "ls-refs" -> lsRefs(request.args(), out);
+            case "fetch" -> fetch(request.args(), out);
+            default -> throw new GitException("unknown command %s".formatted(request.command()));
+        }
+    }
+
+    private void lsRefs(List<String> args, OutputStream out) throws GitException, IOException {
+        boolean symrefs = args.contains("symrefs");
+        boolean peel = args.contains("peel");
+        boolean unborn = args.contains("unborn");
+        var prefixes = new ArrayList<String>();
+        for (var arg : args) {
+            if (arg.startsWith("ref-prefix ")) {
+                prefixes.add(arg.substring("ref-prefix ".length()));
+            }
+        }
+        var refs = new LinkedHashMap<String, Optional<ObjectId>>();
+        refs.put("HEAD", git.resolveRef("HEAD"));
+        for (var ref : git.listRefs().entrySet()) {
+            refs.put(ref.getKey(), Optional.of(ref.getValue()));
+        }
+        Optional<String> headTarget = headTarget();
+        for (var ref : refs.entrySet()) {
+            String name = ref.getKey();
+            if (!prefixes.isEmpty() && prefixes.stream().noneMatch(name::startsWith)) {
+                continue;
+            }
+            var line = new StringBuilder();
+            if (ref.getValue().isPresent()) {
+                line.append(ref.getValue().get().hex()).append(' ').append(name);
+            } else if (unborn && headTarget.isPresent()) {
+                line.append("unborn ").append(name);
+            } else {
+                continue;
+            }
+            if (symrefs && name.equals("HEAD") && headTarget.isPresent()) {
+                line.append(" symref-target:").append(headTarget.get());
+            }
+            if (peel && ref.getValue().isPresent() && reader.getType(ref.getValue().get()) == ObjectType.Tag) {
+                line.append(" peeled:").append(peel(ref.getValue().get()).hex());
+            }
+            PktLine.write(out, line.append('\n').toString());
+        }
+        PktLine.flush(out);
+    }
+
+    private Optional<String> headTarget() throws IOException {
+        var head = git.root().resolve(".git/HEAD");
+        if (!Files.isRegularFile(head)) {
+            return Optional.empty();
+        }
+        String content = Files.readString(head, UTF_8).trim();
+        return content.startsWith("ref: ") ? Optional.of(content.substring("ref: ".length())) : Optional.empty();
+    }
+
+    private ObjectId peel(ObjectId tag) throws GitException, IOException {
+        while (reader.getType(tag) == ObjectType.Tag) {
+            tag = PackGenerator.tagTarget(reader, tag);
+        }
+        return tag;
+    }
+
+    private void fetch(List<String> args, OutputStream out) throws GitException, IOException {
+        var wants = new ArrayList<ObjectId>();
+        var haves = new ArrayList<ObjectId>();
+        boolean done = false;
+        boolean ofsDelta = false;
+        boolean includeTag = false;
+        boolean omitBlobs = false;
+        for (var arg : args) {
+            if (arg.startsWith("want ")) {
+                wants.add(parseId(arg.substring("want ".length())));
+            } else if (arg.startsWith("have ")) {
+                haves.add(parseId(arg.substring("have ".length())));
+            } else if (arg.startsWith("filter ")) {
+                String spec = arg.substring("filter ".length());
+                if (!spec.equals("blob:none")) {
+                    throw new GitException("unsupported filter %s".formatted(spec));
+                }
+                omitBlobs = true;
+            } else {
+                switch (arg) {
+                    case "done" -> done = true;
+                    case "ofs-delta" -> ofsDelta = true;
+                    case "include-tag" -> includeTag = true;
+                    default -> {
+                        // Progress is never sent, and a thin pack is just
+                        // one without external bases.
+                    }
+                }
+            }
+        }
+        if (wants.isEmpty()) {
+            throw new GitException("no wants in fetch");
+        }
+        if (!wants.stream().allMatch(git::contains)) {
+            // The repository may have been repacked since it was opened.
+            git.packs().rescan();
+        }
+        var common = new ArrayList<ObjectId>();
+        for (var have : haves) {
+            if (git.contains(have) && reader.getType(have) == ObjectType.Commit) {
+                common.add(have);
+            }
+        }
+        if (!done) {
+            PktLine.write(out, "acknowledgments\n");
+            if (common.isEmpty()) {
+                PktLine.write(out, "NAK\n");
+            }
+            for (var have : common) {
+                PktLine.write(out, "ACK %s\n".formatted(have.hex()));
+            }
+            if (!ready(wants, common)) {
+                PktLine.flush(out);
+                return;
+            }
+            PktLine.write(out, "ready\n");
+            PktLine.delim(out);
+        }
+
+        var generator = new PackGenerator(git, reader, omitBlobs);
+        generator.add(wants, common);
+        if (includeTag) {
+            generator.includeTags(tags());
+        }
+        PktLine.write(out, "packfile\n");
+        try (var pack = new SideBandOutputStream(out)) {
+            generator.write(pack, ofsDelta);
+        } catch (GitException e) {
+            SideBandOutputStream.error(out, e.getMessage());
+        }
+        PktLine.flush(out);
+    }
+
+    // Returns whether every wanted commit has one of the common commits as an
+    // ancestor.
+    private boolean ready(List<ObjectId> wants, List<ObjectId> common) throws GitException, IOException {
+        if (common.isEmpty()) {
+            return false;
+        }
+        var walk = RevWalk.open(git);
+        for (var want : wants) {
+            if (reader.getType(want) != ObjectType.Commit) {
+                continue;
+            }
+            boolean found = false;
+            for (int i = 0; i < common.size() && !found; i++) {
+                found = walk.isAncestor(common.get(i), want);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<ObjectId> tags() throws IOException {
+        var tags = new ArrayList<ObjectId>();
+        for (Map.Entry<String, ObjectId> ref : git.listRefs().entrySet()) {
+            if (ref.getKey().startsWith("refs/tags/")) {
+                tags.add(ref.getValue());
+            }
+        }
+        return tags;
+    }
+
+    private static ObjectId parseId(String hex) throws GitException {
+        if (!ObjectId.isHex(hex)) {
+            throw new GitException("invalid object id %s".formatted(hex));
+        }
+        return ObjectId.fromHex(hex);
+    }
+}
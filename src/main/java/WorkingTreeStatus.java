@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compares HEAD, the index and the working directory, as git status does,
+ * without writing any object or the index.
+ *
+ * <p>Every tracked path that differs gets two letters, git's short format:
+ * the first compares the index with HEAD, the second the working directory
+ * with the index. Files the index does not track are listed after them.
+ *
+ * <p>HEAD is compared with the trees the index describes, which are hashed
+ * but not written, and a subtree with the same hash on both sides is not
+ * read. With a change source, the cost thus grows with the number of changed
+ * files rather than the size of the repository.
+ */
+public final class WorkingTreeStatus {
+    private static final int FILE_TYPE_MASK = 0170000;
+
+    /**
+     * A path and how it changed.
+     *
+     * @param staged   A letter for the index against HEAD, or ' '.
+     * @param unstaged A letter for the working directory against the index,
+     *                 or ' '. Untracked files have '?' for both.
+     */
+    public record Entry(char staged, char unstaged, String path) {
+        @Override
+        public String toString() {
+            return "%c%c %s".formatted(staged, unstaged, path);
+        }
+    }
+
+    private WorkingTreeStatus() {
+    }
+
+    // A file's mode, as a plain number, and blob hash.
+    private record Version(int mode, ObjectId hash) {
+    }
+
+    /**
+     * Returns the changed paths in path order, and then the untracked ones.
+     *
+     * @throws GitException If HEAD's tree is invalid.
+     * @throws IOException  If an error is encountered while reading.
+     */
+    public static List<Entry> compute(FsObjectDatabase git) throws GitException, IOException {
+        var gitIndex = git.readIndex();
+        var index = new TreeMap<String, Version>();
+        for (var entry : gitIndex.entries()) {
+            index.put(entry.path(), new Version(entry.mode(), entry.hash()));
+        }
+        var head = new TreeMap<String, Version>();
+        var commit = git.resolve("HEAD");
+        if (commit.isPresent()) {
+            var indexTrees = git.hashIndexTrees(gitIndex);
+            flatten(git, git.readCommit(commit.get()).tree(), "", indexTrees, index, head);
+        }
+        var work = new TreeMap<String, Version>();
+        for (var entry : git.scanWorkingTree().values()) {
+            work.put(entry.path(), new Version(entry.mode(), entry.hash()));
+        }
+
+        var paths = new TreeSet<String>(head.keySet());
+        paths.addAll(index.keySet());
+        var changed = new ArrayList<Entry>();
+        for (var path : paths) {
+            char staged = compare(head, index, path);
+            char unstaged = index.containsKey(path) ? compare(index, work, path) : ' ';
+            if (staged != ' ' || unstaged != ' ') {
+                changed.add(new Entry(staged, unstaged, path));
+            }
+        }
+        for (var path : work.keySet()) {
+            if (!index.containsKey(path)) {
+                changed.add(new Entry('?', '?', path));
+            }
+        }
+        return changed;
+    }
+
+    private static char compare(Map<String, Version> older, Map<String, Version> newer, String path) {
+        var a = Optional.ofNullable(older.get(path));
+        var b = Optional.ofNullable(newer.get(path));
+        if (a.isEmpty()) {
+            return b.isEmpty() ? ' ' : 'A';
+        }
+        if (b.isEmpty()) {
+            return 'D';
+        }
+        if ((a.get().mode() & FILE_TYPE_MASK) != (b.get().mode() & FILE_TYPE_MASK)) {
+            return 'T';
+        }
+        return a.get().equals(b.get()) ? ' ' : 'M';
+    }
+
+    // Lists the files below a tree by path. A tree the index describes
+    // exactly is not read: its files are those of the index. Tree modes are
+    // octal digits read as a decimal number.
+    private static void flatten(FsObjectDatabase git, ObjectId tree, String prefix,
+            Map<String, ObjectId> indexTrees, SortedMap<String, Version> index, SortedMap<String, Version> out)
+            throws GitException, IOException {
+        String dir = prefix.isEmpty() ? "" : prefix.substring(0, prefix.length() - 1);
+        if (tree.equals(indexTrees.get(dir))) {
+            out.putAll(prefix.isEmpty() ? index : index.subMap(prefix, dir + "0"));
+            return;
+        }
+        var entry = git.readTree(tree);
+        while (entry.next()) {
+            String path = prefix + entry.name();
+            if (entry.isTree()) {
+                flatten(git, entry.hash(), path + "/", indexTrees, index, out);
+            } else {
+                out.put(path, new Version(Integer.parseInt(Long.toString(entry.mode()), 8), entry.hash()));
+            }
+        }
+    }
+}
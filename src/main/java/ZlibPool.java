@@ -0,0 +1,118 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A shared pool of zlib inflaters and deflaters.
+ *
+ * <p>Every Inflater and Deflater holds native zlib state that the garbage
+ * collector cannot see, so creating one per object lets native memory grow
+ * far beyond what the heap suggests before a collection frees it. Released
+ * instances are reset and kept for reuse, up to a bound; any beyond it are
+ * ended at once, so native memory is always freed deterministically rather
+ * than by a cleaner.
+ *
+ * <p>The pool is shared rather than per-thread because write-tree and
+ * index-pack run on short-lived fork-join pools, whose threads would strand
+ * their cached instances when they exit.
+ */
+public final class ZlibPool {
+    private static final int LIMIT = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private static final Pool<Inflater> INFLATERS = new Pool<>(Inflater::new, Inflater::reset, Inflater::end);
+    private static final Pool<Deflater> DEFLATERS = new Pool<>(Deflater::new, Deflater::reset, Deflater::end);
+
+    private ZlibPool() {
+    }
+
+    /**
+     * A snapshot of the pool's counters.
+     *
+     * @param liveInflaters Inflaters created and not yet ended, whether in use
+     *                      or idle in the pool.
+     * @param idleInflaters Inflaters waiting in the pool.
+     * @param created       Instances of either kind created since startup.
+     * @param reused        Borrows served from the pool.
+     */
+    public record Stats(int liveInflaters, int idleInflaters, int liveDeflaters, int idleDeflaters, long created,
+            long reused) {
+    }
+
+    private static final class Pool<T> {
+        private final Supplier<T> create;
+        private final Consumer<T> reset;
+        private final Consumer<T> end;
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+        // Tracked separately, since counting a ConcurrentLinkedQueue is linear.
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final AtomicInteger live = new AtomicInteger();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+
+        Pool(Supplier<T> create, Consumer<T> reset, Consumer<T> end) {
+            this.create = create;
+            this.reset = reset;
+            this.end = end;
+        }
+
+        T borrow() {
+            T t = idle.poll();
+            if (t != null) {
+                idleCount.decrementAndGet();
+                reused.incrementAndGet();
+                return t;
+            }
+            live.incrementAndGet();
+            created.incrementAndGet();
+            return create.get();
+        }
+
+        void release(T t) {
+            reset.accept(t);
+            if (idleCount.incrementAndGet() <= LIMIT) {
+                idle.add(t);
+                return;
+            }
+            idleCount.decrementAndGet();
+            end.accept(t);
+            live.decrementAndGet();
+        }
+    }
+
+    /**
+     * Borrows an inflater, which must be returned with
+     * {@link #release(Inflater)} and not used afterwards.
+     */
+    public static Inflater inflater() {
+        return INFLATERS.borrow();
+    }
+
+    public static void release(Inflater inflater) {
+        INFLATERS.release(inflater);
+    }
+
+    /**
+     * Borrows a deflater set to the given compression level, from -1 (zlib's
+     * default) to 9, which must be returned with {@link #release(Deflater)}.
+     */
+    public static Deflater deflater(int level) {
+        var deflater = DEFLATERS.borrow();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    public static void release(Deflater deflater) {
+        DEFLATERS.release(deflater);
+    }
+
+    public static Stats stats() {
+        return new Stats(INFLATERS.live.get(), INFLATERS.idleCount.get(), DEFLATERS.live.get(),
+                DEFLATERS.idleCount.get(), INFLATERS.created.get() + DEFLATERS.created.get(),
+                INFLATERS.reused.get() + DEFLATERS.reused.get());
+    }
+}
@@ -0,0 +1,162 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class BitmapTest {
+    private static HashSet<ObjectId> generate(FsObjectDatabase git, boolean useBitmaps, ObjectId want, ObjectId have)
+            throws Exception {
+        var generator = new PackGenerator(git, git, false);
+        generator.setUseBitmaps(useBitmaps);
+        generator.add(List.of(want), List.of(have));
+        return new HashSet<>(generator.objects());
+    }
+
+    private static BitSet bits(int... set) {
+        var bits = new BitSet();
+        for (int bit : set) {
+            bits.set(bit);
+        }
+        return bits;
+    }
+
+    @Test
+    public void testEwahRoundTrip() throws Exception {
+        // GIVEN
+        var ones = new BitSet();
+        ones.set(0, 128);
+        var onesTail = bits(3, 64);
+        onesTail.set(192, 320);
+        var mixed = new BitSet();
+        for (int word = 0; word < 12; word++) {
+            // Alternates literal and clean words: more markers than words
+            // would fit.
+            if (word % 2 == 0) {
+                mixed.set(word * 64 + 5);
+            } else {
+                mixed.set(word * 64, word * 64 + 64);
+            }
+        }
+        var cases = List.of(new BitSet(), bits(0), bits(0, 1), bits(63), bits(64), bits(0, 64, 128), bits(1000), ones,
+                onesTail, mixed);
+
+        for (var expected : cases) {
+            // WHEN
+            var out = new ByteArrayOutputStream();
+            Ewah.write(new DataOutputStream(out), expected);
+            var buf = ByteBuffer.wrap(out.toByteArray());
+
+            // THEN
+            assertEquals(expected, Ewah.read(buf, 0), expected.toString());
+            assertEquals(out.size(), Ewah.size(buf, 0));
+        }
+    }
+
+    @Test
+    public void testGcWritesBitmapsForOneBlob() throws Exception {
+        // GIVEN
+        Path root = Files.createTempDirectory("bitmap");
+        PackTest.git(root, "init", "-q");
+        Files.writeString(root.resolve("file.txt"), "only blob\n", UTF_8);
+        PackTest.git(root, "add", ".");
+        PackTest.git(root, "commit", "-q", "-m", "one blob");
+
+        // WHEN
+        HistoryTest.run(root, "gc");
+
+        // THEN
+        PackTest.git(root, "rev-list", "--test-bitmap", "HEAD");
+        var git = FsObjectDatabase.open(root);
+        var head = git.resolveRef("HEAD").orElseThrow();
+        var generator = new PackGenerator(git, git, false);
+        generator.add(List.of(head), List.of());
+        var out = new ByteArrayOutputStream();
+        generator.write(out, true);
+        Path packDir = Files.createTempDirectory("packs");
+        var indexed = new PackIndexer(packDir).index(new ByteArrayInputStream(out.toByteArray()));
+        PackTest.git(packDir, "verify-pack", indexed.idx().toString());
+        assertEquals(3, indexed.objects());
+    }
+
+    @Test
+    public void testGcWritesBitmapsGitAccepts() throws Exception {
+        // GIVEN
+        Path root = HistoryTest.history("bitmap").root();
+        PackTest.git(root, "tag", "-a", "-m", "release", "v2");
+
+        // WHEN
+        HistoryTest.run(root, "gc");
+
+        // THEN
+        var git = FsObjectDatabase.open(root);
+        var bitmap = git.packs().packs().getFirst().bitmap();
+        assertTrue(bitmap.isPresent());
+        assertTrue(bitmap.get().size() > 0);
+        PackTest.git(root, "rev-list", "--test-bitmap", "HEAD");
+        String count = PackTest.gitString(root, "rev-list", "--objects", "--count", "--all");
+        assertEquals(count, PackTest.gitString(root, "rev-list", "--objects", "--count", "--use-bitmap-index", "--all"));
+        assertEquals(count, HistoryTest.run(root, "rev-list", "--objects", "--count", "--use-bitmap-index", "--all"));
+        assertEquals(count, HistoryTest.run(root, "rev-list", "--objects", "--count", "--all"));
+        assertEquals("", HistoryTest.run(root, "fsck", "--connectivity-only"));
+    }
+
+    @Test
+    public void testPackGenerationWithGitBitmaps() throws Exception {
+        // GIVEN
+        Path root = PackTest.packedRepository("bitmap");
+        PackTest.git(root, "repack", "-q", "-a", "-d", "-b");
+        Files.writeString(root.resolve("loose.txt"), "not in the pack\n", UTF_8);
+        PackTest.git(root, "add", ".");
+        PackTest.git(root, "commit", "-q", "-m", "loose");
+        var git = FsObjectDatabase.open(root);
+        var want = git.resolveRef("HEAD").orElseThrow();
+        var have = ObjectId.fromHex(PackTest.gitString(root, "rev-parse", "HEAD~5"));
+        var expected = new HashSet<ObjectId>();
+        for (var line : PackTest.gitString(root, "rev-list", "--objects", want.hex(), "^" + have.hex()).split("\n")) {
+            expected.add(ObjectId.fromHex(line.substring(0, ObjectId.HEX_SIZE)));
+        }
+
+        // WHEN
+        var withBitmaps = generate(git, true, want, have);
+        var withoutBitmaps = generate(git, false, want, have);
+
+        // THEN
+        assertTrue(git.packs().packs().getFirst().bitmap().isPresent());
+        assertEquals(expected, withBitmaps);
+        assertEquals(expected, withoutBitmaps);
+    }
+
+    @Test
+    public void testFindsMissingObjects() throws Exception {
+        // GIVEN
+        Path root = PackTest.packedRepository("bitmap");
+        PackTest.git(root, "repack", "-q", "-a", "-d", "-b");
+        Files.writeString(root.resolve("loose.txt"), "not in the pack\n", UTF_8);
+        PackTest.git(root, "add", ".");
+        PackTest.git(root, "commit", "-q", "-m", "loose");
+        var git = FsObjectDatabase.open(root);
+        var blob = ObjectId.fromHex(PackTest.gitString(root, "rev-parse", "HEAD:loose.txt"));
+        Files.delete(git.pathFor(blob));
+
+        // WHEN
+        var reachable = new Reachability(git, git, Reachability.findBitmap(git));
+        reachable.add(List.of(git.resolveRef("HEAD").orElseThrow()));
+
+        // THEN
+        assertEquals(List.of(blob), reachable.missing());
+        int count = PackTest.gitString(root, "rev-list", "--objects", "HEAD~1").split("\n").length;
+        // The loose commit and its tree.
+        assertEquals(count + 2, reachable.count());
+    }
+}
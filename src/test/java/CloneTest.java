@@ -0,0 +1,266 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+public class CloneTest {
+    @Test
+    public void testListRefs() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        String head = PackTest.gitString(remote, "rev-parse", "HEAD");
+        String branch = PackTest.gitString(remote, "symbolic-ref", "HEAD");
+
+        try (var server = new GitHttpFixture(remote)) {
+            // WHEN
+            var refs = GitSmartClient.forUrl(new java.net.URI(server.url())).listRefs();
+
+            // THEN
+            var first = refs.getFirst();
+            assertEquals("HEAD", first.name());
+            assertEquals(head, first.hash().hex());
+            assertEquals(branch, first.symrefTarget().orElseThrow());
+        }
+    }
+
+    @Test
+    public void testClone() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        Path local = Files.createTempDirectory("clone").resolve("repo");
+
+        try (var server = new GitHttpFixture(remote)) {
+            // WHEN
+            Main.cloneRepository(server.url(), local);
+        }
+
+        // THEN
+        assertEquals(PackTest.gitString(remote, "rev-parse", "HEAD"), PackTest.gitString(local, "rev-parse", "HEAD"));
+        PackTest.gitString(local, "fsck", "--full", "--strict");
+        for (var name : PackTest.gitString(remote, "ls-tree", "-r", "--name-only", "HEAD").split("\n")) {
+            assertArrayEquals(Files.readAllBytes(remote.resolve(name)), Files.readAllBytes(local.resolve(name)));
+        }
+    }
+
+    @Test
+    public void testFetchSendsOnlyMissingObjects() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        String branch = PackTest.gitString(remote, "symbolic-ref", "--short", "HEAD");
+        String old = PackTest.gitString(remote, "rev-parse", "HEAD");
+        Path local = Files.createTempDirectory("fetch").resolve("repo");
+        try (var server = new GitHttpFixture(remote)) {
+            Main.cloneRepository(server.url(), local);
+            long cloneBytes = server.bytesSent.get();
+            assertEquals(1, server.connections.size());
+            // Local commits newer than the shared history are offered first
+            // and never acknowledged.
+            PackTest.git(local, "checkout", "-q", "-b", "local");
+            for (int i = 0; i < 40; i++) {
+                Files.writeString(local.resolve("local.txt"), "local %d\n".formatted(i));
+                PackTest.git(local, "add", "local.txt");
+                PackTest.git(local, Map.of("GIT_COMMITTER_DATE", "@%d +0000".formatted(4_000_000_000L + i)),
+                        new byte[0], "commit", "-q", "-m", "local %d".formatted(i));
+            }
+            for (int i = 0; i < 3; i++) {
+                Files.writeString(remote.resolve("file.txt"), "remote %d\n".formatted(i), StandardOpenOption.APPEND);
+                PackTest.git(remote, "commit", "-q", "-a", "-m", "remote %d".formatted(i));
+            }
+            PackTest.git(remote, "tag", "v1");
+            int expected = PackTest.gitString(remote, "rev-list", "--objects", "--all", "^" + old).split("\n").length;
+            server.requests.set(0);
+            server.bytesSent.set(0);
+            server.connections.clear();
+
+            // WHEN
+            int received = Main.fetchRemote(local, "origin");
+
+            // THEN
+            assertEquals(expected, received);
+            assertEquals(PackTest.gitString(remote, "rev-parse", "HEAD"),
+                    PackTest.gitString(local, "rev-parse", "refs/remotes/origin/" + branch));
+            assertEquals(PackTest.gitString(remote, "rev-parse", "v1"), PackTest.gitString(local, "rev-parse", "v1"));
+            PackTest.gitString(local, "fsck", "--full", "--strict");
+            assertTrue(server.bytesSent.get() * 3 < cloneBytes, "%d vs %d".formatted(server.bytesSent.get(), cloneBytes));
+            // The capabilities, ls-refs, a round of 16 haves and a round of 32
+            // that reaches the shared history.
+            assertEquals(4, server.requests.get());
+            assertEquals(1, server.connections.size());
+        }
+    }
+
+    @Test
+    public void testPartialCloneFetchesBlobsOnDemand() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        PackTest.git(remote, "config", "uploadpack.allowFilter", "true");
+        PackTest.git(remote, "config", "uploadpack.allowAnySHA1InWant", "true");
+        Path local = Files.createTempDirectory("partial").resolve("repo");
+        var missing = new ArrayList<ObjectId>();
+        try (var server = new GitHttpFixture(remote)) {
+            Main.cloneRepository(server.url(), local, Optional.of("blob:none"));
+            // The commit, then the two blobs checked out, in one request.
+            assertEquals(List.of(1, 2), List.copyOf(server.fetches));
+            for (var line : PackTest.gitString(local, "rev-list", "--objects", "--all", "--missing=print")
+                    .split("\n")) {
+                if (line.startsWith("?")) {
+                    missing.add(ObjectId.fromHex(line.substring(1)));
+                }
+            }
+            assertEquals(38, missing.size());
+            server.fetches.clear();
+            var git = FsObjectDatabase.open(local);
+            var start = new CountDownLatch(1);
+            var reads = new ArrayList<Future<byte[]>>();
+
+            // WHEN
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (var hash : missing) {
+                    reads.add(executor.submit(() -> {
+                        start.await();
+                        try (var in = git.readBlob(hash)) {
+                            return in.readAllBytes();
+                        }
+                    }));
+                }
+                start.countDown();
+            }
+
+            // THEN
+            for (int i = 0; i < missing.size(); i++) {
+                assertArrayEquals(PackTest.git(remote, "cat-file", "blob", missing.get(i).hex()), reads.get(i).get());
+            }
+            assertEquals(missing.size(), server.fetches.stream().mapToInt(Integer::intValue).sum());
+            assertTrue(server.fetches.size() < missing.size() / 4, server.fetches.toString());
+        }
+        var offline = FsObjectDatabase.open(local);
+        assertTrue(missing.stream().allMatch(offline::contains));
+        assertEquals("", PackTest.gitString(local, "rev-list", "--objects", "--all", "--missing=print")
+                .lines().filter(line -> line.startsWith("?")).collect(Collectors.joining("\n")));
+        PackTest.git(local, "fsck", "--full", "--strict");
+    }
+
+    @Test
+    public void testCatFileBatchFetchesPromisedObjects() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        PackTest.git(remote, "config", "uploadpack.allowFilter", "true");
+        PackTest.git(remote, "config", "uploadpack.allowAnySHA1InWant", "true");
+        Path local = Files.createTempDirectory("partial").resolve("repo");
+        try (var server = new GitHttpFixture(remote)) {
+            Main.cloneRepository(server.url(), local, Optional.of("blob:none"));
+            String blob = PackTest.gitString(local, "rev-list", "--objects", "--all", "--missing=print").lines()
+                    .filter(line -> line.startsWith("?")).findFirst().orElseThrow().substring(1);
+            String absent = "0".repeat(ObjectId.HEX_SIZE);
+            byte[] stdin = (blob + "\n" + absent + "\n").getBytes(UTF_8);
+            var out = new ByteArrayOutputStream();
+
+            // WHEN
+            new CatFileBatch(FsObjectDatabase.open(local), false).run(new ByteArrayInputStream(stdin), out);
+
+            // THEN
+            assertEquals(new String(PackTest.git(remote, stdin, "cat-file", "--batch-check"), UTF_8),
+                    out.toString(UTF_8));
+            assertTrue(FsObjectDatabase.open(local).contains(ObjectId.fromHex(blob)));
+        }
+    }
+
+    @Test
+    public void testIndexMatchesGit() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        Path local = Files.createTempDirectory("clone").resolve("repo");
+        try (var server = new GitHttpFixture(remote)) {
+            Main.cloneRepository(server.url(), local);
+        }
+        var pack = FsObjectDatabase.init(local).packs().packs().getFirst().path();
+        Path expected = Files.createTempDirectory("idx").resolve("expected.idx");
+
+        // WHEN
+        PackTest.git(local, "index-pack", "-o", expected.toString(), pack.toString());
+
+        // THEN
+        Path idx = pack.resolveSibling(pack.getFileName().toString().replace(".pack", ".idx"));
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(idx));
+    }
+
+    @Test
+    public void testIndexStreamsFromInput() throws IOException, GitException {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        var pack = FsObjectDatabase.init(remote).packs().packs().getFirst();
+        Path packDir = Files.createTempDirectory("packs");
+
+        // WHEN
+        PackIndexer.Result result;
+        try (var in = Files.newInputStream(pack.path())) {
+            result = new PackIndexer(packDir).index(in);
+        }
+
+        // THEN
+        assertEquals(pack.count(), result.objects());
+        assertTrue(result.deltas() > 0);
+        assertEquals(pack.path().getFileName(), result.pack().getFileName());
+    }
+
+    @Test
+    public void testReadTreeChecksOutModes() throws Exception {
+        // GIVEN
+        Path root = Files.createTempDirectory("checkout");
+        PackTest.git(root, "init", "-q");
+        Files.createDirectories(root.resolve("a/b/c"));
+        for (int i = 0; i < 100; i++) {
+            Files.writeString(root.resolve("a/b/c/file%d.txt".formatted(i)), "file %d\n".formatted(i));
+        }
+        Files.writeString(root.resolve("run.sh"), "#!/bin/sh\necho hi\n");
+        PackTest.git(root, "add", ".");
+        PackTest.git(root, "update-index", "--chmod=+x", "run.sh");
+        Files.createSymbolicLink(root.resolve("link"), Path.of("a/b"));
+        PackTest.git(root, "add", "link");
+        PackTest.git(root, "update-index", "--add", "--cacheinfo",
+                "160000,%s,sub".formatted(PackTest.gitString(root, "write-tree")));
+        String tree = PackTest.gitString(root, "write-tree");
+        PackTest.git(root, "update-ref", "HEAD", PackTest.gitString(root, "commit-tree", tree, "-m", "modes"));
+        PackTest.git(root, "read-tree", "--empty");
+        Files.delete(root.resolve("link"));
+        Files.delete(root.resolve("run.sh"));
+        try (var paths = Files.walk(root.resolve("a"))) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+
+        // WHEN
+        HistoryTest.run(root, "read-tree", "-u", tree);
+
+        // THEN
+        assertEquals("", PackTest.gitString(root, "status", "--porcelain", "--ignore-submodules=none"));
+        assertEquals(tree, PackTest.gitString(root, "write-tree"));
+        assertEquals("file 42\n", Files.readString(root.resolve("a/b/c/file42.txt")));
+        assertTrue(Files.getPosixFilePermissions(root.resolve("run.sh")).contains(PosixFilePermission.OWNER_EXECUTE));
+        assertFalse(Files.getPosixFilePermissions(root.resolve("a/b/c/file0.txt"))
+                .contains(PosixFilePermission.OWNER_EXECUTE));
+        assertEquals(Path.of("a/b"), Files.readSymbolicLink(root.resolve("link")));
+        assertTrue(Files.isDirectory(root.resolve("sub")));
+    }
+}
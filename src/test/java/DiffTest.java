@@ -0,0 +1,174 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class DiffTest {
+    private static String lines(int count, int seed) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append("line %d of %d %s\n".formatted(i, seed, "x".repeat(i % 13)));
+        }
+        return sb.toString();
+    }
+
+    private static void write(Path path, String content) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.writeString(path, content);
+    }
+
+    private static String commitAll(Path root, String message) throws IOException {
+        PackTest.git(root, "add", "-A");
+        PackTest.git(root, "commit", "-q", "-m", message);
+        return PackTest.gitString(root, "rev-parse", "HEAD");
+    }
+
+    // Commits a tree and then a second one with an unchanged subtree, edits,
+    // moves with and without edits, a CRLF file renamed to LF, an empty file
+    // renamed, a file replaced by a directory, a mode change and a type
+    // change.
+    static List<String> changes(Path root) throws IOException {
+        PackTest.git(root, "init", "-q");
+        write(root.resolve("a/b/keep.txt"), lines(50, 1));
+        write(root.resolve("lib/util/keep.txt"), lines(50, 12));
+        write(root.resolve("a/b/c/deep.txt"), lines(30, 2));
+        write(root.resolve("a/move.txt"), lines(100, 3));
+        write(root.resolve("a/same.txt"), lines(40, 4));
+        write(root.resolve("x"), lines(5, 5));
+        write(root.resolve("x.txt"), lines(6, 6));
+        write(root.resolve("mod.txt"), lines(20, 7));
+        write(root.resolve("run.sh"), "#!/bin/sh\n");
+        write(root.resolve("gone/one.txt"), lines(80, 8));
+        write(root.resolve("link"), lines(3, 10));
+        write(root.resolve("empty"), "");
+        write(root.resolve("crlf.txt"), lines(60, 11).replace("\n", "\r\n"));
+        String before = commitAll(root, "before");
+
+        Files.delete(root.resolve("a/move.txt"));
+        write(root.resolve("b/moved.txt"), lines(100, 3) + "extra\n".repeat(10));
+        Files.move(root.resolve("a/same.txt"), root.resolve("same.txt"));
+        Files.delete(root.resolve("x"));
+        write(root.resolve("x/inner.txt"), "hi\n");
+        write(root.resolve("mod.txt"), lines(21, 7));
+        Files.setPosixFilePermissions(root.resolve("run.sh"), PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.delete(root.resolve("gone/one.txt"));
+        write(root.resolve("one-renamed.txt"), lines(80, 8) + "tail\n".repeat(30));
+        Files.delete(root.resolve("link"));
+        Files.createSymbolicLink(root.resolve("link"), Path.of("target"));
+        Files.move(root.resolve("empty"), root.resolve("empty2"));
+        Files.delete(root.resolve("crlf.txt"));
+        write(root.resolve("crlf2.txt"), lines(60, 11));
+        write(root.resolve("a/b/c/deep.txt"), lines(31, 2));
+        String after = commitAll(root, "after");
+        return List.of(before, after);
+    }
+
+    @Test
+    public void testDiffTreeMatchesGit() throws Exception {
+        // GIVEN
+        Path root = Files.createTempDirectory("diff");
+        var commits = changes(root);
+
+        for (var flags : List.of(List.of("-r"), List.of("-r", "-M"), List.of("-r", "-M96%"))) {
+            // WHEN
+            var args = new ArrayList<>(List.of("diff-tree"));
+            args.addAll(flags);
+            args.addAll(commits);
+            String ours = HistoryTest.run(root, args.toArray(String[]::new));
+
+            // THEN
+            assertEquals(PackTest.gitString(root, args.toArray(String[]::new)), ours, flags.toString());
+        }
+    }
+
+    @Test
+    public void testDiffSkipsUnchangedSubtrees() throws IOException, GitException {
+        // GIVEN
+        Path root = Files.createTempDirectory("diff");
+        var commits = changes(root);
+        var git = FsObjectDatabase.open(root);
+        var before = git.readCommit(ObjectId.fromHex(commits.get(0))).tree();
+        var after = git.readCommit(ObjectId.fromHex(commits.get(1))).tree();
+        String expected = PackTest.gitString(root, "diff-tree", "-r", "--name-only", commits.get(0), commits.get(1));
+        var unchanged = new ArrayList<ObjectId>();
+        for (var subtree : List.of("lib", "lib/util")) {
+            unchanged.add(ObjectId.fromHex(PackTest.gitString(root, "rev-parse", commits.get(1) + ":" + subtree)));
+        }
+        for (var tree : unchanged) {
+            String hex = tree.hex();
+            Files.delete(root.resolve(".git/objects").resolve(hex.substring(0, 2)).resolve(hex.substring(2)));
+        }
+
+        // WHEN
+        var changes = new TreeDiff(git).diff(before, after);
+
+        // THEN
+        assertEquals(expected, String.join("\n", changes.stream().map(TreeDiff.Change::newPath).toList()));
+        assertThrows(IOException.class, () -> git.listTree(unchanged.getFirst()));
+    }
+
+    // Wraps a database to list the blobs read from it.
+    private static ObjectDatabase recordingBlobReads(ObjectDatabase git, List<ObjectId> reads) {
+        return (ObjectDatabase) Proxy.newProxyInstance(ObjectDatabase.class.getClassLoader(),
+                new Class<?>[] { ObjectDatabase.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("readBlob")) {
+                        synchronized (reads) {
+                            reads.add((ObjectId) args[0]);
+                        }
+                    }
+                    try {
+                        return method.invoke(git, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    @Test
+    public void testRenameDetectionLimitsReads() throws IOException, GitException {
+        // GIVEN
+        Path root = Files.createTempDirectory("diff");
+        var commits = changes(root);
+        var git = FsObjectDatabase.open(root);
+        var before = git.readCommit(ObjectId.fromHex(commits.get(0))).tree();
+        var after = git.readCommit(ObjectId.fromHex(commits.get(1))).tree();
+        var changes = new TreeDiff(git).diff(before, after);
+        var unlimited = new ArrayList<ObjectId>();
+        var limited = new ArrayList<ObjectId>();
+        var small = new ArrayList<ObjectId>();
+
+        // WHEN
+        var renames = new TreeDiff(recordingBlobReads(git, unlimited)).detectRenames(changes, 50);
+        var exactOnly = new TreeDiff(recordingBlobReads(git, limited), 1, Long.MAX_VALUE).detectRenames(changes, 50);
+        var smallOnly = new TreeDiff(recordingBlobReads(git, small), TreeDiff.DEFAULT_RENAME_LIMIT, 1300)
+                .detectRenames(changes, 50);
+
+        // THEN
+        var renamed = renames.stream().filter(change -> change.status() == TreeDiff.Status.RENAMED)
+                .map(TreeDiff.Change::newPath).toList();
+        assertTrue(renamed.contains("one-renamed.txt"));
+        assertFalse(unlimited.isEmpty());
+        assertEquals(List.of(), limited);
+        assertEquals(List.of("empty2", "same.txt"), exactOnly.stream()
+                .filter(change -> change.status() == TreeDiff.Status.RENAMED).map(TreeDiff.Change::newPath).toList());
+        // Of the files whose sizes could match, only crlf.txt and crlf2.txt
+        // are small enough.
+        assertEquals(2, small.size());
+        for (var hash : small) {
+            assertTrue(git.getSize(hash) <= 1300);
+        }
+        assertEquals(List.of("crlf2.txt", "empty2", "same.txt"), smallOnly.stream()
+                .filter(change -> change.status() == TreeDiff.Status.RENAMED).map(TreeDiff.Change::newPath).toList());
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local smart-HTTP stand-in that serves a repository by running the real
+ * `git upload-pack --stateless-rpc`, the same way git http-backend does.
+ * It counts the requests it serves, the connections they arrive on, the
+ * bytes of request and response bodies, and the objects each fetch wants.
+ */
+public class GitHttpFixture implements AutoCloseable {
+    private final HttpServer server;
+    private final Path repo;
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    // The number of objects wanted by each fetch request.
+    final Queue<Integer> fetches = new ConcurrentLinkedQueue<>();
+
+    public GitHttpFixture(Path repo) throws IOException {
+        this.repo = repo;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public String url() {
+        return "http://127.0.0.1:%d/repo".formatted(server.getAddress().getPort());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        connections.add(exchange.getRemoteAddress());
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String protocol = exchange.getRequestHeaders().getFirst("Git-Protocol");
+            if (path.endsWith("/info/refs")) {
+                exchange.getResponseHeaders().set("Content-Type", "application/x-git-upload-pack-advertisement");
+                exchange.sendResponseHeaders(200, 0);
+                try (var out = new CountingOutputStream(exchange.getResponseBody())) {
+                    if (protocol == null) {
+                        PktLine.write(out, "# service=git-upload-pack\n");
+                        PktLine.flush(out);
+                    }
+                    uploadPack(protocol, InputStream.nullInputStream(), out, "--advertise-refs");
+                }
+            } else if (path.endsWith("/git-upload-pack")) {
+                exchange.getResponseHeaders().set("Content-Type", "application/x-git-upload-pack-result");
+                exchange.sendResponseHeaders(200, 0);
+                try (var out = new CountingOutputStream(exchange.getResponseBody())) {
+                    byte[] request = exchange.getRequestBody().readAllBytes();
+                    bytesReceived.addAndGet(request.length);
+                    countWants(request);
+                    uploadPack(protocol, new ByteArrayInputStream(request), out);
+                }
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+            }
+        }
+    }
+
+    private void countWants(byte[] request) throws IOException {
+        var in = new ByteArrayInputStream(request);
+        boolean fetch = false;
+        int wants = 0;
+        for (byte[] line; (line = PktLine.read(in)) != PktLine.FLUSH;) {
+            String text = PktLine.text(line);
+            fetch |= text.equals("command=fetch");
+            if (text.startsWith("want ")) {
+                wants++;
+            }
+        }
+        if (fetch) {
+            fetches.add(wants);
+        }
+    }
+
+    private void uploadPack(String protocol, InputStream in, OutputStream out, String... extra) throws IOException {
+        var command = new ArrayList<String>(List.of("git", "upload-pack", "--stateless-rpc"));
+        command.addAll(List.of(extra));
+        command.add(repo.toString());
+        var builder = new ProcessBuilder(command);
+        if (protocol != null) {
+            builder.environment().put("GIT_PROTOCOL", protocol);
+        }
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        var process = builder.start();
+        try (var stdin = process.getOutputStream()) {
+            in.transferTo(stdin);
+        }
+        process.getInputStream().transferTo(out);
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private class CountingOutputStream extends FilterOutputStream {
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytesSent.addAndGet(len);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytesSent.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -1,16 +1,31 @@
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
 
 public class GitTest {
     private static byte[] asBytes(int[] ints) {
@@ -31,9 +46,9 @@ public class GitTest {
     // echo "hello, world" | git hash-object --stdin -w
     // xxd -i .git/objects/4b/5fa63702dd96796042e92787f464e28f09f17d
     private static final byte[] CONTENT = "hello, world\n".getBytes(UTF_8);
-    private static final byte[] CONTENT_HASH_BINARY = asBytes(new int[] {
+    private static final ObjectId CONTENT_HASH_BINARY = ObjectId.fromBytes(asBytes(new int[] {
             0x4b, 0x5f, 0xa6, 0x37, 0x02, 0xdd, 0x96, 0x79, 0x60, 0x42, 0xe9, 0x27,
-            0x87, 0xf4, 0x64, 0xe2, 0x8f, 0x09, 0xf1, 0x7d });
+            0x87, 0xf4, 0x64, 0xe2, 0x8f, 0x09, 0xf1, 0x7d }));
     private static final byte[] CONTENT_DATA = asBytes(new int[] {
             0x78, 0x01, 0x4b, 0xca, 0xc9, 0x4f, 0x52, 0x30, 0x34, 0x66, 0xc8, 0x48,
             0xcd, 0xc9, 0xc9, 0xd7, 0x51, 0x28, 0xcf, 0x2f, 0xca, 0x49, 0xe1, 0x02,
@@ -43,9 +58,9 @@ public class GitTest {
     // echo "hello, cruel world" | git hash-object --stdin -w
     // xxd -i .git/objects/bb/d698f6f2eb4009d9950c3a0317c536b504c842
     private static final byte[] CONTENT2 = "hello, cruel world\n".getBytes(UTF_8);
-    private static final byte[] CONTENT2_HASH_BINARY = asBytes(new int[] {
+    private static final ObjectId CONTENT2_HASH_BINARY = ObjectId.fromBytes(asBytes(new int[] {
             0xbb, 0xd6, 0x98, 0xf6, 0xf2, 0xeb, 0x40, 0x09, 0xd9, 0x95, 0x0c, 0x3a,
-            0x03, 0x17, 0xc5, 0x36, 0xb5, 0x04, 0xc8, 0x42 });
+            0x03, 0x17, 0xc5, 0x36, 0xb5, 0x04, 0xc8, 0x42 }));
     private static final byte[] CONTENT2_DATA = asBytes(new int[] {
             0x78, 0x01, 0x4b, 0xca, 0xc9, 0x4f, 0x52, 0x30, 0xb4, 0x64, 0xc8, 0x48,
             0xcd, 0xc9, 0xc9, 0xd7, 0x51, 0x48, 0x2e, 0x2a, 0x4d, 0xcd, 0x51, 0x28,
@@ -61,9 +76,9 @@ public class GitTest {
     private static final List<TreeObject> TREE_FILES = List.of(
             new TreeObject("hello.txt", ObjectType.Blob, 100644, CONTENT_HASH_BINARY),
             new TreeObject("hello2.txt", ObjectType.Blob, 100644, CONTENT2_HASH_BINARY));
-    private static final byte[] TREE_HASH_BINARY = asBytes(new int[] {
+    private static final ObjectId TREE_HASH_BINARY = ObjectId.fromBytes(asBytes(new int[] {
             0x58, 0xee, 0xd9, 0x8b, 0x03, 0xa8, 0xdf, 0x0e, 0x87, 0xc6, 0xb0, 0x23,
-            0xfd, 0x8e, 0x17, 0xa9, 0x39, 0xdb, 0xaa, 0x4c });
+            0xfd, 0x8e, 0x17, 0xa9, 0x39, 0xdb, 0xaa, 0x4c }));
     private static final byte[] TREE_DATA = asBytes(new int[] {
             0x78, 0x01, 0x2b, 0x29, 0x4a, 0x4d, 0x55, 0x30, 0x37, 0x65, 0x30, 0x34,
             0x30, 0x30, 0x33, 0x31, 0x51, 0xc8, 0x48, 0xcd, 0xc9, 0xc9, 0xd7, 0x2b,
@@ -74,12 +89,12 @@ public class GitTest {
             0xe5, 0x84, 0x13, 0x00, 0xe0, 0x71, 0x20, 0x10
     });
 
-    private static final List<byte[]> PARENT_COMMITS = List.of();
+    private static final List<ObjectId> PARENT_COMMITS = List.of();
     private static final String COMMIT_MESSAGE = "hello, git";
-    private static final byte[] COMMIT_HASH_BINARY = asBytes(new int[] {
+    private static final ObjectId COMMIT_HASH_BINARY = ObjectId.fromBytes(asBytes(new int[] {
             0x1d, 0x81, 0x5a, 0xa4, 0x9e, 0x6a, 0xda, 0x37, 0x83, 0x3a, 0xe1, 0x2d,
             0x05, 0xed, 0xac, 0x74, 0x36, 0x51, 0x13, 0x21,
-    });
+    }));
 
     @Test
     public void testInit() throws IOException, GitException {
@@ -94,16 +109,43 @@ public class GitTest {
                 Files.readString(root.resolve(".git/HEAD")));
     }
 
+    @Test
+    public void testObjectId() throws IOException {
+        // GIVEN
+        String hex = "4b5fa63702dd96796042e92787f464e28f09f17d";
+        byte[] padded = new byte[ObjectId.SIZE + 3];
+        CONTENT_HASH_BINARY.copyTo(padded, 3);
+
+        // WHEN
+        var id = ObjectId.fromHex(hex.toUpperCase());
+        var out = new ByteArrayOutputStream();
+        id.writeTo(out);
+
+        // THEN
+        assertEquals(CONTENT_HASH_BINARY, id);
+        assertEquals(CONTENT_HASH_BINARY.hashCode(), id.hashCode());
+        assertEquals(hex, id.hex());
+        assertArrayEquals(CONTENT_HASH_BINARY.toBytes(), out.toByteArray());
+        assertEquals(id, ObjectId.fromBytes(padded, 3));
+        assertTrue(id.equals(padded, 3));
+        assertEquals(0x4b, id.firstByte());
+        // Bytes compare unsigned, as in pack indexes.
+        assertTrue(id.compareTo(CONTENT2_HASH_BINARY) < 0);
+        assertTrue(ObjectId.ZERO.compareTo(id) < 0);
+        assertFalse(ObjectId.isHex(hex.substring(1) + "g"));
+        assertThrows(IllegalArgumentException.class, () -> ObjectId.fromHex(hex.substring(1)));
+    }
+
     @Test
     public void testHash() throws IOException, GitException {
         // GIVEN
         var git = FsObjectDatabase.init(Files.createTempDirectory("hash"));
 
         // WHEN
-        byte[] hash = git.hashBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
+        ObjectId hash = git.hashBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
 
         // THEN
-        assertArrayEquals(CONTENT_HASH_BINARY, hash);
+        assertEquals(CONTENT_HASH_BINARY, hash);
     }
 
     @Test
@@ -112,10 +154,10 @@ public class GitTest {
         var git = FsObjectDatabase.init(Files.createTempDirectory("write"));
 
         // WHEN
-        byte[] hash = git.writeBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
+        ObjectId hash = git.writeBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
 
         // THEN
-        assertArrayEquals(CONTENT_HASH_BINARY, hash);
+        assertEquals(CONTENT_HASH_BINARY, hash);
         byte[] content = git.readBlob(CONTENT_HASH_BINARY).readAllBytes();
         assertArrayEquals(CONTENT, content);
     }
@@ -176,8 +218,40 @@ public class GitTest {
             assertEquals(elems.get(i).name(), TREE_FILES.get(i).name());
             assertEquals(elems.get(i).type(), TREE_FILES.get(i).type());
             assertEquals(elems.get(i).mode(), TREE_FILES.get(i).mode());
-            assertArrayEquals(elems.get(i).hash(), TREE_FILES.get(i).hash());
+            assertEquals(elems.get(i).hash(), TREE_FILES.get(i).hash());
+        }
+    }
+
+    @Test
+    public void testReadTreeWithoutChildObjects() throws GitException, IOException {
+        // GIVEN
+        var git = FsObjectDatabase.init(Files.createTempDirectory("cursor"));
+        createFile(git.pathFor(TREE_HASH_BINARY), TREE_DATA);
+
+        // WHEN
+        var cursor = git.readTree(TREE_HASH_BINARY);
+
+        // THEN
+        for (var expected : TREE_FILES) {
+            assertTrue(cursor.next());
+            assertEquals(expected.name(), cursor.name());
+            assertEquals(expected.type(), cursor.type());
+            assertEquals(expected.mode(), cursor.mode());
+            assertTrue(cursor.hashEquals(expected.hash()));
         }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testReadTreeRejectsTruncatedEntry() throws GitException {
+        // GIVEN
+        byte[] truncated = "100644 file.txt\0short".getBytes(UTF_8);
+
+        // WHEN / THEN
+        assertThrows(GitException.class, () -> TreeCursor.of(truncated).next());
+        assertEquals(ObjectType.Tree, ObjectType.fromMode(40000));
+        assertEquals(ObjectType.Commit, ObjectType.fromMode(160000));
+        assertEquals(ObjectType.Blob, ObjectType.fromMode(120000));
     }
 
     @Test
@@ -189,10 +263,10 @@ public class GitTest {
 
         // WHEN
         var git = FsObjectDatabase.init(root);
-        byte[] hash = git.writeTree();
+        ObjectId hash = git.writeTree();
 
         // THEN
-        assertArrayEquals(TREE_HASH_BINARY, hash);
+        assertEquals(TREE_HASH_BINARY, hash);
     }
 
     @Test
@@ -207,6 +281,424 @@ public class GitTest {
         var hash = git.commitTree(TREE_HASH_BINARY, PARENT_COMMITS, COMMIT_MESSAGE);
 
         // THEN
-        assertArrayEquals(COMMIT_HASH_BINARY, hash);
+        assertEquals(COMMIT_HASH_BINARY, hash);
+    }
+
+    private static Path syntheticTree(String prefix, int dirs, int filesPerDir) throws IOException {
+        Path root = Files.createTempDirectory(prefix);
+        for (int d = 0; d < dirs; d++) {
+            for (int f = 0; f < filesPerDir; f++) {
+                String content = "directory %d file %d\n".formatted(d, f).repeat(f + 1);
+                createFile(root.resolve("dir%03d/sub%d/file%04d.txt".formatted(d, d % 3, f)), content.getBytes(UTF_8));
+            }
+        }
+        return root;
+    }
+
+    @Test
+    public void testParallelWriteTreeMatchesSequential() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("parallel", 20, 50);
+        var git = FsObjectDatabase.init(root);
+
+        // WHEN
+        ObjectId sequential = git.writeTree(1);
+        ObjectId parallel = git.writeTree(8);
+
+        // THEN
+        assertEquals(sequential, parallel);
+        assertEquals(sequential, git.writeTree());
+    }
+
+    @Test
+    public void testWriteTreeIndexIsReadByGit() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("index", 3, 4);
+        PackTest.git(root, "init", "-q");
+        var git = FsObjectDatabase.init(root);
+
+        // WHEN
+        ObjectId hash = git.writeTree();
+
+        // THEN
+        assertEquals(12, GitIndex.read(root.resolve(".git/index")).size());
+        assertEquals(hash.hex(), PackTest.gitString(root, "write-tree"));
+        PackTest.git(root, "diff-files", "--quiet");
+    }
+
+    @Test
+    public void testWriteTreeReusesCachedHashes() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("cached", 2, 2);
+        var old = FileTime.from(Instant.now().minusSeconds(60));
+        try (var paths = Files.walk(root)) {
+            for (var path : paths.filter(Files::isRegularFile).toList()) {
+                Files.setLastModifiedTime(path, old);
+            }
+        }
+        var git = FsObjectDatabase.init(root);
+        ObjectId first = git.writeTree();
+        Path unchanged = root.resolve("dir000/sub0/file0000.txt");
+        Path changed = root.resolve("dir001/sub1/file0001.txt");
+        ObjectId unchangedHash = git.hashBlob(Files.newInputStream(unchanged), Files.size(unchanged));
+        deleteObjects(root);
+
+        // WHEN
+        ObjectId second = git.writeTree();
+        Files.writeString(changed, "changed\n", StandardOpenOption.APPEND);
+        ObjectId third = git.writeTree();
+
+        // THEN
+        assertEquals(first, second);
+        assertFalse(Files.exists(git.pathFor(unchangedHash)));
+        assertNotEquals(first, third);
+        ObjectId changedHash = git.hashBlob(Files.newInputStream(changed), Files.size(changed));
+        assertTrue(Files.exists(git.pathFor(changedHash)));
+    }
+
+    private static List<Path> objectsDirEntries(Path root) throws IOException {
+        try (var paths = Files.walk(root.resolve(".git/objects"))) {
+            return paths.filter(Files::isRegularFile).toList();
+        }
+    }
+
+    @Test
+    public void testWriteSkipsExistingObjects() throws IOException, GitException {
+        // GIVEN
+        var git = FsObjectDatabase.init(Files.createTempDirectory("dedupe"));
+        ObjectId hash = git.writeBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
+        var old = FileTime.from(Instant.now().minusSeconds(60));
+        Files.setLastModifiedTime(git.pathFor(hash), old);
+
+        // WHEN
+        ObjectId again = git.writeBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        // THEN
+        assertEquals(hash, again);
+        assertEquals(old, Files.getLastModifiedTime(git.pathFor(hash)));
+        assertEquals(List.of(git.pathFor(hash)), objectsDirEntries(git.root()));
+    }
+
+    @Test
+    public void testBatchFsyncWriteTree() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("batch", 3, 5);
+        var expected = FsObjectDatabase.init(syntheticTree("nobatch", 3, 5)).writeTree();
+        createFile(root.resolve(".git/config"), "[core]\n\tfsyncMethod = batch\n".getBytes(UTF_8));
+
+        // WHEN
+        var git = FsObjectDatabase.init(root);
+        ObjectId hash = git.writeTree();
+
+        // THEN
+        assertEquals(expected, hash);
+        assertEquals(git.looseObjects().size(), objectsDirEntries(root).size());
+        for (var object : git.looseObjects()) {
+            git.readRaw(object);
+        }
+    }
+
+    // Creates a sparse file of the given size: all zeros but for a marker at
+    // the start and the end, so that it takes up almost no disk space.
+    private static Path sparseFile(Path dir, long size) throws IOException {
+        Path file = dir.resolve("large.bin");
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.SPARSE)) {
+            channel.write(ByteBuffer.wrap("start".getBytes(UTF_8)), 0);
+            channel.write(ByteBuffer.wrap("end".getBytes(UTF_8)), size - 3);
+        }
+        return file;
+    }
+
+    @Test
+    public void testWriteBlobLargerThan2GiB() throws IOException, GitException {
+        // GIVEN
+        Path root = Files.createTempDirectory("large");
+        PackTest.git(root, "init", "-q");
+        long size = (9L << 30) / 4;
+        Path file = sparseFile(root, size);
+        var git = FsObjectDatabase.init(root);
+
+        // WHEN
+        ObjectId hash = git.writeBlob(file);
+
+        // THEN
+        assertEquals(hash, git.hashBlob(file));
+        assertEquals(Long.toString(size), PackTest.gitString(root, "cat-file", "-s", hash.hex()));
+        var object = git.readObject(hash);
+        assertEquals(size, object.size());
+        try (var in = object.stream()) {
+            assertArrayEquals("start".getBytes(UTF_8), in.readNBytes(5));
+            byte[] buf = new byte[1 << 20];
+            long skipped = 0;
+            for (int n; skipped < size - 8; skipped += n) {
+                n = in.read(buf, 0, (int) Math.min(buf.length, size - 8 - skipped));
+                assertTrue(n > 0);
+            }
+            assertEquals(size - 8, skipped);
+            assertArrayEquals("end".getBytes(UTF_8), in.readAllBytes());
+        }
+        Files.delete(file);
+    }
+
+    @Test
+    public void testStreamingThresholdIsConfigurable() throws IOException, GitException {
+        // GIVEN
+        Path root = Files.createTempDirectory("threshold");
+        PackTest.git(root, "init", "-q");
+        Files.delete(root.resolve(".git/config"));
+        createFile(root.resolve(".git/config"),
+                "[core]\n\tbigFileThreshold = 1k\n\tpackedGitWindowSize = 64k\n".getBytes(UTF_8));
+        byte[] content = new byte[200_000];
+        new Random(1).nextBytes(content);
+        createFile(root.resolve("file.bin"), content);
+        var git = FsObjectDatabase.init(root);
+
+        // WHEN
+        ObjectId hash = git.writeBlob(root.resolve("file.bin"));
+
+        // THEN
+        assertEquals(PackTest.gitString(root, "hash-object", "file.bin"), hash.hex());
+        assertEquals(hash, git.hashBlob(root.resolve("file.bin")));
+        assertArrayEquals(content, git.readBlob(hash).readAllBytes());
+        assertEquals(5L << 20, GitConfig.read(root.resolve(".git/config")).getSize("core.missing", 5L << 20));
+    }
+
+    @Test
+    public void testZlibHandlesArePooled() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("zlib", 4, 25);
+        var git = FsObjectDatabase.init(root);
+        var before = ZlibPool.stats();
+
+        // WHEN
+        git.writeTree(4);
+        for (int i = 0; i < 3; i++) {
+            for (var hash : git.looseObjects()) {
+                git.getType(hash);
+                git.readRaw(hash);
+            }
+        }
+        var hashes = git.looseObjects();
+        new Repack(git).run();
+        for (var hash : hashes) {
+            git.readRaw(hash);
+        }
+
+        // THEN
+        // Nothing is left borrowed, though other tests may hold handles.
+        var after = ZlibPool.stats();
+        assertEquals(before.liveInflaters() - before.idleInflaters(), after.liveInflaters() - after.idleInflaters());
+        assertEquals(before.liveDeflaters() - before.idleDeflaters(), after.liveDeflaters() - after.idleDeflaters());
+        assertTrue(after.reused() - before.reused() > 10 * (after.created() - before.created()));
+    }
+
+    // The second byte of a zlib stream records the compression level.
+    private static int looseLevelByte(FsObjectDatabase git, ObjectId hash) throws IOException {
+        return Files.readAllBytes(git.pathFor(hash))[1] & 0xff;
+    }
+
+    @Test
+    public void testCompressionLevelConfig() throws IOException, GitException {
+        // GIVEN
+        var defaults = FsObjectDatabase.init(Files.createTempDirectory("level-default"));
+        Path best = Files.createTempDirectory("level-best");
+        createFile(best.resolve(".git/config"), "[core]\n\tcompression = 9\n".getBytes(UTF_8));
+        Path loose = Files.createTempDirectory("level-loose");
+        createFile(loose.resolve(".git/config"),
+                "[core]\n\tcompression = 9\n\tlooseCompression = 0\n".getBytes(UTF_8));
+        Path bad = Files.createTempDirectory("level-bad");
+        createFile(bad.resolve(".git/config"), "[core]\n\tcompression = 10\n".getBytes(UTF_8));
+
+        // WHEN
+        var hash = defaults.writeBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
+        FsObjectDatabase.init(best).writeBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
+        FsObjectDatabase.init(loose).writeBlob(new ByteArrayInputStream(CONTENT), CONTENT.length);
+
+        // THEN
+        assertEquals(CONTENT_DATA[1] & 0xff, looseLevelByte(defaults, hash));
+        assertEquals(0xda, looseLevelByte(FsObjectDatabase.open(best), hash));
+        assertEquals(9, FsObjectDatabase.open(best).packCompression());
+        assertEquals(-1, defaults.packCompression());
+        assertEquals(0x01, looseLevelByte(FsObjectDatabase.open(loose), hash));
+        assertThrows(GitException.class, () -> FsObjectDatabase.open(bad));
+    }
+
+    @Test
+    public void testConfig() throws IOException, GitException {
+        // GIVEN
+        Path file = Files.createTempDirectory("config").resolve("config");
+        Files.writeString(file, """
+                [core]
+                \tbare = false
+                \tFsyncObjectFiles ; a comment
+                [remote "origin"]
+                \turl = "https://example.com/repo.git" # another comment
+                """, UTF_8);
+
+        // WHEN
+        var config = GitConfig.read(file);
+
+        // THEN
+        assertFalse(config.getBoolean("core.bare", true));
+        assertTrue(config.getBoolean("core.fsyncobjectfiles", false));
+        assertEquals("https://example.com/repo.git", config.get("remote.origin.url").orElseThrow());
+        assertTrue(config.get("remote.Origin.url").isEmpty());
+    }
+
+    @Test
+    public void testCachingObjectDatabase() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("cache", 4, 10);
+        byte[] large = new byte[CachingObjectDatabase.OFF_HEAP_THRESHOLD * 2];
+        Arrays.fill(large, (byte) 'x');
+        createFile(root.resolve("large.bin"), large);
+        var git = FsObjectDatabase.init(root);
+        ObjectId tree = git.writeTree();
+        var cache = new CachingObjectDatabase(git, 16L << 20);
+
+        // WHEN
+        var first = cache.listTree(tree);
+        var second = cache.listTree(tree);
+        var largeHash = first.stream().filter(e -> e.name().equals("large.bin")).findFirst().orElseThrow().hash();
+        byte[] read1 = cache.readBlob(largeHash).readAllBytes();
+        byte[] read2 = cache.readBlob(largeHash).readAllBytes();
+
+        // THEN
+        assertEquals(git.listTree(tree).stream().map(TreeObject::name).toList(),
+                second.stream().map(TreeObject::name).toList());
+        assertArrayEquals(large, read1);
+        assertArrayEquals(large, read2);
+        var stats = cache.stats();
+        assertEquals(2, stats.hits());
+        assertEquals(2, stats.misses());
+        assertEquals(0, stats.evictions());
+        assertTrue(stats.bytes() >= large.length);
+    }
+
+    @Test
+    public void testCachingObjectDatabaseStreamsUncachedBlobs() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("uncached", 1, 1);
+        byte[] large = new byte[4096];
+        Arrays.fill(large, (byte) 'x');
+        createFile(root.resolve("large.bin"), large);
+        var git = FsObjectDatabase.init(root);
+        ObjectId tree = git.writeTree();
+        var largeHash = git.listTree(tree).stream().filter(e -> e.name().equals("large.bin")).findFirst()
+                .orElseThrow().hash();
+        // Segments of 1 KiB.
+        var cache = new CachingObjectDatabase(git, 16 * 1024);
+
+        // WHEN
+        byte[] read1 = cache.readBlob(largeHash).readAllBytes();
+        byte[] read2 = cache.readBlob(largeHash).readAllBytes();
+
+        // THEN
+        assertArrayEquals(large, read1);
+        assertArrayEquals(large, read2);
+        assertEquals(large.length, cache.getSize(largeHash));
+        var stats = cache.stats();
+        assertEquals(0, stats.hits());
+        assertEquals(0, stats.bytes());
+    }
+
+    @Test
+    public void testCachingObjectDatabaseEvictsConcurrently() throws IOException, GitException {
+        // GIVEN
+        Path root = syntheticTree("evict", 8, 40);
+        var git = FsObjectDatabase.init(root);
+        git.writeTree();
+        var hashes = git.looseObjects();
+        var cache = new CachingObjectDatabase(git, 16 * 1024);
+
+        // WHEN
+        hashes.parallelStream().forEach(hash -> {
+            for (int i = 0; i < 3; i++) {
+                try {
+                    assertArrayEquals(git.readRaw(hash).data(), cache.readRaw(hash).data());
+                } catch (IOException | GitException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        // THEN
+        var stats = cache.stats();
+        assertEquals(3L * hashes.size(), stats.hits() + stats.misses());
+        assertTrue(stats.evictions() > 0);
+        assertTrue(stats.bytes() <= 16 * 1024);
+    }
+
+    private static ObjectId[] randomIds(int count, long seed) {
+        var random = new Random(seed);
+        var ids = new ObjectId[count];
+        byte[] bytes = new byte[ObjectId.SIZE];
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(bytes);
+            ids[i] = ObjectId.fromBytes(bytes);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testObjectIdSetConcurrentInserts() {
+        // GIVEN
+        var ids = randomIds(100_000, 1);
+        ids[0] = ObjectId.ZERO;
+        var set = new ObjectIdSet();
+        var map = new ObjectIdMap(ids.length);
+
+        // WHEN
+        long added = IntStream.range(0, 2 * ids.length).parallel()
+                .filter(i -> set.add(ids[i % ids.length]))
+                .count();
+        IntStream.range(0, ids.length).parallel().forEach(i -> map.putIfAbsent(ids[i], i));
+
+        // THEN
+        assertEquals(ids.length, added);
+        assertEquals(ids.length, set.size());
+        assertEquals(ids.length, map.size());
+        var visited = new HashSet<ObjectId>();
+        set.forEach(visited::add);
+        assertEquals(Set.of(ids), visited);
+        for (int i = 0; i < ids.length; i++) {
+            assertTrue(set.contains(ids[i]));
+            assertEquals(i, map.getOrDefault(ids[i], -1));
+        }
+        for (var absent : randomIds(1000, 2)) {
+            assertFalse(set.contains(absent));
+            assertEquals(-1, map.getOrDefault(absent, -1));
+        }
+        assertFalse(map.putIfAbsent(ids[1], 7));
+        assertFalse(map.put(ids[1], 7));
+        assertEquals(7, map.getOrDefault(ids[1], -1));
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void benchmarkWriteTree() throws IOException, GitException {
+        Path root = syntheticTree("benchmark", 100, 200);
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int parallelism : new int[] { 1, cores }) {
+            var git = FsObjectDatabase.init(root);
+            deleteObjects(root);
+            Files.deleteIfExists(root.resolve(".git/index"));
+            long start = System.nanoTime();
+            git.writeTree(parallelism);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("write-tree parallelism=%d: %d files in %.2fs (%.0f files/s)%n",
+                    parallelism, 100 * 200, seconds, 100 * 200 / seconds);
+        }
+    }
+
+    private static void deleteObjects(Path root) throws IOException {
+        try (var paths = Files.walk(root.resolve(".git/objects"))) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                if (!path.equals(root.resolve(".git/objects"))) {
+                    Files.delete(path);
+                }
+            }
+        }
     }
 }
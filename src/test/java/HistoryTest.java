@@ -0,0 +1,297 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class HistoryTest {
+    private static final String JAVA = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    private static final long T = 1_700_000_000L;
+
+    record History(Path root, Map<String, ObjectId> commits) {
+        ObjectId get(String name) {
+            return commits.get(name);
+        }
+    }
+
+    // Writes a commit with its own one-file tree, committed at the given time
+    // in -0700 and authored a minute earlier in +0530.
+    static ObjectId commit(Path root, String message, long time, ObjectId... parents) throws IOException {
+        String blob = new String(PackTest.git(root, message.getBytes(UTF_8), "hash-object", "-w", "--stdin"), UTF_8)
+                .trim();
+        String tree = new String(PackTest.git(root, "100644 blob %s\tfile.txt\n".formatted(blob).getBytes(UTF_8),
+                "mktree"), UTF_8).trim();
+        var args = new ArrayList<>(List.of("commit-tree", tree, "-m", message));
+        for (var parent : parents) {
+            args.add("-p");
+            args.add(parent.hex());
+        }
+        var env = Map.of("GIT_COMMITTER_DATE", "%d -0700".formatted(time),
+                "GIT_AUTHOR_DATE", "%d +0530".formatted(time - 60));
+        byte[] out = PackTest.git(root, env, new byte[0], args.toArray(String[]::new));
+        return ObjectId.fromHex(new String(out, UTF_8).trim());
+    }
+
+    // Builds a history with a merge, an octopus merge, a criss-cross merge,
+    // two commits with the same time, a second root, a child older than its parent, an annotated
+    // tag, and both packed and loose refs.
+    static History history(String prefix) throws IOException {
+        Path root = Files.createTempDirectory(prefix);
+        PackTest.git(root, "init", "-q");
+        var commits = new LinkedHashMap<String, ObjectId>();
+        commits.put("c0", commit(root, "root", T));
+        commits.put("c1", commit(root, "left", T + 10, commits.get("c0")));
+        commits.put("c2", commit(root, "right", T + 20, commits.get("c0")));
+        commits.put("c3", commit(root, "merge", T + 30, commits.get("c1"), commits.get("c2")));
+        commits.put("c4", commit(root, "first", T + 40, commits.get("c3")));
+        commits.put("c5", commit(root, "second", T + 40, commits.get("c3")));
+        commits.put("c6", commit(root, "third", T + 35, commits.get("c3")));
+        commits.put("c7", commit(root, "octopus", T + 50, commits.get("c4"), commits.get("c5"), commits.get("c6")));
+        commits.put("c8", commit(root, "\nsubject\n\n\nbody line\n  indented\n\n", T + 60, commits.get("c7")));
+        commits.put("x1", commit(root, "criss", T + 45, commits.get("c4"), commits.get("c5")));
+        commits.put("x2", commit(root, "cross", T + 46, commits.get("c5"), commits.get("c4")));
+        commits.put("r0", commit(root, "other root", T + 25));
+        commits.put("r1", commit(root, "skewed", T + 5, commits.get("r0")));
+        PackTest.git(root, "update-ref", "refs/heads/main", commits.get("c8").hex());
+        PackTest.git(root, "update-ref", "refs/heads/other", commits.get("r1").hex());
+        PackTest.git(root, "update-ref", "refs/heads/criss", commits.get("x1").hex());
+        PackTest.git(root, "update-ref", "refs/heads/cross", commits.get("x2").hex());
+        PackTest.git(root, "symbolic-ref", "HEAD", "refs/heads/main");
+        PackTest.git(root, "tag", "-a", "v1", "-m", "tag", commits.get("c5").hex());
+        PackTest.git(root, "pack-refs", "--all");
+        PackTest.git(root, "update-ref", "refs/heads/feature", commits.get("c6").hex());
+        return new History(root, commits);
+    }
+
+    // Runs our git in a new JVM in the given directory and returns its output.
+    static String run(Path dir, String... args) throws IOException, URISyntaxException, InterruptedException {
+        Path classes = Path.of(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        var command = new ArrayList<>(List.of(JAVA, "-cp", classes.toString(), "Main"));
+        command.addAll(List.of(args));
+        var process = new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        String out = new String(process.getInputStream().readAllBytes(), UTF_8);
+        assertEquals(0, process.waitFor(), String.join(" ", args));
+        return out.trim();
+    }
+
+    @Test
+    public void testReadCommit() throws IOException, GitException {
+        // GIVEN
+        var history = history("commit");
+        var git = FsObjectDatabase.open(history.root());
+
+        // WHEN
+        var octopus = git.readCommit(history.get("c7"));
+        var last = git.readCommit(history.get("c8"));
+
+        // THEN
+        assertEquals(List.of(history.get("c4"), history.get("c5"), history.get("c6")), octopus.parents());
+        assertEquals(PackTest.gitString(history.root(), "rev-parse", "main^{tree}"), last.tree().hex());
+        assertEquals(new Commit.Signature("test", "test@example.com", T + 60, "-0700"), last.committer());
+        assertEquals(new Commit.Signature("test", "test@example.com", T, "+0530"), last.author());
+        assertEquals("2023-11-14T15:14:20-07:00", last.committer().dateTime().toString());
+        assertEquals("\nsubject\n\n\nbody line\n  indented\n\n", last.message());
+        assertEquals(List.of(), git.readCommit(history.get("r0")).parents());
+        assertEquals(ObjectType.Tag, git.getType(git.resolve("v1").orElseThrow()));
+        assertEquals(history.get("c6"), git.resolve("feature").orElseThrow());
+        assertEquals(history.get("r1"), git.resolve("other").orElseThrow());
+    }
+
+    @Test
+    public void testLogMatchesGit() throws Exception {
+        // GIVEN
+        var history = history("log");
+
+        List<List<String>> cases = List.of(List.of(), List.of("main", "other"), List.of("-n", "3", "other", "main"),
+                List.of("--topo-order", "main", "criss", "cross"));
+        for (var args : cases) {
+            // WHEN
+            var ours = new ArrayList<>(List.of("log"));
+            ours.addAll(args);
+            String log = run(history.root(), ours.toArray(String[]::new));
+
+            // THEN
+            assertEquals(PackTest.gitString(history.root(), ours.toArray(String[]::new)), log, args.toString());
+        }
+    }
+
+    @Test
+    public void testCommitGraphMatchesGit() throws IOException, GitException {
+        // GIVEN
+        var history = history("graph");
+        var git = FsObjectDatabase.open(history.root());
+        Path file = CommitGraph.file(git.objectsDir());
+
+        // WHEN
+        int count = CommitGraph.write(git);
+
+        // THEN
+        assertEquals(history.commits().size(), count);
+        PackTest.gitString(history.root(), "commit-graph", "verify");
+        byte[] ours = Files.readAllBytes(file);
+        Files.delete(file);
+        PackTest.git(history.root(), "-c", "commitGraph.generationVersion=1", "commit-graph", "write", "--reachable");
+        assertArrayEquals(Files.readAllBytes(file), ours);
+    }
+
+    @Test
+    public void testReadsGitCommitGraph() throws IOException, GitException {
+        // GIVEN
+        var history = history("graph-read");
+        var git = FsObjectDatabase.open(history.root());
+        CommitGraph.write(git);
+        var generations = new LinkedHashMap<ObjectId, Integer>();
+        for (var id : history.commits().values()) {
+            var graph = git.commitGraph().orElseThrow();
+            generations.put(id, graph.generationAt(graph.find(id)));
+        }
+
+        // WHEN
+        Files.delete(CommitGraph.file(git.objectsDir()));
+        PackTest.git(history.root(), "commit-graph", "write", "--reachable");
+        git.rescanCommitGraph();
+        var graph = git.commitGraph().orElseThrow();
+
+        // THEN
+        assertEquals(history.commits().size(), graph.count());
+        assertEquals(1, generations.get(history.get("c0")));
+        assertEquals(6, generations.get(history.get("c8")));
+        for (var id : history.commits().values()) {
+            int pos = graph.find(id);
+            var commit = git.readCommit(id);
+            assertEquals(id, graph.idAt(pos));
+            assertEquals(commit.tree(), graph.treeAt(pos));
+            assertEquals(commit.commitTime(), graph.commitTimeAt(pos));
+            assertEquals(generations.get(id), graph.generationAt(pos));
+            var parents = new ArrayList<ObjectId>();
+            for (int parent : graph.parentsAt(pos)) {
+                parents.add(graph.idAt(parent));
+                assertTrue(graph.generationAt(parent) < graph.generationAt(pos));
+            }
+            assertEquals(commit.parents(), parents);
+        }
+        assertEquals(-1, graph.find(ObjectId.ZERO));
+    }
+
+    private static Set<ObjectId> gitMergeBases(Path root, ObjectId a, ObjectId b) throws IOException {
+        try {
+            var bases = new HashSet<ObjectId>();
+            for (var line : PackTest.gitString(root, "merge-base", "--all", a.hex(), b.hex()).split("\n")) {
+                bases.add(ObjectId.fromHex(line));
+            }
+            return bases;
+        } catch (IOException e) {
+            // git merge-base fails when there is no common ancestor.
+            return Set.of();
+        }
+    }
+
+    @Test
+    public void testAncestryMatchesGit() throws IOException, GitException {
+        // GIVEN
+        var history = history("ancestry");
+        var git = FsObjectDatabase.open(history.root());
+        var reachable = new HashMap<ObjectId, Set<ObjectId>>();
+        for (var id : history.commits().values()) {
+            var ancestors = new HashSet<ObjectId>();
+            for (var line : PackTest.gitString(history.root(), "rev-list", id.hex()).split("\n")) {
+                ancestors.add(ObjectId.fromHex(line));
+            }
+            reachable.put(id, ancestors);
+        }
+
+        for (boolean withGraph : new boolean[] { false, true }) {
+            if (withGraph) {
+                CommitGraph.write(git);
+            }
+            var walk = RevWalk.open(git);
+            for (var a : history.commits().values()) {
+                for (var b : history.commits().values()) {
+                    // WHEN
+                    boolean isAncestor = walk.isAncestor(a, b);
+
+                    // THEN
+                    assertEquals(reachable.get(b).contains(a), isAncestor, "%s %s graph=%s".formatted(a, b, withGraph));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMergeBasesMatchGit() throws IOException, GitException {
+        // GIVEN
+        var history = history("merge-base");
+        var git = FsObjectDatabase.open(history.root());
+        var ids = List.copyOf(history.commits().values());
+        var expected = new HashMap<List<ObjectId>, Set<ObjectId>>();
+        for (int i = 0; i < ids.size(); i++) {
+            for (int j = i + 1; j < ids.size(); j++) {
+                expected.put(List.of(ids.get(i), ids.get(j)), gitMergeBases(history.root(), ids.get(i), ids.get(j)));
+            }
+        }
+
+        for (boolean withGraph : new boolean[] { false, true }) {
+            if (withGraph) {
+                CommitGraph.write(git);
+            }
+            var walk = RevWalk.open(git);
+            for (var pair : expected.keySet()) {
+                // WHEN
+                var bases = walk.mergeBases(pair.get(0), pair.get(1));
+
+                // THEN
+                assertEquals(expected.get(pair), Set.copyOf(bases), "%s graph=%s".formatted(pair, withGraph));
+                assertEquals(bases.size(), Set.copyOf(bases).size());
+            }
+        }
+        var crissCross = List.of(history.get("x1"), history.get("x2"));
+        assertEquals(Set.of(history.get("c4"), history.get("c5")), expected.get(crissCross));
+    }
+
+    @Test
+    public void testTopoOrder() throws IOException, GitException {
+        // GIVEN
+        var history = history("topo");
+        var git = FsObjectDatabase.open(history.root());
+        var tips = List.of(history.get("c8"), history.get("x1"), history.get("x2"), history.get("r1"));
+
+        for (boolean withGraph : new boolean[] { false, true }) {
+            if (withGraph) {
+                CommitGraph.write(git);
+            }
+            var walk = RevWalk.open(git);
+
+            // WHEN
+            walk.start(tips, RevWalk.Order.TOPO);
+            var order = new ArrayList<ObjectId>();
+            for (var next = walk.next(); next.isPresent(); next = walk.next()) {
+                order.add(next.get());
+            }
+
+            // THEN
+            var expected = new ArrayList<ObjectId>();
+            var args = new ArrayList<>(List.of("rev-list", "--topo-order"));
+            tips.forEach(tip -> args.add(tip.hex()));
+            for (var line : PackTest.gitString(history.root(), args.toArray(String[]::new)).split("\n")) {
+                expected.add(ObjectId.fromHex(line));
+            }
+            assertEquals(expected, order, "graph=%s".formatted(withGraph));
+        }
+    }
+}
@@ -0,0 +1,398 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+public class PackTest {
+    static byte[] git(Path dir, String... args) throws IOException {
+        return git(dir, new byte[0], args);
+    }
+
+    static byte[] git(Path dir, byte[] input, String... args) throws IOException {
+        return git(dir, Map.of(), input, args);
+    }
+
+    static byte[] git(Path dir, Map<String, String> env, byte[] input, String... args) throws IOException {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.addAll(List.of(args));
+        var builder = new ProcessBuilder(command).directory(dir.toFile());
+        builder.environment().put("GIT_AUTHOR_NAME", "test");
+        builder.environment().put("GIT_AUTHOR_EMAIL", "test@example.com");
+        builder.environment().put("GIT_COMMITTER_NAME", "test");
+        builder.environment().put("GIT_COMMITTER_EMAIL", "test@example.com");
+        builder.environment().putAll(env);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Path stdin = Files.createTempFile("stdin", "");
+        Files.write(stdin, input);
+        builder.redirectInput(stdin.toFile());
+        var process = builder.start();
+        byte[] out = process.getInputStream().readAllBytes();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("git %s failed".formatted(String.join(" ", args)));
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            Files.delete(stdin);
+        }
+        return out;
+    }
+
+    static String gitString(Path dir, String... args) throws IOException {
+        return new String(git(dir, args), UTF_8).trim();
+    }
+
+    // Builds a repository whose history has many near-identical versions of
+    // the same files, so that `git repack` produces long delta chains.
+    static Path packedRepository(String prefix) throws IOException {
+        Path root = Files.createTempDirectory(prefix);
+        git(root, "init", "-q");
+        var content = new StringBuilder();
+        for (int commit = 0; commit < 20; commit++) {
+            for (int line = 0; line < 50; line++) {
+                content.append("commit %d line %d\n".formatted(commit, line));
+            }
+            Files.writeString(root.resolve("file.txt"), content, UTF_8);
+            Files.createDirectories(root.resolve("dir"));
+            Files.writeString(root.resolve("dir/nested.txt"), content.reverse(), UTF_8);
+            content.reverse();
+            git(root, "add", ".");
+            git(root, "commit", "-q", "-m", "commit %d".formatted(commit));
+        }
+        git(root, "repack", "-q", "-a", "-d", "-f", "--depth=50");
+        git(root, "prune-packed");
+        return root;
+    }
+
+    static List<ObjectId> allObjects(Path root) throws IOException {
+        var hashes = new ArrayList<ObjectId>();
+        for (var line : gitString(root, "rev-list", "--objects", "--all").split("\n")) {
+            hashes.add(ObjectId.fromHex(line.substring(0, ObjectId.HEX_SIZE)));
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testReadPackedObjects() throws IOException, GitException {
+        // GIVEN
+        Path root = packedRepository("packed");
+        var git = FsObjectDatabase.init(root);
+        assertEquals(1, git.packs().packs().size());
+
+        // WHEN / THEN
+        for (var hash : allObjects(root)) {
+            String sha = hash.hex();
+            ObjectType type = git.getType(hash);
+            assertEquals(gitString(root, "cat-file", "-t", sha), type.toString());
+            assertEquals(Long.parseLong(gitString(root, "cat-file", "-s", sha)), git.getSize(hash));
+            if (type == ObjectType.Blob) {
+                assertArrayEquals(git(root, "cat-file", "blob", sha), git.readBlob(hash).readAllBytes());
+            } else if (type == ObjectType.Tree) {
+                var names = git.listTree(hash).stream().map(TreeObject::name).toList();
+                assertEquals(List.of(gitString(root, "ls-tree", "--name-only", sha).split("\n")), names);
+            }
+        }
+    }
+
+    @Test
+    public void testDeltaChains() throws IOException, GitException {
+        // GIVEN
+        Path root = packedRepository("deltas");
+        var git = FsObjectDatabase.init(root);
+        var pack = git.packs().packs().getFirst();
+
+        // WHEN
+        String verify = gitString(root, "verify-pack", "-v", pack.path().toString());
+
+        // THEN
+        assertTrue(verify.contains("chain length"), "expected git to produce deltas");
+        for (int i = 0; i < pack.count(); i++) {
+            assertEquals(pack.offsetAt(i), pack.find(pack.hashAt(i)));
+        }
+    }
+
+    @Test
+    public void testLooseFallback() throws IOException, GitException {
+        // GIVEN
+        Path root = packedRepository("fallback");
+        var git = FsObjectDatabase.init(root);
+        byte[] content = "not yet packed\n".getBytes(UTF_8);
+
+        // WHEN
+        ObjectId hash = git.writeBlob(new ByteArrayInputStream(content), content.length);
+
+        // THEN
+        assertFalse(git.packs().contains(hash));
+        assertEquals(ObjectType.Blob, git.getType(hash));
+        assertArrayEquals(content, git.readBlob(hash).readAllBytes());
+    }
+
+    @Test
+    public void testDeltaRoundTrip() throws GitException {
+        // GIVEN
+        var base = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            base.append("line %d of the base\n".formatted(i));
+        }
+        byte[] baseBytes = base.toString().getBytes(UTF_8);
+        byte[] targetBytes = base.insert(5000, "an insertion").delete(100, 300).toString().getBytes(UTF_8);
+
+        // WHEN
+        byte[] delta = Delta.create(baseBytes, targetBytes, targetBytes.length);
+
+        // THEN
+        assertTrue(delta.length < targetBytes.length / 10);
+        assertEquals(targetBytes.length, Delta.resultSize(delta));
+        assertArrayEquals(targetBytes, Delta.apply(baseBytes, delta));
+    }
+
+    @Test
+    public void testTruncatedDeltas() {
+        // GIVEN
+        byte[] base = "a base to copy from\n".getBytes(UTF_8);
+        var truncated = List.of(
+                // Sizes only, the second one cut short.
+                new byte[] { 20, (byte) 0x80 },
+                // A copy of bytes 1-4 whose offset byte is missing.
+                new byte[] { 20, 4, (byte) 0x91 },
+                // A copy whose size byte is missing.
+                new byte[] { 20, 4, (byte) 0x91, 1 });
+
+        for (var delta : truncated) {
+            // WHEN
+            var e = assertThrows(GitException.class, () -> Delta.apply(base, delta));
+
+            // THEN
+            assertEquals("invalid delta: truncated", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCorruptDeltaBases() throws IOException, GitException, NoSuchAlgorithmException {
+        // GIVEN
+        Path dir = Files.createTempDirectory("corrupt-deltas");
+        var ids = new ArrayList<ObjectId>();
+        for (int i = 0; i < 6; i++) {
+            ids.add(ObjectId.fromHex("%040d".formatted(i + 1)));
+        }
+        // Copies all 5 bytes of the base.
+        byte[] delta = { 5, 5, (byte) 0x90, 5 };
+        var pack = new ByteArrayOutputStream();
+        var data = new DataOutputStream(pack);
+        data.write("PACK".getBytes(UTF_8));
+        data.writeInt(2);
+        data.writeInt(ids.size());
+        var offsets = new ArrayList<Long>();
+        var deflater = new Deflater();
+        // A blob.
+        offsets.add((long) pack.size());
+        data.write(0x35);
+        data.write(Repack.deflate(deflater, "base\n".getBytes(UTF_8)));
+        // An OFS_DELTA at distance 0, its own base.
+        offsets.add((long) pack.size());
+        data.write(new byte[] { 0x64, 0 });
+        data.write(Repack.deflate(deflater, delta));
+        // An OFS_DELTA whose base would be before the start of the pack.
+        offsets.add((long) pack.size());
+        data.write(new byte[] { 0x64, 0x7f });
+        data.write(Repack.deflate(deflater, delta));
+        // A REF_DELTA naming itself, then two naming each other.
+        for (int base : new int[] { 3, 5, 4 }) {
+            offsets.add((long) pack.size());
+            data.write(0x74);
+            ids.get(base).writeTo(data);
+            data.write(Repack.deflate(deflater, delta));
+        }
+        deflater.end();
+        byte[] checksum = MessageDigest.getInstance("SHA-1").digest(pack.toByteArray());
+        data.write(checksum);
+        Files.write(dir.resolve("pack-corrupt.pack"), pack.toByteArray());
+        var entries = new ArrayList<PackIndexWriter.Entry>();
+        for (int i = 0; i < ids.size(); i++) {
+            entries.add(new PackIndexWriter.Entry(ids.get(i), offsets.get(i), 0));
+        }
+        try (var out = Files.newOutputStream(dir.resolve("pack-corrupt.idx"))) {
+            PackIndexWriter.write(out, entries, checksum);
+        }
+        var packFile = PackFile.open(dir.resolve("pack-corrupt.idx"));
+
+        // WHEN
+        var blob = packFile.readAt(offsets.get(0));
+
+        // THEN
+        assertArrayEquals("base\n".getBytes(UTF_8), blob.data());
+        for (long offset : offsets.subList(1, offsets.size())) {
+            var e = assertThrows(GitException.class, () -> packFile.readAt(offset));
+            assertTrue(e.getMessage().startsWith("corrupt pack"), e.getMessage());
+            e = assertThrows(GitException.class, () -> packFile.typeAt(offset));
+            assertTrue(e.getMessage().startsWith("corrupt pack"), e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRepack() throws IOException, GitException {
+        // GIVEN
+        Path root = Files.createTempDirectory("repack");
+        git(root, "init", "-q");
+        var git = FsObjectDatabase.init(root);
+        var content = new StringBuilder();
+        ObjectId parent = null;
+        for (int commit = 0; commit < 10; commit++) {
+            for (int line = 0; line < 100; line++) {
+                content.append("commit %d line %d\n".formatted(commit, line));
+            }
+            Files.writeString(root.resolve("file.txt"), content, UTF_8);
+            ObjectId tree = git.writeTree();
+            parent = git.commitTree(tree, parent == null ? List.of() : List.of(parent), "commit " + commit);
+        }
+        Files.writeString(root.resolve(".git/refs/heads/main"), parent.hex() + "\n");
+        var loose = git.looseObjects();
+
+        // WHEN
+        var result = new Repack(git).run();
+
+        // THEN
+        assertTrue(result.isPresent());
+        assertEquals(loose.size(), result.get().objects());
+        assertTrue(result.get().deltas() > 0);
+        assertTrue(git.looseObjects().isEmpty());
+        gitString(root, "verify-pack", result.get().pack().toString().replace(".pack", ".idx"));
+        gitString(root, "fsck", "--strict");
+        for (var hash : loose) {
+            String sha = hash.hex();
+            assertEquals(gitString(root, "cat-file", "-t", sha), git.getType(hash).toString());
+            assertArrayEquals(git(root, "cat-file", git.getType(hash).toString(), sha), git.readRaw(hash).data());
+        }
+    }
+
+    @Test
+    public void testRepackStreamsBigBlobs() throws IOException, GitException {
+        // GIVEN
+        Path root = Files.createTempDirectory("repack");
+        git(root, "init", "-q");
+        Files.writeString(root.resolve(".git/config"), "[core]\n\tbigFileThreshold = 2k\n", UTF_8,
+                StandardOpenOption.APPEND);
+        var git = FsObjectDatabase.open(root);
+        var content = new StringBuilder();
+        ObjectId parent = null;
+        for (int commit = 0; commit < 5; commit++) {
+            for (int line = 0; line < 100; line++) {
+                content.append("commit %d line %d\n".formatted(commit, line));
+            }
+            Files.writeString(root.resolve("big.txt"), content, UTF_8);
+            Files.writeString(root.resolve("small.txt"), "commit %d\n".formatted(commit), UTF_8);
+            ObjectId tree = git.writeTree();
+            parent = git.commitTree(tree, parent == null ? List.of() : List.of(parent), "commit " + commit);
+        }
+        Files.writeString(root.resolve(".git/refs/heads/main"), parent.hex() + "\n");
+        var loose = git.looseObjects();
+
+        // WHEN
+        var result = new Repack(git).run();
+
+        // THEN
+        assertTrue(result.isPresent());
+        assertEquals(loose.size(), result.get().objects());
+        String verified = gitString(root, "verify-pack", "-v",
+                result.get().pack().toString().replace(".pack", ".idx"));
+        // Blobs, all big but the small.txt ones, are stored whole: no depth
+        // and base columns.
+        assertTrue(verified.lines().filter(line -> line.contains(" blob "))
+                .allMatch(line -> line.split("\\s+").length == 5));
+        gitString(root, "fsck", "--strict");
+        for (var hash : loose) {
+            assertArrayEquals(git(root, "cat-file", git.getType(hash).toString(), hash.hex()), git.readRaw(hash).data());
+        }
+    }
+
+    // A wider history than packedRepository, with many independent delta
+    // trees so that resolution actually fans out across workers.
+    static Path wideRepository(String prefix) throws IOException {
+        Path root = Files.createTempDirectory(prefix);
+        git(root, "init", "-q");
+        for (int commit = 0; commit < 30; commit++) {
+            for (int file = 0; file < 40; file++) {
+                var content = new StringBuilder();
+                for (int line = 0; line < 40 + commit; line++) {
+                    content.append("file %d line %d%s\n".formatted(file, line, line == commit ? " changed" : ""));
+                }
+                Files.writeString(root.resolve("file%02d.txt".formatted(file)), content, UTF_8);
+            }
+            git(root, "add", ".");
+            git(root, "commit", "-q", "-m", "commit %d".formatted(commit));
+        }
+        git(root, "repack", "-q", "-a", "-d", "-f", "--depth=50", "--window=50");
+        git(root, "prune-packed");
+        return root;
+    }
+
+    @Test
+    public void testParallelIndexMatchesGit() throws IOException, GitException {
+        // GIVEN
+        Path root = wideRepository("index");
+        var pack = FsObjectDatabase.init(root).packs().packs().getFirst().path();
+        byte[] expected = Files.readAllBytes(pack.resolveSibling(pack.getFileName().toString().replace(".pack", ".idx")));
+
+        for (int threads : new int[] { 1, 8 }) {
+            for (long cacheLimit : new long[] { 0, PackIndexer.DEFAULT_CACHE_LIMIT }) {
+                Path copy = Files.createTempDirectory("index").resolve("copy.pack");
+                Files.copy(pack, copy);
+
+                // WHEN
+                var result = new PackIndexer(copy.getParent(), threads, cacheLimit).indexFile(copy);
+
+                // THEN
+                assertTrue(result.deltas() > 100);
+                assertTrue(result.objectsPerSecond() > 0);
+                assertArrayEquals(expected, Files.readAllBytes(result.idx()),
+                        "threads=%d cacheLimit=%d".formatted(threads, cacheLimit));
+            }
+        }
+    }
+
+    @Test
+    public void testCatFileBatchMatchesGit() throws IOException, GitException {
+        // GIVEN
+        Path root = packedRepository("batch");
+        var git = FsObjectDatabase.init(root);
+        byte[] content = "loose object\n".getBytes(UTF_8);
+        ObjectId loose = git.writeBlob(new ByteArrayInputStream(content), content.length);
+        var input = new StringBuilder();
+        for (var hash : allObjects(root)) {
+            input.append(hash.hex()).append('\n');
+        }
+        input.append(loose.hex()).append('\n');
+        input.append("HEAD\n").append("0".repeat(40)).append('\n').append("no-such-ref\n");
+        byte[] stdin = input.toString().getBytes(UTF_8);
+
+        for (boolean contents : new boolean[] { true, false }) {
+            var out = new ByteArrayOutputStream();
+
+            // WHEN
+            new CatFileBatch(FsObjectDatabase.open(root), contents).run(new ByteArrayInputStream(stdin), out);
+
+            // THEN
+            assertArrayEquals(git(root, stdin, "cat-file", contents ? "--batch" : "--batch-check"), out.toByteArray());
+        }
+    }
+}
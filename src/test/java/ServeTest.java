@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+public class ServeTest {
+    private static GitSmartServer serve(Path repo) throws Exception {
+        return new GitSmartServer(repo.getParent(), new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    private static String url(GitSmartServer server, Path repo) {
+        return "http://127.0.0.1:%d/%s".formatted(server.port(), repo.getFileName());
+    }
+
+    @Test
+    public void testGitClonesAndFetches() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        PackTest.git(remote, "tag", "-a", "-m", "first", "v1");
+        String branch = PackTest.gitString(remote, "symbolic-ref", "--short", "HEAD");
+        Path local = Files.createTempDirectory("clone").resolve("repo");
+        try (var server = serve(remote)) {
+            PackTest.git(local.getParent(), "-c", "protocol.version=2", "clone", "-q", url(server, remote),
+                    local.toString());
+            assertEquals(PackTest.gitString(remote, "rev-parse", "HEAD"), PackTest.gitString(local, "rev-parse", "HEAD"));
+            assertEquals(PackTest.gitString(remote, "rev-parse", "v1"), PackTest.gitString(local, "rev-parse", "v1"));
+            PackTest.git(local, "fsck", "--full", "--strict");
+            String old = PackTest.gitString(remote, "rev-parse", "HEAD");
+            for (int i = 0; i < 3; i++) {
+                Files.writeString(remote.resolve("file.txt"), "remote %d\n".formatted(i), StandardOpenOption.APPEND);
+                PackTest.git(remote, "commit", "-q", "-a", "-m", "remote %d".formatted(i));
+            }
+            PackTest.git(remote, "tag", "-a", "-m", "second", "v2");
+            int expected = PackTest.gitString(remote, "rev-list", "--objects", "HEAD", "^" + old).split("\n").length;
+
+            // WHEN
+            PackTest.git(local, "-c", "protocol.version=2", "-c", "fetch.unpackLimit=1000", "fetch", "-q", "origin");
+
+            // THEN
+            assertEquals(PackTest.gitString(remote, "rev-parse", "HEAD"),
+                    PackTest.gitString(local, "rev-parse", "refs/remotes/origin/" + branch));
+            assertEquals(PackTest.gitString(remote, "rev-parse", "v2"), PackTest.gitString(local, "rev-parse", "v2"));
+            // Only the new objects and the tag, unpacked as loose objects.
+            assertTrue(PackTest.gitString(local, "count-objects", "-v").contains("count: %d\n".formatted(expected + 1)));
+            PackTest.git(local, "fsck", "--full", "--strict");
+        }
+    }
+
+    @Test
+    public void testPackReusesStoredEntries() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        var git = FsObjectDatabase.open(remote);
+        var head = git.resolveRef("HEAD").orElseThrow();
+        var generator = new PackGenerator(git, git, false);
+        generator.add(List.of(head), List.of());
+        var out = new ByteArrayOutputStream();
+
+        // WHEN
+        var result = generator.write(out, true);
+
+        // THEN
+        assertEquals(PackTest.allObjects(remote).size(), result.objects());
+        assertEquals(result.objects(), result.reused() + result.reusedDeltas());
+        assertTrue(result.reusedDeltas() > 0);
+        Path packDir = Files.createTempDirectory("packs");
+        var indexed = new PackIndexer(packDir).index(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(result.reusedDeltas(), indexed.deltas());
+        PackTest.git(packDir, "verify-pack", indexed.idx().toString());
+    }
+
+    @Test
+    public void testPartialCloneFromServer() throws Exception {
+        // GIVEN
+        Path remote = PackTest.packedRepository("remote");
+        Path local = Files.createTempDirectory("partial").resolve("repo");
+        try (var server = serve(remote)) {
+            // WHEN
+            Main.cloneRepository(url(server, remote), local, Optional.of("blob:none"));
+            var missing = PackTest.gitString(local, "rev-list", "--objects", "--all", "--missing=print").lines()
+                    .filter(line -> line.startsWith("?")).map(line -> ObjectId.fromHex(line.substring(1))).toList();
+            var git = FsObjectDatabase.open(local);
+            assertFalse(missing.isEmpty());
+            byte[] blob;
+            try (var in = git.readBlob(missing.getFirst())) {
+                blob = in.readAllBytes();
+            }
+
+            // THEN
+            assertArrayEquals(PackTest.git(remote, "cat-file", "blob", missing.getFirst().hex()), blob);
+            assertEquals(PackTest.gitString(remote, "rev-parse", "HEAD"), PackTest.gitString(local, "rev-parse", "HEAD"));
+            assertArrayEquals(Files.readAllBytes(remote.resolve("file.txt")), Files.readAllBytes(local.resolve("file.txt")));
+        }
+    }
+}
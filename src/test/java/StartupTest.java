@@ -0,0 +1,125 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+public class StartupTest {
+    private static final String JAVA = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+
+    // Packs the compiled classes into a jar, since CDS archives can only hold
+    // classes loaded from jars.
+    private static Path buildJar(Path dir) throws IOException, URISyntaxException {
+        Path classes = Path.of(Main.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, "Main");
+        Path jar = dir.resolve("java_git.jar");
+        try (var out = new JarOutputStream(Files.newOutputStream(jar), manifest);
+                var files = Files.walk(classes)) {
+            for (var file : files.filter(Files::isRegularFile).toList()) {
+                out.putNextEntry(new JarEntry(classes.relativize(file).toString().replace('\\', '/')));
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static int java(Path dir, String... args) throws IOException {
+        var command = new ArrayList<String>();
+        command.add(JAVA);
+        command.addAll(List.of(args));
+        var process = new ProcessBuilder(command)
+                .directory(dir.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            return process.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Path train(Path jar) throws IOException {
+        Path archive = jar.resolveSibling("java_git.jsa");
+        Path scratch = Files.createDirectories(jar.resolveSibling("training"));
+        int status = java(scratch, "-XX:ArchiveClassesAtExit=" + archive, "-cp", jar.toString(), "CdsTraining");
+        assertEquals(0, status);
+        return archive;
+    }
+
+    @Test
+    public void testTrainingRunCreatesArchive() throws Exception {
+        // GIVEN
+        Path jar = buildJar(Files.createTempDirectory("cds"));
+
+        // WHEN
+        Path archive = train(jar);
+
+        // THEN
+        assertTrue(Files.size(archive) > 0);
+        Path repo = Files.createTempDirectory("cds-repo");
+        assertEquals(0, java(repo, "-XX:SharedArchiveFile=" + archive, "-Xshare:on", "-jar", jar.toString(), "init"));
+        assertTrue(Files.isDirectory(repo.resolve(".git/objects")));
+    }
+
+    // Prints the median wall-clock time of each subcommand, started as a new
+    // JVM, with and without the trained archive.
+    @Test
+    @EnabledIfSystemProperty(named = "benchmark", matches = "true")
+    public void benchmarkStartup() throws Exception {
+        Path jar = buildJar(Files.createTempDirectory("cds"));
+        Path archive = train(jar);
+        Path repo = PackTest.packedRepository("startup");
+        Files.writeString(repo.resolve("new.txt"), "benchmark\n");
+        var git = FsObjectDatabase.open(repo);
+        String head = git.resolveRef("HEAD").orElseThrow().hex();
+        String tree = PackTest.gitString(repo, "rev-parse", "HEAD^{tree}");
+        String blob = PackTest.gitString(repo, "rev-parse", "HEAD:file.txt");
+        List<List<String>> commands = List.of(
+                List.of("hash-object", "new.txt"),
+                List.of("cat-file", "-p", blob),
+                List.of("ls-tree", "--name-only", tree),
+                List.of("write-tree"),
+                List.of("commit-tree", tree, "-p", head, "-m", "benchmark"));
+        int runs = 7;
+        for (var command : commands) {
+            long[] plain = new long[runs];
+            long[] shared = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                plain[i] = time(repo, List.of("-jar", jar.toString()), command);
+                shared[i] = time(repo, List.of("-XX:SharedArchiveFile=" + archive, "-jar", jar.toString()), command);
+            }
+            System.out.printf("%-12s without archive: %4d ms   with archive: %4d ms%n",
+                    command.getFirst(), median(plain), median(shared));
+        }
+    }
+
+    private static long time(Path dir, List<String> jvmArgs, List<String> command) throws IOException {
+        var args = new ArrayList<>(jvmArgs);
+        args.addAll(command);
+        long start = System.nanoTime();
+        assertEquals(0, java(dir, args.toArray(String[]::new)), String.join(" ", command));
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
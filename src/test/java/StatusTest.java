@@ -0,0 +1,196 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+public class StatusTest {
+    private static Path workingTree(String prefix) throws IOException {
+        Path root = Files.createTempDirectory(prefix);
+        PackTest.git(root, "init", "-q");
+        for (int d = 0; d < 4; d++) {
+            for (int f = 0; f < 5; f++) {
+                Path file = root.resolve("dir%d/sub%d/file%d.txt".formatted(d, f % 2, f));
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, "directory %d file %d\n".formatted(d, f));
+            }
+        }
+        return root;
+    }
+
+    // Edits, adds, deletes, renames a directory, makes a file executable and
+    // replaces a file with a symlink.
+    private static void change(Path root) throws IOException {
+        Files.writeString(root.resolve("dir0/sub0/file0.txt"), "edited\n");
+        Files.createDirectories(root.resolve("new/deeper"));
+        Files.writeString(root.resolve("new/deeper/added.txt"), "added\n");
+        try (var paths = Files.walk(root.resolve("dir1"))) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+        Files.move(root.resolve("dir2"), root.resolve("moved"));
+        Files.setPosixFilePermissions(root.resolve("dir3/sub1/file1.txt"),
+                PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.delete(root.resolve("dir3/sub0/file2.txt"));
+        Files.createSymbolicLink(root.resolve("dir3/sub0/file2.txt"), Path.of("file0.txt"));
+    }
+
+    private static String gitWriteTree(Path root) throws IOException {
+        PackTest.git(root, "add", "-A");
+        return PackTest.gitString(root, "write-tree");
+    }
+
+    @Test
+    public void testWriteTreeTrustsChangeSource() throws IOException, GitException {
+        // GIVEN
+        Path root = workingTree("trust");
+        var git = FsObjectDatabase.open(root);
+        var asked = new ArrayList<String>();
+        git.setChangeSource(token -> {
+            asked.add(token);
+            return asked.size() == 1 ? ChangeSource.Changes.everything("t1")
+                    : new ChangeSource.Changes("t2", Optional.of(Set.of("dir0/sub0/file0.txt")));
+        });
+        ObjectId first = git.writeTree();
+        Files.writeString(root.resolve("dir0/sub0/file0.txt"), "edited\n");
+        Files.delete(root.resolve("dir0/sub0/file2.txt"));
+
+        // WHEN
+        ObjectId second = git.writeTree();
+
+        // THEN
+        assertEquals(List.of("", "t1"), asked);
+        assertNotEquals(first, second);
+        var entries = new TreeDiff(git).diff(first, second);
+        assertEquals(List.of("dir0/sub0/file0.txt"), entries.stream().map(TreeDiff.Change::newPath).toList());
+        assertEquals("t2", Files.readString(root.resolve(".git/fsmonitor-token"), UTF_8));
+    }
+
+    @Test
+    public void testJournaledWriteTreeMatchesGit() throws IOException, GitException {
+        // GIVEN
+        Path root = workingTree("journal");
+        var git = FsObjectDatabase.open(root);
+        try (var journal = ChangeJournal.start(root)) {
+            git.setChangeSource(journal);
+            assertEquals(gitWriteTree(root), git.writeTree().hex());
+            change(root);
+            // Status reads the journal too, but leaves it to write-tree.
+            assertTrue(WorkingTreeStatus.compute(git).contains(new WorkingTreeStatus.Entry('A', 'M',
+                    "dir0/sub0/file0.txt")));
+
+            // WHEN
+            var changes = journal.changesSince(Files.readString(root.resolve(".git/fsmonitor-token"), UTF_8));
+            ObjectId hash = git.writeTree();
+
+            // THEN
+            assertTrue(changes.paths().isPresent());
+            assertFalse(changes.paths().get().contains("dir0/sub1/file1.txt"));
+            assertTrue(changes.paths().get().containsAll(Set.of("dir0/sub0/file0.txt", "dir1", "dir2", "moved",
+                    "new", "dir3/sub1/file1.txt")));
+            assertEquals(gitWriteTree(root), hash.hex());
+        }
+    }
+
+    @Test
+    public void testStatusReadsOnlyChangedTrees() throws IOException, GitException {
+        // GIVEN
+        Path root = workingTree("unread");
+        PackTest.git(root, "add", "-A");
+        PackTest.git(root, "commit", "-q", "-m", "initial");
+        Files.writeString(root.resolve("dir0/sub0/file0.txt"), "staged\n");
+        PackTest.git(root, "add", "dir0/sub0/file0.txt");
+        Files.writeString(root.resolve("dir0/sub0/file2.txt"), "edited\n");
+        // Only the trees on the staged file's path are left to read.
+        for (var subtree : List.of("dir1", "dir2", "dir3", "dir0/sub1")) {
+            String hex = PackTest.gitString(root, "rev-parse", "HEAD:" + subtree);
+            Files.delete(root.resolve(".git/objects").resolve(hex.substring(0, 2)).resolve(hex.substring(2)));
+        }
+        var git = FsObjectDatabase.open(root);
+        git.setChangeSource(token -> new ChangeSource.Changes("t1", Optional.of(Set.of("dir0/sub0/file2.txt"))));
+
+        // WHEN
+        var status = WorkingTreeStatus.compute(git);
+
+        // THEN
+        assertEquals(List.of(new WorkingTreeStatus.Entry('M', ' ', "dir0/sub0/file0.txt"),
+                new WorkingTreeStatus.Entry(' ', 'M', "dir0/sub0/file2.txt")), status);
+    }
+
+    @Test
+    public void testJournalOverflowRequiresFullScan() throws IOException {
+        // GIVEN
+        Path root = workingTree("overflow");
+        try (var journal = ChangeJournal.start(root, 4)) {
+            String token = journal.changesSince("").token();
+
+            // WHEN
+            for (int i = 0; i < 10; i++) {
+                Files.writeString(root.resolve("file%d.txt".formatted(i)), "file %d\n".formatted(i));
+            }
+            var overflowed = journal.changesSince(token);
+            Files.writeString(root.resolve("file0.txt"), "again\n");
+            var next = journal.changesSince(overflowed.token());
+
+            // THEN
+            assertEquals(Optional.empty(), overflowed.paths());
+            assertEquals(Optional.of(Set.of("file0.txt")), next.paths());
+            assertEquals(Optional.empty(), journal.changesSince("stale:1").paths());
+        }
+    }
+
+    @Test
+    public void testStatusWithDaemon() throws Exception {
+        // GIVEN
+        Path root = workingTree("daemon");
+        Files.writeString(root.resolve(".git/config"), "[core]\n\tfsmonitor = true\n", UTF_8,
+                StandardOpenOption.APPEND);
+        PackTest.git(root, "add", "-A");
+        PackTest.git(root, "commit", "-q", "-m", "initial");
+        var daemon = Thread.ofVirtual().start(() -> {
+            try {
+                FsMonitor.serve(root);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Path socket = root.resolve(".git/fsmonitor--daemon.ipc");
+        while (!Files.exists(socket)) {
+            Thread.sleep(10);
+        }
+        assertEquals("", HistoryTest.run(root, "status"));
+        change(root);
+        PackTest.git(root, "rm", "-q", "--cached", "dir0/sub1/file1.txt");
+        byte[] index = Files.readAllBytes(root.resolve(".git/index"));
+        String objects = PackTest.gitString(root, "count-objects");
+
+        // WHEN
+        String status = HistoryTest.run(root, "status");
+
+        // THEN
+        assertArrayEquals(index, Files.readAllBytes(root.resolve(".git/index")));
+        assertEquals(objects, PackTest.gitString(root, "count-objects"));
+        assertEquals(PackTest.gitString(root, "-c", "core.fsmonitor=false", "status", "--porcelain",
+                "--untracked-files=all", "--no-renames"), status);
+        assertTrue(status.contains("?? new/deeper/added.txt"));
+        assertFalse(Files.exists(root.resolve(".git/fsmonitor-token")));
+        FsMonitor.stop(root);
+        daemon.join();
+        assertFalse(Files.exists(socket));
+    }
+}
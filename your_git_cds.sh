@@ -0,0 +1,14 @@
+#!/bin/sh
+#
+# Runs the CLI like your_git.sh, but starts the JVM from an AppCDS archive
+# trained during the build (see the appcds profile in pom.xml). The jar and
+# archive are only rebuilt when the sources have changed.
+set -e
+dir=/tmp/codecrafters-git-target
+project=$(dirname "$0")
+jar="$dir/java_git.jar"
+archive="$dir/java_git.jsa"
+if [ ! -f "$jar" ] || [ ! -f "$archive" ] || [ -n "$(find "$project/src/main" "$project/pom.xml" -newer "$archive" | head -n 1)" ]; then
+    (cd "$project" && mvn -B --quiet package -Pappcds -DskipTests -Ddir="$dir")
+fi
+exec java -XX:SharedArchiveFile="$archive" -Xshare:auto -jar "$jar" "$@"